@@ -39,7 +39,6 @@ import static jpcsp.Allegrex.Cp0State.STATUS_IE;
 import static jpcsp.Allegrex.FpuState.IMPLEMENT_ROUNDING_MODES;
 import static jpcsp.Allegrex.VfpuState.useAccurateVfpuDot;
 import static jpcsp.Allegrex.compiler.CompilerContext.arraycopyDescriptor;
-import static jpcsp.Allegrex.compiler.CompilerContext.runtimeContextInternalName;
 import static jpcsp.util.Utilities.hasFlag;
 
 import jpcsp.Emulator;
@@ -712,7 +711,7 @@ public String disasm(int address, int insn) {
 return "sync";
 }
 };
-public static final Instruction HALT = new Instruction(19) {
+public static final Instruction HALT = new Instruction(19, FLAG_MODIFIES_INTERRUPT_STATE) {
 
 @Override
 public final String name() { return "HALT"; }
@@ -732,7 +731,7 @@ public void interpret(Processor processor, int insn) {
 public void compile(ICompilerContext context, int insn) {
 	context.storePc();
 	context.loadProcessor();
-    context.invokeStaticMethod(runtimeContextInternalName, "executeHalt", "(" + Type.getDescriptor(Processor.class) + ")V");
+    context.invokeStaticMethod(context.getRuntimeContextInternalName(), "executeHalt", "(" + Type.getDescriptor(Processor.class) + ")V");
 }
 @Override
 public String disasm(int address, int insn) {
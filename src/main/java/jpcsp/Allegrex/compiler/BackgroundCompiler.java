@@ -0,0 +1,334 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.Allegrex.compiler;
+
+import static jpcsp.Allegrex.Common.Instruction.FLAG_SYSCALL;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jpcsp.util.Utilities;
+
+import org.slf4j.Logger;
+
+/**
+ * Tiered compilation of the CodeBlocks.
+ *
+ * A cold CodeBlock is first executed by the interpreter while its Java class
+ * is being generated by a pool of background threads. When the compilation
+ * is completed, the compiled executable is promoted by the emulator thread:
+ * the CodeBlock is registered in the RuntimeContext and the interpreted
+ * executable is replaced by the compiled one.
+ *
+ * @author gid15
+ *
+ */
+public class BackgroundCompiler {
+	private static Logger log = Compiler.log;
+	private static final int maxRetries = 2;
+	private static final int latencySamplesSize = 4096;
+	private final LinkedBlockingQueue<BackgroundCompilation> pendingCompilations = new LinkedBlockingQueue<BackgroundCompilation>();
+	private final ConcurrentLinkedQueue<BackgroundCompilation> completedCompilations = new ConcurrentLinkedQueue<BackgroundCompilation>();
+	private final AtomicInteger backgroundIndex = new AtomicInteger();
+	private CompilerThread[] threads;
+	private volatile boolean ended;
+	// Statistics, also read when exiting from another thread
+	private final AtomicLong queuedCount = new AtomicLong();
+	private final AtomicLong promotedCount = new AtomicLong();
+	private final AtomicLong discardedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final long[] latencySamplesMicros = new long[latencySamplesSize];
+	private int latencySamplesCount;
+
+	private static class BackgroundCompilation {
+		public final CompilerContext context;
+		public final CodeBlock codeBlock;
+		public final CodeBlock interpretedCodeBlock;
+		public final int resetCount;
+		public final long queuedNanos;
+		public int retries;
+		public IExecutable executable;
+		public boolean retryable;
+
+		public BackgroundCompilation(CompilerContext context, CodeBlock codeBlock, CodeBlock interpretedCodeBlock, int retries) {
+			this.context = context;
+			this.codeBlock = codeBlock;
+			this.interpretedCodeBlock = interpretedCodeBlock;
+			this.retries = retries;
+			resetCount = Compiler.getResetCount();
+			queuedNanos = System.nanoTime();
+		}
+
+		public void compile() {
+			try {
+				executable = codeBlock.getExecutable(context);
+			} catch (ClassFormatError e) {
+				// Catch exception
+				//     java.lang.ClassFormatError: Invalid method Code length nnnnnn in class file XXXX
+				logException(e);
+				retryable = true;
+			} catch (NullPointerException e) {
+				logException(e);
+			} catch (VerifyError e) {
+				logException(e);
+			} catch (RuntimeException e) {
+				// Catch exception
+				//     java.lang.RuntimeException: Method code too large!
+				logException(e);
+				retryable = true;
+			}
+		}
+
+		private void logException(Throwable e) {
+			if (log.isDebugEnabled()) {
+				log.debug(String.format("Catched exception '%s' while compiling in background %s", e.toString(), codeBlock));
+			}
+		}
+
+		@Override
+		public String toString() {
+			return codeBlock.toString();
+		}
+	}
+
+	private class CompilerThread extends Thread {
+		@Override
+		public void run() {
+			RuntimeContext.setLog4jMDC(getName());
+
+			while (!ended) {
+				BackgroundCompilation compilation = null;
+				try {
+					compilation = pendingCompilations.poll(100, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					// Ignore Exception
+				}
+
+				if (compilation != null && compilation.resetCount == Compiler.getResetCount()) {
+					compilation.compile();
+					addLatencySample((System.nanoTime() - compilation.queuedNanos) / 1000);
+					completedCompilations.add(compilation);
+				}
+			}
+		}
+	}
+
+	public void start(int numberThreads) {
+		if (threads != null) {
+			return;
+		}
+
+		numberThreads = Math.max(numberThreads, 1);
+		ended = false;
+		threads = new CompilerThread[numberThreads];
+		for (int i = 0; i < numberThreads; i++) {
+			CompilerThread thread = new CompilerThread();
+			thread.setName(String.format("Background Compiler #%d", i + 1));
+			thread.setDaemon(true);
+			// The emulator thread has the priority over the compilation
+			thread.setPriority(Thread.NORM_PRIORITY - 1);
+			threads[i] = thread;
+			thread.start();
+		}
+
+		log.info(String.format("Background compilation started with %d thread(s)", numberThreads));
+	}
+
+	public void exit() {
+		ended = true;
+		threads = null;
+
+		if (queuedCount.get() > 0) {
+			log.info(String.valueOf(this));
+		}
+	}
+
+	public void reset() {
+		pendingCompilations.clear();
+		completedCompilations.clear();
+	}
+
+	public boolean isStarted() {
+		return threads != null;
+	}
+
+	/**
+	 * Check if the given code block can be executed by the interpreter
+	 * while being compiled in the background.
+	 *
+	 * @param codeBlock the analysed code block
+	 * @return true if the code block can be compiled in the background
+	 *         false if the code block has to be compiled immediately
+	 */
+	public boolean canCompile(CodeBlock codeBlock) {
+		// Syscalls have a specific handling in the compiled code (thread switching)
+		if (codeBlock.hasFlags(FLAG_SYSCALL)) {
+			return false;
+		}
+
+		if (codeBlock.isInternal()) {
+			return false;
+		}
+
+		// HLE functions are logging their parameters from the compiled code
+		if (Utilities.getHLEFunctionByAddress(codeBlock.getStartAddress()) != null) {
+			return false;
+		}
+
+		// The debugger and the LLE interrupts are only checked by the compiled code
+		if (RuntimeContext.enableDebugger || RuntimeContextLLE.isLLEActive()) {
+			return false;
+		}
+
+		return true;
+	}
+
+	public int getNextBackgroundIndex() {
+		return backgroundIndex.getAndIncrement();
+	}
+
+	/**
+	 * Queue the compilation of an analysed code block.
+	 * Must be called from the emulator thread.
+	 */
+	public void submit(CompilerContext context, CodeBlock codeBlock, CodeBlock interpretedCodeBlock) {
+		submit(new BackgroundCompilation(context, codeBlock, interpretedCodeBlock, maxRetries));
+	}
+
+	private void submit(BackgroundCompilation compilation) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Queuing background compilation of %s", compilation));
+		}
+
+		// Capture the opcodes from the emulator thread: the background thread
+		// is compiling these opcodes and the promotion is checking them.
+		compilation.codeBlock.updateOpcodes();
+
+		queuedCount.incrementAndGet();
+		pendingCompilations.add(compilation);
+	}
+
+	public boolean hasCompletedCompilations() {
+		return !completedCompilations.isEmpty();
+	}
+
+	/**
+	 * Promote the completed compilations.
+	 * Must be called from the emulator thread.
+	 */
+	public void promoteCompletedCompilations() {
+		while (true) {
+			BackgroundCompilation compilation = completedCompilations.poll();
+			if (compilation == null) {
+				break;
+			}
+
+			promote(compilation);
+		}
+	}
+
+	private void promote(BackgroundCompilation compilation) {
+		CodeBlock codeBlock = compilation.codeBlock;
+		CodeBlock interpretedCodeBlock = compilation.interpretedCodeBlock;
+		int startAddress = codeBlock.getStartAddress();
+
+		// Has the emulator been reset or has the interpreted code block been replaced
+		// since the compilation has been queued?
+		if (compilation.resetCount != Compiler.getResetCount() || RuntimeContext.getCodeBlock(startAddress) != interpretedCodeBlock || interpretedCodeBlock.getExecutable() == null) {
+			if (log.isDebugEnabled()) {
+				log.debug(String.format("Discarding background compilation of %s", compilation));
+			}
+			discardedCount.incrementAndGet();
+			return;
+		}
+
+		Compiler compiler = Compiler.getInstance();
+		if (compilation.executable == null) {
+			if (compilation.retryable && compilation.retries > 0) {
+				// Try again with stricter methodMaxInstructions (75% of current value)
+				int methodMaxInstructions = compilation.context.getMethodMaxInstructions() * 3 / 4;
+				resubmit(compiler, compilation, methodMaxInstructions);
+			} else {
+				if (log.isDebugEnabled()) {
+					log.debug(String.format("Background compilation of %s failed, keeping the interpreter", compilation));
+				}
+				failedCount.incrementAndGet();
+				compiler.addInterpretedAddresses(compilation.context.analysedAddresses);
+			}
+			return;
+		}
+
+		// The opcodes could have been modified by the application while being compiled
+		if (codeBlock.isNoLongerValid()) {
+			discardedCount.incrementAndGet();
+			if (compilation.retries > 0) {
+				resubmit(compiler, compilation, compilation.context.getMethodMaxInstructions());
+			}
+			return;
+		}
+
+		codeBlock.addCodeBlock();
+		interpretedCodeBlock.getExecutable().setExecutable(compilation.executable);
+		promotedCount.incrementAndGet();
+
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Promoted background compilation of %s after %dus", compilation, (System.nanoTime() - compilation.queuedNanos) / 1000));
+		}
+	}
+
+	private void resubmit(Compiler compiler, BackgroundCompilation compilation, int methodMaxInstructions) {
+		CodeBlock interpretedCodeBlock = compilation.interpretedCodeBlock;
+		CompilerContext context = new CompilerContext(compilation.context.getClassLoader(), interpretedCodeBlock.getInstanceIndex());
+		context.setMethodMaxInstructions(methodMaxInstructions);
+
+		CodeBlock codeBlock = compiler.analyseForBackgroundCompilation(context, interpretedCodeBlock.getStartAddress(), interpretedCodeBlock.getInstanceIndex());
+		if (codeBlock != null) {
+			submit(new BackgroundCompilation(context, codeBlock, interpretedCodeBlock, compilation.retries - 1));
+		}
+	}
+
+	private void addLatencySample(long latencyMicros) {
+		synchronized (latencySamplesMicros) {
+			latencySamplesMicros[latencySamplesCount % latencySamplesSize] = latencyMicros;
+			latencySamplesCount++;
+		}
+	}
+
+	private static long percentile(long[] sortedSamples, int percent) {
+		if (sortedSamples.length == 0) {
+			return 0L;
+		}
+
+		int index = (sortedSamples.length * percent + 99) / 100 - 1;
+		return sortedSamples[Math.max(0, Math.min(index, sortedSamples.length - 1))];
+	}
+
+	@Override
+	public String toString() {
+		long[] samples;
+		synchronized (latencySamplesMicros) {
+			samples = Arrays.copyOf(latencySamplesMicros, Math.min(latencySamplesCount, latencySamplesSize));
+		}
+		Arrays.sort(samples);
+
+		return String.format("Background compilation: %d queued, %d promoted, %d discarded, %d failed, %d pending, latency p50=%dus, p90=%dus, p99=%dus, max=%dus", queuedCount.get(), promotedCount.get(), discardedCount.get(), failedCount.get(), pendingCompilations.size(), percentile(samples, 50), percentile(samples, 90), percentile(samples, 99), percentile(samples, 100));
+	}
+}
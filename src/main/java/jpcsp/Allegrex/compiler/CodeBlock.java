@@ -74,6 +74,7 @@ public class CodeBlock {
 	private HLEModuleFunction hleFunction;
 	private IAction updateOpcodesAction;
 	private final boolean debuggerEnabled;
+	private int backgroundCompilationIndex = -1;
 
 	public CodeBlock(int startAddress, int instanceIndex) {
 		this.startAddress = startAddress;
@@ -189,7 +190,16 @@ public class CodeBlock {
 		return memoryRanges.getValue(address);
 	}
 
+	public int[] getOpcodes() {
+		return memoryRanges.getValues();
+	}
+
 	public String getClassName() {
+		if (isBackgroundCompilation()) {
+			// A CodeBlock compiled in the background is replacing an interpreted class
+			// having the same address and instance index: use a different class name.
+			return CompilerContext.getBackgroundClassName(getStartAddress(), getInstanceIndex(), backgroundCompilationIndex);
+		}
 	    return CompilerContext.getClassName(getStartAddress(), getInstanceIndex());
 	}
 
@@ -371,6 +381,12 @@ public class CodeBlock {
 
     private void scanNativeCodeSequences(CompilerContext context) {
     	NativeCodeManager nativeCodeManager = context.getNativeCodeManager();
+    	if (log.isDebugEnabled()) {
+    		nativeCodeManager.compareNativeCodeSequences(codeInstructions, this);
+    	}
+
+    	long start = System.nanoTime();
+    	int numberInstructions = codeInstructions.size();
     	for (ListIterator<CodeInstruction> lit = codeInstructions.listIterator(); lit.hasNext(); ) {
     		CodeInstruction codeInstruction = lit.next();
     		NativeCodeSequence nativeCodeSequence = nativeCodeManager.getNativeCodeSequence(codeInstruction, this);
@@ -419,12 +435,20 @@ public class CodeBlock {
     			}
     		}
     	}
+    	nativeCodeManager.addScanStatistics(numberInstructions, System.nanoTime() - start);
     }
 
     private void prepare(CompilerContext context, int methodMaxInstructions) {
-    	memoryRanges.updateValues();
+    	// The opcodes of a background compilation have been captured
+    	// by the emulator thread when the code block was submitted.
+    	if (!isBackgroundCompilation()) {
+    		memoryRanges.updateValues();
+    	}
 
-    	scanNativeCodeSequences(context);
+    	// The native code sequences are only matching code of the main processor
+    	if (!context.isMediaEngine()) {
+    		scanNativeCodeSequences(context);
+    	}
 
     	if (codeInstructions.size() > methodMaxInstructions) {
             if (log.isDebugEnabled()) {
@@ -434,8 +458,29 @@ public class CodeBlock {
         }
     }
 
+    private void addStaticFields(CompilerContext context, ClassVisitor cv) {
+    	for (int address : context.getLinkedAddresses()) {
+            // private static CodeBlockLink link0xXXXXXXXX;
+            FieldVisitor fv = cv.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, context.getLinkFieldName(address), CompilerContext.codeBlockLinkDescriptor, null, null);
+            fv.visitEnd();
+    	}
+
+    	for (int address : context.getMMIOHandlerAddresses()) {
+            // private static IMMIOHandler mmio0xXXXXXXXX;
+            FieldVisitor fv = cv.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, context.getMMIOHandlerFieldName(address), CompilerContext.mmioHandlerDescriptor, null, null);
+            fv.visitEnd();
+    	}
+
+    	if (context.isHotRegionCounterUsed()) {
+            // private static int hotRegionCounter;
+            FieldVisitor fv = cv.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, CompilerContext.hotRegionCounterFieldName, "I", null, null);
+            fv.visitEnd();
+    	}
+    }
+
     private void compile(CompilerContext context, MethodVisitor mv, List<CodeInstruction> codeInstructions) {
     	context.optimizeSequence(codeInstructions);
+    	context.propagateConstants(codeInstructions);
 
     	int numberInstructionsToBeSkipped = 0;
         for (CodeInstruction codeInstruction : codeInstructions) {
@@ -523,6 +568,23 @@ public class CodeBlock {
 			}
 		}
 
+        CodeBlockCache codeBlockCache = Compiler.getInstance().getCodeBlockCache();
+        // The Media Engine code blocks are not cached, they would be
+        // conflicting with the main processor code blocks at the same address.
+        boolean cacheable = !context.isMediaEngine() && codeBlockCache.isCacheable(this);
+        if (cacheable) {
+        	if (!isBackgroundCompilation()) {
+        		memoryRanges.updateValues();
+        	}
+        	byte[] cachedClassBytes = codeBlockCache.getClassBytes(this, getInstanceIndex(), className);
+        	if (cachedClassBytes != null) {
+        		compiledClass = loadExecutable(context, className, cachedClassBytes);
+        		if (compiledClass != null) {
+        			return compiledClass;
+        		}
+        	}
+        }
+
         prepare(context, context.getMethodMaxInstructions());
 
         currentSequence = null;
@@ -551,6 +613,7 @@ public class CodeBlock {
     	MethodVisitor mv = cv.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, context.getStaticExecMethodName(), context.getStaticExecMethodDesc(), null, exceptions);
         mv.visitCode();
         context.setMethodVisitor(mv);
+        context.allocateLocalRegisters(codeInstructions);
         context.startMethod();
 
         // Jump to the block start if other instructions have been inserted in front
@@ -573,6 +636,7 @@ public class CodeBlock {
             mv = cv.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, sequenceCodeInstruction.getMethodName(context), "()V", null, exceptions);
             mv.visitCode();
             context.setMethodVisitor(mv);
+            context.allocateLocalRegisters(sequenceCodeInstruction.getCodeSequence().getInstructions());
             context.startSequenceMethod();
 
             compile(context, mv, sequenceCodeInstruction.getCodeSequence().getInstructions());
@@ -583,6 +647,8 @@ public class CodeBlock {
         }
         currentSequence = null;
 
+        addStaticFields(context, cv);
+
         cv.visitEnd();
 
     	if (debugOutput != null) {
@@ -590,7 +656,11 @@ public class CodeBlock {
     	}
 
     	try {
-    		compiledClass = loadExecutable(context, className, cw.toByteArray());
+    		byte[] classBytes = cw.toByteArray();
+    		compiledClass = loadExecutable(context, className, classBytes);
+    		if (cacheable && compiledClass != null && !context.isNativeCodeBlockUsed()) {
+    			codeBlockCache.addClassBytes(this, getInstanceIndex(), className, classBytes);
+    		}
     	} catch (NullPointerException e) {
     		log.error("Error while compiling " + className + ": " + e);
     	}
@@ -660,6 +730,14 @@ public class CodeBlock {
 		this.interpretedOpcodes = interpretedOpcodes;
 	}
 
+	/**
+	 * Capture the current opcodes of the code block.
+	 * Must be called from the emulator thread.
+	 */
+	public void updateOpcodes() {
+		memoryRanges.updateValues();
+	}
+
 	private boolean areOpcodesChanged() {
 		return memoryRanges.areValuesChanged();
 	}
@@ -708,6 +786,14 @@ public class CodeBlock {
 		return hleFunction != null;
 	}
 
+	public boolean isBackgroundCompilation() {
+		return backgroundCompilationIndex >= 0;
+	}
+
+	public void setBackgroundCompilationIndex(int backgroundCompilationIndex) {
+		this.backgroundCompilationIndex = backgroundCompilationIndex;
+	}
+
 	public IAction getUpdateOpcodesAction() {
 		return updateOpcodesAction;
 	}
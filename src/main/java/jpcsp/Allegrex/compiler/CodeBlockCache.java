@@ -0,0 +1,479 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.Allegrex.compiler;
+
+import static jpcsp.Allegrex.Common.Instruction.FLAG_SYSCALL;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jpcsp.Memory;
+import jpcsp.State;
+import jpcsp.settings.Settings;
+import jpcsp.util.DurationStatistics;
+import jpcsp.util.Utilities;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.slf4j.Logger;
+
+/**
+ * Persistent cache of the compiled CodeBlock classes.
+ *
+ * The generated bytecode is stored per game, keyed by the code block start address,
+ * by the opcodes it covers and by the compilation flags it depends on.
+ * A cached class is only reused when the opcodes currently in memory
+ * are identical to the ones it was compiled from and when it
+ * has been compiled with the current compilation flags.
+ *
+ * The hit/not present/changed counts are reported by the Profiler.
+ *
+ * @author gid15
+ *
+ */
+public class CodeBlockCache {
+	private static Logger log = Compiler.log;
+	private static final int FILE_MAGIC = 0x4342434A; // "JCBC"
+	// The version has to be increased each time the generated code is changed
+	private static final int FILE_VERSION = 2;
+	private static final String FILE_NAME = "CodeBlockCache.bin";
+	// Keep a few versions per address, e.g. for overlays
+	private static final int maxEntriesPerAddress = 4;
+	private static final Pattern classNamePattern = Pattern.compile("_S1_(\\d+)_0x([0-9A-F]{8})");
+	private final Map<Integer, List<CodeBlockCacheEntry>> entries = new HashMap<Integer, List<CodeBlockCacheEntry>>();
+	private boolean enabled;
+	private String loadedDiscId;
+	// The cache file of the loaded game, State.discId is already
+	// changed when saving the cache of the previous game
+	private File loadedFile;
+	private boolean modified;
+	// Statistics, updated by the background compiler threads
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong changedCount = new AtomicLong();
+	// The compilation flags the generated code is depending on
+	private static final int FLAG_MEMORY_INT = 0x001;
+	private static final int FLAG_IGNORE_INVALID_MEMORY = 0x002;
+	private static final int FLAG_REGISTER_CACHING = 0x004;
+	private static final int FLAG_BLOCK_LINKING = 0x008;
+	private static final int FLAG_HOT_REGIONS = 0x010;
+	private static final int FLAG_HOT_REGION = 0x020;
+	private static final int FLAG_CONSTANT_PROPAGATION = 0x040;
+	private static final int FLAG_MMIO = 0x100;
+	private static final int FLAG_PROFILER = 0x200;
+
+	private static class CodeBlockCacheEntry {
+		public final int instanceIndex;
+		public final String className;
+		public final int compilationFlags;
+		public final int[] opcodes;
+		public final int hashCode;
+		public final byte[] classBytes;
+
+		public CodeBlockCacheEntry(int instanceIndex, String className, int compilationFlags, int[] opcodes, byte[] classBytes) {
+			this.instanceIndex = instanceIndex;
+			this.className = className;
+			this.compilationFlags = compilationFlags;
+			this.opcodes = opcodes;
+			this.classBytes = classBytes;
+			hashCode = Arrays.hashCode(opcodes);
+		}
+
+		public boolean isMatching(int compilationFlags, int[] opcodes, int hashCode) {
+			return this.compilationFlags == compilationFlags && this.hashCode == hashCode && Arrays.equals(this.opcodes, opcodes);
+		}
+	}
+
+	/**
+	 * Rename the class and the references to the other code blocks
+	 * when the cached class has been compiled for a different instance index.
+	 */
+	private static class RenameClassVisitor extends ClassVisitor {
+		private final String oldClassName;
+		private final String newClassName;
+		private final int oldInstanceIndex;
+		private final int newInstanceIndex;
+
+		public RenameClassVisitor(ClassVisitor cv, String oldClassName, String newClassName, int oldInstanceIndex, int newInstanceIndex) {
+			super(Opcodes.ASM9, cv);
+			this.oldClassName = oldClassName;
+			this.newClassName = newClassName;
+			this.oldInstanceIndex = oldInstanceIndex;
+			this.newInstanceIndex = newInstanceIndex;
+		}
+
+		private String rename(String name) {
+			if (oldClassName.equals(name)) {
+				return newClassName;
+			}
+
+			if (oldInstanceIndex != newInstanceIndex) {
+				Matcher matcher = classNamePattern.matcher(name);
+				if (matcher.matches() && Integer.parseInt(matcher.group(1)) == oldInstanceIndex) {
+					return CompilerContext.getClassName((int) Long.parseLong(matcher.group(2), 16), newInstanceIndex);
+				}
+			}
+
+			return name;
+		}
+
+		@Override
+		public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+			super.visit(version, access, rename(name), signature, superName, interfaces);
+		}
+
+		@Override
+		public void visitSource(String source, String debug) {
+			super.visitSource(newClassName + ".java", debug);
+		}
+
+		@Override
+		public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+			return new MethodVisitor(Opcodes.ASM9, super.visitMethod(access, name, descriptor, signature, exceptions)) {
+				@Override
+				public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+					super.visitFieldInsn(opcode, rename(owner), name, descriptor);
+				}
+
+				@Override
+				public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+					super.visitMethodInsn(opcode, rename(owner), name, descriptor, isInterface);
+				}
+			};
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Check if the class generated for the code block is only depending
+	 * on the opcodes and can be reused across sessions.
+	 *
+	 * @param codeBlock the code block being compiled
+	 * @return true if the code block class can be cached
+	 */
+	public boolean isCacheable(CodeBlock codeBlock) {
+		if (!enabled || loadedDiscId == null) {
+			return false;
+		}
+
+		// The generated code is depending on the debugging options
+		if (RuntimeContext.enableDebugger || RuntimeContext.debugCodeBlockCalls || DurationStatistics.collectStatistics) {
+			return false;
+		}
+
+		// The generated code is depending on the LLE state
+		if (RuntimeContextLLE.isLLEActive() || RuntimeContextLLE.hasMMIO()) {
+			return false;
+		}
+
+		// The syscall numbers and the HLE functions are depending on the loaded modules
+		if (codeBlock.hasFlags(FLAG_SYSCALL) || codeBlock.isInternal() || Utilities.getHLEFunctionByAddress(codeBlock.getStartAddress()) != null) {
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * The generated code is depending on these flags in addition to the opcodes.
+	 *
+	 * @param codeBlock the code block being compiled
+	 * @return the compilation flags
+	 */
+	private static int getCompilationFlags(CodeBlock codeBlock) {
+		Compiler compiler = Compiler.getInstance();
+		int flags = 0;
+		if (RuntimeContext.hasMemoryInt()) {
+			flags |= FLAG_MEMORY_INT;
+		}
+		if (compiler.isIgnoreInvalidMemory()) {
+			flags |= FLAG_IGNORE_INVALID_MEMORY;
+		}
+		if (compiler.isRegisterCachingEnabled()) {
+			flags |= FLAG_REGISTER_CACHING;
+		}
+		if (compiler.isBlockLinkingEnabled()) {
+			flags |= FLAG_BLOCK_LINKING;
+		}
+		if (compiler.isHotRegionsEnabled()) {
+			flags |= FLAG_HOT_REGIONS;
+		}
+		if (compiler.isHotRegion(codeBlock.getStartAddress())) {
+			flags |= FLAG_HOT_REGION;
+		}
+		if (compiler.isConstantPropagationEnabled()) {
+			flags |= FLAG_CONSTANT_PROPAGATION;
+		}
+		if (RuntimeContextLLE.hasMMIO()) {
+			flags |= FLAG_MMIO;
+		}
+		if (Profiler.isProfilerEnabled()) {
+			flags |= FLAG_PROFILER;
+		}
+
+		return flags;
+	}
+
+	/**
+	 * Search for a cached class matching the opcodes of the code block.
+	 * The opcode values of the code block have to be updated first.
+	 *
+	 * @param codeBlock     the code block being compiled
+	 * @param instanceIndex the instance index used for the references to other code blocks
+	 * @param className     the name of the class to be defined
+	 * @return the class bytes, or null if not found in the cache
+	 */
+	public byte[] getClassBytes(CodeBlock codeBlock, int instanceIndex, String className) {
+		List<CodeBlockCacheEntry> addressEntries;
+		synchronized (entries) {
+			addressEntries = entries.get(codeBlock.getStartAddress() & Memory.addressMask);
+		}
+
+		if (addressEntries == null) {
+			missCount.incrementAndGet();
+			return null;
+		}
+
+		int compilationFlags = getCompilationFlags(codeBlock);
+		int[] opcodes = codeBlock.getOpcodes();
+		int hashCode = Arrays.hashCode(opcodes);
+		CodeBlockCacheEntry entry = null;
+		synchronized (entries) {
+			for (CodeBlockCacheEntry addressEntry : addressEntries) {
+				if (addressEntry.isMatching(compilationFlags, opcodes, hashCode)) {
+					entry = addressEntry;
+					break;
+				}
+			}
+		}
+
+		if (entry == null) {
+			// The opcodes or the compilation flags have been modified since the class has been cached
+			changedCount.incrementAndGet();
+			return null;
+		}
+
+		hitCount.incrementAndGet();
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Using cached class %s for %s", entry.className, className));
+		}
+
+		if (entry.className.equals(className) && entry.instanceIndex == instanceIndex) {
+			return entry.classBytes;
+		}
+
+		ClassReader cr = new ClassReader(entry.classBytes);
+		ClassWriter cw = new ClassWriter(0);
+		cr.accept(new RenameClassVisitor(cw, entry.className, className, entry.instanceIndex, instanceIndex), 0);
+
+		return cw.toByteArray();
+	}
+
+	public void addClassBytes(CodeBlock codeBlock, int instanceIndex, String className, byte[] classBytes) {
+		int address = codeBlock.getStartAddress() & Memory.addressMask;
+		CodeBlockCacheEntry entry = new CodeBlockCacheEntry(instanceIndex, className, getCompilationFlags(codeBlock), codeBlock.getOpcodes(), classBytes);
+
+		synchronized (entries) {
+			addEntry(address, entry);
+			modified = true;
+		}
+	}
+
+	private void addEntry(int address, CodeBlockCacheEntry entry) {
+		List<CodeBlockCacheEntry> addressEntries = entries.get(address);
+		if (addressEntries == null) {
+			addressEntries = new LinkedList<CodeBlockCacheEntry>();
+			entries.put(address, addressEntries);
+		} else {
+			for (CodeBlockCacheEntry addressEntry : addressEntries) {
+				if (addressEntry.isMatching(entry.compilationFlags, entry.opcodes, entry.hashCode)) {
+					// Already cached
+					return;
+				}
+			}
+
+			if (addressEntries.size() >= maxEntriesPerAddress) {
+				// Remove the oldest entry
+				addressEntries.remove(0);
+			}
+		}
+
+		addressEntries.add(entry);
+	}
+
+	/**
+	 * Preload the cache of the current game.
+	 */
+	public void load() {
+		if (!enabled) {
+			return;
+		}
+
+		String discId = State.discId;
+		if (discId != null && discId.equals(loadedDiscId)) {
+			// Already loaded
+			return;
+		}
+
+		// Save the cache of the previous game
+		save();
+
+		synchronized (entries) {
+			entries.clear();
+			modified = false;
+		}
+		loadedDiscId = null;
+		loadedFile = null;
+		resetStatistics();
+
+		if (!State.isKnownDiscId(discId)) {
+			return;
+		}
+		loadedDiscId = discId;
+
+		File file = Settings.getInstance().getDiscTmpFile(FILE_NAME);
+		loadedFile = file;
+		if (!file.canRead()) {
+			return;
+		}
+
+		int count = 0;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+				log.warn(String.format("Ignoring incompatible code block cache %s", file));
+				return;
+			}
+
+			int numberEntries = in.readInt();
+			synchronized (entries) {
+				for (int i = 0; i < numberEntries; i++) {
+					int address = in.readInt();
+					int instanceIndex = in.readInt();
+					String className = in.readUTF();
+					int compilationFlags = in.readInt();
+					int[] opcodes = new int[in.readInt()];
+					for (int j = 0; j < opcodes.length; j++) {
+						opcodes[j] = in.readInt();
+					}
+					byte[] classBytes = new byte[in.readInt()];
+					in.readFully(classBytes);
+
+					addEntry(address, new CodeBlockCacheEntry(instanceIndex, className, compilationFlags, opcodes, classBytes));
+					count++;
+				}
+			}
+		} catch (IOException e) {
+			log.error(String.format("Error while reading the code block cache %s", file), e);
+		} finally {
+			Utilities.close(in);
+		}
+
+		log.info(String.format("Loaded %d code blocks from cache %s", count, file));
+	}
+
+	/**
+	 * Write the cache of the current game, if it has been modified.
+	 */
+	public void save() {
+		if (loadedFile == null || !modified) {
+			return;
+		}
+
+		File file = loadedFile;
+		file.getParentFile().mkdirs();
+
+		int count = 0;
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			synchronized (entries) {
+				int numberEntries = 0;
+				for (List<CodeBlockCacheEntry> addressEntries : entries.values()) {
+					numberEntries += addressEntries.size();
+				}
+				out.writeInt(numberEntries);
+
+				for (Map.Entry<Integer, List<CodeBlockCacheEntry>> mapEntry : entries.entrySet()) {
+					int address = mapEntry.getKey().intValue();
+					for (CodeBlockCacheEntry entry : mapEntry.getValue()) {
+						out.writeInt(address);
+						out.writeInt(entry.instanceIndex);
+						out.writeUTF(entry.className);
+						out.writeInt(entry.compilationFlags);
+						out.writeInt(entry.opcodes.length);
+						for (int opcode : entry.opcodes) {
+							out.writeInt(opcode);
+						}
+						out.writeInt(entry.classBytes.length);
+						out.write(entry.classBytes);
+						count++;
+					}
+				}
+				modified = false;
+			}
+		} catch (IOException e) {
+			log.error(String.format("Error while writing the code block cache %s", file), e);
+		} finally {
+			Utilities.close(out);
+		}
+
+		log.info(String.format("Saved %d code blocks to cache %s", count, file));
+	}
+
+	public void resetStatistics() {
+		hitCount.set(0L);
+		missCount.set(0L);
+		changedCount.set(0L);
+	}
+
+	public boolean hasStatistics() {
+		return hitCount.get() > 0L || missCount.get() > 0L || changedCount.get() > 0L;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Code block cache: %d hits, %d not present, %d changed", hitCount.get(), missCount.get(), changedCount.get());
+	}
+}
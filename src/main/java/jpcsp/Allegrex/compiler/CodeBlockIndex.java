@@ -0,0 +1,216 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.Allegrex.compiler;
+
+import static jpcsp.Memory.addressMask;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Page-granular index of the CodeBlocks, by address range.
+ *
+ * Each page of the indexed memory area is referencing the CodeBlocks
+ * whose range [lowestAddress..highestAddress] is overlapping with the page,
+ * so that searching the CodeBlocks overlapping with an address range
+ * only requires to visit the pages of that range.
+ * CodeBlocks located outside of the indexed memory area are kept in a separate list.
+ *
+ * A CodeBlock must be removed from the index before being freed,
+ * as its range is used to find its pages.
+ *
+ * @author gid15
+ *
+ */
+public class CodeBlockIndex {
+	public static final int pageShift = 8;
+	private static final int pageSize = 1 << pageShift;
+	private final int startAddress;
+	private final int endAddress;
+	private final List<CodeBlock>[] pages;
+	private final List<CodeBlock> outsideCodeBlocks = new LinkedList<CodeBlock>();
+	// Range of the pages currently used
+	private int lowestPageIndex;
+	private int highestPageIndex;
+	private int size;
+
+	public CodeBlockIndex(int startAddress, int length) {
+		this.startAddress = startAddress & addressMask;
+		endAddress = this.startAddress + length - 1;
+		pages = newPages((length + pageSize - 1) >> pageShift);
+		resetPageRange();
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static List<CodeBlock>[] newPages(int length) {
+		return new List[length];
+	}
+
+	private void resetPageRange() {
+		lowestPageIndex = Integer.MAX_VALUE;
+		highestPageIndex = Integer.MIN_VALUE;
+	}
+
+	private boolean isInside(int lowestAddress, int highestAddress) {
+		return lowestAddress >= startAddress && highestAddress <= endAddress && lowestAddress <= highestAddress;
+	}
+
+	private int getPageIndex(int address) {
+		return (address - startAddress) >> pageShift;
+	}
+
+	public synchronized void add(CodeBlock codeBlock) {
+		int lowestAddress = codeBlock.getLowestAddress() & addressMask;
+		int highestAddress = codeBlock.getHighestAddress() & addressMask;
+
+		size++;
+		if (!isInside(lowestAddress, highestAddress)) {
+			outsideCodeBlocks.add(codeBlock);
+			return;
+		}
+
+		int startIndex = getPageIndex(lowestAddress);
+		int endIndex = getPageIndex(highestAddress);
+		for (int i = startIndex; i <= endIndex; i++) {
+			List<CodeBlock> page = pages[i];
+			if (page == null) {
+				page = new ArrayList<CodeBlock>(2);
+				pages[i] = page;
+			}
+			page.add(codeBlock);
+		}
+
+		lowestPageIndex = Math.min(lowestPageIndex, startIndex);
+		highestPageIndex = Math.max(highestPageIndex, endIndex);
+	}
+
+	public synchronized boolean remove(CodeBlock codeBlock) {
+		int lowestAddress = codeBlock.getLowestAddress() & addressMask;
+		int highestAddress = codeBlock.getHighestAddress() & addressMask;
+
+		boolean removed = false;
+		if (!isInside(lowestAddress, highestAddress)) {
+			removed = outsideCodeBlocks.remove(codeBlock);
+		} else {
+			int startIndex = getPageIndex(lowestAddress);
+			int endIndex = getPageIndex(highestAddress);
+			for (int i = startIndex; i <= endIndex; i++) {
+				List<CodeBlock> page = pages[i];
+				if (page != null && page.remove(codeBlock)) {
+					removed = true;
+					if (page.isEmpty()) {
+						pages[i] = null;
+					}
+				}
+			}
+		}
+
+		if (removed) {
+			size--;
+			if (size == 0) {
+				resetPageRange();
+			}
+		}
+
+		return removed;
+	}
+
+	public synchronized void clear() {
+		Arrays.fill(pages, null);
+		outsideCodeBlocks.clear();
+		resetPageRange();
+		size = 0;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Add to the given list the CodeBlocks from the pages [startIndex..endIndex].
+	 * A CodeBlock spanning several pages is only added once.
+	 */
+	private void addCodeBlocks(int startIndex, int endIndex, List<CodeBlock> result) {
+		startIndex = Math.max(startIndex, lowestPageIndex);
+		endIndex = Math.min(endIndex, highestPageIndex);
+		for (int i = startIndex; i <= endIndex; i++) {
+			List<CodeBlock> page = pages[i];
+			if (page != null) {
+				for (CodeBlock codeBlock : page) {
+					// Only add the CodeBlock from its first visited page
+					int firstPageIndex = Math.max(getPageIndex(codeBlock.getLowestAddress() & addressMask), startIndex);
+					if (firstPageIndex == i) {
+						result.add(codeBlock);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Search the CodeBlocks whose range is overlapping with the given address range.
+	 * The caller has to check the exact overlapping, e.g. using
+	 * CodeBlock.isOverlappingWithAddressRange().
+	 *
+	 * @param address the start of the address range
+	 * @param length  the length of the address range, in bytes
+	 * @param result  the list where the found CodeBlocks are added
+	 */
+	public synchronized void getCodeBlocks(int address, int length, List<CodeBlock> result) {
+		if (length <= 0) {
+			return;
+		}
+
+		address &= addressMask;
+		int lastAddress = address + length - 1;
+
+		if (size > outsideCodeBlocks.size() && lastAddress >= startAddress && address <= endAddress) {
+			int startIndex = getPageIndex(Math.max(address, startAddress));
+			int endIndex = getPageIndex(Math.min(lastAddress, endAddress));
+			addCodeBlocks(startIndex, endIndex, result);
+		}
+
+		for (CodeBlock codeBlock : outsideCodeBlocks) {
+			if ((codeBlock.getLowestAddress() & addressMask) <= lastAddress && (codeBlock.getHighestAddress() & addressMask) >= address) {
+				result.add(codeBlock);
+			}
+		}
+	}
+
+	/**
+	 * Search the CodeBlocks having instructions at or above the given address.
+	 *
+	 * @param address the lowest address
+	 * @param result  the list where the found CodeBlocks are added
+	 */
+	public synchronized void getCodeBlocksAbove(int address, List<CodeBlock> result) {
+		address &= addressMask;
+
+		if (size > outsideCodeBlocks.size() && address <= endAddress) {
+			int startIndex = getPageIndex(Math.max(address, startAddress));
+			addCodeBlocks(startIndex, pages.length - 1, result);
+		}
+
+		for (CodeBlock codeBlock : outsideCodeBlocks) {
+			if ((codeBlock.getHighestAddress() & addressMask) >= address) {
+				result.add(codeBlock);
+			}
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.Allegrex.compiler;
+
+/**
+ * Direct link to the executable of a code block.
+ *
+ * A compiled code block leaving its code to a constant address
+ * (e.g. a branch or a jump outside of the code block) is continuing directly
+ * with the linked executable, instead of returning the address to its caller
+ * which would then search the executable matching the address.
+ *
+ * One link is shared by all the code blocks jumping to the same address.
+ * The generated code keeps a reference to the link in a static field.
+ * The link is reset when the linked code block is invalidated or replaced,
+ * and the executable is searched again at the next jump.
+ *
+ * @author gid15
+ *
+ */
+public class CodeBlockLink {
+	private final int address;
+	private volatile IExecutable executable;
+	private volatile boolean detached;
+
+	public CodeBlockLink(int address) {
+		this.address = address;
+	}
+
+	public int getAddress() {
+		return address;
+	}
+
+	public boolean isLinked() {
+		return executable != null;
+	}
+
+	public void unlink() {
+		executable = null;
+	}
+
+	/**
+	 * The link is no longer registered in the RuntimeContext and would not
+	 * be unlinked anymore when its code block is invalidated.
+	 * A detached link is always letting the caller handle the jump.
+	 */
+	public void detach() {
+		detached = true;
+		executable = null;
+	}
+
+	/**
+	 * Continue the execution at the linked code block.
+	 *
+	 * @param jumpAddress the address being jumped to
+	 * @return            the address where to continue the execution,
+	 *                    as returned by IExecutable.exec()
+	 * @throws Exception
+	 */
+	public int jump(int jumpAddress) throws Exception {
+		if (detached || RuntimeContext.isPendingReturnAddress(jumpAddress)) {
+			// Let the caller handle the jump, e.g. the jump() loop
+			// has to stop at its return address
+			return jumpAddress;
+		}
+
+		IExecutable executable = this.executable;
+		if (executable == null) {
+			executable = RuntimeContext.getExecutable(jumpAddress);
+			if (executable == null) {
+				// Let the caller handle the jump
+				return jumpAddress;
+			}
+			this.executable = executable;
+		}
+
+		return RuntimeContext.jumpLinked(executable, jumpAddress);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("CodeBlockLink 0x%08X%s", address, isLinked() ? " (linked)" : "");
+	}
+}
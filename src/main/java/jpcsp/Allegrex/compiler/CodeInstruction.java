@@ -194,7 +194,7 @@ public class CodeInstruction {
         	context.compileEret();
         } else if (interpretAllVfpuInstructions && insn.category().startsWith("VFPU")) {
         	context.visitIntepreterCall(opcode, insn);
-	    } else {
+	    } else if (!context.compileConstantInstruction(this)) {
 		    insn.compile(context, getOpcode());
 	    }
 
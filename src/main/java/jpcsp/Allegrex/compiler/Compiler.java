@@ -25,9 +25,14 @@ import static jpcsp.util.HLEUtilities.BREAK;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -144,18 +149,40 @@ import org.xml.sax.SAXException;
 public class Compiler implements ICompiler {
     public static Logger log = LoggerFactory.getLogger("compiler");
 	private static Compiler instance;
-	private static int resetCount = 0;
+	// Also read by the background compiler threads
+	private static volatile int resetCount = 0;
 	private static final int opcodeBreak0 = BREAK(0);
 	private CompilerClassLoader classLoader;
 	public static CpuDurationStatistics compileDuration = new CpuDurationStatistics("Compilation Time");
+	// Only used by the Media Engine thread
+	public static CpuDurationStatistics meCompileDuration = new CpuDurationStatistics("Media Engine Compilation Time");
 	private Document configuration;
 	private NativeCodeManager nativeCodeManager;
     private boolean ignoreInvalidMemory = false;
     public int defaultMethodMaxInstructions = 3000;
     private static final int maxRecompileExecutable = 50;
     private CompilerTypeManager compilerTypeManager;
-    private HashSet<Integer> interpretedAddresses = new HashSet<Integer>();
-    private Set<Integer> useMMIOAddresses = new HashSet<Integer>();
+    // Also read by the Media Engine thread when analysing its code blocks
+    private final Set<Integer> interpretedAddresses = ConcurrentHashMap.newKeySet();
+    // The instruction addresses using MMIO, as a bit set of the instructions for each 4KB page.
+    // Synchronized as the code blocks can be analysed outside of the emulator thread.
+    private static final int useMMIOPageShift = 12;
+    private final Map<Integer, BitSet> useMMIOPages = new HashMap<Integer, BitSet>();
+    private final BackgroundCompiler backgroundCompiler = new BackgroundCompiler();
+    private boolean backgroundCompilationEnabled = false;
+    private int backgroundCompilerThreads = 1;
+    private final CodeBlockCache codeBlockCache = new CodeBlockCache();
+    private boolean registerCachingEnabled = false;
+    private boolean blockLinkingEnabled = false;
+    private boolean hotRegionsEnabled = false;
+    private boolean constantPropagationEnabled = false;
+    private boolean mediaEngineEnabled = false;
+    private boolean predecodedInterpreterEnabled = false;
+    // Number of jumps leaving a code block before recompiling it as a hot region
+    public static final int hotRegionThreshold = 10000;
+    // Maximum number of jump targets merged into a hot region
+    private static final int hotRegionMaxJumps = 16;
+    private final Set<Integer> hotRegionAddresses = new HashSet<Integer>();
 
 	private class IgnoreInvalidMemoryAccessSettingsListerner extends AbstractBoolSettingsListener {
 		@Override
@@ -171,7 +198,70 @@ public class Compiler implements ICompiler {
 		}
 	}
 
-    private boolean isIgnoreInvalidMemory() {
+	private class BackgroundCompilationSettingsListerner extends AbstractBoolSettingsListener {
+		@Override
+		protected void settingsValueChanged(boolean value) {
+			setBackgroundCompilationEnabled(value);
+		}
+	}
+
+	private class BackgroundCompilerThreadsSettingsListerner extends AbstractIntSettingsListener {
+		@Override
+		protected void settingsValueChanged(int value) {
+			setBackgroundCompilerThreads(value);
+		}
+	}
+
+	private class CodeBlockCacheSettingsListerner extends AbstractBoolSettingsListener {
+		@Override
+		protected void settingsValueChanged(boolean value) {
+			codeBlockCache.setEnabled(value);
+		}
+	}
+
+	private class RegisterCachingSettingsListerner extends AbstractBoolSettingsListener {
+		@Override
+		protected void settingsValueChanged(boolean value) {
+			setRegisterCachingEnabled(value);
+		}
+	}
+
+	private class BlockLinkingSettingsListerner extends AbstractBoolSettingsListener {
+		@Override
+		protected void settingsValueChanged(boolean value) {
+			setBlockLinkingEnabled(value);
+		}
+	}
+
+	private class HotRegionsSettingsListerner extends AbstractBoolSettingsListener {
+		@Override
+		protected void settingsValueChanged(boolean value) {
+			setHotRegionsEnabled(value);
+		}
+	}
+
+	private class ConstantPropagationSettingsListerner extends AbstractBoolSettingsListener {
+		@Override
+		protected void settingsValueChanged(boolean value) {
+			setConstantPropagationEnabled(value);
+		}
+	}
+
+	private class MediaEngineSettingsListerner extends AbstractBoolSettingsListener {
+		@Override
+		protected void settingsValueChanged(boolean value) {
+			setMediaEngineEnabled(value);
+		}
+	}
+
+	private class PredecodedInterpreterSettingsListerner extends AbstractBoolSettingsListener {
+		@Override
+		protected void settingsValueChanged(boolean value) {
+			setPredecodedInterpreterEnabled(value);
+		}
+	}
+
+    public boolean isIgnoreInvalidMemory() {
         return ignoreInvalidMemory;
     }
 
@@ -195,7 +285,13 @@ public class Compiler implements ICompiler {
 	    if (instance != null) {
 	    	if (DurationStatistics.collectStatistics) {
 	    		log.info(String.valueOf(compileDuration));
+	    		if (meCompileDuration.numberCalls > 0) {
+	    			log.info(String.valueOf(meCompileDuration));
+	    		}
 	    	}
+	    	instance.nativeCodeManager.exit();
+	    	instance.backgroundCompiler.exit();
+	    	instance.codeBlockCache.save();
 	    }
 	}
 
@@ -203,8 +299,13 @@ public class Compiler implements ICompiler {
 		resetCount++;
 		classLoader = new CompilerClassLoader(this);
 		compileDuration.reset();
+		meCompileDuration.reset();
 		nativeCodeManager.reset();
         interpretedAddresses.clear();
+        synchronized (hotRegionAddresses) {
+        	hotRegionAddresses.clear();
+        }
+        backgroundCompiler.reset();
 	}
 
     public boolean checkSimpleInterpretedCodeBlock(CodeBlock codeBlock) {
@@ -284,6 +385,9 @@ public class Compiler implements ICompiler {
     		}
     	}
 
+    	// The code blocks linked to this one will search again its executable
+    	RuntimeContext.unlinkCodeBlock(codeBlock.getStartAddress());
+
 		getNativeCodeManager().invalidateCompiledNativeCodeBlocks(codeBlock.getLowestAddress(), codeBlock.getHighestAddress());
     }
 
@@ -316,6 +420,15 @@ public class Compiler implements ICompiler {
     private void Initialise() {
     	Settings.getInstance().registerSettingsListener("Compiler", "emu.ignoreInvalidMemoryAccess", new IgnoreInvalidMemoryAccessSettingsListerner());
     	Settings.getInstance().registerSettingsListener("Compiler", "emu.compiler.methodMaxInstructions", new MethodMaxInstructionsSettingsListerner());
+    	Settings.getInstance().registerSettingsListener("Compiler", "emu.compiler.backgroundCompilerThreads", new BackgroundCompilerThreadsSettingsListerner());
+    	Settings.getInstance().registerSettingsListener("Compiler", "emu.compiler.backgroundCompilation", new BackgroundCompilationSettingsListerner());
+    	Settings.getInstance().registerSettingsListener("Compiler", "emu.compiler.codeBlockCache", new CodeBlockCacheSettingsListerner());
+    	Settings.getInstance().registerSettingsListener("Compiler", "emu.compiler.registerCaching", new RegisterCachingSettingsListerner());
+    	Settings.getInstance().registerSettingsListener("Compiler", "emu.compiler.blockLinking", new BlockLinkingSettingsListerner());
+    	Settings.getInstance().registerSettingsListener("Compiler", "emu.compiler.hotRegions", new HotRegionsSettingsListerner());
+    	Settings.getInstance().registerSettingsListener("Compiler", "emu.compiler.constantPropagation", new ConstantPropagationSettingsListerner());
+    	Settings.getInstance().registerSettingsListener("Compiler", "emu.compiler.mediaEngine", new MediaEngineSettingsListerner());
+    	Settings.getInstance().registerSettingsListener("Compiler", "emu.compiler.predecodedInterpreter", new PredecodedInterpreterSettingsListerner());
 
     	DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
 		documentBuilderFactory.setIgnoringElementContentWhitespace(true);
@@ -398,10 +511,36 @@ public class Compiler implements ICompiler {
 	}
 
 	private IExecutable analyse(CompilerContext context, int startAddress, boolean recursive, int instanceIndex) throws ClassFormatError {
+		CodeBlock codeBlock = analyseCodeBlock(context, startAddress, recursive, instanceIndex);
+		if (codeBlock == null) {
+			return null;
+		}
+
+		return compile(context, codeBlock);
+	}
+
+	private IExecutable compile(CompilerContext context, CodeBlock codeBlock) throws ClassFormatError {
+        codeBlock.addCodeBlock();
+
+        IExecutable executable;
+        if (RuntimeContext.isCompilerEnabled() || codeBlock.hasFlags(FLAG_SYSCALL)) {
+        	executable = codeBlock.getExecutable(context);
+        } else {
+        	executable = null;
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("Executable: " + executable);
+        }
+
+        return executable;
+	}
+
+	private CodeBlock analyseCodeBlock(CompilerContext context, int startAddress, boolean recursive, int instanceIndex) {
         if (log.isTraceEnabled()) {
             log.trace(String.format("Compiler.analyse Block 0x%08X", startAddress));
         }
         int maxBranchInstructions = Integer.MAX_VALUE; // 5 for FRONTIER_1337 homebrew
+        int hotRegionJumps = !context.isMediaEngine() && isHotRegion(startAddress) ? hotRegionMaxJumps : 0;
         MemorySections memorySections = MemorySections.getInstance();
         CodeBlock codeBlock = new CodeBlock(startAddress, instanceIndex);
         Stack<Integer> pendingBlockAddresses = new Stack<Integer>();
@@ -488,7 +627,13 @@ public class Compiler implements ICompiler {
 	                        	// section has to be interpreted at runtime to check if the
 	                        	// reached code has not been changed (i.e. invalidated).
                     			if (checkDynamicBranching && memorySections.canWrite(branchingTo, false)) {
-                        			analyseBranch = false;
+                    				// A hot region is including the jump targets, the code block
+                    				// will be invalidated if the reached code is changed.
+                    				if (hotRegionJumps > 0 && isAddressGood(branchingTo)) {
+                    					hotRegionJumps--;
+                    				} else {
+                    					analyseBranch = false;
+                    				}
                     			}
                     		}
 
@@ -503,7 +648,9 @@ public class Compiler implements ICompiler {
                         }
                     }
 
-                    boolean useMMIO = isUsingMMIO(pc);
+                    // All the Media Engine memory accesses are going through the Media Engine memory.
+                    // The MMIO pages are not accessed from the Media Engine thread.
+                    boolean useMMIO = context.isMediaEngine() || isUsingMMIO(pc);
 
                     codeBlock.addInstruction(pc, opcode, insn, isBranchTarget, isBranching, branchingTo, useMMIO);
                     pc = npc;
@@ -525,19 +672,128 @@ public class Compiler implements ICompiler {
 	        }
         }
 
-        codeBlock.addCodeBlock();
+        return codeBlock;
+	}
 
-        IExecutable executable;
-        if (RuntimeContext.isCompilerEnabled() || codeBlock.hasFlags(FLAG_SYSCALL)) {
-        	executable = codeBlock.getExecutable(context);
-        } else {
-        	executable = null;
-        }
-        if (log.isTraceEnabled()) {
-            log.trace("Executable: " + executable);
+	/**
+	 * Analyse a code block that will be compiled by the background compiler.
+	 * The code block is not registered in the RuntimeContext:
+	 * this will be done when promoting the compiled executable.
+	 *
+	 * @param context        the context used for the compilation
+	 * @param startAddress   the code block start address
+	 * @param instanceIndex  the instance index of the interpreted code block
+	 * @return               the analysed code block, or null if it cannot be
+	 *                       compiled in the background
+	 */
+	public CodeBlock analyseForBackgroundCompilation(CompilerContext context, int startAddress, int instanceIndex) {
+		CodeBlock codeBlock = analyseCodeBlock(context, startAddress, false, instanceIndex);
+		if (codeBlock == null || !backgroundCompiler.canCompile(codeBlock)) {
+			return null;
+		}
+
+		codeBlock.setBackgroundCompilationIndex(backgroundCompiler.getNextBackgroundIndex());
+
+		return codeBlock;
+	}
+
+	/**
+	 * Compile a code block executed by the Media Engine processor.
+	 * The code block is not registered in the RuntimeContext:
+	 * the Media Engine is keeping its own code blocks.
+	 *
+	 * This method is called from the Media Engine thread: it is not
+	 * accessing the Compiler state shared with the emulator thread
+	 * (interpreted addresses, MMIO pages, hot regions, native code blocks,
+	 * code block cache and compilation statistics).
+	 *
+	 * @param classLoader    the class loader of the Media Engine executables
+	 * @param startAddress   the code block start address
+	 * @return               the compiled code block, or null if the code block
+	 *                       cannot be compiled and has to be interpreted
+	 */
+	public CodeBlock compileMediaEngine(CompilerClassLoader classLoader, int startAddress) {
+		CodeBlock compiledCodeBlock = null;
+		CompilerContext context = new CompilerContext(classLoader, 0, true);
+
+		meCompileDuration.start();
+		for (int retries = 2; retries > 0; retries--) {
+			try {
+				CodeBlock codeBlock = analyseCodeBlock(context, startAddress, false, 0);
+				if (codeBlock != null && codeBlock.getExecutable(context) != null) {
+					compiledCodeBlock = codeBlock;
+				}
+				break;
+			} catch (ClassFormatError e) {
+				context = retryMediaEngineCompilation(context, classLoader, retries, e);
+			} catch (VerifyError e) {
+            	log.error(String.format("Catched exception '%s' while compiling Media Engine code 0x%08X", e.toString(), startAddress));
+            	break;
+			} catch (RuntimeException e) {
+				context = retryMediaEngineCompilation(context, classLoader, retries, e);
+			}
+		}
+		meCompileDuration.end();
+
+		return compiledCodeBlock;
+	}
+
+	private CompilerContext retryMediaEngineCompilation(CompilerContext context, CompilerClassLoader classLoader, int retries, Throwable e) {
+        int methodMaxInstructions = context.getMethodMaxInstructions() * 3 / 4;
+        if (log.isDebugEnabled()) {
+        	log.debug(String.format("Catched exception '%s' (can be ignored)", e.toString()));
+        	log.debug(String.format("Retrying Media Engine compilation again with maxInstruction=%d, retries left=%d...", methodMaxInstructions, retries - 1));
         }
+        context = new CompilerContext(classLoader, 0, true);
+        context.setMethodMaxInstructions(methodMaxInstructions);
 
-        return executable;
+        return context;
+	}
+
+	/**
+	 * Queue the compilation of an analysed code block in the background.
+	 *
+	 * @param context        the context used for the analysis and the compilation
+	 * @param codeBlock      the analysed code block
+	 * @param instanceIndex  the instance index of the code block
+	 * @return               the interpreted executable to be used until the
+	 *                       background compilation has been completed,
+	 *                       or null if the code block has to be compiled immediately
+	 */
+	private IExecutable compileInBackground(CompilerContext context, CodeBlock codeBlock, int instanceIndex) {
+		if (!backgroundCompiler.canCompile(codeBlock)) {
+			// Compile immediately
+			return null;
+		}
+
+		int address = codeBlock.getStartAddress();
+		codeBlock.setBackgroundCompilationIndex(backgroundCompiler.getNextBackgroundIndex());
+
+		// Execute the code block through the interpreter until
+		// the background compilation has been completed.
+		IExecutable executable = interpret(new CompilerContext(classLoader, instanceIndex), address, instanceIndex);
+		if (executable != null) {
+			if (!backgroundCompiler.isStarted()) {
+				backgroundCompiler.start(backgroundCompilerThreads);
+			}
+			backgroundCompiler.submit(context, codeBlock, RuntimeContext.getCodeBlock(address));
+		}
+
+		return executable;
+	}
+
+	/**
+	 * Promote the executables compiled in the background.
+	 * Must be called from the emulator thread.
+	 */
+	public void checkBackgroundCompilations() {
+		if (backgroundCompiler.hasCompletedCompilations()) {
+			backgroundCompiler.promoteCompletedCompilations();
+		}
+	}
+
+	public void addInterpretedAddresses(Collection<Integer> addresses) {
+		interpretedAddresses.addAll(addresses);
 	}
 
 	public void analyseRecursive(int startAddress, int instanceIndex) {
@@ -621,6 +877,8 @@ public class Compiler implements ICompiler {
         IExecutable executable = null;
         ClassFormatError error = null;
         RuntimeException exception = null;
+        // The code block already analysed when checking for a background compilation
+        CodeBlock analysedCodeBlock = null;
 
         if (interpretedAddresses.contains(address)) {
     		// Force an interpreter call
@@ -628,35 +886,62 @@ public class Compiler implements ICompiler {
         		log.debug(String.format("Forcing an interpreter call for address 0x%08X", address));
         	}
     	} else {
-	    	compileDuration.start();
-	        context = new CompilerContext(classLoader, instanceIndex);
-	        for (int retries = 2; retries > 0; retries--) {
-	            try {
-	            	lastContext = context;
-	                executable = analyse(context, address, false, instanceIndex);
-	                break;
-	            } catch (ClassFormatError e) {
-	                // Catch exception
-	                //     java.lang.ClassFormatError: Invalid method Code length nnnnnn in class file XXXX
-	                //
-	                error = e;
-
-	                context = retryCompilation(context, instanceIndex, retries, e);
-	            } catch (NullPointerException e) {
-	            	log.error(String.format("Catched exception '%s' while compiling 0x%08X (0x%08X-0x%08X)", e.toString(), address, context.getCodeBlock().getLowestAddress(), context.getCodeBlock().getHighestAddress()));
-	            	break;
-	            } catch (VerifyError e) {
-	            	log.error(String.format("Catched exception '%s' while compiling 0x%08X (0x%08X-0x%08X)", e.toString(), address, context.getCodeBlock().getLowestAddress(), context.getCodeBlock().getHighestAddress()));
-	            	break;
-	            } catch (RuntimeException e) {
-	            	// Catch exception
-	            	//     java.lang.RuntimeException: Method code too large!
-	                exception = e;
-
-	                context = retryCompilation(context, instanceIndex, retries, e);
-	            }
-	        }
-	        compileDuration.end();
+    		if (isBackgroundCompilationEnabled()) {
+    			context = new CompilerContext(classLoader, instanceIndex);
+    			analysedCodeBlock = analyseCodeBlock(context, address, false, instanceIndex);
+    			if (analysedCodeBlock != null) {
+	    			// The code block will be interpreted until its compilation in the background is completed
+	    			executable = compileInBackground(context, analysedCodeBlock, instanceIndex);
+	    			if (executable != null || analysedCodeBlock.isBackgroundCompilation()) {
+	    				// The analysed code block cannot be reused for the immediate compilation
+	    				analysedCodeBlock = null;
+	    				context = null;
+	    			}
+    			} else {
+    				context = null;
+    			}
+    		}
+
+    		if (executable == null) {
+		    	compileDuration.start();
+		    	if (context == null) {
+		    		context = new CompilerContext(classLoader, instanceIndex);
+		    	}
+		        for (int retries = 2; retries > 0; retries--) {
+		            try {
+		            	lastContext = context;
+		            	if (analysedCodeBlock != null) {
+		            		// Do not analyse the code block a second time
+		            		CodeBlock codeBlock = analysedCodeBlock;
+		            		analysedCodeBlock = null;
+		            		executable = compile(context, codeBlock);
+		            	} else {
+		            		executable = analyse(context, address, false, instanceIndex);
+		            	}
+		                break;
+		            } catch (ClassFormatError e) {
+		                // Catch exception
+		                //     java.lang.ClassFormatError: Invalid method Code length nnnnnn in class file XXXX
+		                //
+		                error = e;
+
+		                context = retryCompilation(context, instanceIndex, retries, e);
+		            } catch (NullPointerException e) {
+		            	log.error(String.format("Catched exception '%s' while compiling 0x%08X (0x%08X-0x%08X)", e.toString(), address, context.getCodeBlock().getLowestAddress(), context.getCodeBlock().getHighestAddress()));
+		            	break;
+		            } catch (VerifyError e) {
+		            	log.error(String.format("Catched exception '%s' while compiling 0x%08X (0x%08X-0x%08X)", e.toString(), address, context.getCodeBlock().getLowestAddress(), context.getCodeBlock().getHighestAddress()));
+		            	break;
+		            } catch (RuntimeException e) {
+		            	// Catch exception
+		            	//     java.lang.RuntimeException: Method code too large!
+		                exception = e;
+
+		                context = retryCompilation(context, instanceIndex, retries, e);
+		            }
+		        }
+		        compileDuration.end();
+    		}
     	}
 
         if (Profiler.isProfilerEnabled()) {
@@ -732,12 +1017,161 @@ public class Compiler implements ICompiler {
 	public void addMMIORange(int startAddress, int length) {
 		startAddress &= Memory.addressMask;
 
-		for (int i = 0; i < length; i += 4) {
-			useMMIOAddresses.add(startAddress + i);
+		synchronized (useMMIOPages) {
+			for (int i = 0; i < length; i += 4) {
+				int address = startAddress + i;
+				BitSet page = useMMIOPages.get(address >>> useMMIOPageShift);
+				if (page == null) {
+					page = new BitSet(1 << (useMMIOPageShift - 2));
+					useMMIOPages.put(address >>> useMMIOPageShift, page);
+				}
+				page.set((address & ((1 << useMMIOPageShift) - 1)) >> 2);
+			}
+		}
+	}
+
+	public boolean isBackgroundCompilationEnabled() {
+		return backgroundCompilationEnabled;
+	}
+
+	public void setBackgroundCompilationEnabled(boolean backgroundCompilationEnabled) {
+		this.backgroundCompilationEnabled = backgroundCompilationEnabled;
+
+		log.info(String.format("Compiler background compilation: %b", backgroundCompilationEnabled));
+	}
+
+	public void setBackgroundCompilerThreads(int backgroundCompilerThreads) {
+		if (backgroundCompilerThreads > 0) {
+			this.backgroundCompilerThreads = backgroundCompilerThreads;
+		}
+	}
+
+	public boolean isRegisterCachingEnabled() {
+		return registerCachingEnabled;
+	}
+
+	public void setRegisterCachingEnabled(boolean registerCachingEnabled) {
+		this.registerCachingEnabled = registerCachingEnabled;
+
+		log.info(String.format("Compiler register caching: %b", registerCachingEnabled));
+	}
+
+	public boolean isBlockLinkingEnabled() {
+		return blockLinkingEnabled;
+	}
+
+	public void setBlockLinkingEnabled(boolean blockLinkingEnabled) {
+		this.blockLinkingEnabled = blockLinkingEnabled;
+
+		log.info(String.format("Compiler block linking: %b", blockLinkingEnabled));
+	}
+
+	public boolean isHotRegionsEnabled() {
+		return hotRegionsEnabled;
+	}
+
+	public void setHotRegionsEnabled(boolean hotRegionsEnabled) {
+		this.hotRegionsEnabled = hotRegionsEnabled;
+
+		log.info(String.format("Compiler hot regions: %b", hotRegionsEnabled));
+	}
+
+	public boolean isConstantPropagationEnabled() {
+		return constantPropagationEnabled;
+	}
+
+	public void setConstantPropagationEnabled(boolean constantPropagationEnabled) {
+		this.constantPropagationEnabled = constantPropagationEnabled;
+
+		log.info(String.format("Compiler constant propagation: %b", constantPropagationEnabled));
+	}
+
+	/**
+	 * @return true if the code executed by the Media Engine processor is compiled
+	 */
+	public boolean isMediaEngineEnabled() {
+		return mediaEngineEnabled;
+	}
+
+	public void setMediaEngineEnabled(boolean mediaEngineEnabled) {
+		this.mediaEngineEnabled = mediaEngineEnabled;
+
+		log.info(String.format("Compiler Media Engine: %b", mediaEngineEnabled));
+	}
+
+	/**
+	 * @return true if the code blocks that are not compiled are interpreted
+	 *         from predecoded instruction sequences
+	 */
+	public boolean isPredecodedInterpreterEnabled() {
+		return predecodedInterpreterEnabled;
+	}
+
+	public void setPredecodedInterpreterEnabled(boolean predecodedInterpreterEnabled) {
+		this.predecodedInterpreterEnabled = predecodedInterpreterEnabled;
+
+		log.info(String.format("Compiler predecoded interpreter: %b", predecodedInterpreterEnabled));
+	}
+
+	/**
+	 * @param address the start address of a code block
+	 * @return        true if the code block is compiled as a hot region
+	 */
+	public boolean isHotRegion(int address) {
+		synchronized (hotRegionAddresses) {
+			return hotRegionAddresses.contains(address & Memory.addressMask);
+		}
+	}
+
+	/**
+	 * A code block is frequently leaving its code through jumps
+	 * to other code blocks, e.g. a game loop spanning several code blocks.
+	 * Recompile the code block at its next execution as a hot region:
+	 * the targets of its jumps are compiled into the same code block,
+	 * so that the loop is no longer dispatched between code blocks
+	 * at each iteration. The remaining jumps are side exits of the region.
+	 *
+	 * @param codeBlock the hot code block
+	 */
+	public void recompileHotRegion(CodeBlock codeBlock) {
+		if (!hotRegionsEnabled) {
+			return;
 		}
+
+		synchronized (hotRegionAddresses) {
+			if (!hotRegionAddresses.add(codeBlock.getStartAddress() & Memory.addressMask)) {
+				// Already a hot region
+				return;
+			}
+		}
+
+		IExecutable executable = codeBlock.getExecutable();
+		if (executable == null || executable.getExecutable() instanceof InvalidatedExecutable) {
+			// Interpreted or already being recompiled
+			return;
+		}
+
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Recompiling hot region %s", codeBlock));
+		}
+		Profiler.addHotRegion();
+
+		// Force a recompilation of the codeBlock at the next execution
+		executable.setExecutable(new RecompileExecutable(codeBlock));
+	}
+
+	public CodeBlockCache getCodeBlockCache() {
+		return codeBlockCache;
 	}
 
 	public boolean isUsingMMIO(int address) {
-		return useMMIOAddresses.contains(address & Memory.addressMask);
+		address &= Memory.addressMask;
+		synchronized (useMMIOPages) {
+			BitSet page = useMMIOPages.get(address >>> useMMIOPageShift);
+			if (page == null) {
+				return false;
+			}
+			return page.get((address & ((1 << useMMIOPageShift) - 1)) >> 2);
+		}
 	}
 }
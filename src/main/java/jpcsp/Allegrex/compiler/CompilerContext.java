@@ -101,9 +101,12 @@ import jpcsp.HLE.kernel.types.SceModule;
 import jpcsp.HLE.kernel.types.pspAbstractMemoryMappedStructure;
 import jpcsp.HLE.modules.ThreadManForUser;
 import jpcsp.HLE.modules.reboot;
+import jpcsp.mediaengine.MERuntimeContext;
 import jpcsp.memory.DebuggerMemory;
 import jpcsp.memory.FastMemory;
 import jpcsp.memory.SafeFastMemory;
+import jpcsp.memory.mmio.IMMIOHandler;
+import jpcsp.memory.mmio.MMIO;
 import jpcsp.util.ClassAnalyzer;
 import jpcsp.util.DurationStatistics;
 import jpcsp.util.ClassAnalyzer.ParameterInfo;
@@ -162,7 +165,8 @@ public class CompilerContext implements ICompilerContext {
     private final VfpuPfxDstState vfpuPfxdState = new VfpuPfxDstState();
     private Label interpretPfxLabel = null;
     private boolean pfxVdOverlap = false;
-    public static final String runtimeContextInternalName = Type.getInternalName(RuntimeContext.class);
+    private static final String mainRuntimeContextInternalName = Type.getInternalName(RuntimeContext.class);
+    private static final String meRuntimeContextInternalName = Type.getInternalName(MERuntimeContext.class);
     public static final String runtimeContextLLEInternalName = Type.getInternalName(RuntimeContextLLE.class);
     private static final String processorDescriptor = Type.getDescriptor(Processor.class);
     private static final String cpuDescriptor = Type.getDescriptor(CpuState.class);
@@ -176,28 +180,51 @@ public class CompilerContext implements ICompilerContext {
     private static final String memoryDescriptor = Type.getDescriptor(Memory.class);
     private static final String memoryInternalName = Type.getInternalName(Memory.class);
     private static final String profilerInternalName = Type.getInternalName(Profiler.class);
+    private static final String codeBlockLinkInternalName = Type.getInternalName(CodeBlockLink.class);
+    public  static final String hotRegionCounterFieldName = "hotRegionCounter";
+    public  static final String codeBlockLinkDescriptor = Type.getDescriptor(CodeBlockLink.class);
+    public  static final String mmioHandlerDescriptor = Type.getDescriptor(IMMIOHandler.class);
+    private static final String mmioHandlerInternalName = Type.getInternalName(IMMIOHandler.class);
 	public  static final String executableDescriptor = Type.getDescriptor(IExecutable.class);
 	public  static final String executableInternalName = Type.getInternalName(IExecutable.class);
 	public  static final String arraycopyDescriptor = "(" + Type.getDescriptor(Object.class) + "I" + Type.getDescriptor(Object.class) + "II)V";
 	private static Set<Integer> fastSyscalls;
 	private int instanceIndex;
+	// Compiling code executed by the Media Engine processor
+	private final boolean mediaEngine;
+	// The class holding the static processor, cpu and memory fields used by the compiled code,
+	// and the static methods depending on them
+	private final String runtimeContextInternalName;
 	private NativeCodeSequence preparedCallNativeCodeBlock = null;
 	private int maxStackSize = DEFAULT_MAX_STACK_SIZE;
 	private int maxLocalSize = LOCAL_MAX;
 	private boolean parametersSavedToLocals;
+	private LocalRegisterCache localRegisterCache;
+	private ConstantPropagation constantPropagation;
+	private boolean constantFolding;
+	private final Set<Integer> linkedAddresses = new TreeSet<Integer>();
+	private final Set<Integer> mmioHandlerAddresses = new TreeSet<Integer>();
+	private boolean hotRegionCounterUsed;
+	private boolean nativeCodeBlockUsed;
 	private CompilerTypeManager compilerTypeManager;
 
 	public CompilerContext(CompilerClassLoader classLoader, int instanceIndex) {
+		this(classLoader, instanceIndex, false);
+	}
+
+	public CompilerContext(CompilerClassLoader classLoader, int instanceIndex, boolean mediaEngine) {
     	Compiler compiler = Compiler.getInstance();
         this.classLoader = classLoader;
         this.instanceIndex = instanceIndex;
+        this.mediaEngine = mediaEngine;
+        runtimeContextInternalName = mediaEngine ? meRuntimeContextInternalName : mainRuntimeContextInternalName;
         nativeCodeManager = compiler.getNativeCodeManager();
         methodMaxInstructions = compiler.getDefaultMethodMaxInstructions();
         compilerTypeManager = compiler.getCompilerTypeManager();
 
         // Count instructions only when the profile is enabled or
         // when the statistics are enabled
-        if (Profiler.isProfilerEnabled() || DurationStatistics.collectStatistics) {
+        if ((Profiler.isProfilerEnabled() || DurationStatistics.collectStatistics) && !mediaEngine) {
         	enableIntructionCounting = true;
         }
 
@@ -232,6 +259,20 @@ public class CompilerContext implements ICompilerContext {
 		return classLoader;
 	}
 
+    /**
+     * @return true if compiling code executed by the Media Engine processor.
+     *         The compiled code is then always returning to the Media Engine
+     *         dispatcher when leaving the code block.
+     */
+    public boolean isMediaEngine() {
+    	return mediaEngine;
+    }
+
+    @Override
+    public String getRuntimeContextInternalName() {
+    	return runtimeContextInternalName;
+    }
+
 	public void setClassLoader(CompilerClassLoader classLoader) {
 		this.classLoader = classLoader;
 	}
@@ -271,7 +312,62 @@ public class CompilerContext implements ICompilerContext {
     }
 
     private void loadMMIO() {
-        invokeStaticMethod(runtimeContextLLEInternalName, "getMMIO", "()" + memoryDescriptor);
+    	if (isConstantMMIOHandler()) {
+    		loadMMIOHandler(getConstantMMIOAddress());
+    	} else if (mediaEngine) {
+    		// The memory of the Media Engine is an MMIO
+    		loadMemory();
+    	} else {
+    		invokeStaticMethod(runtimeContextLLEInternalName, "getMMIO", "()" + memoryDescriptor);
+    	}
+    }
+
+    /**
+     * Load the MMIO handler of a constant address, stored in a static field.
+     */
+    private void loadMMIOHandler(int address) {
+    	//     if (mmioHandler == null) {
+    	//         mmioHandler = RuntimeContextLLE.getMMIOHandler(address);
+    	//     }
+    	//     mmioHandler
+    	String fieldName = getMMIOHandlerFieldName(address);
+    	Label loaded = new Label();
+    	mv.visitFieldInsn(Opcodes.GETSTATIC, codeBlock.getClassName(), fieldName, mmioHandlerDescriptor);
+    	mv.visitInsn(Opcodes.DUP);
+    	mv.visitJumpInsn(Opcodes.IFNONNULL, loaded);
+    	mv.visitInsn(Opcodes.POP);
+    	loadImm(address);
+    	invokeStaticMethod(runtimeContextLLEInternalName, "getMMIOHandler", "(I)" + mmioHandlerDescriptor);
+    	mv.visitInsn(Opcodes.DUP);
+    	mv.visitFieldInsn(Opcodes.PUTSTATIC, codeBlock.getClassName(), fieldName, mmioHandlerDescriptor);
+    	mv.visitLabel(loaded);
+
+    	mmioHandlerAddresses.add(address);
+    }
+
+    /**
+     * Call a read or write method on the object loaded by loadMMIO(),
+     * loadMemory() or loadMemoryInt().
+     */
+    private void invokeMemoryMethod(String name, String descriptor) {
+    	if (useMMIO() && isConstantMMIOHandler()) {
+    		mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, mmioHandlerInternalName, name, descriptor, true);
+    	} else {
+    		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, memoryInternalName, name, descriptor, false);
+    	}
+    }
+
+    public String getMMIOHandlerFieldName(int address) {
+    	return String.format("mmio0x%08X", address);
+    }
+
+    /**
+     * @return the addresses of the MMIO handlers used by the compiled class,
+     *         a static field getMMIOHandlerFieldName(address) has to be added to the class
+     *         for each address.
+     */
+    public Set<Integer> getMMIOHandlerAddresses() {
+    	return mmioHandlerAddresses;
     }
 
     private void loadModule(String moduleName) {
@@ -296,6 +392,8 @@ public class CompilerContext implements ICompilerContext {
     public void loadRegister(int reg) {
     	if (reg == _zr) {
     		loadImm(0);
+    	} else if (localRegisterCache != null && localRegisterCache.isGprCached(reg)) {
+    		mv.visitVarInsn(Opcodes.ILOAD, localRegisterCache.getGprLocal(reg));
     	} else {
 	    	loadCpu();
 	        mv.visitFieldInsn(Opcodes.GETFIELD, cpuInternalName, getGprFieldName(reg), "I");
@@ -304,6 +402,11 @@ public class CompilerContext implements ICompilerContext {
 
     @Override
     public void loadFRegister(int reg) {
+    	if (localRegisterCache != null && localRegisterCache.isFprCached(reg)) {
+    		mv.visitVarInsn(Opcodes.FLOAD, localRegisterCache.getFprLocal(reg));
+    		return;
+    	}
+
     	loadFpr();
     	loadImm(reg);
         mv.visitInsn(Opcodes.FALOAD);
@@ -493,7 +596,10 @@ public class CompilerContext implements ICompilerContext {
 
     public void prepareRegisterForStore(int reg) {
     	if (preparedRegisterForStore < 0) {
-        	loadCpu();
+    		// Nothing to prepare when storing into a local variable
+    		if (localRegisterCache == null || !localRegisterCache.isGprCached(reg)) {
+    			loadCpu();
+    		}
     		preparedRegisterForStore = reg;
     	}
     }
@@ -503,7 +609,12 @@ public class CompilerContext implements ICompilerContext {
     }
 
     public void storeRegister(int reg) {
-    	if (preparedRegisterForStore == reg) {
+    	if (localRegisterCache != null && localRegisterCache.isGprCached(reg)) {
+    		mv.visitVarInsn(Opcodes.ISTORE, localRegisterCache.getGprLocal(reg));
+    		if (preparedRegisterForStore == reg) {
+    			preparedRegisterForStore = -1;
+    		}
+    	} else if (preparedRegisterForStore == reg) {
 	        mv.visitFieldInsn(Opcodes.PUTFIELD, cpuInternalName, getGprFieldName(reg), "I");
 	        preparedRegisterForStore = -1;
     	} else {
@@ -515,6 +626,15 @@ public class CompilerContext implements ICompilerContext {
 
     @Override
     public void storeRegister(int reg, int constantValue) {
+    	if (localRegisterCache != null && localRegisterCache.isGprCached(reg)) {
+    		if (preparedRegisterForStore == reg) {
+    			preparedRegisterForStore = -1;
+    		}
+    		loadImm(constantValue);
+    		mv.visitVarInsn(Opcodes.ISTORE, localRegisterCache.getGprLocal(reg));
+    		return;
+    	}
+
     	if (preparedRegisterForStore == reg) {
     		preparedRegisterForStore = -1;
     	} else {
@@ -526,14 +646,22 @@ public class CompilerContext implements ICompilerContext {
 
     public void prepareFRegisterForStore(int reg) {
     	if (preparedRegisterForStore < 0) {
-        	loadFpr();
-        	loadImm(reg);
+    		// Nothing to prepare when storing into a local variable
+    		if (localRegisterCache == null || !localRegisterCache.isFprCached(reg)) {
+	        	loadFpr();
+	        	loadImm(reg);
+    		}
     		preparedRegisterForStore = reg;
     	}
     }
 
     public void storeFRegister(int reg) {
-    	if (preparedRegisterForStore == reg) {
+    	if (localRegisterCache != null && localRegisterCache.isFprCached(reg)) {
+    		mv.visitVarInsn(Opcodes.FSTORE, localRegisterCache.getFprLocal(reg));
+    		if (preparedRegisterForStore == reg) {
+    			preparedRegisterForStore = -1;
+    		}
+    	} else if (preparedRegisterForStore == reg) {
 	        mv.visitInsn(Opcodes.FASTORE);
 	        preparedRegisterForStore = -1;
     	} else {
@@ -816,11 +944,11 @@ public class CompilerContext implements ICompilerContext {
         loadImm(returnAddress);
         visitJump(Opcodes.IF_ICMPEQ, isReturnAddress);
 
-        if (returnOnUnknownAddress) {
+        if (returnOnUnknownAddress || mediaEngine) {
         	visitJump();
         } else {
 	        loadImm(returnAddress);
-	        invokeStaticMethod(runtimeContextInternalName, "jump", "(II)V");
+	        invokeStaticMethod(mainRuntimeContextInternalName, "jump", "(II)V");
 	        mv.visitJumpInsn(Opcodes.GOTO, continueLabel);
         }
 
@@ -840,9 +968,13 @@ public class CompilerContext implements ICompilerContext {
         loadRegister(reg);
         visitJump(Opcodes.IF_ICMPEQ, isReturnAddress);
 
-        loadRegister(reg);
-        invokeStaticMethod(runtimeContextInternalName, "jump", "(II)V");
-        mv.visitJumpInsn(Opcodes.GOTO, continueLabel);
+        if (mediaEngine) {
+        	visitJump();
+        } else {
+	        loadRegister(reg);
+	        invokeStaticMethod(mainRuntimeContextInternalName, "jump", "(II)V");
+	        mv.visitJumpInsn(Opcodes.GOTO, continueLabel);
+        }
 
         mv.visitLabel(isReturnAddress);
         mv.visitInsn(Opcodes.POP);
@@ -850,11 +982,116 @@ public class CompilerContext implements ICompilerContext {
     }
 
     public void visitJump() {
+    	endJump();
+    	mv.visitInsn(Opcodes.IRETURN);
+    }
+
+    private void endJump() {
     	flushInstructionCount(true, false);
     	checkSync();
+    	writeBackLocalRegisters();
 
     	endMethod();
+    }
+
+    /**
+     * Jump to a constant address outside of the code block,
+     * continuing directly with the code block linked to this address.
+     */
+    private void visitLinkedJump(int address) {
+    	countHotRegionJump();
+
+    	if (!Compiler.getInstance().isBlockLinkingEnabled() || mediaEngine) {
+    		loadImm(address);
+    		visitJump();
+    		return;
+    	}
+
+    	loadImm(address);
+    	endJump();
+    	mv.visitInsn(Opcodes.POP);
+
+    	//     if (link == null) {
+    	//         link = RuntimeContext.getCodeBlockLink(address);
+    	//     }
+    	//     return link.jump(address);
+    	String linkFieldName = getLinkFieldName(address);
+    	Label linked = new Label();
+    	mv.visitFieldInsn(Opcodes.GETSTATIC, codeBlock.getClassName(), linkFieldName, codeBlockLinkDescriptor);
+    	mv.visitInsn(Opcodes.DUP);
+    	mv.visitJumpInsn(Opcodes.IFNONNULL, linked);
+    	mv.visitInsn(Opcodes.POP);
+    	loadImm(address);
+    	invokeStaticMethod(mainRuntimeContextInternalName, "getCodeBlockLink", "(I)" + codeBlockLinkDescriptor);
+    	mv.visitInsn(Opcodes.DUP);
+    	mv.visitFieldInsn(Opcodes.PUTSTATIC, codeBlock.getClassName(), linkFieldName, codeBlockLinkDescriptor);
+    	mv.visitLabel(linked);
+    	loadImm(address);
+    	mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, codeBlockLinkInternalName, "jump", "(I)I", false);
     	mv.visitInsn(Opcodes.IRETURN);
+
+    	linkedAddresses.add(address);
+    }
+
+    /**
+     * Count the jumps leaving the code block: each one is dispatched
+     * to another code block. When the count reaches the hot region threshold,
+     * the code block is recompiled as a hot region including the jump targets.
+     */
+    private void countHotRegionJump() {
+    	Compiler compiler = Compiler.getInstance();
+    	if (!compiler.isHotRegionsEnabled() || compiler.isHotRegion(codeBlock.getStartAddress()) || codeBlock.isHLEFunction() || mediaEngine) {
+    		return;
+    	}
+
+    	//     if (++hotRegionCounter == threshold) {
+    	//         RuntimeContext.hotRegion(startAddress);
+    	//     }
+    	Label notHot = new Label();
+    	mv.visitFieldInsn(Opcodes.GETSTATIC, codeBlock.getClassName(), hotRegionCounterFieldName, "I");
+    	mv.visitInsn(Opcodes.ICONST_1);
+    	mv.visitInsn(Opcodes.IADD);
+    	mv.visitInsn(Opcodes.DUP);
+    	mv.visitFieldInsn(Opcodes.PUTSTATIC, codeBlock.getClassName(), hotRegionCounterFieldName, "I");
+    	loadImm(Compiler.hotRegionThreshold);
+    	mv.visitJumpInsn(Opcodes.IF_ICMPNE, notHot);
+    	loadImm(codeBlock.getStartAddress());
+    	invokeStaticMethod(mainRuntimeContextInternalName, "hotRegion", "(I)V");
+    	mv.visitLabel(notHot);
+
+    	hotRegionCounterUsed = true;
+    }
+
+    /**
+     * @return true if the class is calling a native code block at another address
+     *         or is replacing the whole code block by a native code sequence.
+     *         Such a class is depending on the code at other addresses or
+     *         has to register its native code block when compiled,
+     *         it cannot be stored in the CodeBlockCache.
+     */
+    public boolean isNativeCodeBlockUsed() {
+    	return nativeCodeBlockUsed;
+    }
+
+    /**
+     * @return true if a static int field hotRegionCounterFieldName
+     *         has to be added to the class
+     */
+    public boolean isHotRegionCounterUsed() {
+    	return hotRegionCounterUsed;
+    }
+
+    public String getLinkFieldName(int address) {
+    	return String.format("link0x%08X", address);
+    }
+
+    /**
+     * @return the addresses of the code blocks linked by the compiled class,
+     *         a static field getLinkFieldName(address) has to be added to the class
+     *         for each address.
+     */
+    public Set<Integer> getLinkedAddresses() {
+    	return linkedAddresses;
     }
 
     public void prepareCall(int address, int returnAddress, int returnRegister) {
@@ -862,9 +1099,12 @@ public class CompilerContext implements ICompilerContext {
 
     	// Do not call native block directly if we are profiling,
         // this would loose profiler information
-        if (!Profiler.isProfilerEnabled()) {
+        if (!Profiler.isProfilerEnabled() && !mediaEngine) {
         	// Is a native equivalent for this CodeBlock available?
         	preparedCallNativeCodeBlock = nativeCodeManager.getCompiledNativeCodeBlock(address);
+        	if (preparedCallNativeCodeBlock != null) {
+        		nativeCodeBlockUsed = true;
+        	}
         }
 
         if (preparedCallNativeCodeBlock == null) {
@@ -899,6 +1139,10 @@ public class CompilerContext implements ICompilerContext {
 
     			visitNativeCodeSequence(preparedCallNativeCodeBlock, address, null);
     		}
+    	} else if (mediaEngine) {
+    		// Let the Media Engine dispatcher execute the called code block
+    		loadImm(address);
+    		visitJump();
     	} else {
 	        invokeStaticMethod(getClassName(address, instanceIndex), getStaticExecMethodName(), getStaticExecMethodDesc());
 	        visitContinueToAddress(returnAddress, returnOnUnknownAddress);
@@ -912,20 +1156,37 @@ public class CompilerContext implements ICompilerContext {
         if (returnRegister != _zr) {
             storeRegister(returnRegister, returnAddress);
         }
-        invokeStaticMethod(runtimeContextInternalName, "call", "(I)I");
+        if (mediaEngine) {
+        	// Let the Media Engine dispatcher execute the called code block
+        	visitJump();
+        	return;
+        }
+        invokeStaticMethod(mainRuntimeContextInternalName, "call", "(I)I");
         visitContinueToAddress(returnAddress, false);
     }
 
     public void visitCall(int address, String methodName) {
     	flushInstructionCount(false, false);
-        invokeStaticMethod(getClassName(address, instanceIndex), methodName, "()V");
+    	String className;
+    	if (address == codeBlock.getStartAddress()) {
+    		// Calling a method of the class being compiled
+    		className = codeBlock.getClassName();
+    	} else {
+    		className = getClassName(address, instanceIndex);
+    	}
+        // The sequence method is accessing the registers
+        writeBackLocalRegisters();
+        invokeStaticMethod(className, methodName, "()V");
+        reloadLocalRegisters();
     }
 
     public void visitIntepreterCall(int opcode, Instruction insn) {
+    	writeBackLocalRegisters();
     	loadInstruction(insn);
         loadProcessor();
         loadImm(opcode);
         mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, instructionInternalName, "interpret", "(" + processorDescriptor + "I)V", false);
+        reloadLocalRegisters();
     }
 
     private boolean isFastSyscall(int code) {
@@ -1020,7 +1281,7 @@ public class CompilerContext implements ICompilerContext {
     			}
     		}
     		loadImm(maxLength);
-   			invokeStaticMethod(runtimeContextInternalName, "readStringNZ", "(II)" + Type.getDescriptor(String.class));
+   			invokeStaticMethod(mainRuntimeContextInternalName, "readStringNZ", "(II)" + Type.getDescriptor(String.class));
     		parameterReader.incrementCurrentStackSize();
     	} else if (parameterType == PspString.class) {
     		parameterReader.loadNextInt();
@@ -1038,7 +1299,7 @@ public class CompilerContext implements ICompilerContext {
     		}
     		loadImm(maxLength);
     		loadImm(canBeNull);
-    		invokeStaticMethod(runtimeContextInternalName, "readPspStringNZ", "(IIZ)" + Type.getDescriptor(PspString.class));
+    		invokeStaticMethod(mainRuntimeContextInternalName, "readPspStringNZ", "(IIZ)" + Type.getDescriptor(PspString.class));
     		parameterReader.incrementCurrentStackSize();
     	} else if (parameterType == TPointer.class || parameterType == TPointer8.class || parameterType == TPointer16.class || parameterType == TPointer32.class || parameterType == TPointer64.class || parameterType == TErrorPointer32.class || parameterType == TPointerFunction.class) {
     		// if (checkMemoryAccess()) {
@@ -1082,7 +1343,7 @@ public class CompilerContext implements ICompilerContext {
     				mv.visitJumpInsn(Opcodes.IFEQ, addressGood);
     			}
     			mv.visitInsn(Opcodes.DUP);
-                invokeStaticMethod(runtimeContextInternalName, "checkMemoryPointer", "(I)Z");
+                invokeStaticMethod(mainRuntimeContextInternalName, "checkMemoryPointer", "(I)Z");
     			mv.visitJumpInsn(Opcodes.IFNE, addressGood);
     			storeRegister(_v0, SceKernelErrors.ERROR_INVALID_POINTER);
     			parameterReader.popAllStack(4);
@@ -1119,7 +1380,7 @@ public class CompilerContext implements ICompilerContext {
     				mv.visitJumpInsn(Opcodes.IFEQ, addressGood);
     			}
     			mv.visitInsn(Opcodes.DUP);
-                invokeStaticMethod(runtimeContextInternalName, "checkMemoryPointer", "(I)Z");
+                invokeStaticMethod(mainRuntimeContextInternalName, "checkMemoryPointer", "(I)Z");
     			mv.visitJumpInsn(Opcodes.IFNE, addressGood);
     			storeRegister(_v0, SceKernelErrors.ERROR_INVALID_POINTER);
     			parameterReader.popAllStack(1);
@@ -1658,7 +1919,7 @@ public class CompilerContext implements ICompilerContext {
 			                		if (debugMemory) {
 			                    		mv.visitInsn(Opcodes.DUP);
 			                    		loadImm(8);
-				                		invokeStaticMethod(runtimeContextInternalName, "debugMemory", "(II)V");
+				                		invokeStaticMethod(mainRuntimeContextInternalName, "debugMemory", "(II)V");
 			                		}
 			        		        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, memoryInternalName, "read64", "(I)J", false);
 			        				mv.visitTypeInsn(Opcodes.NEW, Type.getInternalName(Long.class));
@@ -1670,7 +1931,7 @@ public class CompilerContext implements ICompilerContext {
 			                		if (debugMemory) {
 			                    		mv.visitInsn(Opcodes.DUP);
 			                    		loadImm(2);
-				                		invokeStaticMethod(runtimeContextInternalName, "debugMemory", "(II)V");
+				                		invokeStaticMethod(mainRuntimeContextInternalName, "debugMemory", "(II)V");
 			                		}
 			        		        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, memoryInternalName, "read16", "(I)I", false);
 			        				mv.visitTypeInsn(Opcodes.NEW, Type.getInternalName(Integer.class));
@@ -1681,7 +1942,7 @@ public class CompilerContext implements ICompilerContext {
 			                		if (debugMemory) {
 			                    		mv.visitInsn(Opcodes.DUP);
 			                    		loadImm(4);
-				                		invokeStaticMethod(runtimeContextInternalName, "debugMemory", "(II)V");
+				                		invokeStaticMethod(mainRuntimeContextInternalName, "debugMemory", "(II)V");
 			                		}
 			        		        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, memoryInternalName, "read32", "(I)I", false);
 			        				mv.visitTypeInsn(Opcodes.NEW, Type.getInternalName(Integer.class));
@@ -1698,7 +1959,7 @@ public class CompilerContext implements ICompilerContext {
 	                	if (useMemoryDump) {
 	                		if (debugMemory) {
 	                    		mv.visitInsn(Opcodes.DUP2);
-		                		invokeStaticMethod(runtimeContextInternalName, "debugMemory", "(II)V");
+		                		invokeStaticMethod(mainRuntimeContextInternalName, "debugMemory", "(II)V");
 	                		}
 	                		if (maxDumpLength >= 0) {
 	                			loadImm(maxDumpLength);
@@ -1837,7 +2098,7 @@ public class CompilerContext implements ICompilerContext {
     	if (needFirmwareVersionCheck) {
     		unsupportedVersionLabel = new Label();
     		loadImm(func.getFirmwareVersion());
-    		mv.visitFieldInsn(Opcodes.GETSTATIC, runtimeContextInternalName, "firmwareVersion", "I");
+    		mv.visitFieldInsn(Opcodes.GETSTATIC, mainRuntimeContextInternalName, "firmwareVersion", "I");
     		mv.visitJumpInsn(Opcodes.IF_ICMPGT, unsupportedVersionLabel);
     	}
 
@@ -1847,7 +2108,7 @@ public class CompilerContext implements ICompilerContext {
     	}
 
     	if (!fastSyscall) {
-    		invokeStaticMethod(runtimeContextInternalName, "preSyscall", "()V");
+    		invokeStaticMethod(mainRuntimeContextInternalName, "preSyscall", "()V");
     	}
 
     	Label afterSyscallLabel = new Label();
@@ -2006,9 +2267,9 @@ public class CompilerContext implements ICompilerContext {
     	mv.visitLabel(afterSyscallLabel);
 
         if (fastSyscall) {
-    		invokeStaticMethod(runtimeContextInternalName, "postSyscallFast", "()V");
+    		invokeStaticMethod(mainRuntimeContextInternalName, "postSyscallFast", "()V");
         } else {
-    		invokeStaticMethod(runtimeContextInternalName, "postSyscall", "()V");
+    		invokeStaticMethod(mainRuntimeContextInternalName, "postSyscall", "()V");
         }
 
         if (needFirmwareVersionCheck) {
@@ -2052,9 +2313,21 @@ public class CompilerContext implements ICompilerContext {
     public void visitSyscall(int opcode) {
     	flushInstructionCount(false, false);
 
+    	if (mediaEngine) {
+    		// No HLE syscalls on the Media Engine: interpret the syscall
+    		// and continue at the address set by the interpreter.
+    		loadCpu();
+    		loadImm(getCodeInstruction().getAddress() + 4);
+    		mv.visitFieldInsn(Opcodes.PUTFIELD, cpuInternalName, "pc", "I");
+    		visitIntepreterCall(opcode, Instructions.SYSCALL);
+    		loadPc();
+    		visitJump();
+    		return;
+    	}
+
     	// Set RuntimeContext.syscallRa, to be used by sceKernelGetSyscallRA()
     	loadImm(getCodeInstruction().getAddress());
-        mv.visitFieldInsn(Opcodes.PUTSTATIC, runtimeContextInternalName, "syscallRa", "I");
+        mv.visitFieldInsn(Opcodes.PUTSTATIC, mainRuntimeContextInternalName, "syscallRa", "I");
 
     	int code = (opcode >> 6) & 0x000FFFFF;
     	NIDMapper nidMapper = NIDMapper.getInstance();
@@ -2098,11 +2371,11 @@ public class CompilerContext implements ICompilerContext {
     			loadImm(code);
     			loadImm(inDelaySlot);
     			if (lleSyscall) {
-    	    		invokeStaticMethod(runtimeContextInternalName, "syscallLLE", "(IZ)I");
+    	    		invokeStaticMethod(mainRuntimeContextInternalName, "syscallLLE", "(IZ)I");
     			} else if (fastSyscall) {
-    	    		invokeStaticMethod(runtimeContextInternalName, "syscallFast", "(IZ)I");
+    	    		invokeStaticMethod(mainRuntimeContextInternalName, "syscallFast", "(IZ)I");
     	    	} else {
-    	    		invokeStaticMethod(runtimeContextInternalName, "syscall", "(IZ)I");
+    	    		invokeStaticMethod(mainRuntimeContextInternalName, "syscall", "(IZ)I");
     	    	}
 
     	    	if (getCodeInstruction() != null) {
@@ -2148,7 +2421,7 @@ public class CompilerContext implements ICompilerContext {
 
     	// Reset RuntimeContext.syscallRa to 0
     	loadImm(0);
-        mv.visitFieldInsn(Opcodes.PUTSTATIC, runtimeContextInternalName, "syscallRa", "I");
+        mv.visitFieldInsn(Opcodes.PUTSTATIC, mainRuntimeContextInternalName, "syscallRa", "I");
 
     	// For code blocks consisting of a single syscall instruction
     	// or a syscall without any preceding instruction,
@@ -2160,6 +2433,13 @@ public class CompilerContext implements ICompilerContext {
     }
 
     public void startClass(ClassVisitor cv) {
+    	localRegisterCache = null;
+    	constantPropagation = null;
+    	linkedAddresses.clear();
+    	mmioHandlerAddresses.clear();
+    	hotRegionCounterUsed = false;
+    	nativeCodeBlockUsed = false;
+
     	if (RuntimeContext.enableLineNumbers) {
     		cv.visitSource(getCodeBlock().getClassName() + ".java", null);
     	}
@@ -2182,21 +2462,193 @@ public class CompilerContext implements ICompilerContext {
             storeLocalVar(LOCAL_INSTRUCTION_COUNT);
         }
 
+        reloadLocalRegisters();
+
         startNonBranchingCodeSequence();
     }
 
     public void endSequenceMethod() {
     	flushInstructionCount(false, true);
+    	writeBackLocalRegisters();
         mv.visitInsn(Opcodes.RETURN);
     }
 
+    private boolean isLocalRegisterCacheAllowed() {
+    	if (!Compiler.getInstance().isRegisterCachingEnabled()) {
+    		return false;
+    	}
+
+    	// The debugging and LLE features are accessing the registers
+    	// during the execution of each instruction
+    	if (RuntimeContext.enableDebugger || RuntimeContext.debugCodeInstruction || RuntimeContext.enableInstructionTypeCounting || RuntimeContext.checkCodeModification) {
+    		return false;
+    	}
+    	if (Memory.getInstance() instanceof DebuggerMemory || RuntimeContextLLE.isLLEActive() || RuntimeContextLLE.hasMMIO()) {
+    		return false;
+    	}
+
+    	// The HLE methods are accessing the registers at the method start and end
+    	if (Utilities.getHLEFunctionByAddress(codeBlock.getStartAddress()) != null) {
+    		return false;
+    	}
+
+    	return true;
+    }
+
+    /**
+     * Cache the most used registers in local variables
+     * for the next compiled method.
+     * Must be called before startMethod() or startSequenceMethod().
+     *
+     * @param codeInstructions the instructions of the next compiled method
+     */
+    public void allocateLocalRegisters(List<CodeInstruction> codeInstructions) {
+    	localRegisterCache = null;
+    	if (!isLocalRegisterCacheAllowed()) {
+    		return;
+    	}
+
+    	localRegisterCache = LocalRegisterCache.allocate(codeInstructions, LOCAL_MAX_WITH_SAVED_PARAMETERS);
+    	if (localRegisterCache != null) {
+    		maxLocalSize = Math.max(maxLocalSize, LOCAL_MAX_WITH_SAVED_PARAMETERS + localRegisterCache.getNumberLocals());
+    		// Writing back an FPU register requires 3 stack entries
+    		maxStackSize = Math.max(maxStackSize, DEFAULT_MAX_STACK_SIZE + 3);
+
+    		if (log.isDebugEnabled()) {
+    			log.debug(String.format("Caching registers in local variables: %s", localRegisterCache));
+    		}
+    	}
+    }
+
+    private boolean isConstantAnalysisAllowed() {
+    	// The debugging features are accessing the registers
+    	// during the execution of each instruction
+    	if (RuntimeContext.enableDebugger || RuntimeContext.debugCodeInstruction || RuntimeContext.enableInstructionTypeCounting || State.debugger != null) {
+    		return false;
+    	}
+    	if (Memory.getInstance() instanceof DebuggerMemory) {
+    		return false;
+    	}
+    	// The constant memory addresses are resolved against the main MMIO
+    	if (mediaEngine) {
+    		return false;
+    	}
+
+    	return true;
+    }
+
+    private boolean isConstantFoldingAllowed() {
+    	if (!Compiler.getInstance().isConstantPropagationEnabled()) {
+    		return false;
+    	}
+
+    	// The LLE features are accessing the registers
+    	// during the execution of each instruction
+    	if (RuntimeContextLLE.isLLEActive() || RuntimeContextLLE.hasMMIO()) {
+    		return false;
+    	}
+
+    	return true;
+    }
+
+    /**
+     * Analyse the constant register values of the next compiled instructions.
+     *
+     * When the registers have to be kept up-to-date for each instruction (LLE/MMIO),
+     * the instructions are not folded, but the constant addresses are still
+     * used to access the MMIO without searching the handler at runtime.
+     *
+     * @param codeInstructions the instructions of the compiled method
+     */
+    public void propagateConstants(List<CodeInstruction> codeInstructions) {
+    	constantPropagation = null;
+    	if (!isConstantAnalysisAllowed()) {
+    		return;
+    	}
+
+    	constantFolding = isConstantFoldingAllowed();
+    	if (!constantFolding && !(RuntimeContextLLE.getMMIO() instanceof MMIO)) {
+    		return;
+    	}
+
+    	constantPropagation = new ConstantPropagation(codeInstructions);
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("%s: %s, folding %b", codeBlock, constantPropagation, constantFolding));
+		}
+    }
+
+    /**
+     * Compile an instruction whose result is a known constant value
+     * or is never read.
+     *
+     * @param codeInstruction the instruction to be compiled
+     * @return                true if the instruction has been compiled
+     *                        false if the instruction has to be compiled normally
+     */
+    public boolean compileConstantInstruction(CodeInstruction codeInstruction) {
+    	if (constantPropagation == null || !constantFolding) {
+    		return false;
+    	}
+
+    	if (constantPropagation.isDeadWrite(codeInstruction)) {
+    		// The register written by this instruction is overwritten before being read
+    		return true;
+    	}
+
+    	if (constantPropagation.isFolded(codeInstruction)) {
+    		int reg = codeInstruction.hasFlags(Instruction.FLAG_WRITES_RD) ? codeInstruction.getRdRegisterIndex() : codeInstruction.getRtRegisterIndex();
+    		storeRegister(reg, constantPropagation.getFoldedValue(codeInstruction));
+    		return true;
+    	}
+
+    	return false;
+    }
+
+    private void reloadLocalRegisters() {
+    	if (localRegisterCache == null) {
+    		return;
+    	}
+
+    	for (int reg : localRegisterCache.getCachedGprs()) {
+    		loadCpu();
+	        mv.visitFieldInsn(Opcodes.GETFIELD, cpuInternalName, getGprFieldName(reg), "I");
+	        mv.visitVarInsn(Opcodes.ISTORE, localRegisterCache.getGprLocal(reg));
+    	}
+    	for (int reg : localRegisterCache.getCachedFprs()) {
+    		loadFpr();
+    		loadImm(reg);
+    		mv.visitInsn(Opcodes.FALOAD);
+    		mv.visitVarInsn(Opcodes.FSTORE, localRegisterCache.getFprLocal(reg));
+    	}
+    }
+
+    private void writeBackLocalRegisters() {
+    	if (localRegisterCache == null) {
+    		return;
+    	}
+
+    	for (int reg : localRegisterCache.getCachedGprs()) {
+    		loadCpu();
+    		mv.visitVarInsn(Opcodes.ILOAD, localRegisterCache.getGprLocal(reg));
+	        mv.visitFieldInsn(Opcodes.PUTFIELD, cpuInternalName, getGprFieldName(reg), "I");
+    	}
+    	for (int reg : localRegisterCache.getCachedFprs()) {
+    		loadFpr();
+    		loadImm(reg);
+    		mv.visitVarInsn(Opcodes.FLOAD, localRegisterCache.getFprLocal(reg));
+    		mv.visitInsn(Opcodes.FASTORE);
+    	}
+    }
+
     public void checkSync() {
     	if (RuntimeContext.enableDaemonThreadSync) {
     		Label doNotWantSync = new Label();
-            mv.visitFieldInsn(Opcodes.GETSTATIC, runtimeContextInternalName, "wantSync", "Z");
+            mv.visitFieldInsn(Opcodes.GETSTATIC, mainRuntimeContextInternalName, "wantSync", "Z");
             mv.visitJumpInsn(Opcodes.IFEQ, doNotWantSync);
+            writeBackLocalRegisters();
             storePc();
             invokeStaticMethod(runtimeContextInternalName, RuntimeContext.syncName, "()V");
+            reloadLocalRegisters();
             mv.visitLabel(doNotWantSync);
     	}
     }
@@ -2267,7 +2719,7 @@ public class CompilerContext implements ICompilerContext {
         			mv.visitIincInsn(LOCAL_INSTRUCTION_COUNT, currentInstructionCount);
         		}
         	} else {
-		        mv.visitFieldInsn(Opcodes.GETSTATIC, runtimeContextInternalName, "currentThread", sceKernalThreadInfoDescriptor);
+		        mv.visitFieldInsn(Opcodes.GETSTATIC, mainRuntimeContextInternalName, "currentThread", sceKernalThreadInfoDescriptor);
 		        mv.visitInsn(Opcodes.DUP);
 		        mv.visitFieldInsn(Opcodes.GETFIELD, sceKernalThreadInfoInternalName, "runClocks", "J");
 		        loadLocalVar(LOCAL_INSTRUCTION_COUNT);
@@ -2354,7 +2806,7 @@ public class CompilerContext implements ICompilerContext {
     	}
 
     	Label noPendingInterrupt = new Label();
-        mv.visitFieldInsn(Opcodes.GETSTATIC, runtimeContextLLEInternalName, "pendingInterruptIPbitsMain", "I");
+        mv.visitFieldInsn(Opcodes.GETSTATIC, runtimeContextLLEInternalName, mediaEngine ? "pendingInterruptIPbitsME" : "pendingInterruptIPbitsMain", "I");
         mv.visitJumpInsn(Opcodes.IFEQ, noPendingInterrupt);
         int returnAddress = codeInstruction.getAddress();
         loadImm(returnAddress);
@@ -2391,7 +2843,7 @@ public class CompilerContext implements ICompilerContext {
 	    	if (codeInstruction.getInsn() != null) {
 		    	loadInstruction(codeInstruction.getInsn());
 		    	loadImm(codeInstruction.getOpcode());
-	            invokeStaticMethod(runtimeContextInternalName, RuntimeContext.instructionTypeCount, "(" + instructionDescriptor + "I)V");
+	            invokeStaticMethod(mainRuntimeContextInternalName, RuntimeContext.instructionTypeCount, "(" + instructionDescriptor + "I)V");
 	    	}
 	    }
 
@@ -2481,16 +2933,14 @@ public class CompilerContext implements ICompilerContext {
     public void visitJump(int opcode, int address) {
         flushInstructionCount(true, false);
         if (opcode == Opcodes.GOTO) {
-            loadImm(address);
-            visitJump();
+        	visitLinkedJump(address);
         } else {
         	Label jumpTarget = new Label();
         	Label notJumpTarget = new Label();
         	mv.visitJumpInsn(opcode, jumpTarget);
         	mv.visitJumpInsn(Opcodes.GOTO, notJumpTarget);
         	mv.visitLabel(jumpTarget);
-        	loadImm(address);
-        	visitJump();
+        	visitLinkedJump(address);
         	mv.visitLabel(notJumpTarget);
         }
     }
@@ -2499,6 +2949,10 @@ public class CompilerContext implements ICompilerContext {
     	return String.format("_S1_%d_0x%08X", instanceIndex, address);
     }
 
+    public static String getBackgroundClassName(int address, int instanceIndex, int backgroundIndex) {
+    	return String.format("_T%d_%d_0x%08X", backgroundIndex, instanceIndex, address);
+    }
+
     public static int getClassAddress(String name) {
     	String hexAddress = name.substring(name.lastIndexOf("0x") + 2);
     	if (hexAddress.length() == 8) {
@@ -2569,13 +3023,15 @@ public class CompilerContext implements ICompilerContext {
     }
 
     public void visitPauseEmuWithStatus(MethodVisitor mv, int status) {
+    	writeBackLocalRegisters();
     	loadImm(status);
         invokeStaticMethod(runtimeContextInternalName, RuntimeContext.pauseEmuWithStatus, "(I)V");
+        reloadLocalRegisters();
     }
 
     public void visitLogError(MethodVisitor mv, String message) {
     	mv.visitLdcInsn(message);
-        invokeStaticMethod(runtimeContextInternalName, RuntimeContext.logError, "(" + stringDescriptor + ")V");
+        invokeStaticMethod(mainRuntimeContextInternalName, RuntimeContext.logError, "(" + stringDescriptor + ")V");
     }
 
 	@Override
@@ -2798,11 +3254,108 @@ public class CompilerContext implements ICompilerContext {
 		}
 	}
 
+	private boolean isTrackingMemoryWrites() {
+		return RuntimeContext.dirtyPageTracker != null;
+	}
+
+	/**
+	 * Store a value into memoryInt.
+	 * Stack before: memoryInt, index, value
+	 * Stack after:  (empty)
+	 */
+	private void storeMemoryInt() {
+		if (isTrackingMemoryWrites()) {
+			invokeStaticMethod(runtimeContextInternalName, "writeMemoryInt", "([III)V");
+		} else {
+			mv.visitInsn(Opcodes.IASTORE);
+		}
+	}
+
+	private boolean isConstantAddress(int registerIndex) {
+		if (constantPropagation == null || codeInstruction == null) {
+			return false;
+		}
+		return registerIndex == codeInstruction.getRsRegisterIndex() && constantPropagation.isRsConstant(codeInstruction);
+	}
+
+	/**
+	 * Load the memory address "offset(registerIndex)" on the stack.
+	 */
+	private void loadAddress(int registerIndex, int offset) {
+		if (isConstantAddress(registerIndex)) {
+			loadImm(constantPropagation.getRsValue(codeInstruction) + offset);
+		} else {
+			loadRegister(registerIndex);
+			if (offset != 0) {
+				loadImm(offset);
+				mv.visitInsn(Opcodes.IADD);
+			}
+		}
+	}
+
+	/**
+	 * @return true if the memoryInt index of a 32-bit access
+	 *         to "offset(registerIndex)" can be computed at compile time
+	 */
+	private boolean isConstantMemIndex(int registerIndex, int offset, boolean isRead) {
+		if (!isConstantAddress(registerIndex) || useMMIO() || !RuntimeContext.hasMemoryInt() || checkMemoryAccess()) {
+			return false;
+		}
+		if (isRead && RuntimeContext.debugMemoryRead) {
+			return false;
+		}
+
+		int address = (constantPropagation.getRsValue(codeInstruction) + offset) & Memory.addressMask;
+		return address >= MemoryMap.START_RAM && address <= MemoryMap.END_RAM - 3;
+	}
+
 	private boolean useMMIO() {
-		if (codeInstruction == null) {
+		// All the Media Engine memory accesses are going through the Media Engine memory
+		if (mediaEngine) {
+			return true;
+		}
+
+		if (codeInstruction == null || !codeInstruction.useMMIO()) {
 			return false;
 		}
-		return codeInstruction.useMMIO();
+
+		// Fast path: a constant address in RAM without MMIO handler
+		// is accessed directly, without going through the MMIO.
+		if (isConstantMemoryAddress()) {
+			int address = getConstantMMIOAddress();
+			int maskedAddress = address & Memory.addressMask;
+			if (maskedAddress >= MemoryMap.START_RAM && maskedAddress <= MemoryMap.END_RAM - 3 && !((MMIO) RuntimeContextLLE.getMMIO()).hasHandler(address)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return true if the current instruction is a memory access
+	 *         to a constant address known at compile time
+	 */
+	private boolean isConstantMemoryAddress() {
+		if (constantPropagation == null || codeInstruction == null) {
+			return false;
+		}
+		return constantPropagation.isRsConstant(codeInstruction) && RuntimeContextLLE.getMMIO() instanceof MMIO;
+	}
+
+	private int getConstantMMIOAddress() {
+		return constantPropagation.getRsValue(codeInstruction) + codeInstruction.getImm16(true);
+	}
+
+	/**
+	 * @return true if the current instruction is accessing a constant address
+	 *         whose MMIO handler can be called directly
+	 */
+	private boolean isConstantMMIOHandler() {
+		if (!isConstantMemoryAddress()) {
+			return false;
+		}
+		return ((MMIO) RuntimeContextLLE.getMMIO()).getFixedHandler(getConstantMMIOAddress()) != null;
 	}
 
 	@Override
@@ -2818,7 +3371,7 @@ public class CompilerContext implements ICompilerContext {
 		prepareMemIndex(registerIndex, offset, true, 32, align32);
 
 		if (useMMIO() || !RuntimeContext.hasMemoryInt()) {
-	        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, memoryInternalName, "read32", "(I)I", false);
+	        invokeMemoryMethod("read32", "(I)I");
 		} else {
 			mv.visitInsn(Opcodes.IALOAD);
 		}
@@ -2834,11 +3387,7 @@ public class CompilerContext implements ICompilerContext {
 			loadMemoryInt();
 		}
 
-		loadRegister(registerIndex);
-		if (offset != 0) {
-			loadImm(offset);
-			mv.visitInsn(Opcodes.IADD);
-		}
+		loadAddress(registerIndex, offset);
 
 		if (RuntimeContext.debugMemoryRead) {
 			mv.visitInsn(Opcodes.DUP);
@@ -2850,11 +3399,11 @@ public class CompilerContext implements ICompilerContext {
 		}
 
 		if (useMMIO() || !RuntimeContext.hasMemoryInt()) {
-	        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, memoryInternalName, "read16", "(I)I", false);
+	        invokeMemoryMethod("read16", "(I)I");
 		} else {
             if (checkMemoryAccess()) {
                 loadImm(codeInstruction.getAddress());
-                invokeStaticMethod(runtimeContextInternalName, "checkMemoryRead16", "(II)I");
+                invokeStaticMethod(mainRuntimeContextInternalName, "checkMemoryRead16", "(II)I");
                 loadImm(1);
                 mv.visitInsn(Opcodes.IUSHR);
             } else {
@@ -2890,11 +3439,7 @@ public class CompilerContext implements ICompilerContext {
 			loadMemoryInt();
 		}
 
-		loadRegister(registerIndex);
-		if (offset != 0) {
-			loadImm(offset);
-			mv.visitInsn(Opcodes.IADD);
-		}
+		loadAddress(registerIndex, offset);
 
 		if (RuntimeContext.debugMemoryRead) {
 			mv.visitInsn(Opcodes.DUP);
@@ -2906,11 +3451,11 @@ public class CompilerContext implements ICompilerContext {
 		}
 
 		if (useMMIO() || !RuntimeContext.hasMemoryInt()) {
-	        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, memoryInternalName, "read8", "(I)I", false);
+	        invokeMemoryMethod("read8", "(I)I");
 		} else {
             if (checkMemoryAccess()) {
                 loadImm(codeInstruction.getAddress());
-                invokeStaticMethod(runtimeContextInternalName, "checkMemoryRead8", "(II)I");
+                invokeStaticMethod(mainRuntimeContextInternalName, "checkMemoryRead8", "(II)I");
             } else {
     			// memoryInt[(address & 0x1FFFFFFF) / 4] == memoryInt[(address << 3) >>> 5]
     			loadImm(3);
@@ -2935,12 +3480,15 @@ public class CompilerContext implements ICompilerContext {
 	}
 
 	private void prepareMemIndex(int registerIndex, int offset, boolean isRead, int width, boolean align32) {
-		loadRegister(registerIndex);
-		if (offset != 0) {
-			loadImm(offset);
-			mv.visitInsn(Opcodes.IADD);
+		if (isConstantMemIndex(registerIndex, offset, isRead)) {
+			// memoryInt[(address & 0x1FFFFFFF) / 4] with a constant address
+			int address = constantPropagation.getRsValue(codeInstruction) + offset;
+			loadImm((address << 3) >>> 5);
+			return;
 		}
 
+		loadAddress(registerIndex, offset);
+
 		if (RuntimeContext.debugMemoryRead && isRead) {
 			if (!RuntimeContext.debugMemoryReadWriteNoSP || registerIndex != _sp) {
 				mv.visitInsn(Opcodes.DUP);
@@ -2969,7 +3517,7 @@ public class CompilerContext implements ICompilerContext {
 			} else if (checkMemoryAccess()) {
 	            loadImm(codeInstruction.getAddress());
 	            String checkMethodName = String.format("checkMemory%s%d", isRead ? "Read" : "Write", width);
-	            invokeStaticMethod(runtimeContextInternalName, checkMethodName, "(II)I");
+	            invokeStaticMethod(mainRuntimeContextInternalName, checkMethodName, "(II)I");
                 loadImm(2);
                 mv.visitInsn(Opcodes.IUSHR);
 	        } else {
@@ -3012,18 +3560,14 @@ public class CompilerContext implements ICompilerContext {
 			}
 			mv.visitInsn(Opcodes.SWAP);
 
-			loadRegister(registerIndex);
-			if (offset != 0) {
-				loadImm(offset);
-				mv.visitInsn(Opcodes.IADD);
-			}
+			loadAddress(registerIndex, offset);
 			if (align32) {
 				loadImm(~0x3);
 				mv.visitInsn(Opcodes.IAND);
 			}
             if (checkMemoryAccess()) {
                 loadImm(codeInstruction.getAddress());
-                invokeStaticMethod(runtimeContextInternalName, "checkMemoryWrite32", "(II)I");
+                invokeStaticMethod(mainRuntimeContextInternalName, "checkMemoryWrite32", "(II)I");
             }
 			mv.visitInsn(Opcodes.SWAP);
 		}
@@ -3043,9 +3587,9 @@ public class CompilerContext implements ICompilerContext {
 		}
 
 		if (useMMIO() || !RuntimeContext.hasMemoryInt()) {
-	        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, memoryInternalName, "write32", "(II)V", false);
+	        invokeMemoryMethod("write32", "(II)V");
 		} else {
-			mv.visitInsn(Opcodes.IASTORE);
+			storeMemoryInt();
 		}
 
 		memWritePrepared = false;
@@ -3061,16 +3605,12 @@ public class CompilerContext implements ICompilerContext {
 			loadMemoryInt();
 		}
 
-		loadRegister(registerIndex);
-		if (offset != 0) {
-			loadImm(offset);
-			mv.visitInsn(Opcodes.IADD);
-		}
+		loadAddress(registerIndex, offset);
 
 		if (!useMMIO() && RuntimeContext.hasMemoryInt()) {
 			if (checkMemoryAccess()) {
 				loadImm(codeInstruction.getAddress());
-				invokeStaticMethod(runtimeContextInternalName, "checkMemoryWrite16", "(II)I");
+				invokeStaticMethod(mainRuntimeContextInternalName, "checkMemoryWrite16", "(II)I");
 			}
 		}
 
@@ -3089,23 +3629,19 @@ public class CompilerContext implements ICompilerContext {
 			}
 			mv.visitInsn(Opcodes.SWAP);
 
-			loadRegister(registerIndex);
-			if (offset != 0) {
-				loadImm(offset);
-				mv.visitInsn(Opcodes.IADD);
-			}
+			loadAddress(registerIndex, offset);
 
 			if (RuntimeContext.hasMemoryInt()) {
 				if (checkMemoryAccess()) {
 					loadImm(codeInstruction.getAddress());
-					invokeStaticMethod(runtimeContextInternalName, "checkMemoryWrite16", "(II)I");
+					invokeStaticMethod(mainRuntimeContextInternalName, "checkMemoryWrite16", "(II)I");
 				}
 			}
 			mv.visitInsn(Opcodes.SWAP);
 		}
 
 		if (useMMIO() || !RuntimeContext.hasMemoryInt()) {
-			mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, memoryInternalName, "write16", "(IS)V", false);
+			invokeMemoryMethod("write16", "(IS)V");
 		} else {
 			// tmp2 = value & 0xFFFF;
 			// tmp1 = (address & 2) << 3;
@@ -3140,7 +3676,7 @@ public class CompilerContext implements ICompilerContext {
 			loadTmp1();
 			mv.visitInsn(Opcodes.ISHL);
 			mv.visitInsn(Opcodes.IOR);
-			mv.visitInsn(Opcodes.IASTORE);
+			storeMemoryInt();
 		}
 
 		memWritePrepared = false;
@@ -3156,16 +3692,12 @@ public class CompilerContext implements ICompilerContext {
 			loadMemoryInt();
 		}
 
-		loadRegister(registerIndex);
-		if (offset != 0) {
-			loadImm(offset);
-			mv.visitInsn(Opcodes.IADD);
-		}
+		loadAddress(registerIndex, offset);
 
 		if (!useMMIO() && RuntimeContext.hasMemoryInt()) {
 			if (checkMemoryAccess()) {
 				loadImm(codeInstruction.getAddress());
-				invokeStaticMethod(runtimeContextInternalName, "checkMemoryWrite8", "(II)I");
+				invokeStaticMethod(mainRuntimeContextInternalName, "checkMemoryWrite8", "(II)I");
 			}
 		}
 
@@ -3184,23 +3716,19 @@ public class CompilerContext implements ICompilerContext {
 			}
 			mv.visitInsn(Opcodes.SWAP);
 
-			loadRegister(registerIndex);
-			if (offset != 0) {
-				loadImm(offset);
-				mv.visitInsn(Opcodes.IADD);
-			}
+			loadAddress(registerIndex, offset);
 
 			if (RuntimeContext.hasMemoryInt()) {
 				if (checkMemoryAccess()) {
 					loadImm(codeInstruction.getAddress());
-					invokeStaticMethod(runtimeContextInternalName, "checkMemoryWrite8", "(II)I");
+					invokeStaticMethod(mainRuntimeContextInternalName, "checkMemoryWrite8", "(II)I");
 				}
 			}
 			mv.visitInsn(Opcodes.SWAP);
 		}
 
 		if (useMMIO() || !RuntimeContext.hasMemoryInt()) {
-	        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, memoryInternalName, "write8", "(IB)V", false);
+	        invokeMemoryMethod("write8", "(IB)V");
 		} else {
 			// tmp2 = value & 0xFF;
 			// tmp1 = (address & 3) << 3;
@@ -3235,7 +3763,7 @@ public class CompilerContext implements ICompilerContext {
 			loadTmp1();
 			mv.visitInsn(Opcodes.ISHL);
 			mv.visitInsn(Opcodes.IOR);
-			mv.visitInsn(Opcodes.IASTORE);
+			storeMemoryInt();
 		}
 
 		memWritePrepared = false;
@@ -3251,22 +3779,18 @@ public class CompilerContext implements ICompilerContext {
 			loadMemoryInt();
 		}
 
-		loadRegister(registerIndex);
-		if (offset != 0) {
-			loadImm(offset);
-			mv.visitInsn(Opcodes.IADD);
-		}
+		loadAddress(registerIndex, offset);
 
 		if (!useMMIO() && RuntimeContext.hasMemoryInt()) {
 			if (checkMemoryAccess()) {
 				loadImm(codeInstruction.getAddress());
-				invokeStaticMethod(runtimeContextInternalName, "checkMemoryWrite8", "(II)I");
+				invokeStaticMethod(mainRuntimeContextInternalName, "checkMemoryWrite8", "(II)I");
 			}
 		}
 
 		if (useMMIO() || !RuntimeContext.hasMemoryInt()) {
 			loadImm(0);
-	        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, memoryInternalName, "write8", "(IB)V", false);
+	        invokeMemoryMethod("write8", "(IB)V");
 		} else {
 			// tmp1 = (address & 3) << 3;
 			// memoryInt[address >> 2] = (memoryInt[address >> 2] & ((0xFF << tmp1) ^ 0xFFFFFFFF));
@@ -3293,7 +3817,7 @@ public class CompilerContext implements ICompilerContext {
 			loadImm(-1);
 			mv.visitInsn(Opcodes.IXOR);
 			mv.visitInsn(Opcodes.IAND);
-			mv.visitInsn(Opcodes.IASTORE);
+			storeMemoryInt();
 		}
 	}
 
@@ -3406,6 +3930,7 @@ public class CompilerContext implements ICompilerContext {
 	    // Replacing the whole CodeBlock?
 	    if (getCodeBlock().getLength() == nativeCodeSequence.getNumOpcodes() && !nativeCodeSequence.hasBranchInstruction()) {
         	nativeCodeManager.setCompiledNativeCodeBlock(getCodeBlock().getStartAddress(), nativeCodeSequence);
+        	nativeCodeBlockUsed = true;
 
         	// Be more verbose when Debug enabled.
         	// Only log "Nop" native code sequence in debug.
@@ -4286,6 +4811,10 @@ public class CompilerContext implements ICompilerContext {
 			// Can only generate an optimized code sequence for memoryInt
 			return false;
 		}
+		if (isTrackingMemoryWrites()) {
+			// The System.arraycopy into memoryInt would not be tracked
+			return false;
+		}
 
 		if ((vt & 32) != 0) {
 		    // Optimization possible only for column access
@@ -4534,6 +5063,11 @@ public class CompilerContext implements ICompilerContext {
 	 *         false if the sequence could not be compiled
 	 */
 	private boolean compileSWsequenceZR(int baseRegister, int[] offsets, int[] registers) {
+		if (isTrackingMemoryWrites()) {
+			// The System.arraycopy into memoryInt would not be tracked
+			return false;
+		}
+
 		for (int i = 0; i < registers.length; i++) {
 			if (registers[i] != _zr) {
 				return false;
@@ -4616,7 +5150,7 @@ public class CompilerContext implements ICompilerContext {
     			loadMemoryInt();
     			loadTmp1();
     			loadRegister(rt);
-    			mv.visitInsn(Opcodes.IASTORE);
+    			storeMemoryInt();
     		}
     	}
 
@@ -0,0 +1,319 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.Allegrex.compiler;
+
+import static jpcsp.Allegrex.Common._ra;
+import static jpcsp.Allegrex.Common._zr;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jpcsp.Allegrex.Instructions;
+import jpcsp.Allegrex.Common.Instruction;
+
+/**
+ * Constant propagation and elimination of the redundant register writes
+ * over the instructions of a compiled method.
+ *
+ * The GPR values are tracked inside each basic block: all the values
+ * are unknown at a branch target, after a branch delay slot and after any
+ * instruction which is not analysed (e.g. a syscall or an interpreted instruction).
+ * Each register write is a new definition of the register value, so that
+ * no value is ever merged from two different paths.
+ *
+ * The result of the analysis is used by the compiler to
+ * - store a constant value instead of computing an instruction result
+ *   whose operands are all known (e.g. "lui" followed by "ori" or "addiu"),
+ * - skip an instruction whose result is overwritten in the same basic block
+ *   before being read (e.g. the "lui" of a folded "lui"/"ori" pair),
+ * - access the memory at a constant address without reading the base register.
+ *
+ * @author gid15
+ *
+ */
+public class ConstantPropagation {
+	private static final int NUMBER_REGISTERS = 32;
+	private static final Set<Instruction> foldableInstructions = new HashSet<Instruction>();
+	private static final Set<Instruction> memoryInstructions = new HashSet<Instruction>();
+	private final int[] values = new int[NUMBER_REGISTERS];
+	private final boolean[] known = new boolean[NUMBER_REGISTERS];
+	private final CodeInstruction[] pendingWrites = new CodeInstruction[NUMBER_REGISTERS];
+	private final Map<CodeInstruction, Integer> foldedValues = new HashMap<CodeInstruction, Integer>();
+	private final Map<CodeInstruction, Integer> constantRsValues = new HashMap<CodeInstruction, Integer>();
+	private final Set<CodeInstruction> deadWrites = new HashSet<CodeInstruction>();
+
+	static {
+		// Instructions only computing a GPR value from GPR values and
+		// from immediate values, without any other side effect.
+		// ADD, ADDI and SUB are not included as they can raise an overflow.
+		Instruction[] instructions = new Instruction[] {
+			Instructions.LUI, Instructions.ADDIU, Instructions.ORI, Instructions.ANDI, Instructions.XORI, Instructions.SLTI, Instructions.SLTIU,
+			Instructions.ADDU, Instructions.SUBU, Instructions.OR, Instructions.AND, Instructions.XOR, Instructions.NOR, Instructions.SLT, Instructions.SLTU,
+			Instructions.SLL, Instructions.SRL, Instructions.SRA, Instructions.SLLV, Instructions.SRLV, Instructions.SRAV
+		};
+		foldableInstructions.addAll(Arrays.asList(instructions));
+
+		// Memory accesses using a "nn($rs)" address
+		// and writing at most the register rt.
+		instructions = new Instruction[] {
+			Instructions.LB, Instructions.LBU, Instructions.LH, Instructions.LHU, Instructions.LW,
+			Instructions.SB, Instructions.SH, Instructions.SW,
+			Instructions.LWC1, Instructions.SWC1
+		};
+		memoryInstructions.addAll(Arrays.asList(instructions));
+	}
+
+	public ConstantPropagation(List<CodeInstruction> codeInstructions) {
+		analyse(codeInstructions);
+	}
+
+	private void reset() {
+		Arrays.fill(known, false);
+		known[_zr] = true;
+		values[_zr] = 0;
+		Arrays.fill(pendingWrites, null);
+	}
+
+	private void setUnknown(int reg) {
+		if (reg != _zr) {
+			known[reg] = false;
+			pendingWrites[reg] = null;
+		}
+	}
+
+	private void read(int reg) {
+		pendingWrites[reg] = null;
+	}
+
+	private void write(CodeInstruction codeInstruction, int reg, boolean isKnown, int value) {
+		if (reg == _zr) {
+			return;
+		}
+
+		// The previous write to this register has never been read
+		if (pendingWrites[reg] != null) {
+			deadWrites.add(pendingWrites[reg]);
+		}
+		pendingWrites[reg] = codeInstruction;
+
+		known[reg] = isKnown;
+		values[reg] = value;
+	}
+
+	private void analyse(List<CodeInstruction> codeInstructions) {
+		reset();
+		boolean isDelaySlot = false;
+		for (CodeInstruction codeInstruction : codeInstructions) {
+			if (codeInstruction.isBranchTarget()) {
+				reset();
+			}
+
+			Instruction insn = codeInstruction.getInsn();
+			if (codeInstruction.getClass() != CodeInstruction.class) {
+				// Native code sequences, sequence methods...
+				reset();
+			} else if (foldableInstructions.contains(insn)) {
+				analyseFoldable(codeInstruction, insn);
+			} else if (memoryInstructions.contains(insn)) {
+				int rs = codeInstruction.getRsRegisterIndex();
+				if (known[rs]) {
+					constantRsValues.put(codeInstruction, values[rs]);
+				}
+				// A memory access could raise an exception,
+				// all the registers have to be up-to-date.
+				Arrays.fill(pendingWrites, null);
+				if (codeInstruction.hasFlags(Instruction.FLAG_WRITES_RT)) {
+					setUnknown(codeInstruction.getRtRegisterIndex());
+				}
+			} else if (codeInstruction.hasFlags(Instruction.FLAG_HAS_DELAY_SLOT)) {
+				// The branch is only reading registers, except the link register.
+				// The values are still known in the delay slot.
+				Arrays.fill(pendingWrites, null);
+				setUnknown(_ra);
+				if (codeInstruction.hasFlags(Instruction.FLAG_WRITES_RD)) {
+					setUnknown(codeInstruction.getRdRegisterIndex());
+				}
+				isDelaySlot = true;
+				continue;
+			} else if (insn != Instructions.NOP) {
+				reset();
+			}
+
+			if (isDelaySlot) {
+				// Continuing at the branch target or after the delay slot
+				reset();
+				isDelaySlot = false;
+			}
+		}
+	}
+
+	private void analyseFoldable(CodeInstruction codeInstruction, Instruction insn) {
+		int rs = codeInstruction.getRsRegisterIndex();
+		int rt = codeInstruction.getRtRegisterIndex();
+		int rd = codeInstruction.getRdRegisterIndex();
+		int sa = codeInstruction.getSaValue();
+		int s = values[rs];
+		int t = values[rt];
+
+		int target;
+		boolean readsRs;
+		boolean readsRt;
+		int value;
+		if (insn == Instructions.LUI) {
+			target = rt; readsRs = false; readsRt = false;
+			value = codeInstruction.getImm16(false) << 16;
+		} else if (insn == Instructions.ADDIU) {
+			target = rt; readsRs = true; readsRt = false;
+			value = s + codeInstruction.getImm16(true);
+		} else if (insn == Instructions.ORI) {
+			target = rt; readsRs = true; readsRt = false;
+			value = s | codeInstruction.getImm16(false);
+		} else if (insn == Instructions.ANDI) {
+			target = rt; readsRs = true; readsRt = false;
+			value = s & codeInstruction.getImm16(false);
+		} else if (insn == Instructions.XORI) {
+			target = rt; readsRs = true; readsRt = false;
+			value = s ^ codeInstruction.getImm16(false);
+		} else if (insn == Instructions.SLTI) {
+			target = rt; readsRs = true; readsRt = false;
+			value = s < codeInstruction.getImm16(true) ? 1 : 0;
+		} else if (insn == Instructions.SLTIU) {
+			target = rt; readsRs = true; readsRt = false;
+			value = Integer.compareUnsigned(s, codeInstruction.getImm16(true)) < 0 ? 1 : 0;
+		} else if (insn == Instructions.SLL) {
+			target = rd; readsRs = false; readsRt = true;
+			value = t << sa;
+		} else if (insn == Instructions.SRL) {
+			target = rd; readsRs = false; readsRt = true;
+			value = t >>> sa;
+		} else if (insn == Instructions.SRA) {
+			target = rd; readsRs = false; readsRt = true;
+			value = t >> sa;
+		} else {
+			target = rd; readsRs = true; readsRt = true;
+			if (insn == Instructions.ADDU) {
+				value = s + t;
+			} else if (insn == Instructions.SUBU) {
+				value = s - t;
+			} else if (insn == Instructions.OR) {
+				value = s | t;
+			} else if (insn == Instructions.AND) {
+				value = s & t;
+			} else if (insn == Instructions.XOR) {
+				value = s ^ t;
+			} else if (insn == Instructions.NOR) {
+				value = ~(s | t);
+			} else if (insn == Instructions.SLT) {
+				value = s < t ? 1 : 0;
+			} else if (insn == Instructions.SLTU) {
+				value = Integer.compareUnsigned(s, t) < 0 ? 1 : 0;
+			} else if (insn == Instructions.SLLV) {
+				value = t << (s & 31);
+			} else if (insn == Instructions.SRLV) {
+				value = t >>> (s & 31);
+			} else {
+				// SRAV
+				value = t >> (s & 31);
+			}
+		}
+
+		if (target == _zr) {
+			// No-OP
+			return;
+		}
+
+		boolean isKnown = (!readsRs || known[rs]) && (!readsRt || known[rt]);
+		if (isKnown) {
+			// The operands are no longer read when storing the constant result
+			foldedValues.put(codeInstruction, value);
+		} else {
+			if (readsRs) {
+				read(rs);
+			}
+			if (readsRt) {
+				read(rt);
+			}
+		}
+
+		write(codeInstruction, target, isKnown, value);
+	}
+
+	/**
+	 * @param codeInstruction the instruction
+	 * @return                true if the instruction result is a constant value
+	 */
+	public boolean isFolded(CodeInstruction codeInstruction) {
+		return foldedValues.containsKey(codeInstruction);
+	}
+
+	/**
+	 * @param codeInstruction a folded instruction
+	 * @return                the constant result of the instruction
+	 */
+	public int getFoldedValue(CodeInstruction codeInstruction) {
+		return foldedValues.get(codeInstruction).intValue();
+	}
+
+	/**
+	 * @param codeInstruction the instruction
+	 * @return                true if the register written by the instruction
+	 *                        is always overwritten before being read,
+	 *                        the instruction has no effect.
+	 */
+	public boolean isDeadWrite(CodeInstruction codeInstruction) {
+		return deadWrites.contains(codeInstruction);
+	}
+
+	/**
+	 * @param codeInstruction a memory access instruction
+	 * @return                true if the value of the rs register is known
+	 *                        when executing the instruction
+	 */
+	public boolean isRsConstant(CodeInstruction codeInstruction) {
+		return constantRsValues.containsKey(codeInstruction);
+	}
+
+	/**
+	 * @param codeInstruction a memory access instruction
+	 * @return                the value of the rs register
+	 *                        when executing the instruction
+	 */
+	public int getRsValue(CodeInstruction codeInstruction) {
+		return constantRsValues.get(codeInstruction).intValue();
+	}
+
+	public int getNumberFolded() {
+		return foldedValues.size();
+	}
+
+	public int getNumberDeadWrites() {
+		return deadWrites.size();
+	}
+
+	public int getNumberConstantAddresses() {
+		return constantRsValues.size();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ConstantPropagation[folded=%d, deadWrites=%d, constantAddresses=%d]", getNumberFolded(), getNumberDeadWrites(), getNumberConstantAddresses());
+	}
+}
@@ -181,4 +181,5 @@ public interface ICompilerContext {
     public void loadVprInt();
     public void loadVprFloat();
     public void invokeStaticMethod(String classInternalName, String methodName, String methodDescriptor);
+    public String getRuntimeContextInternalName();
 }
@@ -0,0 +1,314 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.Allegrex.compiler;
+
+import static jpcsp.Allegrex.Common._zr;
+import static jpcsp.Allegrex.Common.gprNames;
+import static jpcsp.Allegrex.Common.Instruction.FLAG_WRITES_RD;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import jpcsp.Allegrex.Instructions;
+import jpcsp.Allegrex.Common.Instruction;
+
+/**
+ * Caching of the most used GPR and FPU registers of a compiled method
+ * in JVM local variables.
+ *
+ * A cached register is loaded into its local variable at the method start
+ * and is then only accessed through its local variable.
+ * The local variables are written back to the registers before leaving
+ * the method and before calling any code that could access the registers
+ * (interpreted instructions, sync, code sequence methods),
+ * and are reloaded after such a call.
+ *
+ * The registers can only be cached in a method where all the instructions
+ * are accessing the registers through the CompilerContext register methods.
+ *
+ * @author gid15
+ *
+ */
+public class LocalRegisterCache {
+	public static final int MAX_CACHED_GPR = 12;
+	public static final int MAX_CACHED_FPR = 8;
+	// An instruction inside a loop is counted as being executed several times
+	private static final int LOOP_WEIGHT = 8;
+	// A register is only cached when it is used at least this number of times,
+	// the initial load and the write backs would be more expensive otherwise.
+	private static final int MIN_USES = 3;
+	private static final int NUMBER_REGISTERS = 32;
+	private static final int NO_LOCAL = -1;
+	private static final Set<Instruction> cacheableInstructions = new HashSet<Instruction>();
+	private final int[] gprLocals = new int[NUMBER_REGISTERS];
+	private final int[] fprLocals = new int[NUMBER_REGISTERS];
+	private final int[] cachedGprs;
+	private final int[] cachedFprs;
+
+	static {
+		// Instructions whose compilation is only accessing the GPR and FPU registers
+		// through the CompilerContext register methods, or through an interpreted
+		// instruction (which is handled like a call).
+		Instruction[] instructions = new Instruction[] {
+			Instructions.NOP, Instructions.SYNC,
+			Instructions.SLL, Instructions.SRL, Instructions.SRA, Instructions.SLLV, Instructions.SRLV, Instructions.SRAV, Instructions.ROTR, Instructions.ROTRV,
+			Instructions.MFHI, Instructions.MFLO, Instructions.MTHI, Instructions.MTLO,
+			Instructions.MULT, Instructions.MULTU, Instructions.MADD, Instructions.MADDU, Instructions.MSUB, Instructions.MSUBU, Instructions.DIV, Instructions.DIVU,
+			Instructions.ADD, Instructions.ADDU, Instructions.SUB, Instructions.SUBU, Instructions.AND, Instructions.OR, Instructions.XOR, Instructions.NOR,
+			Instructions.SLT, Instructions.SLTU, Instructions.MAX, Instructions.MIN, Instructions.MOVZ, Instructions.MOVN,
+			Instructions.CLZ, Instructions.CLO, Instructions.EXT, Instructions.INS, Instructions.SEB, Instructions.SEH,
+			Instructions.ADDI, Instructions.ADDIU, Instructions.SLTI, Instructions.SLTIU, Instructions.ANDI, Instructions.ORI, Instructions.XORI, Instructions.LUI,
+			Instructions.LB, Instructions.LH, Instructions.LW, Instructions.LBU, Instructions.LHU, Instructions.LWL, Instructions.LWR,
+			Instructions.SB, Instructions.SH, Instructions.SW, Instructions.SWL, Instructions.SWR, Instructions.SC,
+			Instructions.LWC1, Instructions.SWC1, Instructions.MFC1, Instructions.MTC1, Instructions.CFC1, Instructions.CTC1,
+			Instructions.ADD_S, Instructions.SUB_S, Instructions.DIV_S, Instructions.SQRT_S, Instructions.ABS_S, Instructions.MOV_S, Instructions.NEG_S,
+			Instructions.ROUND_W_S, Instructions.TRUNC_W_S, Instructions.CEIL_W_S, Instructions.FLOOR_W_S, Instructions.CVT_S_W, Instructions.CVT_W_S, Instructions.C_COND_S,
+			// Branches staying inside the method or leaving it through CompilerContext.visitJump()
+			Instructions.BEQ, Instructions.BNE, Instructions.BLEZ, Instructions.BGTZ, Instructions.BEQL, Instructions.BNEL, Instructions.BLEZL, Instructions.BGTZL,
+			Instructions.BLTZ, Instructions.BGEZ, Instructions.BLTZL, Instructions.BGEZL,
+			Instructions.BC1F, Instructions.BC1T, Instructions.BC1FL, Instructions.BC1TL,
+			Instructions.J, Instructions.JR
+		};
+		cacheableInstructions.addAll(Arrays.asList(instructions));
+	}
+
+	private static class RegisterUse {
+		private final int reg;
+		private final int count;
+
+		public RegisterUse(int reg, int count) {
+			this.reg = reg;
+			this.count = count;
+		}
+	}
+
+	private static class RegisterUseComparator implements Comparator<RegisterUse> {
+		@Override
+		public int compare(RegisterUse use1, RegisterUse use2) {
+			if (use1.count != use2.count) {
+				return use2.count - use1.count;
+			}
+			return use1.reg - use2.reg;
+		}
+	}
+
+	private LocalRegisterCache(int[] gprCounts, int[] fprCounts, int firstLocal) {
+		Arrays.fill(gprLocals, NO_LOCAL);
+		Arrays.fill(fprLocals, NO_LOCAL);
+
+		cachedGprs = selectRegisters(gprCounts, MAX_CACHED_GPR);
+		cachedFprs = selectRegisters(fprCounts, MAX_CACHED_FPR);
+
+		int local = firstLocal;
+		for (int reg : cachedGprs) {
+			gprLocals[reg] = local++;
+		}
+		for (int reg : cachedFprs) {
+			fprLocals[reg] = local++;
+		}
+	}
+
+	private static int[] selectRegisters(int[] counts, int maxRegisters) {
+		List<RegisterUse> uses = new ArrayList<RegisterUse>();
+		for (int reg = 0; reg < counts.length; reg++) {
+			if (counts[reg] >= MIN_USES) {
+				uses.add(new RegisterUse(reg, counts[reg]));
+			}
+		}
+		Collections.sort(uses, new RegisterUseComparator());
+
+		int[] registers = new int[Math.min(uses.size(), maxRegisters)];
+		for (int i = 0; i < registers.length; i++) {
+			registers[i] = uses.get(i).reg;
+		}
+
+		return registers;
+	}
+
+	private static boolean isCacheable(CodeInstruction codeInstruction) {
+		Class<?> codeInstructionClass = codeInstruction.getClass();
+		if (codeInstructionClass == SequenceCodeInstruction.class || codeInstructionClass == EndBlockCodeInstruction.class) {
+			// Compiled as a call to a sequence method or as a jump
+			return true;
+		}
+		if (codeInstructionClass == SequenceSWCodeInstruction.class || codeInstructionClass == SequenceLWCodeInstruction.class) {
+			return true;
+		}
+		if (codeInstructionClass != CodeInstruction.class) {
+			// E.g. native code sequences or hooks
+			return false;
+		}
+
+		return cacheableInstructions.contains(codeInstruction.getInsn());
+	}
+
+	private static void addGpr(int[] gprCounts, int reg, int weight) {
+		if (reg != _zr) {
+			gprCounts[reg] += weight;
+		}
+	}
+
+	private static void countRegisterUses(CodeInstruction codeInstruction, int weight, int[] gprCounts, int[] fprCounts) {
+		Instruction insn = codeInstruction.getInsn();
+		if (insn == null || insn == Instructions.J) {
+			return;
+		}
+
+		int opcode = codeInstruction.getOpcode();
+		int major = opcode >>> 26;
+		if (major == 0x11) {
+			// COP1 instructions
+			int fmt = codeInstruction.getRsRegisterIndex();
+			if (insn == Instructions.MFC1 || insn == Instructions.MTC1) {
+				addGpr(gprCounts, codeInstruction.getRtRegisterIndex(), weight);
+				fprCounts[codeInstruction.getFsRegisterIndex()] += weight;
+			} else if (insn == Instructions.CFC1 || insn == Instructions.CTC1) {
+				addGpr(gprCounts, codeInstruction.getRtRegisterIndex(), weight);
+			} else if (fmt >= 16) {
+				fprCounts[codeInstruction.getFsRegisterIndex()] += weight;
+				if (insn == Instructions.C_COND_S) {
+					fprCounts[codeInstruction.getFtRegisterIndex()] += weight;
+				} else {
+					fprCounts[codeInstruction.getFdRegisterIndex()] += weight;
+					if (insn == Instructions.ADD_S || insn == Instructions.SUB_S || insn == Instructions.DIV_S) {
+						fprCounts[codeInstruction.getFtRegisterIndex()] += weight;
+					}
+				}
+			}
+		} else if (insn == Instructions.LWC1 || insn == Instructions.SWC1) {
+			addGpr(gprCounts, codeInstruction.getRsRegisterIndex(), weight);
+			fprCounts[codeInstruction.getFtRegisterIndex()] += weight;
+		} else if (major == 0x01) {
+			// REGIMM instructions, the rt field is not a register
+			addGpr(gprCounts, codeInstruction.getRsRegisterIndex(), weight);
+		} else {
+			addGpr(gprCounts, codeInstruction.getRsRegisterIndex(), weight);
+			addGpr(gprCounts, codeInstruction.getRtRegisterIndex(), weight);
+			if (codeInstruction.hasFlags(FLAG_WRITES_RD)) {
+				addGpr(gprCounts, codeInstruction.getRdRegisterIndex(), weight);
+			}
+		}
+	}
+
+	/**
+	 * Allocate local variables to the most used registers of a method.
+	 *
+	 * @param codeInstructions  the instructions of the method, sorted by address
+	 * @param firstLocal        the first local variable index available
+	 * @return                  the register cache, or null if no register
+	 *                          can be cached in this method
+	 */
+	public static LocalRegisterCache allocate(List<CodeInstruction> methodCodeInstructions, int firstLocal) {
+		// Indexed access is required
+		List<CodeInstruction> codeInstructions = new ArrayList<CodeInstruction>(methodCodeInstructions);
+		if (codeInstructions.isEmpty()) {
+			return null;
+		}
+
+		for (CodeInstruction codeInstruction : codeInstructions) {
+			if (!isCacheable(codeInstruction)) {
+				return null;
+			}
+		}
+
+		// The instructions between a back branch and its target are probably a loop
+		int numberInstructions = codeInstructions.size();
+		int[] weights = new int[numberInstructions];
+		Arrays.fill(weights, 1);
+		int firstAddress = codeInstructions.get(0).getAddress();
+		for (int i = 0; i < numberInstructions; i++) {
+			CodeInstruction codeInstruction = codeInstructions.get(i);
+			if (codeInstruction.isBranching()) {
+				int branchingTo = codeInstruction.getBranchingTo();
+				if (branchingTo >= firstAddress && branchingTo <= codeInstruction.getAddress()) {
+					for (int j = 0; j < numberInstructions; j++) {
+						int address = codeInstructions.get(j).getAddress();
+						// Including the delay slot
+						if (address >= branchingTo && address <= codeInstruction.getAddress() + 4) {
+							weights[j] = LOOP_WEIGHT;
+						}
+					}
+				}
+			}
+		}
+
+		int[] gprCounts = new int[NUMBER_REGISTERS];
+		int[] fprCounts = new int[NUMBER_REGISTERS];
+		for (int i = 0; i < numberInstructions; i++) {
+			countRegisterUses(codeInstructions.get(i), weights[i], gprCounts, fprCounts);
+		}
+
+		LocalRegisterCache localRegisterCache = new LocalRegisterCache(gprCounts, fprCounts, firstLocal);
+		if (localRegisterCache.getNumberLocals() == 0) {
+			return null;
+		}
+
+		return localRegisterCache;
+	}
+
+	public int getNumberLocals() {
+		return cachedGprs.length + cachedFprs.length;
+	}
+
+	public boolean isGprCached(int reg) {
+		return gprLocals[reg] != NO_LOCAL;
+	}
+
+	public boolean isFprCached(int reg) {
+		return fprLocals[reg] != NO_LOCAL;
+	}
+
+	public int getGprLocal(int reg) {
+		return gprLocals[reg];
+	}
+
+	public int getFprLocal(int reg) {
+		return fprLocals[reg];
+	}
+
+	public int[] getCachedGprs() {
+		return cachedGprs;
+	}
+
+	public int[] getCachedFprs() {
+		return cachedFprs;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		for (int reg : cachedGprs) {
+			if (s.length() > 0) {
+				s.append(", ");
+			}
+			s.append(gprNames[reg]);
+		}
+		for (int reg : cachedFprs) {
+			if (s.length() > 0) {
+				s.append(", ");
+			}
+			s.append(String.format("$f%d", reg));
+		}
+
+		return s.toString();
+	}
+}
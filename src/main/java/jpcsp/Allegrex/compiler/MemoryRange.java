@@ -17,6 +17,7 @@ along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
 package jpcsp.Allegrex.compiler;
 
 import jpcsp.Memory;
+import jpcsp.memory.DirtyPageTracker;
 import jpcsp.memory.IMemoryReader;
 import jpcsp.memory.MemoryReader;
 
@@ -29,6 +30,8 @@ public class MemoryRange {
 	private int rawAddress;
 	private int length;
 	private int[] values;
+	// Generation of the dirty page tracking when the values have been read
+	private long valuesGeneration;
 
 	public MemoryRange(int address, int length) {
 		setAddress(address);
@@ -54,6 +57,8 @@ public class MemoryRange {
 
 	public void updateValues() {
 		values = new int[length >> 2];
+		DirtyPageTracker dirtyPageTracker = Memory.getInstance().getDirtyPageTracker();
+		valuesGeneration = dirtyPageTracker != null ? dirtyPageTracker.snapshot() : 0L;
 
 		if (RuntimeContext.hasMemoryInt(address)) {
 			System.arraycopy(RuntimeContext.getMemoryInt(), address >> 2, values, 0, values.length);
@@ -87,6 +92,16 @@ public class MemoryRange {
 			return false;
 		}
 
+		// No need to compare the values if the memory has not been written since they have been read
+		DirtyPageTracker dirtyPageTracker = Memory.getInstance().getDirtyPageTracker();
+		long generation = 0L;
+		if (dirtyPageTracker != null) {
+			if (!dirtyPageTracker.isDirty(address, length, valuesGeneration)) {
+				return false;
+			}
+			generation = dirtyPageTracker.snapshot();
+		}
+
 		if (RuntimeContext.hasMemoryInt(address)) {
 			// Optimized for the most common case (i.e. using memoryInt)
 			int[] memoryInt = RuntimeContext.getMemoryInt();
@@ -105,6 +120,12 @@ public class MemoryRange {
 			}
 		}
 
+		// The values are unchanged, the pages written up to now can be ignored
+		// at the next check.
+		if (generation != 0L) {
+			valuesGeneration = generation;
+		}
+
 		return false;
 	}
 
@@ -87,6 +87,31 @@ public class MemoryRanges {
 		return 0;
 	}
 
+	/**
+	 * Return the values of all the memory ranges, concatenated
+	 * in the order of the ranges.
+	 * The values have to be updated first, see updateValues().
+	 *
+	 * @return the concatenated values
+	 */
+	public int[] getValues() {
+		int length = 0;
+		for (MemoryRange memoryRange : ranges) {
+			length += memoryRange.getLength() >> 2;
+		}
+
+		int[] values = new int[length];
+		int offset = 0;
+		for (MemoryRange memoryRange : ranges) {
+			int rangeLength = memoryRange.getLength() >> 2;
+			for (int i = 0; i < rangeLength; i++) {
+				values[offset++] = memoryRange.getValue(memoryRange.getAddress() + (i << 2));
+			}
+		}
+
+		return values;
+	}
+
 	public void clear() {
 		for (MemoryRange memoryRange : ranges) {
 			memoryRange.free();
@@ -0,0 +1,239 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.Allegrex.compiler;
+
+import static jpcsp.Allegrex.Common._zr;
+import static jpcsp.Allegrex.Common.Instruction.FLAG_ENDS_BLOCK;
+import static jpcsp.Allegrex.Common.Instruction.FLAG_HAS_DELAY_SLOT;
+import static jpcsp.Allegrex.Common.Instruction.FLAG_IS_BRANCHING;
+import static jpcsp.Allegrex.Common.Instruction.FLAG_IS_JUMPING;
+import static jpcsp.Allegrex.Common.Instruction.FLAG_STARTS_NEW_BLOCK;
+import static jpcsp.Allegrex.Common.Instruction.FLAG_TRIGGERS_EXCEPTION;
+
+import jpcsp.Processor;
+import jpcsp.Allegrex.CpuState;
+import jpcsp.Allegrex.Decoder;
+import jpcsp.Allegrex.Instructions;
+import jpcsp.Allegrex.Common.Instruction;
+import jpcsp.memory.IMemoryReader;
+import jpcsp.memory.MemoryReader;
+
+/**
+ * A straight-line sequence of decoded instructions, interpreted without
+ * fetching and decoding again the opcodes at each execution.
+ *
+ * The sequence is ending after the first branch or jump and its delay slot,
+ * or after the first instruction ending a block or triggering an exception.
+ * The code is therefore always entered at its start address.
+ *
+ * Some instruction pairs are fused into one entry:
+ * - "lui" followed by "addiu" or "ori" using the "lui" result
+ *   is interpreted as two constant register writes,
+ * - a branch or jump is interpreted together with its delay slot
+ *   instruction, without decoding again the delay slot.
+ *
+ * The opcodes are checked again after each invalidation of the instruction cache
+ * by the application (RuntimeContext.invalidateAll() or invalidateRange()).
+ *
+ * @author gid15
+ *
+ */
+public class PredecodedCodeBlock {
+	private static final int maxNumberOpcodes = 100;
+	private static final int KIND_INSTRUCTION = 0;
+	private static final int KIND_LUI_ADDIU = 1;
+	private static final int KIND_LUI_ORI = 2;
+	private static final int KIND_DELAY_SLOT = 3;
+	private final int startAddress;
+	private int[] rawOpcodes;
+	private int numberEntries;
+	private int[] kinds;
+	private int[] addresses;
+	private Instruction[] insns;
+	private int[] opcodes;
+	private Instruction[] secondInsns;
+	private int[] secondOpcodes;
+	private int validationCount;
+
+	public PredecodedCodeBlock(int startAddress, int validationCount) {
+		this.startAddress = startAddress;
+		this.validationCount = validationCount;
+		decode();
+	}
+
+	private static boolean endsSequence(Instruction insn) {
+		return insn.hasOneFlag(FLAG_STARTS_NEW_BLOCK | FLAG_ENDS_BLOCK | FLAG_TRIGGERS_EXCEPTION | FLAG_IS_BRANCHING | FLAG_IS_JUMPING);
+	}
+
+	private static boolean isLuiFusable(int luiOpcode, Instruction nextInsn, int nextOpcode) {
+		if (nextInsn != Instructions.ADDIU && nextInsn != Instructions.ORI) {
+			return false;
+		}
+
+		int luiRt = (luiOpcode >> 16) & 31;
+		int nextRs = (nextOpcode >> 21) & 31;
+
+		return luiRt != _zr && luiRt == nextRs;
+	}
+
+	private void addEntry(int kind, int address, Instruction insn, int opcode, Instruction secondInsn, int secondOpcode) {
+		kinds[numberEntries] = kind;
+		addresses[numberEntries] = address;
+		insns[numberEntries] = insn;
+		opcodes[numberEntries] = opcode;
+		secondInsns[numberEntries] = secondInsn;
+		secondOpcodes[numberEntries] = secondOpcode;
+		numberEntries++;
+	}
+
+	private void decode() {
+		int[] readOpcodes = new int[maxNumberOpcodes + 1];
+		Instruction[] readInsns = new Instruction[readOpcodes.length];
+		int numberOpcodes = 0;
+
+		IMemoryReader memoryReader = MemoryReader.getMemoryReader(startAddress, 4);
+		while (numberOpcodes < maxNumberOpcodes) {
+			int opcode = memoryReader.readNext();
+			Instruction insn = Decoder.instruction(opcode);
+			readOpcodes[numberOpcodes] = opcode;
+			readInsns[numberOpcodes] = insn;
+			numberOpcodes++;
+
+			if (insn.hasFlags(FLAG_HAS_DELAY_SLOT)) {
+				int delaySlotOpcode = memoryReader.readNext();
+				readOpcodes[numberOpcodes] = delaySlotOpcode;
+				readInsns[numberOpcodes] = Decoder.instruction(delaySlotOpcode);
+				numberOpcodes++;
+				break;
+			}
+			if (endsSequence(insn)) {
+				break;
+			}
+		}
+
+		rawOpcodes = new int[numberOpcodes];
+		System.arraycopy(readOpcodes, 0, rawOpcodes, 0, numberOpcodes);
+
+		numberEntries = 0;
+		kinds = new int[numberOpcodes];
+		addresses = new int[numberOpcodes];
+		insns = new Instruction[numberOpcodes];
+		opcodes = new int[numberOpcodes];
+		secondInsns = new Instruction[numberOpcodes];
+		secondOpcodes = new int[numberOpcodes];
+		for (int i = 0; i < numberOpcodes; i++) {
+			int address = startAddress + (i << 2);
+			Instruction insn = readInsns[i];
+			int opcode = readOpcodes[i];
+			if (insn.hasFlags(FLAG_HAS_DELAY_SLOT) && i + 1 < numberOpcodes) {
+				addEntry(KIND_DELAY_SLOT, address, insn, opcode, readInsns[i + 1], readOpcodes[i + 1]);
+				i++;
+			} else if (insn == Instructions.LUI && i + 1 < numberOpcodes && isLuiFusable(opcode, readInsns[i + 1], readOpcodes[i + 1])) {
+				int kind = readInsns[i + 1] == Instructions.ADDIU ? KIND_LUI_ADDIU : KIND_LUI_ORI;
+				addEntry(kind, address, insn, opcode, readInsns[i + 1], readOpcodes[i + 1]);
+				i++;
+			} else {
+				addEntry(KIND_INSTRUCTION, address, insn, opcode, null, 0);
+			}
+		}
+	}
+
+	/**
+	 * Decode again the opcodes if they have been modified since the last validation.
+	 *
+	 * @param validationCount the current validation count
+	 */
+	public void validate(int validationCount) {
+		if (this.validationCount == validationCount) {
+			return;
+		}
+		this.validationCount = validationCount;
+
+		IMemoryReader memoryReader = MemoryReader.getMemoryReader(startAddress, 4);
+		for (int i = 0; i < rawOpcodes.length; i++) {
+			if (memoryReader.readNext() != rawOpcodes[i]) {
+				decode();
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Interpret the sequence.
+	 * The interpretation stops early when an instruction is
+	 * not continuing at the next address (e.g. a syscall).
+	 *
+	 * @param processor the processor
+	 * @return          the last interpreted instruction
+	 */
+	public Instruction interpret(Processor processor) {
+		final CpuState cpu = processor.cpu;
+		Instruction insn = null;
+		for (int i = 0; i < numberEntries; i++) {
+			final int address = addresses[i];
+			final int opcode = opcodes[i];
+			insn = insns[i];
+			switch (kinds[i]) {
+				case KIND_LUI_ADDIU:
+				case KIND_LUI_ORI: {
+					int secondOpcode = secondOpcodes[i];
+					int luiValue = opcode << 16;
+					int value;
+					if (kinds[i] == KIND_LUI_ADDIU) {
+						value = luiValue + (int) (short) secondOpcode;
+					} else {
+						value = luiValue | (secondOpcode & 0xFFFF);
+					}
+					cpu.setRegister((opcode >> 16) & 31, luiValue);
+					cpu.setRegister((secondOpcode >> 16) & 31, value);
+					cpu.pc = address + 8;
+					cpu.npc = address + 12;
+					insn = secondInsns[i];
+					break;
+				}
+				case KIND_DELAY_SLOT:
+					cpu.pc = address + 4;
+					cpu.npc = address + 8;
+					processor.interpret(insn, opcode, secondInsns[i], secondOpcodes[i]);
+					return insn;
+				default:
+					cpu.pc = address + 4;
+					cpu.npc = address + 8;
+					processor.interpret(insn, opcode);
+					if (cpu.pc != address + 4) {
+						return insn;
+					}
+					break;
+			}
+		}
+
+		return insn;
+	}
+
+	public int getStartAddress() {
+		return startAddress;
+	}
+
+	public int getLength() {
+		return rawOpcodes.length;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("PredecodedCodeBlock[0x%08X, %d opcodes, %d entries]", startAddress, rawOpcodes.length, numberEntries);
+	}
+}
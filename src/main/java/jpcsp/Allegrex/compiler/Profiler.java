@@ -51,6 +51,9 @@ public class Profiler {
     private static int compilationCount;
     private static long compilationTimeMicros;
     private static long longestCompilationTimeMicros;
+    private static long linkedJumps;
+    private static long dispatchedJumps;
+    private static int hotRegions;
 
 	private static class ProfilerEnabledSettingsListerner extends AbstractBoolSettingsListener {
 		@Override
@@ -87,6 +90,10 @@ public class Profiler {
         compilationCount = 0;
         compilationTimeMicros = 0;
         longestCompilationTimeMicros = 0;
+        linkedJumps = 0;
+        dispatchedJumps = 0;
+        hotRegions = 0;
+        Compiler.getInstance().getCodeBlockCache().resetStatistics();
     }
 
     public static void exit() {
@@ -107,6 +114,14 @@ public class Profiler {
         int count = 0;
         double avg = compilationCount == 0 ? 0.0 : compilationTimeMicros / (double) compilationCount / 1000;
         log.info(String.format("Compilation time %dms, %d calls, average %.1fms, longest %dms", compilationTimeMicros / 1000, compilationCount, avg, longestCompilationTimeMicros / 1000));
+        log.info(String.format("CodeBlock transitions: %,d linked, %,d dispatched", linkedJumps, dispatchedJumps));
+        if (hotRegions > 0) {
+        	log.info(String.format("Hot regions recompiled: %d", hotRegions));
+        }
+        CodeBlockCache codeBlockCache = Compiler.getInstance().getCodeBlockCache();
+        if (codeBlockCache.hasStatistics()) {
+        	log.info(String.valueOf(codeBlockCache));
+        }
         log.info(String.format("CodeBlocks profiling information (%,d total cycles):", allCycles));
         for (CodeBlock codeBlock : sortedCodeBlocks) {
             long callCount = getCallCount(codeBlock);
@@ -234,6 +249,18 @@ public class Profiler {
         instructionCounts.put(address, instructionCount + count);
     }
 
+    public static void addLinkedJump() {
+    	linkedJumps++;
+    }
+
+    public static void addDispatchedJump() {
+    	dispatchedJumps++;
+    }
+
+    public static void addHotRegion() {
+    	hotRegions++;
+    }
+
     public static void addBackBranch(int address) {
         Long backBranchCount = backBranchCounts.get(address);
         if (backBranchCount == null) {
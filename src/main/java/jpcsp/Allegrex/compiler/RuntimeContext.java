@@ -26,6 +26,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -52,7 +53,9 @@ import jpcsp.HLE.modules.reboot;
 import jpcsp.HLE.modules.sceDisplay;
 import jpcsp.graphics.RE.externalge.ExternalGE;
 import jpcsp.mediaengine.MEProcessor;
+import jpcsp.mediaengine.MERuntimeContext;
 import jpcsp.memory.DebuggerMemory;
+import jpcsp.memory.DirtyPageTracker;
 import jpcsp.memory.mmio.MMIOHandlerDisplayController;
 import jpcsp.scheduler.Scheduler;
 import jpcsp.settings.AbstractBoolSettingsListener;
@@ -78,6 +81,7 @@ public class RuntimeContext {
 	public  static float[] vprFloat;
 	public  static int[] vprInt;
 	public  static int[] memoryInt;
+	public  static DirtyPageTracker dirtyPageTracker;
 	public  static Processor processor;
 	public  static CpuState cpu;
 	public  static int syscallRa;
@@ -107,10 +111,30 @@ public class RuntimeContext {
 	private static int codeBlocksHighestAddress = Integer.MIN_VALUE;
 	// A fast lookup array for executables (to improve the performance of the Allegrex instruction jalr)
 	private static IExecutable[] fastExecutableLookup;
-	// A fast lookup for the Allegrex instruction ICACHE HIT INVALIDATE
-	private static CodeBlockList[] fastCodeBlockLookup;
-	private static final int fastCodeBlockLookupShift = 8;
-	private static final int fastCodeBlockSize = 64; // Matching the size used by the Allegrex instruction ICACHE HIT INVALIDATE
+	// The straight-line sequences decoded by the interpreter, by start address
+	private static final Map<Integer, PredecodedCodeBlock> predecodedCodeBlocks = new HashMap<Integer, PredecodedCodeBlock>();
+	// Incremented at each instruction cache invalidation, the predecoded sequences are then checked again
+	private static int predecodedValidationCount;
+	// An index of the code blocks by address range, used when invalidating an address range
+	private static CodeBlockIndex codeBlockIndex = new CodeBlockIndex(MemoryMap.START_RAM, MemoryMap.SIZE_RAM);
+	// The links used by the compiled code blocks to jump directly to other code blocks, by masked address.
+	// Only the most recently used links are kept, the evicted ones are detached.
+	private static final int maxCodeBlockLinks = 0x4000;
+	private static final Map<Integer, CodeBlockLink> codeBlockLinks = new LinkedHashMap<Integer, CodeBlockLink>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Entry<Integer, CodeBlockLink> eldest) {
+			if (size() > maxCodeBlockLinks) {
+				eldest.getValue().detach();
+				return true;
+			}
+			return false;
+		}
+	};
+	// The masked return address of the innermost jump(), when not executing a RuntimeThread
+	public  static final int NO_PENDING_RETURN_ADDRESS = -1;
+	private static int pendingReturnAddress = NO_PENDING_RETURN_ADDRESS;
 	private static final Map<SceKernelThreadInfo, RuntimeThread> threads = Collections.synchronizedMap(new HashMap<SceKernelThreadInfo, RuntimeThread>());
 	private static final Map<SceKernelThreadInfo, RuntimeThread> toBeStoppedThreads = Collections.synchronizedMap(new HashMap<SceKernelThreadInfo, RuntimeThread>());
 	private static final Map<SceKernelThreadInfo, RuntimeThread> alreadyStoppedThreads = Collections.synchronizedMap(new HashMap<SceKernelThreadInfo, RuntimeThread>());
@@ -134,6 +158,8 @@ public class RuntimeContext {
 	public static int firmwareVersion;
 	private static boolean isHomebrew = false;
 	public static boolean javaThreadScheduling = true;
+	private static boolean virtualThreadsEnabled = false;
+	private static volatile long threadSwitches;
 
 	private static class CompilerEnabledSettingsListerner extends AbstractBoolSettingsListener {
 		@Override
@@ -142,8 +168,11 @@ public class RuntimeContext {
 		}
 	}
 
-	private static class CodeBlockList extends LinkedList<CodeBlock> {
-		private static final long serialVersionUID = 7370950118403866860L;
+	private static class VirtualThreadsSettingsListerner extends AbstractBoolSettingsListener {
+		@Override
+		protected void settingsValueChanged(boolean value) {
+			setVirtualThreadsEnabled(value);
+		}
 	}
 
 	private static void setCompilerEnabled(boolean enabled) {
@@ -154,6 +183,20 @@ public class RuntimeContext {
 		return compilerEnabled;
 	}
 
+	/**
+	 * Execute the PSP threads in virtual threads instead of platform threads.
+	 * Only applies to the PSP threads started after the change.
+	 *
+	 * @param enabled true to use virtual threads when supported by the JDK
+	 */
+	public static void setVirtualThreadsEnabled(boolean enabled) {
+		virtualThreadsEnabled = enabled;
+	}
+
+	public static boolean isVirtualThreadsEnabled() {
+		return virtualThreadsEnabled;
+	}
+
 	public static void execute(Instruction insn, int opcode) {
 		insn.interpret(processor, opcode);
 	}
@@ -167,8 +210,6 @@ public class RuntimeContext {
             throw new RuntimeException(msg);
         }
 
-		int returnValue;
-		int sp = cpu._sp;
 		RuntimeThread stackThread = currentRuntimeThread;
 
 		if (stackThread != null && stackThread.isStackMaxSize()) {
@@ -178,6 +219,41 @@ public class RuntimeContext {
 			throw new StackPopException(address);
 		}
 
+		if (Profiler.isProfilerEnabled()) {
+			Profiler.addDispatchedJump();
+		}
+
+		return exec(executable, stackThread);
+	}
+
+	/**
+	 * Jump from a compiled code block directly to a linked executable.
+	 *
+	 * @param executable the linked executable
+	 * @param address    the address being jumped to
+	 * @return           the address where to continue the execution
+	 * @throws Exception
+	 */
+	public static int jumpLinked(IExecutable executable, int address) throws Exception {
+		RuntimeThread stackThread = currentRuntimeThread;
+
+		if (stackThread != null && stackThread.isStackMaxSize()) {
+			// Do not increase further the stack, let the caller
+			// jump to the address.
+			return address;
+		}
+
+		if (Profiler.isProfilerEnabled()) {
+			Profiler.addLinkedJump();
+		}
+
+		return exec(executable, stackThread);
+	}
+
+	private static int exec(IExecutable executable, RuntimeThread stackThread) throws Exception {
+		int returnValue;
+		int sp = cpu._sp;
+
 		try {
 			if (stackThread != null) {
 				stackThread.increaseStackSize();
@@ -212,18 +288,24 @@ public class RuntimeContext {
 		}
 
 		int sp = cpu._sp;
-		while ((address & addressMask) != (returnAddress & addressMask)) {
-			try {
-				address = jumpCall(address);
-			} catch (StackPopException e) {
-				if (log.isDebugEnabled()) {
-					log.debug(String.format("jump catching StackPopException 0x%08X with $sp=0x%08X, start $sp=0x%08X", e.getRa(), cpu._sp, sp));
-				}
-				if ((e.getRa() & addressMask) != (returnAddress & addressMask)) {
-					throw e;
+		RuntimeThread runtimeThread = currentRuntimeThread;
+		int previousReturnAddress = setPendingReturnAddress(runtimeThread, returnAddress & addressMask);
+		try {
+			while ((address & addressMask) != (returnAddress & addressMask)) {
+				try {
+					address = jumpCall(address);
+				} catch (StackPopException e) {
+					if (log.isDebugEnabled()) {
+						log.debug(String.format("jump catching StackPopException 0x%08X with $sp=0x%08X, start $sp=0x%08X", e.getRa(), cpu._sp, sp));
+					}
+					if ((e.getRa() & addressMask) != (returnAddress & addressMask)) {
+						throw e;
+					}
+					break;
 				}
-				break;
 			}
+		} finally {
+			setPendingReturnAddress(runtimeThread, previousReturnAddress);
 		}
 
 		if (debugCodeBlockCalls && log.isDebugEnabled()) {
@@ -231,6 +313,41 @@ public class RuntimeContext {
 		}
 	}
 
+    /**
+     * Set the return address of the innermost jump() for the given thread.
+     *
+     * @param runtimeThread the current RuntimeThread, or null
+     * @param returnAddress the masked return address, or NO_PENDING_RETURN_ADDRESS
+     * @return              the previous pending return address, to be restored
+     */
+    private static int setPendingReturnAddress(RuntimeThread runtimeThread, int returnAddress) {
+    	int previousReturnAddress;
+    	if (runtimeThread != null) {
+    		previousReturnAddress = runtimeThread.getPendingReturnAddress();
+    		runtimeThread.setPendingReturnAddress(returnAddress);
+    	} else {
+    		previousReturnAddress = pendingReturnAddress;
+    		pendingReturnAddress = returnAddress;
+    	}
+
+    	return previousReturnAddress;
+    }
+
+    /**
+     * Check if an address is the return address of the innermost jump().
+     * A linked jump must not continue at that address: the execution
+     * has to return to the jump() loop, which stops at its return address.
+     *
+     * @param address the address being jumped to
+     * @return        true if the address is the pending return address
+     */
+    public static boolean isPendingReturnAddress(int address) {
+    	RuntimeThread runtimeThread = currentRuntimeThread;
+    	int returnAddress = runtimeThread != null ? runtimeThread.getPendingReturnAddress() : pendingReturnAddress;
+
+    	return (address & addressMask) == returnAddress;
+    }
+
     public static int call(int address) throws Exception {
 		if (debugCodeBlockCalls && log.isDebugEnabled()) {
 			log.debug(String.format("call address=0x%08X, $ra=0x%08X", address, cpu._ra));
@@ -263,13 +380,20 @@ public class RuntimeContext {
 			}
 		}
 
+		boolean predecoded = !useMMIO && Compiler.getInstance().isPredecodedInterpreterEnabled() && !debugCodeBlockCalls && !processor.getLogger().isTraceEnabled();
+
 		boolean interpret = true;
 		cpu.pc = address;
 		int returnValue = 0;
 		while (interpret) {
-			processor.interpret();
+			Instruction insn;
+			if (predecoded) {
+				insn = getPredecodedCodeBlock(cpu.pc).interpret(processor);
+			} else {
+				processor.interpret();
+				insn = processor.getInstruction();
+			}
 
-			Instruction insn = processor.getInstruction();
 			if (insn.hasFlags(Instruction.FLAG_STARTS_NEW_BLOCK)) {
 				if (useMMIO) {
 					cpu.setMemory(memory);
@@ -291,6 +415,18 @@ public class RuntimeContext {
 		return returnValue;
 	}
 
+	private static PredecodedCodeBlock getPredecodedCodeBlock(int address) {
+		PredecodedCodeBlock predecodedCodeBlock = predecodedCodeBlocks.get(address);
+		if (predecodedCodeBlock == null) {
+			predecodedCodeBlock = new PredecodedCodeBlock(address, predecodedValidationCount);
+			predecodedCodeBlocks.put(address, predecodedCodeBlock);
+		} else {
+			predecodedCodeBlock.validate(predecodedValidationCount);
+		}
+
+		return predecodedCodeBlock;
+	}
+
 	public static void execute(int opcode) {
 		Instruction insn = Decoder.instruction(opcode);
 		execute(insn, opcode);
@@ -386,6 +522,10 @@ public class RuntimeContext {
     }
 
     public static void debugCodeInstruction(int address, int opcode) {
+    	debugCodeInstruction(cpu, address, opcode);
+    }
+
+    public static void debugCodeInstruction(CpuState cpu, int address, int opcode) {
     	if (log.isTraceEnabled()) {
     		cpu.pc = address;
     		Instruction insn = Decoder.instruction(opcode);
@@ -425,10 +565,20 @@ public class RuntimeContext {
 
         Profiler.initialise();
 
+        // Preload the compiled classes of the current game
+        Compiler.getInstance().getCodeBlockCache().load();
+
         sceDisplayModule = Modules.sceDisplayModule;
 
         fastExecutableLookup = new IExecutable[MemoryMap.SIZE_RAM >> 2];
-        fastCodeBlockLookup = new CodeBlockList[MemoryMap.SIZE_RAM >> fastCodeBlockLookupShift];
+
+        // The RAM size could have been changed, rebuild the code block index
+        codeBlockIndex = new CodeBlockIndex(MemoryMap.START_RAM, MemoryMap.SIZE_RAM);
+        synchronized (codeBlocks) {
+        	for (CodeBlock codeBlock : codeBlocks.values()) {
+        		codeBlockIndex.add(codeBlock);
+        	}
+        }
 
 		return true;
     }
@@ -447,9 +597,8 @@ public class RuntimeContext {
     		return true;
     	}
 
-    	Thread currentThread = Thread.currentThread();
-    	if (currentThread instanceof RuntimeThread) {
-    		RuntimeThread currentRuntimeThread = (RuntimeThread) currentThread;
+    	RuntimeThread currentRuntimeThread = getRuntimeThread();
+    	if (currentRuntimeThread != null) {
     		if (callbackThread == currentRuntimeThread.getThreadInfo()) {
     			return true;
     		}
@@ -510,6 +659,7 @@ public class RuntimeContext {
     public static void updateMemory() {
         memory = Emulator.getMemory();
         memoryInt = memory.getMemoryInt(0);
+        dirtyPageTracker = memory.getDirtyPageTracker();
     }
 
     public static void update() {
@@ -648,12 +798,13 @@ public class RuntimeContext {
 
     private static void syncThreadImmediately() throws StopThreadException {
         Thread currentThread = Thread.currentThread();
+        RuntimeThread runtimeThread = getRuntimeThread();
     	if (currentRuntimeThread != null &&
-                currentThread != currentRuntimeThread && !alreadySwitchedStoppedThreads.contains(currentThread)) {
+                runtimeThread != currentRuntimeThread && !alreadySwitchedStoppedThreads.contains(currentThread)) {
+    		threadSwitches++;
     		currentRuntimeThread.continueRuntimeExecution();
 
-    		if (currentThread instanceof RuntimeThread) {
-    			RuntimeThread runtimeThread = (RuntimeThread) currentThread;
+    		if (runtimeThread != null) {
     			if (!alreadyStoppedThreads.containsValue(runtimeThread)) {
 	    			log.debug("Waiting to be scheduled...");
 					runtimeThread.suspendRuntimeExecution();
@@ -685,12 +836,7 @@ public class RuntimeContext {
     }
 
     public static RuntimeThread getRuntimeThread() {
-    	Thread currentThread = Thread.currentThread();
-		if (currentThread instanceof RuntimeThread) {
-			return (RuntimeThread) currentThread;
-		}
-
-		return null;
+    	return RuntimeThread.getCurrentRuntimeThread();
     }
 
     private static boolean isStoppedThread() {
@@ -763,6 +909,9 @@ public class RuntimeContext {
     }
 
     public static void sync() throws StopThreadException {
+    	// Swap in the code blocks compiled in the background
+    	Compiler.getInstance().checkBackgroundCompilations();
+
     	do {
     		wantSync = false;
 
@@ -867,7 +1016,14 @@ public class RuntimeContext {
     private static void execWithReturnAddress(IExecutable executable, int returnAddress) throws Exception {
     	while (true) {
     		try {
-    			int address = executable.exec();
+    			int address;
+    			RuntimeThread runtimeThread = currentRuntimeThread;
+    			int previousReturnAddress = setPendingReturnAddress(runtimeThread, returnAddress & addressMask);
+    			try {
+    				address = executable.exec();
+    			} finally {
+    				setPendingReturnAddress(runtimeThread, previousReturnAddress);
+    			}
     			if (address != returnAddress) {
     				jump(address, returnAddress);
     			}
@@ -1004,7 +1160,7 @@ public class RuntimeContext {
 		}
 
 		alreadyStoppedThreads.remove(threadInfo);
-		alreadySwitchedStoppedThreads.remove(thread);
+		alreadySwitchedStoppedThreads.remove(thread.getThread());
 
 		if (log.isDebugEnabled()) {
 			log.debug("End of Thread " + thread.getName());
@@ -1032,6 +1188,11 @@ public class RuntimeContext {
     	int maskedAddress = address & addressMask;
     	CodeBlock previousCodeBlock = codeBlocks.put(maskedAddress, codeBlock);
 
+    	if (previousCodeBlock != null) {
+    		codeBlockIndex.remove(previousCodeBlock);
+    	}
+    	codeBlockIndex.add(codeBlock);
+
     	if (!codeBlock.isInternal()) {
     		int lowestAddress = codeBlock.getLowestAddress() & addressMask;
     		int highestAddress = codeBlock.getHighestAddress() & addressMask;
@@ -1044,29 +1205,12 @@ public class RuntimeContext {
 	    		if (fastExecutableLoopukIndex >= 0 && fastExecutableLoopukIndex < fastExecutableLookup.length) {
 	    			fastExecutableLookup[fastExecutableLoopukIndex] = null;
 	    		}
+	    		unlinkCodeBlock(maskedAddress);
 	    	} else {
 	    		// One new code block has been added, update the code blocks range
 	    		codeBlocksLowestAddress = Math.min(codeBlocksLowestAddress, lowestAddress);
 	    		codeBlocksHighestAddress = Math.max(codeBlocksHighestAddress, highestAddress);
 	    	}
-
-	    	int startIndex = (lowestAddress - MemoryMap.START_RAM) >> fastCodeBlockLookupShift;
-    		int endIndex = (highestAddress - MemoryMap.START_RAM) >> fastCodeBlockLookupShift;
-    		for (int i = startIndex; i <= endIndex; i++) {
-    			if (i >= 0 && i < fastCodeBlockLookup.length) {
-    				CodeBlockList codeBlockList = fastCodeBlockLookup[i];
-    				if (codeBlockList != null) {
-    					if (previousCodeBlock != null) {
-    						codeBlockList.remove(previousCodeBlock);
-    					}
-    					int addr = (i << fastCodeBlockLookupShift) + MemoryMap.START_RAM;
-    					int size = 1 << fastCodeBlockLookupShift;
-    					if (codeBlock.isOverlappingWithAddressRange(addr, size)) {
-    						codeBlockList.add(codeBlock);
-    					}
-    				}
-    			}
-    		}
     	}
     }
 
@@ -1082,26 +1226,69 @@ public class RuntimeContext {
     	return codeBlocks;
     }
 
-    public static void removeCodeBlocks(int address, int size) {
-    	int[] addressesToBeRemoved = null;
+    /**
+     * Called by a compiled code block when it has been frequently
+     * leaving its code through jumps to other code blocks.
+     *
+     * @param address the start address of the code block
+     */
+    public static void hotRegion(int address) {
+    	CodeBlock codeBlock = getCodeBlock(address);
+    	if (codeBlock != null) {
+    		Compiler.getInstance().recompileHotRegion(codeBlock);
+    	}
+    }
 
-		for (CodeBlock codeBlock : codeBlocks.values()) {
-			if (codeBlock.isOverlappingWithAddressRange(address, size)) {
-				addressesToBeRemoved = Utilities.add(addressesToBeRemoved, codeBlock.getStartAddress());
-			}
+    public static CodeBlockLink getCodeBlockLink(int address) {
+    	int maskedAddress = address & addressMask;
+    	synchronized (codeBlockLinks) {
+    		CodeBlockLink codeBlockLink = codeBlockLinks.get(maskedAddress);
+    		if (codeBlockLink == null) {
+    			codeBlockLink = new CodeBlockLink(maskedAddress);
+    			codeBlockLinks.put(maskedAddress, codeBlockLink);
+    		}
+
+    		return codeBlockLink;
     	}
+    }
+
+    public static void unlinkCodeBlock(int address) {
+    	synchronized (codeBlockLinks) {
+    		CodeBlockLink codeBlockLink = codeBlockLinks.get(address & addressMask);
+    		if (codeBlockLink != null) {
+    			codeBlockLink.unlink();
+    		}
+    	}
+    }
 
-		if (addressesToBeRemoved != null) {
-			for (int addressToBeRemoved : addressesToBeRemoved) {
-				CodeBlock codeBlock = codeBlocks.remove(addressToBeRemoved & addressMask);
+    private static void unlinkAllCodeBlocks() {
+    	synchronized (codeBlockLinks) {
+    		for (CodeBlockLink codeBlockLink : codeBlockLinks.values()) {
+    			codeBlockLink.unlink();
+    		}
+    	}
+    }
+
+    public static void removeCodeBlocks(int address, int size) {
+    	List<CodeBlock> candidateCodeBlocks = new ArrayList<CodeBlock>();
+    	codeBlockIndex.getCodeBlocks(address, size, candidateCodeBlocks);
+
+		for (CodeBlock codeBlock : candidateCodeBlocks) {
+			if (codeBlock.isOverlappingWithAddressRange(address, size)) {
+				codeBlockIndex.remove(codeBlock);
+				codeBlocks.remove(codeBlock.getStartAddress() & addressMask);
+				unlinkCodeBlock(codeBlock.getStartAddress());
 				if (log.isDebugEnabled()) {
 					log.debug(String.format("removeCodeBlocks address=0x%08X, size=0x%X, removing %s", address, size, codeBlock));
 				}
 			}
-		}
+    	}
     }
 
     public static IExecutable getExecutable(int address) {
+    	// Swap in the code blocks compiled in the background
+    	Compiler.getInstance().checkBackgroundCompilations();
+
     	int maskedAddress = address & addressMask;
     	// Check if we have already the executable in the fastExecutableLookup array
 		int fastExecutableLoopukIndex = (maskedAddress - MemoryMap.START_RAM) >> 2;
@@ -1131,6 +1318,7 @@ public class RuntimeContext {
 
     public static void start() {
     	Settings.getInstance().registerSettingsListener("RuntimeContext", "emu.compiler", new CompilerEnabledSettingsListerner());
+    	Settings.getInstance().registerSettingsListener("RuntimeContext", "emu.compiler.virtualThreads", new VirtualThreadsSettingsListerner());
     }
 
     public static void run() {
@@ -1224,7 +1412,7 @@ public class RuntimeContext {
     			log.debug("Deleting Thread " + thread.toString());
     		}
     		toBeStoppedThreads.put(thread, runtimeThread);
-    		if (runtimeThread.isInSyscall() && Thread.currentThread() != runtimeThread) {
+    		if (runtimeThread.isInSyscall() && getRuntimeThread() != runtimeThread) {
     			toBeDeletedThreads.put(thread, runtimeThread);
     			log.debug("Continue Thread " + runtimeThread.getName());
     			runtimeThread.continueRuntimeExecution();
@@ -1282,6 +1470,7 @@ public class RuntimeContext {
         	stopAllThreads();
         	if (DurationStatistics.collectStatistics) {
         		log.info(idleDuration.toString());
+        		log.info(String.format("Thread switches: %d", threadSwitches));
         	}
 
             if (enableInstructionTypeCounting) {
@@ -1332,17 +1521,20 @@ public class RuntimeContext {
 			codeBlock.free();
 		}
         codeBlocks.clear();
+        codeBlockIndex.clear();
+        predecodedCodeBlocks.clear();
 		if (fastExecutableLookup != null) {
 			Arrays.fill(fastExecutableLookup, null);
 		}
-		if (fastCodeBlockLookup != null) {
-			Arrays.fill(fastCodeBlockLookup, null);
-		}
+		unlinkAllCodeBlocks();
         Compiler.getInstance().reset();
+        MERuntimeContext.resetExecutables();
     }
 
     public static void invalidateAll() {
         if (compilerEnabled) {
+        	predecodedValidationCount++;
+
     		if (invalidateAllCodeBlocks) {
     			// Simple method: invalidate all the code blocks,
     			// independently if their were modified or not.
@@ -1368,83 +1560,49 @@ public class RuntimeContext {
 	    				compiler.invalidateCodeBlock(codeBlock);
 	    			}
 	    		}
-    		}
-    	}
-    }
 
-    private static void invalidateRangeFullCheck(int addr, int size) {
-		Compiler compiler = Compiler.getInstance();
-    	for (CodeBlock codeBlock : codeBlocks.values()) {
-			if (size == 0x4000 && codeBlock.getHighestAddress() >= addr) {
-    			// Some applications do not clear more than 16KB as this is the size of the complete Instruction Cache.
-    			// Be conservative in this case and check any code block above the given address.
-				compiler.checkCodeBlockValidity(codeBlock);
-			} else if (codeBlock.isOverlappingWithAddressRange(addr, size)) {
-				compiler.checkCodeBlockValidity(codeBlock);
+	    		MERuntimeContext.invalidateAll();
     		}
     	}
     }
 
-    private static CodeBlockList fillFastCodeBlockList(int index) {
-		int startAddr = (index << fastCodeBlockLookupShift)  + MemoryMap.START_RAM;
-		int size = 1 << fastCodeBlockLookupShift;
-		if (log.isDebugEnabled()) {
-			log.debug(String.format("Creating new fastCodeBlockList for 0x%08X", startAddr));
-		}
-
-		CodeBlockList codeBlockList = new CodeBlockList();
-		for (CodeBlock codeBlock : codeBlocks.values()) {
-			if (codeBlock.isOverlappingWithAddressRange(startAddr, size)) {
-				codeBlockList.add(codeBlock);
-			}
-		}
-		fastCodeBlockLookup[index] = codeBlockList;
-
-		return codeBlockList;
-    }
-
     public static void invalidateRange(int addr, int size) {
         if (compilerEnabled) {
+        	predecodedValidationCount++;
         	addr &= Memory.addressMask;
 
         	if (log.isDebugEnabled()) {
         		log.debug(String.format("RuntimeContext.invalidateRange(addr=0x%08X, size=%d)", addr, size));
         	}
 
+        	boolean checkAbove = size == 0x4000;
+        	// The Media Engine code blocks are not included in the code block index
+        	MERuntimeContext.invalidateRange(addr, size, checkAbove);
+
         	// Fast check: if the address range is outside the largest code blocks range,
         	// there is noting to do.
         	if (addr + size < codeBlocksLowestAddress || addr > codeBlocksHighestAddress) {
         		return;
         	}
 
-        	// Check if the code blocks located in the given range have to be invalidated
-        	if (size == fastCodeBlockSize) {
-        		// This is a fast track to avoid checking all the code blocks
-        		int startIndex = (addr - MemoryMap.START_RAM) >> fastCodeBlockLookupShift;
-				int endIndex = (addr + size - MemoryMap.START_RAM) >> fastCodeBlockLookupShift;
-				if (startIndex >= 0 && endIndex < fastCodeBlockLookup.length) {
-					for (int index = startIndex; index <= endIndex; index++) {
-	        			CodeBlockList codeBlockList = fastCodeBlockLookup[index];
-	        			if (codeBlockList == null) {
-	        				codeBlockList = fillFastCodeBlockList(index);
-	        			} else {
-	        				if (log.isDebugEnabled()) {
-	        					log.debug(String.format("Reusing fastCodeBlockList for 0x%08X (size=%d)", addr, codeBlockList.size()));
-	        				}
-	        			}
-
-	            		Compiler compiler = Compiler.getInstance();
-	            		for (CodeBlock codeBlock : codeBlockList) {
-	            			if (codeBlock.isOverlappingWithAddressRange(addr, size)) {
-	            				compiler.checkCodeBlockValidity(codeBlock);
-	            			}
-	            		}
-					}
-        		} else {
-            		invalidateRangeFullCheck(addr, size);
-        		}
+        	// Check if the code blocks located in the given range have to be invalidated.
+        	// Only the code blocks found in the index for this range need to be checked.
+        	List<CodeBlock> candidateCodeBlocks = new ArrayList<CodeBlock>();
+        	if (checkAbove) {
+    			// Some applications do not clear more than 16KB as this is the size of the complete Instruction Cache.
+    			// Be conservative in this case and check any code block above the given address.
+        		codeBlockIndex.getCodeBlocksAbove(addr, candidateCodeBlocks);
         	} else {
-        		invalidateRangeFullCheck(addr, size);
+        		codeBlockIndex.getCodeBlocks(addr, size, candidateCodeBlocks);
+        	}
+
+        	if (!candidateCodeBlocks.isEmpty()) {
+	    		Compiler compiler = Compiler.getInstance();
+	        	for (CodeBlock codeBlock : candidateCodeBlocks) {
+	        		if (checkAbove || codeBlock.isOverlappingWithAddressRange(addr, size)) {
+	        			compiler.checkCodeBlockValidity(codeBlock);
+	        		}
+	        	}
         	}
     	}
     }
@@ -1601,6 +1759,10 @@ public class RuntimeContext {
     }
 
     public static void debugMemoryReadWrite(int address, int value, int pc, boolean isRead, int width) {
+    	debugMemoryReadWrite(memory, address, value, pc, isRead, width);
+    }
+
+    public static void debugMemoryReadWrite(Memory memory, int address, int value, int pc, boolean isRead, int width) {
     	if (log.isTraceEnabled()) {
 	    	StringBuilder message = new StringBuilder();
 	    	message.append(String.format("0x%08X - ", pc));
@@ -1718,6 +1880,10 @@ public class RuntimeContext {
     }
 
     public static void onCodeModification(int pc, int opcode) {
+    	onCodeModification(cpu, memory, pc, opcode);
+    }
+
+    public static void onCodeModification(CpuState cpu, Memory memory, int pc, int opcode) {
     	cpu.pc = pc;
     	log.error(String.format("Code instruction at 0x%08X has been modified, expected 0x%08X, current 0x%08X", pc, opcode, memory.read32(pc)));
     	Emulator.PauseEmuWithStatus(Emulator.EMU_STATUS_MEM_WRITE);
@@ -1756,6 +1922,20 @@ public class RuntimeContext {
     	return memoryInt;
     }
 
+    /**
+     * Store a value into memoryInt and record the written page.
+     * Used by the compiled code instead of a plain array store
+     * when the dirty page tracking is enabled.
+     *
+     * @param memoryInt the memoryInt array
+     * @param index     the index into memoryInt, i.e. the masked address divided by 4
+     * @param value     the value to be stored
+     */
+    public static void writeMemoryInt(int[] memoryInt, int index, int value) {
+    	memoryInt[index] = value;
+    	dirtyPageTracker.setDirty(index << 2);
+    }
+
     public static int getPc() {
     	return RuntimeContextLLE.getProcessor().cpu.pc;
     }
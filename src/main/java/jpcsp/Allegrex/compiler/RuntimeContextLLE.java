@@ -43,6 +43,7 @@ import jpcsp.HLE.modules.reboot;
 import jpcsp.mediaengine.MEProcessor;
 import jpcsp.mediaengine.METhread;
 import jpcsp.memory.DebuggerMemory;
+import jpcsp.memory.mmio.IMMIOHandler;
 import jpcsp.memory.mmio.MMIO;
 import jpcsp.memory.mmio.MMIOHandlerInterruptMan;
 import jpcsp.state.StateInputStream;
@@ -157,6 +158,16 @@ public class RuntimeContextLLE {
 		return mmio;
 	}
 
+	/**
+	 * Called by the compiled code accessing a constant MMIO address.
+	 *
+	 * @param address the MMIO address
+	 * @return        the handler of the address
+	 */
+	public static IMMIOHandler getMMIOHandler(int address) {
+		return ((MMIO) mmio).getFixedHandler(address);
+	}
+
 	public static void triggerInterrupt(Processor processor, int interruptNumber) {
 		if (!isLLEActive()) {
 			Managers.intr.triggerInterrupt(interruptNumber);
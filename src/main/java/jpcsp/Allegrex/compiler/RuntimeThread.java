@@ -18,42 +18,201 @@ package jpcsp.Allegrex.compiler;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
 import java.util.concurrent.Semaphore;
 
 import jpcsp.HLE.kernel.types.SceKernelThreadInfo;
 
 /**
+ * The Java thread executing a PSP thread.
+ *
+ * Only one RuntimeThread is executing at a time: the RuntimeThreads are
+ * handing over the execution to each other using their semaphore.
+ *
+ * The Java thread is either a platform thread or, when running on a JDK
+ * supporting them and when enabled (setting "emu.compiler.virtualThreads"),
+ * a virtual thread. The virtual threads are scheduled on a single carrier
+ * thread so that a PSP thread switch is only a user-space continuation switch
+ * instead of an OS context switch. The number of carrier threads is a setting
+ * of the whole JVM, it is only changed when the virtual threads are enabled.
+ *
  * @author gid15
  *
  */
-public class RuntimeThread extends Thread {
+public class RuntimeThread implements Runnable {
+	private static final String virtualThreadSchedulerParallelism = "jdk.virtualThreadScheduler.parallelism";
+	private static final ThreadLocal<RuntimeThread> currentRuntimeThread = new ThreadLocal<RuntimeThread>();
+	private static Method ofVirtualMethod;
+	private static Method nameMethod;
+	private static Method unstartedMethod;
+	private static boolean virtualThreadsInitialized;
+	private static boolean virtualThreadSchedulerInitialized;
+	private final Thread thread;
+	private final boolean isVirtual;
 	private Semaphore semaphore = new Semaphore(1);
 	private SceKernelThreadInfo threadInfo;
 	private boolean isInSyscall;
 	private int stackSize;
+	private int pendingReturnAddress = RuntimeContext.NO_PENDING_RETURN_ADDRESS;
 	private static final int maxStackSize = 1000;
 
 	public RuntimeThread(SceKernelThreadInfo threadInfo) {
 		this.threadInfo = threadInfo;
-		threadInfo.javaThreadId = getId();
 		isInSyscall = false;
+		String name;
 		if (RuntimeContext.log.isDebugEnabled()) {
-			setName(String.format("%s_0x%X", threadInfo.name, threadInfo.uid));
+			name = String.format("%s_0x%X", threadInfo.name, threadInfo.uid);
+		} else {
+			name = threadInfo.name;
+		}
+
+		Thread virtualThread = null;
+		if (RuntimeContext.isVirtualThreadsEnabled()) {
+			virtualThread = createVirtualThread(this, name);
+		}
+		if (virtualThread != null) {
+			thread = virtualThread;
+			isVirtual = true;
 		} else {
-			setName(threadInfo.name);
+			thread = new Thread(this, name);
+			isVirtual = false;
+			// The CPU time of a virtual thread cannot be retrieved
+			threadInfo.javaThreadId = thread.getId();
 		}
+
 		suspendRuntimeExecution();
 	}
 
+	private static synchronized boolean initVirtualThreads() {
+		if (!virtualThreadsInitialized) {
+			virtualThreadsInitialized = true;
+
+			// Thread.ofVirtual() is only available from Java 21:
+			// access it through reflection to keep running on older JDKs.
+			try {
+				ofVirtualMethod = Thread.class.getMethod("ofVirtual");
+				Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				nameMethod = builderClass.getMethod("name", String.class);
+				unstartedMethod = builderClass.getMethod("unstarted", Runnable.class);
+				RuntimeContext.log.info("Using virtual threads for the PSP threads");
+			} catch (NoSuchMethodException e) {
+				RuntimeContext.log.info("Virtual threads are not supported by this JDK, using platform threads");
+				ofVirtualMethod = null;
+			} catch (ClassNotFoundException e) {
+				RuntimeContext.log.info("Virtual threads are not supported by this JDK, using platform threads");
+				ofVirtualMethod = null;
+			}
+		}
+
+		return ofVirtualMethod != null;
+	}
+
+	/**
+	 * @return true if the JDK is supporting virtual threads
+	 */
+	public static boolean isVirtualThreadsAvailable() {
+		return initVirtualThreads();
+	}
+
+	/**
+	 * Run all the virtual threads on one carrier thread,
+	 * unless a different parallelism has been requested on the command line.
+	 *
+	 * The system property is read by the JDK when creating its virtual
+	 * thread scheduler, i.e. it has to be set before the creation of the
+	 * first virtual thread. It applies to all the virtual threads of the JVM,
+	 * not only to the RuntimeThreads.
+	 */
+	private static synchronized void initVirtualThreadScheduler() {
+		if (!virtualThreadSchedulerInitialized) {
+			virtualThreadSchedulerInitialized = true;
+
+			if (System.getProperty(virtualThreadSchedulerParallelism) == null) {
+				System.setProperty(virtualThreadSchedulerParallelism, "1");
+			}
+		}
+	}
+
+	/**
+	 * Create a new virtual thread, not yet started.
+	 * Only called when the virtual threads are enabled,
+	 * see RuntimeContext.isVirtualThreadsEnabled().
+	 *
+	 * @param runnable the code to be executed by the thread
+	 * @param name     the thread name
+	 * @return         the new virtual thread,
+	 *                 or null if virtual threads are not supported
+	 */
+	private static Thread createVirtualThread(Runnable runnable, String name) {
+		if (!initVirtualThreads()) {
+			return null;
+		}
+
+		initVirtualThreadScheduler();
+
+		try {
+			Object builder = ofVirtualMethod.invoke(null);
+			builder = nameMethod.invoke(builder, name);
+			return (Thread) unstartedMethod.invoke(builder, runnable);
+		} catch (Exception e) {
+			RuntimeContext.log.error("Cannot create a virtual thread", e);
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return the RuntimeThread being executed by the current Java thread,
+	 *         or null if the current Java thread is not a RuntimeThread
+	 */
+	public static RuntimeThread getCurrentRuntimeThread() {
+		return currentRuntimeThread.get();
+	}
+
 	@Override
 	public void run() {
-		RuntimeContext.runThread(this);
+		currentRuntimeThread.set(this);
+
+		execute();
 		setInSyscall(true);
 
-		ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
-		if (threadMXBean.isThreadCpuTimeEnabled()) {
-			threadInfo.javaThreadCpuTimeNanos = threadMXBean.getCurrentThreadCpuTime();
+		if (!isVirtual) {
+			ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+			if (threadMXBean.isThreadCpuTimeEnabled()) {
+				threadInfo.javaThreadCpuTimeNanos = threadMXBean.getCurrentThreadCpuTime();
+			}
 		}
+
+		currentRuntimeThread.remove();
+	}
+
+	/**
+	 * Execute the PSP thread, called from the Java thread.
+	 * Can be overwritten to execute other code as a RuntimeThread,
+	 * e.g. in the ThreadSwitchBenchmark.
+	 */
+	protected void execute() {
+		RuntimeContext.runThread(this);
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	public Thread getThread() {
+		return thread;
+	}
+
+	public String getName() {
+		return thread.getName();
+	}
+
+	public Thread.State getState() {
+		return thread.getState();
+	}
+
+	public boolean isVirtual() {
+		return isVirtual;
 	}
 
 	public void suspendRuntimeExecution() {
@@ -100,6 +259,14 @@ public class RuntimeThread extends Thread {
 		return stackSize;
 	}
 
+	public int getPendingReturnAddress() {
+		return pendingReturnAddress;
+	}
+
+	public void setPendingReturnAddress(int pendingReturnAddress) {
+		this.pendingReturnAddress = pendingReturnAddress;
+	}
+
 	public void onThreadStart() {
 		if (threadInfo != null) {
 			threadInfo.onThreadStart();
@@ -23,6 +23,9 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -43,16 +46,41 @@ import org.w3c.dom.NodeList;
  */
 public class NativeCodeManager {
 	private static int defaultOpcodeMask = 0xFFFFFFFF;
+	// The sequences having a mask in their first opcode are matched
+	// after all the sequences without mask in their first opcode.
+	private static final int maskInFirstOpcodePriority = 0x10000000;
 	private HashMap<Integer, List<NativeCodeSequence>> nativeCodeSequencesByFirstOpcode;
 	private List<NativeCodeSequence> nativeCodeSequenceWithMaskInFirstOpcode;
-	private HashMap<Integer, NativeCodeSequence> compiledNativeCodeBlocks;
+	private NativeCodeTrie nativeCodeTrie;
+	private int numberNativeCodeSequences;
+	// Accessed concurrently by the background compiler threads
+	private Map<Integer, NativeCodeSequence> compiledNativeCodeBlocks;
+	private final AtomicLong scannedBlocks = new AtomicLong();
+	private final AtomicLong scannedInstructions = new AtomicLong();
+	private final AtomicLong scanNanos = new AtomicLong();
+	private final AtomicLong comparedScanNanos = new AtomicLong();
+	private final AtomicLong comparedLinearScanNanos = new AtomicLong();
 
 	public NativeCodeManager(Element configuration) {
-		compiledNativeCodeBlocks = new HashMap<Integer, NativeCodeSequence>();
+		compiledNativeCodeBlocks = new ConcurrentHashMap<Integer, NativeCodeSequence>();
 		nativeCodeSequencesByFirstOpcode = new HashMap<Integer, List<NativeCodeSequence>>();
 		nativeCodeSequenceWithMaskInFirstOpcode = new LinkedList<NativeCodeSequence>();
+		nativeCodeTrie = new NativeCodeTrie();
 
 		load(configuration);
+
+		if (Compiler.log.isDebugEnabled()) {
+			Compiler.log.debug(String.format("Native code sequences: %s", nativeCodeTrie));
+		}
+	}
+
+	public void exit() {
+		if (scannedBlocks.get() > 0 && Compiler.log.isInfoEnabled()) {
+			Compiler.log.info(String.format("Native code sequences: %d code blocks, %d instructions scanned in %d ms", scannedBlocks.get(), scannedInstructions.get(), scanNanos.get() / 1000000L));
+			if (comparedScanNanos.get() > 0) {
+				Compiler.log.info(String.format("Native code sequences: trie scan %d ms, linear scan %d ms", comparedScanNanos.get() / 1000000L, comparedLinearScanNanos.get() / 1000000L));
+			}
+		}
 	}
 
 	public void reset() {
@@ -309,6 +337,12 @@ public class NativeCodeManager {
 	private void addNativeCodeSequence(NativeCodeSequence nativeCodeSequence) {
 		if (nativeCodeSequence.getNumOpcodes() > 0) {
 			int firstOpcodeMask = nativeCodeSequence.getFirstOpcodeMask();
+			int priority = numberNativeCodeSequences++;
+			if (firstOpcodeMask != defaultOpcodeMask) {
+				priority += maskInFirstOpcodePriority;
+			}
+			nativeCodeTrie.add(nativeCodeSequence, priority);
+
 			if (firstOpcodeMask == defaultOpcodeMask) {
 				// First opcode has not mask: fast lookup allowed
 				int firstOpcode = nativeCodeSequence.getFirstOpcode();
@@ -385,7 +419,25 @@ public class NativeCodeManager {
 		return true;
 	}
 
+	/**
+	 * Search the native code sequence starting at a code instruction.
+	 * All the sequences are matched in one pass using the NativeCodeTrie.
+	 *
+	 * @param codeInstruction the code instruction
+	 * @param codeBlock       the code block of the code instruction
+	 * @return                the matching native code sequence,
+	 *                        or null if no native code sequence is matching
+	 */
 	public NativeCodeSequence getNativeCodeSequence(CodeInstruction codeInstruction, CodeBlock codeBlock) {
+		return nativeCodeTrie.match(codeInstruction, codeBlock);
+	}
+
+	/**
+	 * Search the native code sequence starting at a code instruction
+	 * by testing each sequence one after the other.
+	 * Only used to compare the results and the duration with the NativeCodeTrie.
+	 */
+	private NativeCodeSequence getNativeCodeSequenceLinear(CodeInstruction codeInstruction, CodeBlock codeBlock) {
 		int firstOpcode = codeInstruction.getOpcode();
 
 		// Fast lookup using the first opcode
@@ -407,4 +459,48 @@ public class NativeCodeManager {
 
 		return null;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Compare the NativeCodeTrie with the linear search of the native code sequences
+	 * on the instructions of a code block, before they are being scanned.
+	 *
+	 * @param codeInstructions the code instructions of the code block
+	 * @param codeBlock        the code block
+	 */
+	public void compareNativeCodeSequences(List<CodeInstruction> codeInstructions, CodeBlock codeBlock) {
+		long trieNanos = 0L;
+		long linearNanos = 0L;
+		for (CodeInstruction codeInstruction : codeInstructions) {
+			long start = System.nanoTime();
+			NativeCodeSequence trieNativeCodeSequence = nativeCodeTrie.match(codeInstruction, codeBlock);
+			long middle = System.nanoTime();
+			NativeCodeSequence linearNativeCodeSequence = getNativeCodeSequenceLinear(codeInstruction, codeBlock);
+			long end = System.nanoTime();
+			trieNanos += middle - start;
+			linearNanos += end - middle;
+
+			if (trieNativeCodeSequence != linearNativeCodeSequence) {
+				Compiler.log.error(String.format("Native code sequence mismatch at 0x%08X: trie %s, linear %s", codeInstruction.getAddress(), trieNativeCodeSequence, linearNativeCodeSequence));
+			}
+		}
+
+		comparedScanNanos.addAndGet(trieNanos);
+		comparedLinearScanNanos.addAndGet(linearNanos);
+
+		if (Compiler.log.isDebugEnabled()) {
+			Compiler.log.debug(String.format("Native code sequences scan of %s: %d instructions, trie %d us, linear %d us", codeBlock, codeInstructions.size(), trieNanos / 1000L, linearNanos / 1000L));
+		}
+	}
+
+	/**
+	 * Record the duration of the native code sequences scan of a code block.
+	 *
+	 * @param numberInstructions the number of scanned instructions
+	 * @param nanos              the duration of the scan in nanoseconds
+	 */
+	public void addScanStatistics(int numberInstructions, long nanos) {
+		scannedBlocks.incrementAndGet();
+		scannedInstructions.addAndGet(numberInstructions);
+		scanNanos.addAndGet(nanos);
+	}
+}
@@ -0,0 +1,201 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.Allegrex.compiler.nativeCode;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+import jpcsp.Allegrex.compiler.CodeBlock;
+import jpcsp.Allegrex.compiler.CodeInstruction;
+
+/**
+ * Decision trie matching all the native code sequences in one pass.
+ *
+ * Each level of the trie is matching one opcode of the sequences.
+ * The children of a node are grouped by opcode mask: for each distinct mask
+ * used at this position, the masked opcode is searched in a HashMap.
+ * The sequences sharing the same masked opcodes prefix are sharing
+ * the same nodes, so that each opcode of the code is only compared once
+ * for all the sequences.
+ *
+ * When several sequences are matching, the one with the lowest priority
+ * value is returned.
+ *
+ * @author gid15
+ *
+ */
+public class NativeCodeTrie {
+	private final Node root = new Node();
+	private int numberNodes = 1;
+	private int numberSequences;
+
+	private static class Entry {
+		private final NativeCodeSequence nativeCodeSequence;
+		private final int priority;
+
+		public Entry(NativeCodeSequence nativeCodeSequence, int priority) {
+			this.nativeCodeSequence = nativeCodeSequence;
+			this.priority = priority;
+		}
+	}
+
+	private static class Node {
+		private int[] masks = new int[0];
+		private HashMap<Integer, Node>[] children = newChildren(0);
+		// The sequences ending at this node
+		private List<Entry> entries;
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		private static HashMap<Integer, Node>[] newChildren(int length) {
+			return new HashMap[length];
+		}
+
+		private int getMaskIndex(int mask) {
+			for (int i = 0; i < masks.length; i++) {
+				if (masks[i] == mask) {
+					return i;
+				}
+			}
+
+			return -1;
+		}
+
+		public Node getChild(int mask, int maskedOpcode) {
+			int index = getMaskIndex(mask);
+			if (index < 0) {
+				return null;
+			}
+
+			return children[index].get(maskedOpcode);
+		}
+
+		public void addChild(int mask, int maskedOpcode, Node child) {
+			int index = getMaskIndex(mask);
+			if (index < 0) {
+				index = masks.length;
+
+				int[] newMasks = new int[index + 1];
+				System.arraycopy(masks, 0, newMasks, 0, index);
+				newMasks[index] = mask;
+				masks = newMasks;
+
+				HashMap<Integer, Node>[] newChildren = newChildren(index + 1);
+				System.arraycopy(children, 0, newChildren, 0, index);
+				newChildren[index] = new HashMap<Integer, Node>();
+				children = newChildren;
+			}
+
+			children[index].put(maskedOpcode, child);
+		}
+
+		public void addEntry(Entry entry) {
+			if (entries == null) {
+				entries = new LinkedList<Entry>();
+			}
+			entries.add(entry);
+		}
+	}
+
+	/**
+	 * Add a native code sequence to the trie.
+	 *
+	 * @param nativeCodeSequence the native code sequence
+	 * @param priority           the priority of the sequence when several
+	 *                           sequences are matching: the lowest value wins
+	 */
+	public void add(NativeCodeSequence nativeCodeSequence, int priority) {
+		Node node = root;
+		int numOpcodes = nativeCodeSequence.getNumOpcodes();
+		for (int i = 0; i < numOpcodes; i++) {
+			int mask = nativeCodeSequence.getOpcodeMask(i);
+			int maskedOpcode = nativeCodeSequence.getOpcode(i) & mask;
+			Node child = node.getChild(mask, maskedOpcode);
+			if (child == null) {
+				child = new Node();
+				node.addChild(mask, maskedOpcode, child);
+				numberNodes++;
+			}
+			node = child;
+		}
+
+		node.addEntry(new Entry(nativeCodeSequence, priority));
+		numberSequences++;
+	}
+
+	private static boolean isWholeCodeBlockMatching(NativeCodeSequence nativeCodeSequence, int address, CodeBlock codeBlock) {
+		// Match only a whole CodeBlock: same StartAddress, same Length
+		return codeBlock.getStartAddress() == address && codeBlock.getLength() == nativeCodeSequence.getNumOpcodes();
+	}
+
+	private Entry match(Node node, int address, int opcodeAddress, CodeBlock codeBlock, Entry bestEntry) {
+		if (node.entries != null) {
+			for (Entry entry : node.entries) {
+				if (bestEntry != null && bestEntry.priority <= entry.priority) {
+					continue;
+				}
+				if (entry.nativeCodeSequence.isWholeCodeBlock() && !isWholeCodeBlockMatching(entry.nativeCodeSequence, address, codeBlock)) {
+					continue;
+				}
+				bestEntry = entry;
+			}
+		}
+
+		if (node.masks.length > 0) {
+			int opcode = codeBlock.getCodeInstructionOpcode(opcodeAddress);
+			for (int i = 0; i < node.masks.length; i++) {
+				Node child = node.children[i].get(opcode & node.masks[i]);
+				if (child != null) {
+					bestEntry = match(child, address, opcodeAddress + 4, codeBlock, bestEntry);
+				}
+			}
+		}
+
+		return bestEntry;
+	}
+
+	/**
+	 * Search the native code sequence starting at a code instruction.
+	 *
+	 * @param codeInstruction the first code instruction of the sequence
+	 * @param codeBlock       the code block of the code instruction
+	 * @return                the matching native code sequence with the lowest priority,
+	 *                        or null if no native code sequence is matching
+	 */
+	public NativeCodeSequence match(CodeInstruction codeInstruction, CodeBlock codeBlock) {
+		int address = codeInstruction.getAddress();
+		Entry entry = match(root, address, address, codeBlock, null);
+		if (entry == null) {
+			return null;
+		}
+
+		return entry.nativeCodeSequence;
+	}
+
+	public int getNumberNodes() {
+		return numberNodes;
+	}
+
+	public int getNumberSequences() {
+		return numberSequences;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("NativeCodeTrie[%d sequences, %d nodes]", numberSequences, numberNodes);
+	}
+}
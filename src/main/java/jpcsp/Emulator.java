@@ -59,6 +59,8 @@ import jpcsp.network.proonline.ProOnlineNetworkAdapter;
 import jpcsp.network.xlinkkai.XLinkKaiWlanAdapter;
 import jpcsp.scheduler.Scheduler;
 import jpcsp.sound.SoundChannel;
+import jpcsp.state.AsyncStateWriter;
+import jpcsp.state.RewindBuffer;
 import jpcsp.util.DurationStatistics;
 import jpcsp.util.HLEUtilities;
 import jpcsp.util.JpcspDialogManager;
@@ -134,6 +136,8 @@ public class Emulator implements Runnable {
         BaseRenderer.exit();
         BasePrimitiveRenderer.exit();
         ExternalGE.exit();
+        AsyncStateWriter.exit();
+        RewindBuffer.exit();
         if (DurationStatistics.collectStatistics && Modules.ThreadManForUserModule.statistics != null && Modules.sceDisplayModule.statistics != null) {
             long totalMillis = getClock().milliTime();
             long displayMillis = Modules.sceDisplayModule.statistics.cumulatedTimeMillis;
@@ -312,6 +316,7 @@ public class Emulator implements Runnable {
             GEProfiler.reset();
             // Do not reset the clock if we have been called from sceKernelLoadExec
             getClock().reset();
+            RewindBuffer.getInstance().reset();
         }
 
         getProcessor().reset();
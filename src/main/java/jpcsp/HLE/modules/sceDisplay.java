@@ -50,6 +50,7 @@ import jpcsp.HLE.TPointer32;
 
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.GraphicsEnvironment;
 import java.awt.image.BufferedImage;
 import java.awt.Rectangle;
 import java.awt.Robot;
@@ -108,6 +109,7 @@ import jpcsp.settings.AbstractBoolSettingsListener;
 import jpcsp.settings.AbstractStringSettingsListener;
 import jpcsp.settings.ISettingsListener;
 import jpcsp.settings.Settings;
+import jpcsp.state.RewindBuffer;
 import jpcsp.util.DurationStatistics;
 import jpcsp.util.Utilities;
 
@@ -408,6 +410,9 @@ public class sceDisplay extends HLEModule {
 
     protected AWTGLCanvas_sceDisplay canvas;
 
+    /**
+     * @return the display canvas, or null when running without display
+     */
     public AWTGLCanvas_sceDisplay getCanvas() {
         return canvas;
     }
@@ -705,7 +710,10 @@ public class sceDisplay extends HLEModule {
 
     	displayScreen = new DisplayScreen();
 
-        canvas = new AWTGLCanvas_sceDisplay(createGLData());
+        // No canvas without display, e.g. when replaying GE captures in a benchmark
+        if (!GraphicsEnvironment.isHeadless()) {
+        	canvas = new AWTGLCanvas_sceDisplay(createGLData());
+        }
         setScreenResolution(displayScreen.getWidth(), displayScreen.getHeight());
 
         // Remember the last window size only if not running in full screen
@@ -767,7 +775,9 @@ public class sceDisplay extends HLEModule {
     public final void setScreenResolution(int width, int height) {
         canvasWidth = width;
         canvasHeight = height;
-        canvas.setSize(width, height);
+        if (canvas != null) {
+        	canvas.setSize(width, height);
+        }
     }
 
     public void setViewportResizeScaleFactor(int width, int height) {
@@ -1630,6 +1640,7 @@ public class sceDisplay extends HLEModule {
         vcount++;
 
     	ExternalGE.onDisplayVblank();
+    	RewindBuffer.getInstance().onVblank();
 
         // Check the threads waiting for VBLANK (multi).
         if (!waitingOnVblank.isEmpty()) {
@@ -1938,6 +1949,9 @@ public class sceDisplay extends HLEModule {
         if (topaddr != fb.getTopAddr()) {
             // New frame counting for FPS
             frameCount++;
+            if (VideoEngine.useTextureCache) {
+            	TextureCache.getInstance().startFrame();
+            }
         }
 
         // Keep track of how many frames have been skipped in sequence
@@ -191,6 +191,7 @@ public class sceMpegbase extends HLEModule {
 	        	value |= (buffer[j++]       ) << 24;
 	        	memoryInt[addrOffset++] = value;
 	        }
+	        mem.setDirty(addr, length4 << 2);
         } else {
     	    IMemoryWriter memoryWriter = MemoryWriter.getMemoryWriter(mem, addr, length, 1);
 	        for (int i = 0, j = offset; i < length; i++) {
@@ -363,6 +364,7 @@ public class sceMpegbase extends HLEModule {
 	        	pixelIndex += width;
 	        	addrOffset += bufferWidth;
 	        }
+	        mem.setDirty(destAddr, rangeHeight * bufferWidth * bytesPerPixel);
 		} else {
         	TPointer addr = new TPointer(bufferRGB);
 	        for (int i = 0; i < rangeHeight; i++) {
@@ -520,6 +522,7 @@ public class sceMpegbase extends HLEModule {
 	        	System.arraycopy(abgr, pixelIndex, RuntimeContext.getMemoryInt(), addr >> 2, rangeWidth);
 	        	pixelIndex += width;
 	        }
+	        RuntimeContext.memory.setDirty(destAddr, rangeHeight * bufferWidth * bytesPerPixel);
 		} else {
         	int addr = destAddr;
 	        for (int i = 0; i < rangeHeight; i++) {
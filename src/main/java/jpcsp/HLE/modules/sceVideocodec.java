@@ -697,6 +697,7 @@ public class sceVideocodec extends HLEModule {
 	        	value += buffer[j++] << 24;
 	        	memoryInt[addrOffset++] = value;
 	        }
+	        mem.setDirty(address, length4 << 2);
         } else {
         	IMemoryWriter memoryWriter = MemoryWriter.getMemoryWriter(addr, length, 1);
         	for (int i = 0, j = offset; i < length; i++) {
@@ -611,6 +611,7 @@ public class Loader {
                 		// Optimize the most common case
                 		if (RuntimeContext.hasMemoryInt(destAddr)) {
                 			intBuffer.get(RuntimeContext.getMemoryInt(), (memOffset & addressMask) >> 2, fileLen >> 2);
+                			destAddr.getMemory().setDirty(memOffset, fileLen);
                 		} else {
                 			int[] buffer = new int[fileLen >> 2];
                 			intBuffer.get(buffer);
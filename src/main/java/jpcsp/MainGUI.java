@@ -355,6 +355,7 @@ public class MainGUI extends javax.swing.JFrame implements KeyListener, Componen
         jSeparator2 = new javax.swing.JSeparator();
         SaveSnap = new javax.swing.JMenuItem();
         LoadSnap = new javax.swing.JMenuItem();
+        RewindSnap = new javax.swing.JMenuItem();
         ExportMenu = new javax.swing.JMenu();
         ExportVisibleElements = new javax.swing.JMenuItem();
         ExportAllElements = new javax.swing.JMenuItem();
@@ -571,6 +572,15 @@ public class MainGUI extends javax.swing.JFrame implements KeyListener, Componen
         });
         FileMenu.add(LoadSnap);
 
+        RewindSnap.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_R, java.awt.event.InputEvent.SHIFT_MASK));
+        RewindSnap.setText(bundle.getString("MainGUI.RewindSnap.text")); // NOI18N
+        RewindSnap.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                RewindSnapActionPerformed(evt);
+            }
+        });
+        FileMenu.add(RewindSnap);
+
         ExportMenu.setText(bundle.getString("MainGUI.ExportMenu.text")); // NOI18N
 
         ExportVisibleElements.setText(bundle.getString("MainGUI.ExportVisibleElements.text")); // NOI18N
@@ -2692,6 +2702,14 @@ private void LoadSnapActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRS
 	}
 }//GEN-LAST:event_LoadSnapActionPerformed
 
+private void RewindSnapActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_RewindSnapActionPerformed
+	try {
+		jpcsp.state.RewindBuffer.getInstance().rewind();
+	} catch (IOException e) {
+		log.error("RewindSnapActionPerformed", e);
+	}
+}//GEN-LAST:event_RewindSnapActionPerformed
+
 private void EnglishUSActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_EnglishUSActionPerformed
         changeLanguage("en_US");
 }//GEN-LAST:event_EnglishUSActionPerformed
@@ -3356,6 +3374,7 @@ private void threeTimesResizeActionPerformed(java.awt.event.ActionEvent evt) {//
     private javax.swing.JMenu RecentMenu;
     private javax.swing.JButton ResetButton;
     private javax.swing.JMenuItem ResetProfiler;
+    private javax.swing.JMenuItem RewindSnap;
     private javax.swing.JMenu ResizeMenu;
     private javax.swing.JMenuItem RotateItem;
     private javax.swing.JButton RebootButton;
@@ -28,6 +28,7 @@ import jpcsp.graphics.VideoEngine;
 import jpcsp.hardware.Screen;
 import jpcsp.memory.DebuggerMemory;
 import jpcsp.memory.DirectBufferMemory;
+import jpcsp.memory.DirtyPageTracker;
 import jpcsp.memory.FastMemory;
 import jpcsp.memory.IMemoryReader;
 import jpcsp.memory.IMemoryWriter;
@@ -57,6 +58,8 @@ public abstract class Memory implements IState {
     public static boolean useSafeMemory = true;
     public static final int addressMask = 0x1FFFFFFF;
     private boolean ignoreInvalidMemoryAccess = false;
+    // Tracking of the written pages, only allocated when enabled in the settings
+    protected DirtyPageTracker dirtyPageTracker;
     protected static final int MEMORY_PAGE_SHIFT = 12;
     protected static final boolean[] validMemoryPage = new boolean[1 << (Integer.SIZE - MEMORY_PAGE_SHIFT)];
     // Assume that a video check during a memcpy is only necessary
@@ -310,6 +313,43 @@ public abstract class Memory implements IState {
     	return (address & addressMask) >> 2;
     }
 
+    /**
+     * Allocate the tracking of the written pages, if enabled in the settings.
+     * The tracking is only supported by some Memory implementations.
+     *
+     * @param memorySize the size of the memory to be tracked
+     */
+    protected void allocateDirtyPageTracker(int memorySize) {
+    	if (Settings.getInstance().readBool("emu.dirtyPageTracking")) {
+    		dirtyPageTracker = new DirtyPageTracker(memorySize);
+    		log.info("Using memory dirty page tracking");
+    	} else {
+    		dirtyPageTracker = null;
+    	}
+    }
+
+    /**
+     * @return the tracking of the written pages,
+     *         or null if not supported or not enabled
+     */
+    public DirtyPageTracker getDirtyPageTracker() {
+    	return dirtyPageTracker;
+    }
+
+    /**
+     * Record a write performed without the Memory write methods,
+     * e.g. directly into the array returned by getMemoryInt()
+     * or into a buffer returned by getBuffer().
+     *
+     * @param address the start of the written memory range
+     * @param length  the length in bytes of the written memory range
+     */
+    public void setDirty(int address, int length) {
+    	if (dirtyPageTracker != null) {
+    		dirtyPageTracker.setDirty(address, length);
+    	}
+    }
+
     public static boolean isAddressGood(int address) {
         return validMemoryPage[address >>> MEMORY_PAGE_SHIFT];
     }
@@ -500,17 +540,33 @@ public abstract class Memory implements IState {
 
     @Override
 	public void read(StateInputStream stream) throws IOException {
-    	stream.readVersion(STATE_VERSION);
-    	read(stream, MemoryMap.START_SCRATCHPAD, MemoryMap.SIZE_SCRATCHPAD);
-    	read(stream, MemoryMap.START_VRAM, MemoryMap.SIZE_VRAM);
+    	readWithoutRam(stream);
     	read(stream, MemoryMap.START_RAM, MemoryMap.SIZE_RAM);
 	}
 
 	@Override
 	public void write(StateOutputStream stream) throws IOException {
+		writeWithoutRam(stream);
+    	write(stream, MemoryMap.START_RAM, MemoryMap.SIZE_RAM);
+	}
+
+	/**
+	 * Read the state of the memory, except the main RAM
+	 * which has to be restored separately.
+	 */
+	public void readWithoutRam(StateInputStream stream) throws IOException {
+    	stream.readVersion(STATE_VERSION);
+    	read(stream, MemoryMap.START_SCRATCHPAD, MemoryMap.SIZE_SCRATCHPAD);
+    	read(stream, MemoryMap.START_VRAM, MemoryMap.SIZE_VRAM);
+	}
+
+	/**
+	 * Write the state of the memory, except the main RAM
+	 * which has to be saved separately (e.g. only the written pages).
+	 */
+	public void writeWithoutRam(StateOutputStream stream) throws IOException {
 		stream.writeVersion(STATE_VERSION);
     	write(stream, MemoryMap.START_SCRATCHPAD, MemoryMap.SIZE_SCRATCHPAD);
     	write(stream, MemoryMap.START_VRAM, MemoryMap.SIZE_VRAM);
-    	write(stream, MemoryMap.START_RAM, MemoryMap.SIZE_RAM);
 	}
 }
@@ -52,6 +52,9 @@ public class Processor implements IState {
     private Instruction instruction;
     private int delaySlotOpcode;
     private Instruction delaySlotInstruction;
+    // The already decoded delay slot instruction of the branch being interpreted
+    private int predecodedDelaySlotOpcode;
+    private Instruction predecodedDelaySlotInstruction;
 
 	public Processor() {
     	setLogger(log);
@@ -114,9 +117,47 @@ public class Processor implements IState {
     	}
     }
 
+    /**
+     * Interpret an already decoded instruction.
+     * The cpu.pc and cpu.npc have to be set by the caller
+     * like cpu.fetchOpcode() would have done.
+     *
+     * @param instruction the decoded instruction
+     * @param opcode      the instruction opcode
+     */
+    public void interpret(Instruction instruction, int opcode) {
+    	this.opcode = opcode;
+    	this.instruction = instruction;
+    	instruction.interpret(this, opcode);
+    }
+
+    /**
+     * Interpret an already decoded branch or jump instruction
+     * together with its already decoded delay slot instruction.
+     *
+     * @param instruction          the decoded branch or jump instruction
+     * @param opcode               the branch or jump opcode
+     * @param delaySlotInstruction the decoded delay slot instruction
+     * @param delaySlotOpcode      the delay slot opcode
+     */
+    public void interpret(Instruction instruction, int opcode, Instruction delaySlotInstruction, int delaySlotOpcode) {
+    	predecodedDelaySlotInstruction = delaySlotInstruction;
+    	predecodedDelaySlotOpcode = delaySlotOpcode;
+    	interpret(instruction, opcode);
+    	// The delay slot is not executed by a branch likely not taken
+    	predecodedDelaySlotInstruction = null;
+    }
+
     public void interpretDelayslot() {
-        delaySlotOpcode = cpu.nextOpcode();
-        delaySlotInstruction = Decoder.instruction(delaySlotOpcode);
+    	if (predecodedDelaySlotInstruction != null) {
+    		delaySlotOpcode = predecodedDelaySlotOpcode;
+    		delaySlotInstruction = predecodedDelaySlotInstruction;
+    		predecodedDelaySlotInstruction = null;
+    		cpu.pc += 4;
+    	} else {
+	        delaySlotOpcode = cpu.nextOpcode();
+	        delaySlotInstruction = Decoder.instruction(delaySlotOpcode);
+    	}
         if (log.isTraceEnabled()) {
         	log.trace(String.format("Interpreting 0x%08X: [0x%08X] - %s", cpu.pc - 4, delaySlotOpcode, delaySlotInstruction.disasm(cpu.pc - 4, delaySlotOpcode)));
         }
@@ -62,6 +62,15 @@ public class State extends jpcsp.HLE.Modules {
     public static boolean stopRecordGeFrames;
     public static boolean replayGeFrames;
 
+    /**
+     * @param discId the disc id
+     * @return true if the disc id is identifying a game,
+     *         e.g. for storing information per game
+     */
+    public static boolean isKnownDiscId(String discId) {
+        return discId != null && !DISCID_UNKNOWN_FILE.equals(discId) && !DISCID_UNKNOWN_NOTHING_LOADED.equals(discId);
+    }
+
     static {
         memory = Memory.getInstance();
         controller = Controller.getInstance();
@@ -23,6 +23,8 @@ import static jpcsp.util.Utilities.hasBit;
 import static jpcsp.util.Utilities.setBit;
 import static jpcsp.util.Utilities.setFlag;
 
+import java.util.Arrays;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -103,6 +105,17 @@ public class ARMProcessor {
 	private int currentInstructionPc;
 	public boolean shifterCarryOut;
 	private boolean highVectors = false;
+	// Direct-mapped cache of the decoded instructions.
+	// An entry is only used when the opcode read at the instruction address
+	// is still matching the cached opcode, so that the cache never needs
+	// to be invalidated when the memory is written.
+	// The bit 0 of the cached address is set for the Thumb instructions.
+	private static final int DECODED_INSTRUCTIONS_SIZE = 0x8000;
+	private static final int DECODED_INSTRUCTIONS_MASK = DECODED_INSTRUCTIONS_SIZE - 1;
+	private final ARMInstruction[] decodedInstructions = new ARMInstruction[DECODED_INSTRUCTIONS_SIZE];
+	private final int[] decodedAddresses = new int[DECODED_INSTRUCTIONS_SIZE];
+	private final int[] decodedOpcodes = new int[DECODED_INSTRUCTIONS_SIZE];
+	private boolean decodedInstructionCacheEnabled = true;
 
 	public ARMProcessor(ARMMemory mem) {
 		this.mem = mem;
@@ -126,7 +139,20 @@ public class ARMProcessor {
 		currentInstructionPc = pc;
 		int insn = mem.internalRead16(pc);
 		pc += 2;
-		ARMInstruction instruction = ARMDecoder.thumbInstruction(insn);
+		ARMInstruction instruction;
+		if (decodedInstructionCacheEnabled) {
+			int index = (currentInstructionPc >> 1) & DECODED_INSTRUCTIONS_MASK;
+			int tag = currentInstructionPc | 1;
+			instruction = decodedInstructions[index];
+			if (instruction == null || decodedAddresses[index] != tag || decodedOpcodes[index] != insn) {
+				instruction = ARMDecoder.thumbInstruction(insn);
+				decodedInstructions[index] = instruction;
+				decodedAddresses[index] = tag;
+				decodedOpcodes[index] = insn;
+			}
+		} else {
+			instruction = ARMDecoder.thumbInstruction(insn);
+		}
 		if (log.isTraceEnabled()) {
 			log.trace(String.format("0x%08X: [0x%04X] - %s", currentInstructionPc, insn, instruction.disasm(currentInstructionPc, insn)));
 		}
@@ -137,13 +163,34 @@ public class ARMProcessor {
 		currentInstructionPc = pc;
 		int insn = mem.internalRead32(pc);
 		pc += 4;
-		ARMInstruction instruction = ARMDecoder.instruction(insn);
+		ARMInstruction instruction;
+		if (decodedInstructionCacheEnabled) {
+			int index = (currentInstructionPc >> 1) & DECODED_INSTRUCTIONS_MASK;
+			instruction = decodedInstructions[index];
+			if (instruction == null || decodedAddresses[index] != currentInstructionPc || decodedOpcodes[index] != insn) {
+				instruction = ARMDecoder.instruction(insn);
+				decodedInstructions[index] = instruction;
+				decodedAddresses[index] = currentInstructionPc;
+				decodedOpcodes[index] = insn;
+			}
+		} else {
+			instruction = ARMDecoder.instruction(insn);
+		}
 		if (log.isTraceEnabled()) {
 			log.trace(String.format("0x%08X: [0x%08X] - %s", currentInstructionPc, insn, instruction.disasm(currentInstructionPc, insn)));
 		}
 		instruction.interpret(this, insn);
 	}
 
+	public boolean isDecodedInstructionCacheEnabled() {
+		return decodedInstructionCacheEnabled;
+	}
+
+	public void setDecodedInstructionCacheEnabled(boolean decodedInstructionCacheEnabled) {
+		this.decodedInstructionCacheEnabled = decodedInstructionCacheEnabled;
+		Arrays.fill(decodedInstructions, null);
+	}
+
 	public void setThumbMode() {
 		setCpsrBit(CPSR_BIT_T);
 		thumbMode = true;
@@ -28,9 +28,15 @@ import static libchdr.ChdHeader.ChdError.CHDERR_REQUIRES_PARENT;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import jpcsp.settings.Settings;
+import jpcsp.util.CacheStatistics;
 import libchdr.Chd;
 import libchdr.ChdHeader;
 import libchdr.ChdHeader.ChdError;
@@ -42,8 +48,42 @@ public class CHDFileSectorDevice extends AbstractFileSectorDevice {
 	private final ChdHeader header;
 	private int numberFrames;
 	private int frameSize;
-	private final byte[] buffer;
-	private int hunkNumberInBuffer;
+	// LRU cache of the decoded hunks.
+	// A cached hunk is never modified, a new buffer is allocated for each decoded hunk.
+	private final Map<Integer, byte[]> hunkCache;
+	private final int hunkCacheSize;
+	private final int readAheadHunks;
+	private final LinkedBlockingQueue<Integer> readAheadQueue = new LinkedBlockingQueue<Integer>();
+	private ReadAheadThread readAheadThread;
+	private int lastHunkNumber = -1;
+	private int readAheadEndHunk;
+	public final CacheStatistics statistics;
+
+	private class ReadAheadThread extends Thread {
+		private volatile boolean exit;
+
+		@Override
+		public void run() {
+			while (!exit) {
+				Integer hunkNumber = null;
+				try {
+					hunkNumber = readAheadQueue.poll(100, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					// Ignore exception
+				}
+
+				if (hunkNumber != null && !exit) {
+					try {
+						readHunk(hunkNumber.intValue());
+					} catch (IOException e) {
+						if (log.isDebugEnabled()) {
+							log.debug(String.format("CHD read-ahead of hunk %d failed: %s", hunkNumber, e));
+						}
+					}
+				}
+			}
+		}
+	}
 
 	public CHDFileSectorDevice(RandomAccessFile fileAccess, String fileName) throws IOException {
 		super(fileAccess);
@@ -99,8 +139,28 @@ public class CHDFileSectorDevice extends AbstractFileSectorDevice {
 	        throw new IOException(String.format("Unsupported CHD file format having frameSize=%d, only %d is currently supported", frameSize, sectorLength));
 		}
 
-		buffer = new byte[header.hunkbytes];
-		hunkNumberInBuffer = -1;
+		hunkCacheSize = Math.max(Settings.getInstance().readInt("emu.umd.chdHunkCacheSize", 32), 1);
+		readAheadHunks = Math.max(Settings.getInstance().readInt("emu.umd.chdReadAheadHunks", 2), 0);
+		statistics = new CacheStatistics("CHD Hunk", hunkCacheSize);
+		hunkCache = new LinkedHashMap<Integer, byte[]>(hunkCacheSize, 0.75f, true) {
+			private static final long serialVersionUID = -4722426862395640357L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+				if (size() > hunkCacheSize) {
+					statistics.entriesRemoved++;
+					return true;
+				}
+				return false;
+			}
+		};
+
+		if (readAheadHunks > 0) {
+			readAheadThread = new ReadAheadThread();
+			readAheadThread.setName("CHD Read-Ahead");
+			readAheadThread.setDaemon(true);
+			readAheadThread.start();
+		}
 	}
 
 	private ChdError openChdFile(String fileName, ChdFile[] res) {
@@ -225,21 +285,113 @@ public class CHDFileSectorDevice extends AbstractFileSectorDevice {
 		return numberFrames;
 	}
 
+	@Override
+	public void close() throws IOException {
+		if (readAheadThread != null) {
+			readAheadThread.exit = true;
+			readAheadThread = null;
+		}
+
+		if (statistics.totalHits > 0) {
+			log.info(statistics.toString());
+		}
+
+		super.close();
+	}
+
+	/**
+	 * Decode a hunk and store it into the cache.
+	 * The hunk is not decoded again if it is already present in the cache.
+	 * This method is thread-safe.
+	 *
+	 * @param hunkNumber the hunk number
+	 * @return           the decoded hunk
+	 */
+	private byte[] readHunk(int hunkNumber) throws IOException {
+		// The Chd is not thread-safe
+		synchronized (chd) {
+			byte[] hunk;
+			synchronized (hunkCache) {
+				hunk = hunkCache.get(hunkNumber);
+			}
+
+			// The hunk could have been decoded in the meantime by the read-ahead
+			if (hunk == null) {
+				hunk = new byte[header.hunkbytes];
+				ChdError err = chd.chd_read(chdFile, hunkNumber, hunk, 0);
+				if (err != CHDERR_NONE) {
+			        throw new IOException(String.format("Error reading CHD file hunkNumber=%d: %s", hunkNumber, err));
+				}
+
+				synchronized (hunkCache) {
+					hunkCache.put(hunkNumber, hunk);
+					statistics.maxSizeUsed = Math.max(statistics.maxSizeUsed, hunkCache.size());
+				}
+			}
+
+			return hunk;
+		}
+	}
+
+	private byte[] getHunk(int hunkNumber) throws IOException {
+		synchronized (hunkCache) {
+			statistics.totalHits++;
+			byte[] hunk = hunkCache.get(hunkNumber);
+			if (hunk != null) {
+				statistics.successfulHits++;
+				return hunk;
+			}
+			statistics.notPresentHits++;
+		}
+
+		return readHunk(hunkNumber);
+	}
+
+	/**
+	 * Queue the next hunks for read-ahead when the hunks are being read sequentially.
+	 */
+	private void readAhead(int hunkNumber) {
+		if (readAheadThread != null) {
+			if (hunkNumber == lastHunkNumber + 1) {
+				int fromHunk = Math.max(hunkNumber + 1, readAheadEndHunk);
+				int toHunk = Math.min(hunkNumber + 1 + readAheadHunks, header.totalhunks);
+				for (int i = fromHunk; i < toHunk; i++) {
+					readAheadQueue.add(i);
+				}
+				readAheadEndHunk = Math.max(readAheadEndHunk, toHunk);
+			} else if (hunkNumber != lastHunkNumber) {
+				// Random access, drop the pending read-aheads
+				readAheadQueue.clear();
+				readAheadEndHunk = hunkNumber + 1;
+			}
+		}
+		lastHunkNumber = hunkNumber;
+	}
+
 	@Override
 	public void readSector(int sectorNumber, byte[] data, int offset) throws IOException {
 		int hunkNumber = sectorNumber / CD_FRAMES_PER_HUNK;
+		byte[] hunk = getHunk(hunkNumber);
+		readAhead(hunkNumber);
 
-		// Reading the same hunk as the one already available in the buffer?
-		if (hunkNumberInBuffer != hunkNumber) {
-			ChdError err = chd.chd_read(chdFile, hunkNumber, buffer, 0);
-			if (err != CHDERR_NONE) {
-		        throw new IOException(String.format("Error reading CHD file sectorNumber=%d: %s", sectorNumber, err));
+		int frameIndex = sectorNumber % CD_FRAMES_PER_HUNK;
+		System.arraycopy(hunk, frameIndex * (CD_MAX_SECTOR_DATA + CD_MAX_SUBCODE_DATA), data, offset, sectorLength);
+	}
+
+	@Override
+	public int readSectors(int sectorNumber, int numberSectors, byte[] data, int offset) throws IOException {
+		// Decode each hunk only once
+		int i = 0;
+		while (i < numberSectors) {
+			int hunkNumber = (sectorNumber + i) / CD_FRAMES_PER_HUNK;
+			byte[] hunk = getHunk(hunkNumber);
+			readAhead(hunkNumber);
+
+			for (int frameIndex = (sectorNumber + i) % CD_FRAMES_PER_HUNK; frameIndex < CD_FRAMES_PER_HUNK && i < numberSectors; frameIndex++, i++) {
+				System.arraycopy(hunk, frameIndex * (CD_MAX_SECTOR_DATA + CD_MAX_SUBCODE_DATA), data, offset + i * sectorLength, sectorLength);
 			}
-			// Remember which hunk we currently have stored in the buffer
-			hunkNumberInBuffer = hunkNumber;
 		}
 
-		int frameIndex = sectorNumber % CD_FRAMES_PER_HUNK;
-		System.arraycopy(buffer, frameIndex * (CD_MAX_SECTOR_DATA + CD_MAX_SUBCODE_DATA), data, offset, sectorLength);
+		return numberSectors;
 	}
 }
@@ -16,55 +16,198 @@ along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
  */
 package jpcsp.filesystems.umdiso;
 
-import jpcsp.util.FileUtil;
+import jpcsp.util.LZ4;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
 
+/**
+ * Reader for the CSO (compressed ISO) images, version 0, 1 and 2 (as produced by maxcso).
+ *
+ * - the compressed data of multiple blocks is read using one positional read
+ * - the Inflater instances are reused per thread
+ * - large reads are decompressed in parallel by a small pool of threads
+ * - during sequential reads (e.g. movies or audio streaming),
+ *   the next blocks are prefetched in the background.
+ */
 public class CSOFileSectorDevice extends AbstractFileSectorDevice {
 	protected int offsetShift;
 	protected int numSectors;
+	// The offsets of each block in the file, indexed by block number
 	protected long[] sectorOffsets;
+	protected int version;
+	protected int blockSize;
+	protected int sectorsPerBlock;
+	protected int numBlocks;
 	private static final long sectorOffsetMask = 0x7FFFFFFFL;
+	private static final long sectorFlagMask = 0x80000000L;
+	// Minimum number of blocks in a read to be decompressed in parallel
+	private static final int parallelMinBlocks = 32;
+	// Number of blocks read ahead during sequential reads
+	private static final int prefetchBlocks = 64;
+	private static final int maxCachedBlocks = 256;
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+	private static final ThreadLocal<byte[][]> compressedBuffers = new ThreadLocal<byte[][]>() {
+		@Override
+		protected byte[][] initialValue() {
+			return new byte[1][];
+		}
+	};
+	private static final LinkedBlockingQueue<Runnable> tasks = new LinkedBlockingQueue<Runnable>();
+	// Number of background threads, -1 if not yet started
+	private static int numberThreads = -1;
+	private final FileChannel fileChannel;
+	// The decompressed blocks having been prefetched
+	private final Map<Integer, byte[]> cachedBlocks = new LinkedHashMap<Integer, byte[]>(maxCachedBlocks, 0.75f, true) {
+		private static final long serialVersionUID = 5092391556358469016L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+			return size() > maxCachedBlocks;
+		}
+	};
+	private int nextSequentialSector = -1;
+	private int prefetchEndBlock;
+	// Range of the blocks being prefetched, guarded by cachedBlocks
+	private int pendingPrefetchFirstBlock;
+	private int pendingPrefetchEndBlock;
+
+	private static class DecompressorThread extends Thread {
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					tasks.take().run();
+				} catch (InterruptedException e) {
+					// Ignore exception
+				}
+			}
+		}
+	}
+
+	private class ReadTask implements Runnable {
+		private final int firstBlock;
+		private final int numberBlocks;
+		private final byte[] buffer;
+		private final int offset;
+		private final CountDownLatch latch;
+		private IOException exception;
+
+		public ReadTask(int firstBlock, int numberBlocks, byte[] buffer, int offset, CountDownLatch latch) {
+			this.firstBlock = firstBlock;
+			this.numberBlocks = numberBlocks;
+			this.buffer = buffer;
+			this.offset = offset;
+			this.latch = latch;
+		}
+
+		@Override
+		public void run() {
+			try {
+				readBlocks(firstBlock, numberBlocks, buffer, offset);
+			} catch (IOException e) {
+				exception = e;
+			} finally {
+				latch.countDown();
+			}
+		}
+	}
+
+	private class PrefetchTask implements Runnable {
+		private final int firstBlock;
+		private final int numberBlocks;
+
+		public PrefetchTask(int firstBlock, int numberBlocks) {
+			this.firstBlock = firstBlock;
+			this.numberBlocks = numberBlocks;
+		}
+
+		@Override
+		public void run() {
+			byte[] buffer = new byte[numberBlocks * blockSize];
+			boolean success = false;
+			try {
+				readBlocks(firstBlock, numberBlocks, buffer, 0);
+				success = true;
+			} catch (IOException e) {
+				// The device could have been closed in the meantime
+				if (log.isDebugEnabled()) {
+					log.debug(String.format("CSO prefetch of blocks 0x%X-0x%X failed: %s", firstBlock, firstBlock + numberBlocks - 1, e));
+				}
+			}
+
+			synchronized (cachedBlocks) {
+				if (success) {
+					for (int i = 0; i < numberBlocks; i++) {
+						cachedBlocks.put(firstBlock + i, Arrays.copyOfRange(buffer, i * blockSize, (i + 1) * blockSize));
+					}
+				}
+				pendingPrefetchFirstBlock = 0;
+				pendingPrefetchEndBlock = 0;
+				cachedBlocks.notifyAll();
+			}
+		}
+	}
 
 	public CSOFileSectorDevice(RandomAccessFile fileAccess, byte[] header) throws IOException {
 		super(fileAccess);
+		fileChannel = fileAccess.getChannel();
 		ByteBuffer byteBuffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
 
         /*
 	        u32 'CISO'
 	        u32 header size
 	        u64 image size in bytes (first u32 is lowest 32-bit, second u32 is highest 32-bit)
-	        u32 sector size? (00000800 = 2048 = sector size)
+	        u32 block size (00000800 = 2048 = sector size)
 	        u8  version (0 or 1, maxcso is using version 2)
 	        u8  offset shift
 	        u8  unused
 	        u8  unused
-	        u32[] sector offsets (as many as image size / sector size, I guess)
+	        u32[] block offsets (as many as image size / block size, plus one)
+
+	        In version 0 and 1, the highest bit of the block offset
+	        is set when the block is not compressed.
+	        In version 2, a block is not compressed when its size is
+	        at least the block size, and the highest bit of the block offset
+	        is set when the block is compressed with LZ4 instead of deflate.
          */
 		long lengthInBytes = byteBuffer.getLong(8);
-		int sectorSize = byteBuffer.getInt(16);
-		int version = byteBuffer.get(20) & 0xFF;
-		if (version > 1) {
+		blockSize = byteBuffer.getInt(16);
+		version = byteBuffer.get(20) & 0xFF;
+		if (version > 2) {
 			log.warn(String.format("Unsupported CSO version number 0x%02X", version));
 		}
+		if (blockSize < sectorLength || (blockSize % sectorLength) != 0) {
+			log.warn(String.format("Unsupported CSO block size 0x%X", blockSize));
+			blockSize = sectorLength;
+		}
+		sectorsPerBlock = blockSize / sectorLength;
 		offsetShift = byteBuffer.get(21) & 0xFF;
-		numSectors = getNumSectors(lengthInBytes, sectorSize);
-		sectorOffsets = new long[numSectors + 1];
+		numSectors = getNumSectors(lengthInBytes, sectorLength);
+		numBlocks = getNumSectors(lengthInBytes, blockSize);
+		sectorOffsets = new long[numBlocks + 1];
 
-		byte[] offsetData = new byte[(numSectors + 1) * 4];
+		byte[] offsetData = new byte[(numBlocks + 1) * 4];
 		fileAccess.seek(24);
 		fileAccess.readFully(offsetData);
 		ByteBuffer offsetBuffer = ByteBuffer.wrap(offsetData).order(ByteOrder.LITTLE_ENDIAN);
 
-		for (int i = 0; i <= numSectors; i++) {
+		for (int i = 0; i <= numBlocks; i++) {
 			sectorOffsets[i] = offsetBuffer.getInt(i * 4) & 0xFFFFFFFFL;
 			if (i > 0) {
 				if ((sectorOffsets[i] & sectorOffsetMask) < (sectorOffsets[i - 1] & sectorOffsetMask)) {
@@ -72,6 +215,23 @@ public class CSOFileSectorDevice extends AbstractFileSectorDevice {
 				}
 			}
 		}
+
+		startThreads();
+	}
+
+	private static synchronized void startThreads() {
+		if (numberThreads >= 0) {
+			return;
+		}
+
+		// No background threads when running on a single processor
+		numberThreads = Math.min(4, Runtime.getRuntime().availableProcessors() - 1);
+		for (int i = 0; i < numberThreads; i++) {
+			Thread thread = new DecompressorThread();
+			thread.setName(String.format("CSO Decompressor #%d", i + 1));
+			thread.setDaemon(true);
+			thread.start();
+		}
 	}
 
 	@Override
@@ -80,35 +240,241 @@ public class CSOFileSectorDevice extends AbstractFileSectorDevice {
 	}
 
 	@Override
-	public void readSector(int sectorNumber, byte[] buffer, int offset) throws IOException {
-		long sectorOffset = sectorOffsets[sectorNumber];
-        long sectorEnd = sectorOffsets[sectorNumber + 1];
-
-        if ((sectorOffset & 0x80000000) != 0) {
-            long realOffset = (sectorOffset & sectorOffsetMask) << offsetShift;
-            fileAccess.seek(realOffset);
-            fileAccess.read(buffer, offset, sectorLength);
-        } else {
-	        sectorEnd = (sectorEnd & sectorOffsetMask) << offsetShift;
-	        sectorOffset = (sectorOffset & sectorOffsetMask) << offsetShift;
-
-	        int compressedLength = (int) (sectorEnd - sectorOffset);
-	        if (compressedLength < 0) {
-	        	Arrays.fill(buffer, offset, offset + sectorLength, (byte) 0);
-	        } else {
-		        byte[] compressedData = new byte[compressedLength];
-		        fileAccess.seek(sectorOffset);
-		        fileAccess.read(compressedData);
-
-		        try {
-		            Inflater inf = new Inflater(true);
-					try (InputStream s = new InflaterInputStream(new ByteArrayInputStream(compressedData), inf)) {
-						FileUtil.readAll(s, buffer, offset, sectorLength);
+	public void close() throws IOException {
+		synchronized (cachedBlocks) {
+			cachedBlocks.clear();
+		}
+		super.close();
+	}
+
+	private long getBlockPosition(int blockNumber) {
+		return (sectorOffsets[blockNumber] & sectorOffsetMask) << offsetShift;
+	}
+
+	private boolean isUncompressed(int blockNumber) {
+		if (version >= 2) {
+			return getBlockPosition(blockNumber + 1) - getBlockPosition(blockNumber) >= blockSize;
+		}
+		return (sectorOffsets[blockNumber] & sectorFlagMask) != 0;
+	}
+
+	private boolean isLZ4(int blockNumber) {
+		return version >= 2 && (sectorOffsets[blockNumber] & sectorFlagMask) != 0;
+	}
+
+	private static byte[] getCompressedBuffer(int length) {
+		byte[][] compressedBuffer = compressedBuffers.get();
+		if (compressedBuffer[0] == null || compressedBuffer[0].length < length) {
+			compressedBuffer[0] = new byte[length];
+		}
+
+		return compressedBuffer[0];
+	}
+
+	private void readFully(byte[] buffer, int length, long position) throws IOException {
+		ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, length);
+		while (byteBuffer.hasRemaining()) {
+			int readLength = fileChannel.read(byteBuffer, position + byteBuffer.position());
+			if (readLength < 0) {
+				// End of file reached
+				Arrays.fill(buffer, byteBuffer.position(), length, (byte) 0);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Read and decompress consecutive blocks.
+	 * The compressed data of all the blocks is read at once.
+	 * This method is thread-safe.
+	 */
+	private void readBlocks(int firstBlock, int numberBlocks, byte[] buffer, int offset) throws IOException {
+		int lastBlock = firstBlock + numberBlocks - 1;
+		long start = getBlockPosition(firstBlock);
+		long end = getBlockPosition(lastBlock + 1);
+		if (isUncompressed(lastBlock)) {
+			// The size of the last uncompressed block is not always matching the next block offset
+			end = Math.max(end, getBlockPosition(lastBlock) + blockSize);
+		}
+
+		int length = (int) Math.max(end - start, 0L);
+		byte[] compressedData = getCompressedBuffer(length);
+		readFully(compressedData, length, start);
+
+		for (int i = 0; i < numberBlocks; i++) {
+			int blockNumber = firstBlock + i;
+			long blockPosition = getBlockPosition(blockNumber);
+			int compressedOffset = (int) (blockPosition - start);
+			int compressedLength = (int) (getBlockPosition(blockNumber + 1) - blockPosition);
+			decompressBlock(blockNumber, compressedData, compressedOffset, compressedLength, length, buffer, offset + i * blockSize);
+		}
+	}
+
+	private void decompressBlock(int blockNumber, byte[] compressedData, int compressedOffset, int compressedLength, int availableLength, byte[] buffer, int offset) throws IOException {
+		int length;
+		if (compressedLength < 0 || compressedOffset < 0 || compressedOffset > availableLength) {
+			// Corrupted block offsets
+			length = 0;
+		} else if (isUncompressed(blockNumber)) {
+			length = Math.min(blockSize, availableLength - compressedOffset);
+			System.arraycopy(compressedData, compressedOffset, buffer, offset, length);
+		} else if (isLZ4(blockNumber)) {
+			compressedLength = Math.min(compressedLength, availableLength - compressedOffset);
+			try {
+				length = LZ4.decompress(compressedData, compressedOffset, compressedLength, buffer, offset, blockSize);
+			} catch (IOException e) {
+				throw new IOException(String.format("Exception while uncompressing block %d: %s", blockNumber, e.getMessage()));
+			}
+		} else {
+			compressedLength = Math.min(compressedLength, availableLength - compressedOffset);
+			Inflater inflater = inflaters.get();
+			inflater.reset();
+			inflater.setInput(compressedData, compressedOffset, compressedLength);
+			length = 0;
+			try {
+				while (length < blockSize) {
+					int inflatedLength = inflater.inflate(buffer, offset + length, blockSize - length);
+					if (inflatedLength == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+					length += inflatedLength;
+				}
+			} catch (DataFormatException e) {
+				throw new IOException(String.format("Exception while uncompressing block %d: %s", blockNumber, e.getMessage()));
+			}
+		}
+
+		if (length < blockSize) {
+			Arrays.fill(buffer, offset + length, offset + blockSize, (byte) 0);
+		}
+	}
+
+	/**
+	 * Read and decompress consecutive blocks, in parallel for large reads.
+	 */
+	private void readBlocksParallel(int firstBlock, int numberBlocks, byte[] buffer, int offset) throws IOException {
+		int numberParts = Math.min(numberThreads + 1, numberBlocks / (parallelMinBlocks / 2));
+		if (numberBlocks < parallelMinBlocks || numberParts <= 1) {
+			readBlocks(firstBlock, numberBlocks, buffer, offset);
+			return;
+		}
+
+		CountDownLatch latch = new CountDownLatch(numberParts - 1);
+		ReadTask[] readTasks = new ReadTask[numberParts - 1];
+		int blocksPerPart = (numberBlocks + numberParts - 1) / numberParts;
+		for (int i = 1; i < numberParts; i++) {
+			int partFirstBlock = firstBlock + i * blocksPerPart;
+			int partNumberBlocks = Math.min(blocksPerPart, firstBlock + numberBlocks - partFirstBlock);
+			readTasks[i - 1] = new ReadTask(partFirstBlock, partNumberBlocks, buffer, offset + i * blocksPerPart * blockSize, latch);
+			tasks.add(readTasks[i - 1]);
+		}
+
+		// The first part is read by the current thread
+		readBlocks(firstBlock, blocksPerPart, buffer, offset);
+
+		while (true) {
+			try {
+				latch.await();
+				break;
+			} catch (InterruptedException e) {
+				// Ignore exception
+			}
+		}
+
+		for (ReadTask readTask : readTasks) {
+			if (readTask.exception != null) {
+				throw readTask.exception;
+			}
+		}
+	}
+
+	private byte[] getCachedBlock(int blockNumber) {
+		synchronized (cachedBlocks) {
+			// Wait for the completion of the prefetch instead of reading the same block twice
+			while (blockNumber >= pendingPrefetchFirstBlock && blockNumber < pendingPrefetchEndBlock) {
+				try {
+					cachedBlocks.wait();
+				} catch (InterruptedException e) {
+					// Ignore exception
+				}
+			}
+
+			return cachedBlocks.isEmpty() ? null : cachedBlocks.get(blockNumber);
+		}
+	}
+
+	/**
+	 * Read consecutive blocks, using the prefetched blocks when available.
+	 */
+	private void readBlocksCached(int firstBlock, int numberBlocks, byte[] buffer, int offset) throws IOException {
+		int uncachedFirstBlock = -1;
+		for (int i = 0; i < numberBlocks; i++) {
+			byte[] cachedBlock = getCachedBlock(firstBlock + i);
+
+			if (cachedBlock == null) {
+				if (uncachedFirstBlock < 0) {
+					uncachedFirstBlock = i;
+				}
+			} else {
+				if (uncachedFirstBlock >= 0) {
+					readBlocksParallel(firstBlock + uncachedFirstBlock, i - uncachedFirstBlock, buffer, offset + uncachedFirstBlock * blockSize);
+					uncachedFirstBlock = -1;
+				}
+				System.arraycopy(cachedBlock, 0, buffer, offset + i * blockSize, blockSize);
+			}
+		}
+
+		if (uncachedFirstBlock >= 0) {
+			readBlocksParallel(firstBlock + uncachedFirstBlock, numberBlocks - uncachedFirstBlock, buffer, offset + uncachedFirstBlock * blockSize);
+		}
+	}
+
+	private void prefetch(int sectorNumber, int numberSectors, int lastBlock) {
+		if (sectorNumber != nextSequentialSector) {
+			// Random access, restart the prefetching after this read
+			prefetchEndBlock = lastBlock + 1;
+		} else if (numberThreads > 0) {
+			int fromBlock = Math.max(lastBlock + 1, prefetchEndBlock);
+			int toBlock = Math.min(lastBlock + 1 + prefetchBlocks, numBlocks);
+			if (toBlock - fromBlock >= prefetchBlocks / 2) {
+				synchronized (cachedBlocks) {
+					// Only one prefetch at a time
+					if (pendingPrefetchEndBlock == 0) {
+						prefetchEndBlock = toBlock;
+						pendingPrefetchFirstBlock = fromBlock;
+						pendingPrefetchEndBlock = toBlock;
+						tasks.add(new PrefetchTask(fromBlock, toBlock - fromBlock));
 					}
-		        } catch (IOException e) {
-		            throw new IOException(String.format("Exception while uncompressing sector %d", sectorNumber));
-		        }
-	        }
-        }
+				}
+			}
+		}
+		nextSequentialSector = sectorNumber + numberSectors;
+	}
+
+	@Override
+	public void readSector(int sectorNumber, byte[] buffer, int offset) throws IOException {
+		readSectors(sectorNumber, 1, buffer, offset);
+	}
+
+	@Override
+	public int readSectors(int sectorNumber, int numberSectors, byte[] buffer, int offset) throws IOException {
+		if (numberSectors <= 0) {
+			return 0;
+		}
+
+		int firstBlock = sectorNumber / sectorsPerBlock;
+		int lastBlock = (sectorNumber + numberSectors - 1) / sectorsPerBlock;
+		int numberBlocks = lastBlock - firstBlock + 1;
+		if (sectorsPerBlock == 1) {
+			readBlocksCached(firstBlock, numberBlocks, buffer, offset);
+		} else {
+			byte[] blocks = new byte[numberBlocks * blockSize];
+			readBlocksCached(firstBlock, numberBlocks, blocks, 0);
+			System.arraycopy(blocks, (sectorNumber % sectorsPerBlock) * sectorLength, buffer, offset, numberSectors * sectorLength);
+		}
+
+		prefetch(sectorNumber, numberSectors, lastBlock);
+
+		return numberSectors;
 	}
 }
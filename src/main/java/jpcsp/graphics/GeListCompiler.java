@@ -0,0 +1,217 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.graphics;
+
+import static jpcsp.graphics.GeCommands.PRIM;
+import static jpcsp.graphics.VideoEngine.command;
+
+import java.util.HashMap;
+
+import jpcsp.HLE.kernel.types.PspGeList;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.slf4j.Logger;
+
+/**
+ * Compiler of the GE list segments executed repeatedly, e.g. at each frame.
+ *
+ * A segment is compiled into a class implementing IGeListExecutable where
+ * each GE command is executed by calling VideoEngine.executeCommand() with
+ * the command as a constant, without reading again the command from the list.
+ * The pure state commands are compared inline with the last command values
+ * of the list and not executed at all when they are redundant.
+ * A segment ending with a PRIM is setting the list pc after the PRIM
+ * before executing it, so that the PRIM can still check for a multi-draw.
+ *
+ * The compiled classes are defined in a class loader discarded together
+ * with the segments, so that their classes can be unloaded.
+ *
+ * @author gid15
+ *
+ */
+public class GeListCompiler {
+	private static Logger log = VideoEngine.log;
+	private static GeListCompiler instance;
+	private static final int maxNumberSegments = 4096;
+	private static final String videoEngineInternalName = Type.getInternalName(VideoEngine.class);
+	private static final String geListInternalName = Type.getInternalName(PspGeList.class);
+	private final HashMap<Integer, GeListSegment> segments = new HashMap<Integer, GeListSegment>();
+	private GeListClassLoader classLoader = new GeListClassLoader();
+	private int numberCompiledSegments;
+
+	private static class GeListClassLoader extends ClassLoader {
+		public Class<?> defineClass(String name, byte[] b) {
+			return defineClass(name, b, 0, b.length);
+		}
+	}
+
+	public static GeListCompiler getInstance() {
+		if (instance == null) {
+			instance = new GeListCompiler();
+		}
+
+		return instance;
+	}
+
+	private GeListCompiler() {
+	}
+
+	/**
+	 * Execute the compiled segment starting at the current list pc.
+	 *
+	 * @param videoEngine   the VideoEngine executing the list
+	 * @param list          the list being executed
+	 * @param listCMDValues the last command values of the list
+	 * @return              true if a compiled segment has been executed
+	 *                      false if the commands have to be interpreted
+	 */
+	public boolean execute(VideoEngine videoEngine, PspGeList list, int[] listCMDValues) {
+		int pc = list.getPc();
+		GeListSegment segment = segments.get(pc);
+		if (segment == null) {
+			if (segments.size() >= maxNumberSegments) {
+				clearSegments();
+			}
+			segment = new GeListSegment(pc);
+			segments.put(pc, segment);
+		}
+
+		return segment.execute(videoEngine, list, listCMDValues);
+	}
+
+	public void reset() {
+		clearSegments();
+	}
+
+	private void clearSegments() {
+		segments.clear();
+		// Discard the classes of the cleared segments
+		classLoader = new GeListClassLoader();
+	}
+
+	public int getNumberCompiledSegments() {
+		return numberCompiledSegments;
+	}
+
+	private static void loadInt(MethodVisitor mv, int value) {
+		if (value >= -1 && value <= 5) {
+			mv.visitInsn(Opcodes.ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			mv.visitIntInsn(Opcodes.BIPUSH, value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			mv.visitIntInsn(Opcodes.SIPUSH, value);
+		} else {
+			mv.visitLdcInsn(Integer.valueOf(value));
+		}
+	}
+
+	private static void executeCommand(MethodVisitor mv, int instruction) {
+		mv.visitVarInsn(Opcodes.ALOAD, 1);
+		loadInt(mv, instruction);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, videoEngineInternalName, "executeCommand", "(I)V", false);
+	}
+
+	private static void setPc(MethodVisitor mv, int pc) {
+		mv.visitVarInsn(Opcodes.ALOAD, 2);
+		loadInt(mv, pc);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, geListInternalName, "setPc", "(I)V", false);
+	}
+
+	private byte[] generate(String className, GeListSegment segment) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+		cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, className, null, Type.getInternalName(Object.class), new String[] { Type.getInternalName(IGeListExecutable.class) });
+
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, Type.getInternalName(Object.class), "<init>", "()V", false);
+		mv.visitInsn(Opcodes.RETURN);
+		mv.visitMaxs(1, 1);
+		mv.visitEnd();
+
+		// public void execute(VideoEngine videoEngine, PspGeList list, int[] listCMDValues)
+		String descriptor = Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(VideoEngine.class), Type.getType(PspGeList.class), Type.getType(int[].class));
+		mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "execute", descriptor, null, null);
+		mv.visitCode();
+		int length = segment.getLength();
+		for (int i = 0; i < length; i++) {
+			int instruction = segment.getInstruction(i);
+			int command = command(instruction);
+			if (command == PRIM) {
+				// The PRIM is always the last command of a segment
+				setPc(mv, segment.getStartAddress() + ((i + 1) << 2));
+				executeCommand(mv, instruction);
+				mv.visitInsn(Opcodes.RETURN);
+				break;
+			}
+
+			if (GeCommands.pureStateCommands[command]) {
+				// if (listCMDValues[command] != instruction) videoEngine.executeCommand(instruction);
+				Label redundant = new Label();
+				mv.visitVarInsn(Opcodes.ALOAD, 3);
+				loadInt(mv, command);
+				mv.visitInsn(Opcodes.IALOAD);
+				loadInt(mv, instruction);
+				mv.visitJumpInsn(Opcodes.IF_ICMPEQ, redundant);
+				executeCommand(mv, instruction);
+				mv.visitLabel(redundant);
+			} else {
+				executeCommand(mv, instruction);
+			}
+		}
+
+		if (!segment.isEndingWithPrim()) {
+			setPc(mv, segment.getEndAddress());
+			mv.visitInsn(Opcodes.RETURN);
+		}
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		cw.visitEnd();
+
+		return cw.toByteArray();
+	}
+
+	public IGeListExecutable compile(GeListSegment segment) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Compiling %s", segment));
+		}
+
+		String className = String.format("GeListSegment%08X_%d", segment.getStartAddress(), numberCompiledSegments);
+		IGeListExecutable executable = null;
+		Class<?> compiledClass = null;
+		try {
+			compiledClass = classLoader.defineClass(className, generate(className, segment));
+		} catch (ClassFormatError e) {
+			log.error("Error while defining compiled GE list segment", e);
+		}
+		if (compiledClass != null) {
+			try {
+				executable = (IGeListExecutable) compiledClass.getDeclaredConstructor().newInstance();
+				numberCompiledSegments++;
+			} catch (ReflectiveOperationException e) {
+				log.error("Error while instanciating compiled GE list segment", e);
+			}
+		}
+
+		return executable;
+	}
+}
@@ -0,0 +1,206 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.graphics;
+
+import static jpcsp.graphics.GeCommands.IADDR;
+import static jpcsp.graphics.GeCommands.PRIM;
+import static jpcsp.graphics.GeCommands.VADDR;
+import static jpcsp.graphics.VideoEngine.command;
+
+import jpcsp.Memory;
+import jpcsp.HLE.kernel.types.PspGeList;
+import jpcsp.memory.DirtyPageTracker;
+import jpcsp.memory.IMemoryReader;
+import jpcsp.memory.MemoryReader;
+
+/**
+ * A sequence of GE commands starting at a given list address
+ * and only changing the GE context state, optionally ending with a PRIM.
+ *
+ * The sequence is compiled by the GeListCompiler after having been
+ * executed unchanged several times. The memory of the sequence is checked
+ * before each execution, using the dirty page tracking when available
+ * or by comparing the commands, and the sequence is decoded
+ * and compiled again when it has been modified.
+ *
+ * @author gid15
+ *
+ */
+public class GeListSegment {
+	private static final int maxLength = 256;
+	private static final int minLength = 4;
+	// Number of unchanged executions before compiling the segment
+	private static final int compileThreshold = 3;
+	// Stop compiling the segment when it is changing too often
+	private static final int maxCompilations = 4;
+	private final int startAddress;
+	private int[] instructions;
+	private boolean endsWithPrim;
+	private long snapshot;
+	private int hits;
+	private int compilations;
+	private IGeListExecutable executable;
+
+	public GeListSegment(int startAddress) {
+		this.startAddress = startAddress;
+		decode();
+	}
+
+	/**
+	 * @param command a GE command
+	 * @return        true if the command can be part of a segment,
+	 *                i.e. if it is not using or changing the list pc
+	 */
+	public static boolean isSegmentCommand(int command) {
+		return GeCommands.pureStateCommands[command] || command == VADDR || command == IADDR;
+	}
+
+	private static long snapshot() {
+		DirtyPageTracker dirtyPageTracker = Memory.getInstance().getDirtyPageTracker();
+		if (dirtyPageTracker == null) {
+			return 0L;
+		}
+
+		return dirtyPageTracker.snapshot();
+	}
+
+	private void decode() {
+		snapshot = snapshot();
+		endsWithPrim = false;
+
+		int[] readInstructions = new int[maxLength];
+		int length = 0;
+		if (Memory.isRAM(startAddress)) {
+			IMemoryReader memoryReader = MemoryReader.getMemoryReader(startAddress, 4);
+			int address = startAddress;
+			while (length < maxLength && Memory.isRAM(address + 3)) {
+				int instruction = memoryReader.readNext();
+				int command = command(instruction);
+				if (command == PRIM) {
+					readInstructions[length++] = instruction;
+					endsWithPrim = true;
+					break;
+				}
+				if (!isSegmentCommand(command)) {
+					break;
+				}
+				readInstructions[length++] = instruction;
+				address += 4;
+			}
+		}
+
+		instructions = new int[length];
+		System.arraycopy(readInstructions, 0, instructions, 0, length);
+	}
+
+	private boolean isMemoryUnchanged() {
+		int length = instructions.length << 2;
+		DirtyPageTracker dirtyPageTracker = Memory.getInstance().getDirtyPageTracker();
+		if (dirtyPageTracker != null && !dirtyPageTracker.isDirty(startAddress, length, snapshot)) {
+			return true;
+		}
+
+		long newSnapshot = snapshot();
+		if (length > 0) {
+			IMemoryReader memoryReader = MemoryReader.getMemoryReader(startAddress, length, 4);
+			for (int i = 0; i < instructions.length; i++) {
+				if (memoryReader.readNext() != instructions[i]) {
+					return false;
+				}
+			}
+		}
+		snapshot = newSnapshot;
+
+		return true;
+	}
+
+	/**
+	 * Execute the compiled segment if it is available and still valid.
+	 *
+	 * @param videoEngine   the VideoEngine executing the list
+	 * @param list          the list being executed, with its pc at the segment start address
+	 * @param listCMDValues the last command values of the list
+	 * @return              true if the segment has been executed
+	 *                      false if the commands have to be interpreted
+	 */
+	public boolean execute(VideoEngine videoEngine, PspGeList list, int[] listCMDValues) {
+		if (compilations >= maxCompilations) {
+			return false;
+		}
+
+		if (!isMemoryUnchanged()) {
+			decode();
+			hits = 0;
+			executable = null;
+		}
+
+		if (instructions.length < minLength) {
+			return false;
+		}
+
+		// Do not execute past the stall address
+		if (list.hasStallAddr()) {
+			int stallAddr = list.getStallAddr();
+			if (stallAddr > startAddress && stallAddr < getEndAddress()) {
+				return false;
+			}
+		}
+
+		if (executable == null) {
+			hits++;
+			if (hits < compileThreshold) {
+				return false;
+			}
+
+			compilations++;
+			executable = GeListCompiler.getInstance().compile(this);
+			if (executable == null) {
+				compilations = maxCompilations;
+				return false;
+			}
+		}
+
+		executable.execute(videoEngine, list, listCMDValues);
+
+		return true;
+	}
+
+	public int getStartAddress() {
+		return startAddress;
+	}
+
+	public int getEndAddress() {
+		return startAddress + (instructions.length << 2);
+	}
+
+	public int getLength() {
+		return instructions.length;
+	}
+
+	public int getInstruction(int index) {
+		return instructions[index];
+	}
+
+	public boolean isEndingWithPrim() {
+		return endsWithPrim;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("GeListSegment[0x%08X-0x%08X, %d commands%s]", startAddress, getEndAddress(), instructions.length, endsWithPrim ? ", PRIM" : "");
+	}
+}
@@ -0,0 +1,38 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.graphics;
+
+import jpcsp.HLE.kernel.types.PspGeList;
+
+/**
+ * A GE list segment compiled by the GeListCompiler.
+ *
+ * @author gid15
+ *
+ */
+public interface IGeListExecutable {
+	/**
+	 * Execute the compiled GE commands.
+	 * The list pc is set after the last executed command.
+	 *
+	 * @param videoEngine      the VideoEngine executing the list
+	 * @param list             the list being executed
+	 * @param listCMDValues    the last command values of the list,
+	 *                         used to skip the redundant pure state commands
+	 */
+	public void execute(VideoEngine videoEngine, PspGeList list, int[] listCMDValues);
+}
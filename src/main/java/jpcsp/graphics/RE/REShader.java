@@ -70,6 +70,8 @@ public class REShader extends BaseRenderingEngineFunction {
 	protected final static float[] normalScale   = new float[] { 1, 0x7F, 0x7FFF, 1 };
 	protected final static float[] textureScale  = new float[] { 1, 0x80, 0x8000, 1 };
 	protected final static float[] weightScale   = new float[] { 1, 0x80, 0x8000, 1 };
+	// Time spent at most at each display to link in advance the cached shader programs
+	protected final static long shaderProgramWarmUpNanosPerDisplay = 4000000L;
 	protected final static String attributeNameTexture = "pspTexture";
 	protected final static String attributeNameColor = "pspColor";
 	protected final static String attributeNameNormal = "pspNormal";
@@ -135,6 +137,7 @@ public class REShader extends BaseRenderingEngineFunction {
 		if (useDynamicShaders) {
 			log.info("Using dynamic shaders");
 			shaderProgramManager = new ShaderProgramManager();
+			shaderProgramManager.setCacheEnabled(Settings.getInstance().readBool("emu.graphics.shaderProgramCache"));
 		}
 
 		useGeometryShader = Settings.getInstance().readBool("emu.useGeometryShader");
@@ -718,6 +721,9 @@ public class REShader extends BaseRenderingEngineFunction {
 				log.info(String.valueOf(textureCacheLookupStatistics));
 			}
 		}
+		if (useDynamicShaders) {
+			shaderProgramManager.save();
+		}
 		super.exit();
 	}
 
@@ -820,8 +826,37 @@ public class REShader extends BaseRenderingEngineFunction {
 		super.setColorMaterial(ambient, diffuse, specular);
 	}
 
+	/**
+	 * Link in advance the shader programs used in the previous sessions of the game,
+	 * during at most shaderProgramWarmUpNanosPerDisplay at each display.
+	 */
+	private void warmUpShaderPrograms() {
+		shaderProgramManager.load();
+
+		long start = System.nanoTime();
+		long now = start;
+		while (now - start < shaderProgramWarmUpNanosPerDisplay) {
+			ShaderProgram shaderProgram = shaderProgramManager.getNextWarmUpShaderProgram();
+			if (shaderProgram == null) {
+				break;
+			}
+
+			if (createShader(shaderProgram.hasGeometryShader(), shaderProgram.hasTessellationShader(), shaderProgram) != null && log.isDebugEnabled()) {
+				log.debug("Warmed up shader " + shaderProgram);
+			}
+
+			long end = System.nanoTime();
+			shaderProgramManager.addLinkDuration(true, end - now);
+			now = end;
+		}
+	}
+
 	@Override
 	public void startDisplay() {
+		if (useDynamicShaders) {
+			warmUpShaderPrograms();
+		}
+
 		shaderContext.startDisplay(re);
 		defaultShaderProgram.use(re);
 
@@ -1038,7 +1073,9 @@ public class REShader extends BaseRenderingEngineFunction {
 		if (useDynamicShaders) {
 			shaderProgram = shaderProgramManager.getShaderProgram(shaderContext, hasGeometryShader, hasTessellationShader);
 			if (shaderProgram.getProgramId() == -1) {
+				long start = System.nanoTime();
 				shaderProgram = createShader(hasGeometryShader, hasTessellationShader, shaderProgram);
+				shaderProgramManager.addLinkDuration(false, System.nanoTime() - start);
 				if (log.isDebugEnabled()) {
 					log.debug("Created shader " + shaderProgram);
 				}
@@ -80,6 +80,53 @@ public class ShaderProgram {
 	private int curvedSurfaceType; // values: [0..2]
 	private int patchFace; // values: [0..1]
 
+	// Position and size of the values stored in the key1 of a shader program,
+	// used by getKey() and by the ShaderProgram(ShaderProgramKey) constructor.
+	private static final KeyField keyGeometryShader = new KeyField(null, 1);
+	private static final KeyField keyTessellationShader = new KeyField(keyGeometryShader, 1);
+	private static final KeyField keyLightEnabled = new KeyField(keyTessellationShader, 1, VideoEngine.NUM_LIGHTS);
+	private static final KeyField keyMatFlags = new KeyField(keyLightEnabled, 1, 3);
+	private static final KeyField keyTexShade = new KeyField(keyMatFlags, 2, 2);
+	private static final KeyField keyTexEnvMode0 = new KeyField(keyTexShade, 3);
+	private static final KeyField keyTexEnvMode1 = new KeyField(keyTexEnvMode0, 1);
+	private static final KeyField keyCtestFunc = new KeyField(keyTexEnvMode1, 2);
+	private static final KeyField keyTexMapMode = new KeyField(keyCtestFunc, 2);
+	private static final KeyField keyTexMapProj = new KeyField(keyTexMapMode, 2);
+	private static final KeyField keyVinfoColor = new KeyField(keyTexMapProj, 4);
+	private static final KeyField keyVinfoPosition = new KeyField(keyVinfoColor, 2);
+	private static final KeyField keyVinfoTexture = new KeyField(keyVinfoPosition, 2);
+	private static final KeyField keyVinfoNormal = new KeyField(keyVinfoTexture, 2);
+	private static final KeyField keyColorDoubling = new KeyField(keyVinfoNormal, 1);
+	private static final KeyField keyTexEnable = new KeyField(keyColorDoubling, 1);
+	private static final KeyField keyLightingEnable = new KeyField(keyTexEnable, 1);
+	private static final KeyField keyVinfoTransform2D = new KeyField(keyLightingEnable, 1);
+	private static final KeyField keyCtestEnable = new KeyField(keyVinfoTransform2D, 1);
+	private static final KeyField keyLightMode = new KeyField(keyCtestEnable, 1);
+	private static final KeyField keyTexPixelFormat = new KeyField(keyLightMode, 4);
+	private static final KeyField keyNumberBones = new KeyField(keyTexPixelFormat, 4);
+	private static final KeyField keyClutIndexHint = new KeyField(keyNumberBones, 3);
+	private static final KeyField keyAlphaTestEnable = new KeyField(keyClutIndexHint, 1);
+	private static final KeyField keyAlphaTestFunc = new KeyField(keyAlphaTestEnable, 3);
+	private static final KeyField keyStencilTestEnable = new KeyField(keyAlphaTestFunc, 1);
+	private static final KeyField keyStencilFunc = new KeyField(keyStencilTestEnable, 3);
+	private static final KeyField keyStencilOpFail = new KeyField(keyStencilFunc, 3);
+	private static final KeyField keyStencilOpZFail = new KeyField(keyStencilOpFail, 3);
+	// Position and size of the values stored in the key2 of a shader program
+	private static final KeyField keyStencilOpZPass = new KeyField(null, 3);
+	private static final KeyField keyDepthTestEnable = new KeyField(keyStencilOpZPass, 1);
+	private static final KeyField keyDepthFunc = new KeyField(keyDepthTestEnable, 3);
+	private static final KeyField keyDepthWriteEnable = new KeyField(keyDepthFunc, 1);
+	private static final KeyField keyBlendTestEnable = new KeyField(keyDepthWriteEnable, 1);
+	private static final KeyField keyBlendEquation = new KeyField(keyBlendTestEnable, 3);
+	private static final KeyField keyBlendSrc = new KeyField(keyBlendEquation, 4);
+	private static final KeyField keyBlendDst = new KeyField(keyBlendSrc, 4);
+	private static final KeyField keyColorMaskEnable = new KeyField(keyBlendDst, 1);
+	private static final KeyField keyCopyRedToAlpha = new KeyField(keyColorMaskEnable, 1);
+	private static final KeyField keyFogEnable = new KeyField(keyCopyRedToAlpha, 1);
+	private static final KeyField keyShadeModel = new KeyField(keyFogEnable, 1);
+	private static final KeyField keyCurvedSurfaceType = new KeyField(keyShadeModel, 2);
+	private static final KeyField keyPatchFace = new KeyField(keyCurvedSurfaceType, 1);
+
 	public static class ShaderProgramKey {
 		private long key1;
 		private long key2;
@@ -98,6 +145,14 @@ public class ShaderProgram {
 			return hashCode;
 		}
 
+		public long getKey1() {
+			return key1;
+		}
+
+		public long getKey2() {
+			return key2;
+		}
+
 		public boolean equals(ShaderProgramKey that) {
 			return key1 == that.key1 && key2 == that.key2;
 		}
@@ -116,6 +171,111 @@ public class ShaderProgram {
 		this.hasTessellationShader = hasTessellationShader;
 	}
 
+	/**
+	 * A value, or an array of values, stored at a fixed position in a key.
+	 * A field is stored just after the previous field of the same key.
+	 */
+	private static class KeyField {
+		private final int shift;
+		private final int bits;
+		private final int count;
+
+		public KeyField(KeyField previous, int bits) {
+			this(previous, bits, 1);
+		}
+
+		public KeyField(KeyField previous, int bits, int count) {
+			shift = previous == null ? 0 : previous.getEndShift();
+			this.bits = bits;
+			this.count = count;
+		}
+
+		public int getEndShift() {
+			return shift + bits * count;
+		}
+
+		public long encode(int value) {
+			return encode(0, value);
+		}
+
+		public long encode(int index, int value) {
+			return ((long) value) << (shift + bits * index);
+		}
+
+		public int decode(long key) {
+			return decode(key, 0);
+		}
+
+		public int decode(long key, int index) {
+			return (int) ((key >>> (shift + bits * index)) & ((1L << bits) - 1));
+		}
+	}
+
+	/**
+	 * Rebuild a shader program from its key, e.g. from a key
+	 * persisted in a previous session.
+	 * The values are decoded using the same key fields
+	 * as getKey(ShaderContext, boolean, boolean).
+	 *
+	 * @param key the shader program key
+	 */
+	public ShaderProgram(ShaderProgramKey key) {
+		long key1 = key.getKey1();
+		hasGeometryShader = keyGeometryShader.decode(key1) != 0;
+		hasTessellationShader = keyTessellationShader.decode(key1) != 0;
+		for (int i = 0; i < lightEnabled.length; i++) {
+			lightEnabled[i] = keyLightEnabled.decode(key1, i);
+		}
+		for (int i = 0; i < matFlags.length; i++) {
+			matFlags[i] = keyMatFlags.decode(key1, i);
+		}
+		for (int i = 0; i < texShade.length; i++) {
+			texShade[i] = keyTexShade.decode(key1, i);
+		}
+		texEnvMode[0] = keyTexEnvMode0.decode(key1);
+		texEnvMode[1] = keyTexEnvMode1.decode(key1);
+		ctestFunc = keyCtestFunc.decode(key1);
+		texMapMode = keyTexMapMode.decode(key1);
+		texMapProj = keyTexMapProj.decode(key1);
+		vinfoColor = keyVinfoColor.decode(key1);
+		vinfoPosition = keyVinfoPosition.decode(key1);
+		vinfoTexture = keyVinfoTexture.decode(key1);
+		vinfoNormal = keyVinfoNormal.decode(key1);
+		colorDoubling = keyColorDoubling.decode(key1) != 0 ? 2.f : 1.f;
+		texEnable = keyTexEnable.decode(key1);
+		lightingEnable = keyLightingEnable.decode(key1);
+		vinfoTransform2D = keyVinfoTransform2D.decode(key1);
+		ctestEnable = keyCtestEnable.decode(key1);
+		lightMode = keyLightMode.decode(key1);
+		texPixelFormat = keyTexPixelFormat.decode(key1);
+		numberBones = keyNumberBones.decode(key1);
+		clutIndexHint = keyClutIndexHint.decode(key1);
+		alphaTestEnable = keyAlphaTestEnable.decode(key1);
+		alphaTestFunc = keyAlphaTestFunc.decode(key1);
+		stencilTestEnable = keyStencilTestEnable.decode(key1);
+		stencilFunc = keyStencilFunc.decode(key1);
+		stencilOpFail = keyStencilOpFail.decode(key1);
+		stencilOpZFail = keyStencilOpZFail.decode(key1);
+
+		long key2 = key.getKey2();
+		stencilOpZPass = keyStencilOpZPass.decode(key2);
+		depthTestEnable = keyDepthTestEnable.decode(key2);
+		depthFunc = keyDepthFunc.decode(key2);
+		depthWriteEnable = keyDepthWriteEnable.decode(key2) != 0;
+		blendTestEnable = keyBlendTestEnable.decode(key2);
+		blendEquation = keyBlendEquation.decode(key2);
+		blendSrc = keyBlendSrc.decode(key2);
+		blendDst = keyBlendDst.decode(key2);
+		colorMaskEnable = keyColorMaskEnable.decode(key2);
+		copyRedToAlpha = keyCopyRedToAlpha.decode(key2);
+		fogEnable = keyFogEnable.decode(key2);
+		shadeModel = keyShadeModel.decode(key2);
+		curvedSurfaceType = keyCurvedSurfaceType.decode(key2);
+		patchFace = keyPatchFace.decode(key2);
+
+		this.key = key;
+	}
+
 	public ShaderProgram(ShaderContext shaderContext, boolean hasGeometryShader, boolean hasTessellationShader) {
 		this.hasGeometryShader = hasGeometryShader;
 		this.hasTessellationShader = hasTessellationShader;
@@ -287,123 +447,68 @@ public class ShaderProgram {
 	}
 
 	public static ShaderProgramKey getKey(ShaderContext shaderContext, boolean hasGeometryShader, boolean hasTessellationShader) {
-		long key = 0;
-		long key1;
-		long key2;
-		int shift = 0;
-
-		key += hasGeometryShader ? 1 : 0;
-		shift++;
-		key += hasTessellationShader ? 1 : 0;
-		shift++;
+		long key1 = 0;
+		long key2 = 0;
+
+		key1 += keyGeometryShader.encode(hasGeometryShader ? 1 : 0);
+		key1 += keyTessellationShader.encode(hasTessellationShader ? 1 : 0);
 		for (int i = 0; i < VideoEngine.NUM_LIGHTS; i++) {
 			// LightType and LightKind are currently not used as defines in the shaders
-			//key += shaderContext.getLightType(i) << shift;
-			//shift += 2;
-			//key += shaderContext.getLightKind(i) << shift;
-			//shift += 2;
-			key += shaderContext.getLightEnabled(i) << shift;
-			shift++;
+			key1 += keyLightEnabled.encode(i, shaderContext.getLightEnabled(i));
+		}
+		for (int i = 0; i < 3; i++) {
+			key1 += keyMatFlags.encode(i, shaderContext.getMatFlags(i));
 		}
-		key += ((long) shaderContext.getMatFlags(0)) << shift;
-		shift++;
-		key += ((long) shaderContext.getMatFlags(1)) << shift;
-		shift++;
-		key += ((long) shaderContext.getMatFlags(2)) << shift;
-		shift++;
-		key += ((long) shaderContext.getTexShade(0)) << shift;
-		shift += 2;
-		key += ((long) shaderContext.getTexShade(1)) << shift;
-		shift += 2;
-		key += ((long) shaderContext.getTexEnvMode(0)) << shift;
-		shift += 3;
-		key += ((long) shaderContext.getTexEnvMode(1)) << shift;
-		shift++;
-		key += ((long) shaderContext.getCtestFunc()) << shift;
-		shift += 2;
-		key += ((long) shaderContext.getTexMapMode()) << shift;
-		shift += 2;
-		key += ((long) shaderContext.getTexMapProj()) << shift;
-		shift += 2;
-		key += ((long) shaderContext.getVinfoColor()) << shift;
-		shift += 4;
-		key += ((long) shaderContext.getVinfoPosition()) << shift;
-		shift += 2;
-		key += ((long) shaderContext.getVinfoTexture()) << shift;
-		shift += 2;
-		key += ((long) shaderContext.getVinfoNormal()) << shift;
-		shift += 2;
-		key += (shaderContext.getColorDoubling() == 2.f ? 1L : 0L) << shift;
-		shift++;
-		key += ((long) shaderContext.getTexEnable()) << shift;
-		shift++;
-		key += ((long) shaderContext.getLightingEnable()) << shift;
-		shift++;
-		key += ((long) shaderContext.getVinfoTransform2D()) << shift;
-		shift++;
-		key += ((long) shaderContext.getCtestEnable()) << shift;
-		shift++;
-		key += ((long) shaderContext.getLightMode()) << shift;
-		shift++;
-		key += ((long) shaderContext.getTexPixelFormat()) << shift;
-		shift += 4;
-		key += ((long) shaderContext.getNumberBones()) << shift;
-		shift += 4;
-		key += ((long) shaderContext.getClutIndexHint()) << shift;
-		shift += 3;
-		key += ((long) shaderContext.getAlphaTestEnable()) << shift;
-		shift++;
-		key += ((long) shaderContext.getAlphaTestFunc()) << shift;
-		shift += 3;
-		key += ((long) shaderContext.getStencilTestEnable()) << shift;
-		shift++;
-		key += ((long) shaderContext.getStencilFunc()) << shift;
-		shift += 3;
-		key += ((long) shaderContext.getStencilOpFail()) << shift;
-		shift += 3;
-		key += ((long) shaderContext.getStencilOpZFail()) << shift;
-		shift += 3;
-
-		if (shift > Long.SIZE) {
-			log.error(String.format("ShaderProgram: too long key1: %d bits", shift));
+		for (int i = 0; i < 2; i++) {
+			key1 += keyTexShade.encode(i, shaderContext.getTexShade(i));
 		}
-		key1 = key;
-		key = 0;
-		shift = 0;
-
-		key += ((long) shaderContext.getStencilOpZPass()) << shift;
-		shift += 3;                
-		key += ((long) shaderContext.getDepthTestEnable()) << shift;
-		shift++;
-		key += ((long) shaderContext.getDepthFunc()) << shift;
-		shift += 3;                
-		key += (shaderContext.isDepthWriteEnabled() ? 1L : 0L) << shift;
-		shift++;
-		key += ((long) shaderContext.getBlendTestEnable()) << shift;
-		shift++;
-		key += ((long) shaderContext.getBlendEquation()) << shift;
-		shift += 3;
-		key += ((long) shaderContext.getBlendSrc()) << shift;
-		shift += 4;
-		key += ((long) shaderContext.getBlendDst()) << shift;
-		shift += 4;
-		key += ((long) shaderContext.getColorMaskEnable()) << shift;
-		shift++;
-		key += ((long) shaderContext.getCopyRedToAlpha()) << shift;
-		shift++;
-		key += ((long) shaderContext.getFogEnable()) << shift;
-		shift++;
-		key += ((long) shaderContext.getShadeModel()) << shift;
-		shift++;
-		key += ((long) shaderContext.getCurvedSurfaceType()) << shift;
-		shift += 2;
-		key += ((long) shaderContext.getPatchFace()) << shift;
-		shift++;
-
-		if (shift > Long.SIZE) {
-			log.error(String.format("ShaderProgram: too long key2: %d bits", shift));
+		key1 += keyTexEnvMode0.encode(shaderContext.getTexEnvMode(0));
+		key1 += keyTexEnvMode1.encode(shaderContext.getTexEnvMode(1));
+		key1 += keyCtestFunc.encode(shaderContext.getCtestFunc());
+		key1 += keyTexMapMode.encode(shaderContext.getTexMapMode());
+		key1 += keyTexMapProj.encode(shaderContext.getTexMapProj());
+		key1 += keyVinfoColor.encode(shaderContext.getVinfoColor());
+		key1 += keyVinfoPosition.encode(shaderContext.getVinfoPosition());
+		key1 += keyVinfoTexture.encode(shaderContext.getVinfoTexture());
+		key1 += keyVinfoNormal.encode(shaderContext.getVinfoNormal());
+		key1 += keyColorDoubling.encode(shaderContext.getColorDoubling() == 2.f ? 1 : 0);
+		key1 += keyTexEnable.encode(shaderContext.getTexEnable());
+		key1 += keyLightingEnable.encode(shaderContext.getLightingEnable());
+		key1 += keyVinfoTransform2D.encode(shaderContext.getVinfoTransform2D());
+		key1 += keyCtestEnable.encode(shaderContext.getCtestEnable());
+		key1 += keyLightMode.encode(shaderContext.getLightMode());
+		key1 += keyTexPixelFormat.encode(shaderContext.getTexPixelFormat());
+		key1 += keyNumberBones.encode(shaderContext.getNumberBones());
+		key1 += keyClutIndexHint.encode(shaderContext.getClutIndexHint());
+		key1 += keyAlphaTestEnable.encode(shaderContext.getAlphaTestEnable());
+		key1 += keyAlphaTestFunc.encode(shaderContext.getAlphaTestFunc());
+		key1 += keyStencilTestEnable.encode(shaderContext.getStencilTestEnable());
+		key1 += keyStencilFunc.encode(shaderContext.getStencilFunc());
+		key1 += keyStencilOpFail.encode(shaderContext.getStencilOpFail());
+		key1 += keyStencilOpZFail.encode(shaderContext.getStencilOpZFail());
+
+		if (keyStencilOpZFail.getEndShift() > Long.SIZE) {
+			log.error(String.format("ShaderProgram: too long key1: %d bits", keyStencilOpZFail.getEndShift()));
+		}
+
+		key2 += keyStencilOpZPass.encode(shaderContext.getStencilOpZPass());
+		key2 += keyDepthTestEnable.encode(shaderContext.getDepthTestEnable());
+		key2 += keyDepthFunc.encode(shaderContext.getDepthFunc());
+		key2 += keyDepthWriteEnable.encode(shaderContext.isDepthWriteEnabled() ? 1 : 0);
+		key2 += keyBlendTestEnable.encode(shaderContext.getBlendTestEnable());
+		key2 += keyBlendEquation.encode(shaderContext.getBlendEquation());
+		key2 += keyBlendSrc.encode(shaderContext.getBlendSrc());
+		key2 += keyBlendDst.encode(shaderContext.getBlendDst());
+		key2 += keyColorMaskEnable.encode(shaderContext.getColorMaskEnable());
+		key2 += keyCopyRedToAlpha.encode(shaderContext.getCopyRedToAlpha());
+		key2 += keyFogEnable.encode(shaderContext.getFogEnable());
+		key2 += keyShadeModel.encode(shaderContext.getShadeModel());
+		key2 += keyCurvedSurfaceType.encode(shaderContext.getCurvedSurfaceType());
+		key2 += keyPatchFace.encode(shaderContext.getPatchFace());
+
+		if (keyPatchFace.getEndShift() > Long.SIZE) {
+			log.error(String.format("ShaderProgram: too long key2: %d bits", keyPatchFace.getEndShift()));
 		}
-		key2 = key;
 
 		return new ShaderProgramKey(key1, key2);
 	}
@@ -461,6 +566,14 @@ public class ShaderProgram {
 		return key;
 	}
 
+	public boolean hasGeometryShader() {
+		return hasGeometryShader;
+	}
+
+	public boolean hasTessellationShader() {
+		return hasTessellationShader;
+	}
+
 	@Override
 	public String toString() {
 		return String.format("ShaderProgram[%d, geometryShader=%b, tessellationShader=%b, %s]", programId, hasGeometryShader, hasTessellationShader, getDynamicDefines().replace(System.getProperty("line.separator"), ", "));
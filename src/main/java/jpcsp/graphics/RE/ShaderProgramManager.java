@@ -16,21 +16,71 @@ along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
  */
 package jpcsp.graphics.RE;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 
+import org.slf4j.Logger;
+
+import jpcsp.State;
 import jpcsp.graphics.RE.ShaderProgram.ShaderProgramKey;
+import jpcsp.settings.Settings;
+import jpcsp.util.Utilities;
 
 /**
+ * Manager of the dynamic shader programs, one per ShaderProgramKey.
+ *
+ * When the shader program cache is enabled (setting "emu.graphics.shaderProgramCache"),
+ * the keys of the shader programs used by a game are stored per game
+ * and the corresponding shader programs are linked in advance
+ * in the next sessions of the same game, a few ones at each display,
+ * instead of being linked when first used in the middle of a frame.
+ *
  * @author gid15
  *
  */
 public class ShaderProgramManager {
+	private static Logger log = ShaderProgram.log;
+	private static final int FILE_MAGIC = 0x4350534A; // "JSPC"
+	private static final int FILE_VERSION = 1;
+	private static final String FILE_NAME = "ShaderProgramCache.bin";
 	private HashMap<ShaderProgramKey, ShaderProgram> shaderPrograms;
+	private boolean cacheEnabled;
+	// The cache file of the loaded game, captured at load time because
+	// State.discId has already been changed when the previous game is saved
+	private File loadedFile;
+	// The keys of the shader programs used by the loaded game
+	private final LinkedHashSet<ShaderProgramKey> gameKeys = new LinkedHashSet<ShaderProgramKey>();
+	private String loadedDiscId;
+	private boolean modified;
+	// The shader programs loaded from the cache and not yet linked
+	private final LinkedList<ShaderProgram> warmUpShaderPrograms = new LinkedList<ShaderProgram>();
+	// Statistics
+	private long coldLinkCount;
+	private long coldLinkNanos;
+	private long warmLinkCount;
+	private long warmLinkNanos;
 
 	public ShaderProgramManager() {
 		shaderPrograms = new HashMap<ShaderProgramKey, ShaderProgram>();
 	}
 
+	public boolean isCacheEnabled() {
+		return cacheEnabled;
+	}
+
+	public void setCacheEnabled(boolean cacheEnabled) {
+		this.cacheEnabled = cacheEnabled;
+	}
+
 	public ShaderProgram getShaderProgram(ShaderContext shaderContext, boolean hasGeometryShader, boolean hasTessellationShader) {
 		ShaderProgramKey key = ShaderProgram.getKey(shaderContext, hasGeometryShader, hasTessellationShader);
 		ShaderProgram shaderProgram = shaderPrograms.get(key);
@@ -39,6 +89,153 @@ public class ShaderProgramManager {
 			shaderPrograms.put(key, shaderProgram);
 		}
 
+		if (cacheEnabled && gameKeys.add(key)) {
+			modified = true;
+		}
+
 		return shaderProgram;
 	}
+
+	/**
+	 * @return the next shader program to be linked in advance,
+	 *         or null if all the cached shader programs have been linked.
+	 */
+	public ShaderProgram getNextWarmUpShaderProgram() {
+		while (!warmUpShaderPrograms.isEmpty()) {
+			ShaderProgram shaderProgram = warmUpShaderPrograms.removeFirst();
+			// Skip the shader programs already linked when first used
+			if (shaderProgram.getProgramId() == -1) {
+				return shaderProgram;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Record the duration of a shader program link.
+	 *
+	 * @param warmUp  true if the shader program has been linked in advance,
+	 *                false if it has been linked when first used
+	 * @param nanos   the duration of the compilation and link
+	 */
+	public void addLinkDuration(boolean warmUp, long nanos) {
+		if (warmUp) {
+			warmLinkCount++;
+			warmLinkNanos += nanos;
+		} else {
+			coldLinkCount++;
+			coldLinkNanos += nanos;
+		}
+	}
+
+	/**
+	 * Load the shader program keys of the current game
+	 * and queue them for being linked in advance.
+	 * Nothing is done when the current game has already been loaded.
+	 */
+	public void load() {
+		if (!cacheEnabled) {
+			return;
+		}
+
+		String discId = State.discId;
+		if (discId != null && discId.equals(loadedDiscId)) {
+			// Already loaded
+			return;
+		}
+
+		// Save the cache of the previous game
+		save();
+
+		loadedDiscId = null;
+		loadedFile = null;
+		modified = false;
+		gameKeys.clear();
+		warmUpShaderPrograms.clear();
+
+		if (!State.isKnownDiscId(discId)) {
+			return;
+		}
+		loadedDiscId = discId;
+
+		File file = Settings.getInstance().getDiscTmpFile(FILE_NAME);
+		loadedFile = file;
+		if (!file.canRead()) {
+			return;
+		}
+
+		int count = 0;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+				log.warn(String.format("Ignoring incompatible shader program cache %s", file));
+				return;
+			}
+
+			int numberKeys = in.readInt();
+			for (int i = 0; i < numberKeys; i++) {
+				ShaderProgramKey key = new ShaderProgramKey(in.readLong(), in.readLong());
+				if (gameKeys.add(key)) {
+					ShaderProgram shaderProgram = shaderPrograms.get(key);
+					if (shaderProgram == null) {
+						shaderProgram = new ShaderProgram(key);
+						shaderPrograms.put(key, shaderProgram);
+					}
+					// Shader programs already linked for a previous game are reused
+					if (shaderProgram.getProgramId() == -1) {
+						warmUpShaderPrograms.add(shaderProgram);
+					}
+					count++;
+				}
+			}
+		} catch (IOException e) {
+			log.error(String.format("Error while reading the shader program cache %s", file), e);
+		} finally {
+			Utilities.close(in);
+		}
+
+		log.info(String.format("Loaded %d shader programs from cache %s", count, file));
+	}
+
+	/**
+	 * Write the shader program keys of the loaded game, if new keys have been used.
+	 */
+	public void save() {
+		if (coldLinkCount > 0 || warmLinkCount > 0) {
+			log.info(String.valueOf(this));
+		}
+
+		if (loadedFile == null || !modified) {
+			return;
+		}
+
+		File file = loadedFile;
+		file.getParentFile().mkdirs();
+
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeInt(gameKeys.size());
+			for (ShaderProgramKey key : gameKeys) {
+				out.writeLong(key.getKey1());
+				out.writeLong(key.getKey2());
+			}
+			modified = false;
+		} catch (IOException e) {
+			log.error(String.format("Error while writing the shader program cache %s", file), e);
+		} finally {
+			Utilities.close(out);
+		}
+
+		log.info(String.format("Saved %d shader programs to cache %s", gameKeys.size(), file));
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Shader program cache: %d cold links (%.1fms), %d warm links (%.1fms), %d pending warm-up", coldLinkCount, coldLinkNanos / 1000000.0, warmLinkCount, warmLinkNanos / 1000000.0, warmUpShaderPrograms.size());
+	}
 }
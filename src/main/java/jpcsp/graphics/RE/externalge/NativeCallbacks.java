@@ -121,6 +121,7 @@ public class NativeCallbacks {
 			IntBuffer destination = IntBuffer.wrap(RuntimeContext.getMemoryInt(), (address & Memory.addressMask) >> 2, length >> 2);
 			source.order(ByteOrder.nativeOrder());
 			destination.put(source.asIntBuffer());
+			RuntimeContext.memory.setDirty(address, length);
 		} else {
 			getMemory().copyToMemory(address, source, length);
 		}
@@ -144,6 +145,7 @@ public class NativeCallbacks {
 				destination.position(destinationOffset + offset);
 				destination.put(sourceInt);
 			}
+			RuntimeContext.memory.setDirty(address, length);
 		} else {
 			Memory mem = getMemory();
 			for (int y = 0; y < height; y++) {
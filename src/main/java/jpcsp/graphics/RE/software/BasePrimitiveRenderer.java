@@ -79,6 +79,7 @@ public abstract class BasePrimitiveRenderer extends BaseRenderer {
 		needDepthWrite = from.needDepthWrite;
 		needTextureUV = from.needTextureUV;
 		simpleTextureUV = from.simpleTextureUV;
+		swapTextureUV = from.swapTextureUV;
 		needTextureWrapU = from.needTextureWrapU;
 		needTextureWrapV = from.needTextureWrapV;
 		sameVertexColor = from.sameVertexColor;
@@ -669,6 +670,58 @@ public abstract class BasePrimitiveRenderer extends BaseRenderer {
         depthWriterSkipEOL = zbw - prim.destinationWidth;
 	}
 
+	/**
+	 * Restrict the rendering of the prepared primitive to the given area,
+	 * e.g. to render the primitive tile by tile (see RendererExecutor).
+	 * This method has to be called after prepare() on a duplicated renderer.
+	 *
+	 * @param x1    the left of the area (included)
+	 * @param y1    the top of the area (included)
+	 * @param x2    the right of the area (included)
+	 * @param y2    the bottom of the area (included)
+	 * @return      true if something has to be rendered inside the area
+	 *              false if the primitive is not overlapping with the area
+	 */
+	public boolean clip(int x1, int y1, int x2, int y2) {
+		if (prim.pxMax < x1 || prim.pxMin > x2 || prim.pyMax < y1 || prim.pyMin > y2) {
+			return false;
+		}
+
+		// Update uStart/vStart the same way as for the scissoring
+		boolean simpleUV = needTextureUV && simpleTextureUV;
+		int deltaX = x1 - prim.pxMin;
+		if (deltaX > 0) {
+			if (simpleUV) {
+				if (swapTextureUV) {
+					prim.vStart += prim.vStep * deltaX;
+				} else {
+					prim.uStart += prim.uStep * deltaX;
+				}
+			}
+			prim.pxMin = x1;
+		}
+		int deltaY = y1 - prim.pyMin;
+		if (deltaY > 0) {
+			if (simpleUV) {
+				if (swapTextureUV) {
+					prim.uStart += prim.uStep * deltaY;
+				} else {
+					prim.vStart += prim.vStep * deltaY;
+				}
+			}
+			prim.pyMin = y1;
+		}
+		prim.pxMax = Math.min(prim.pxMax, x2);
+		prim.pyMax = Math.min(prim.pyMax, y2);
+		prim.destinationWidth = prim.pxMax - prim.pxMin + 1;
+		prim.destinationHeight = prim.pyMax - prim.pyMin + 1;
+
+		// The writers are starting at (pxMin, pyMin)
+		prepareWriters();
+
+		return true;
+	}
+
 	protected boolean isVisible() {
     	if (!transform2D) {
     		// Each vertex screen coordinates (without offset) has to be in the range:
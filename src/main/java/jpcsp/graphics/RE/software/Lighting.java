@@ -122,6 +122,42 @@ public final class Lighting {
 		this.hasSomeNonDirectionalLight = hasSomeNonDirectionalLight;
 	}
 
+	/**
+	 * Create a copy of a Lighting, using the same lighting parameters
+	 * but its own working variables, so that both can be used in parallel
+	 * by different renderer threads.
+	 *
+	 * @param from    the Lighting to be copied
+	 */
+	public Lighting(Lighting from) {
+		materialEmission = from.materialEmission;
+		ambient = from.ambient;
+		ambientAlpha = from.ambientAlpha;
+		shininess = from.shininess;
+		separateSpecularColor = from.separateSpecularColor;
+		hasNormal = from.hasNormal;
+		someLightsEnabled = from.someLightsEnabled;
+		hasSomeNonDirectionalLight = from.hasSomeNonDirectionalLight;
+
+		System.arraycopy(from.lightEnabled, 0, lightEnabled, 0, NUM_LIGHTS);
+		System.arraycopy(from.lightKind, 0, lightKind, 0, NUM_LIGHTS);
+		System.arraycopy(from.lightAmbientColor, 0, lightAmbientColor, 0, NUM_LIGHTS);
+		System.arraycopy(from.lightDiffuseColor, 0, lightDiffuseColor, 0, NUM_LIGHTS);
+		System.arraycopy(from.lightSpecularColor, 0, lightSpecularColor, 0, NUM_LIGHTS);
+		System.arraycopy(from.constantAttenuation, 0, constantAttenuation, 0, NUM_LIGHTS);
+		System.arraycopy(from.linearAttenuation, 0, linearAttenuation, 0, NUM_LIGHTS);
+		System.arraycopy(from.quadraticAttenuation, 0, quadraticAttenuation, 0, NUM_LIGHTS);
+		System.arraycopy(from.spotCutoff, 0, spotCutoff, 0, NUM_LIGHTS);
+		System.arraycopy(from.spotCosCutoff, 0, spotCosCutoff, 0, NUM_LIGHTS);
+		System.arraycopy(from.spotExponent, 0, spotExponent, 0, NUM_LIGHTS);
+		System.arraycopy(from.isSpotLight, 0, isSpotLight, 0, NUM_LIGHTS);
+		System.arraycopy(from.isDirectionalLight, 0, isDirectionalLight, 0, NUM_LIGHTS);
+		for (int l = 0; l < NUM_LIGHTS; l++) {
+			System.arraycopy(from.ecLightPosition[l], 0, ecLightPosition[l], 0, ecLightPosition[l].length);
+			System.arraycopy(from.ecSpotDirection[l], 0, ecSpotDirection[l], 0, ecSpotDirection[l].length);
+		}
+	}
+
 	/**
 	 * This is the equivalent of the vertex shader implementation:
 	 *     shader.vert: ComputeLight
@@ -19,20 +19,39 @@ import static jpcsp.util.Utilities.sleep;
 
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import jpcsp.graphics.VideoEngine;
+import jpcsp.settings.Settings;
+import jpcsp.util.DurationStatistics;
 
 /**
+ * Execution of the renderers in background threads.
+ *
+ * When using more than one thread, the frame buffer is split into screen tiles.
+ * Each tile is assigned to one thread and each primitive is clipped
+ * to the tiles it is overlapping. A thread is rendering its tiles
+ * in the order the primitives have been submitted, so that the order
+ * of the primitives is preserved inside each tile.
+ *
  * @author gid15
  *
  */
 public class RendererExecutor {
-	private static final int numberThreads = 1;
+	// The tiles are 64x64 pixels.
+	// The tile width has to be a multiple of 2 pixels so that
+	// 2 tiles are never sharing the same 32-bit word in a 16-bit frame buffer
+	// or in the depth buffer.
+	private static final int tileWidthShift = 6;
+	private static final int tileHeightShift = 6;
 	private static RendererExecutor instance;
-	private final LinkedBlockingQueue<IRenderer> renderersQueue = new LinkedBlockingQueue<IRenderer>();
+	private final ThreadRenderer[] threads;
+	private final boolean tileBinning;
+	private final AtomicInteger numberPendingRenderers = new AtomicInteger();
 	private volatile boolean ended;
-	private volatile int numberThreadsRendering;
-	private final Object numberThreadsRenderingLock = new Object();
+	// Statistics
+	private long numberBinnedRenderers;
+	private long numberTileRenderers;
 
 	public static RendererExecutor getInstance() {
 		if (instance == null) {
@@ -43,44 +62,175 @@ public class RendererExecutor {
 	}
 
 	private RendererExecutor() {
+		int numberThreads = Settings.getInstance().readInt("emu.graphics.softwareRendererThreads", 1);
+		if (numberThreads <= 0) {
+			numberThreads = Runtime.getRuntime().availableProcessors();
+		}
+		// The rendering statistics are not thread-safe
+		if (DurationStatistics.collectStatistics) {
+			numberThreads = 1;
+		}
+		tileBinning = numberThreads > 1;
+
+		threads = new ThreadRenderer[numberThreads];
 		for (int i = 0; i < numberThreads; i++) {
-			Thread thread = new ThreadRenderer();
+			ThreadRenderer thread = new ThreadRenderer();
 			thread.setName(String.format("Thread SoftwareRenderer #%d", i + 1));
 			thread.setDaemon(true);
+			threads[i] = thread;
 			thread.start();
 		}
+
+		if (tileBinning) {
+			VideoEngine.log.info(String.format("Software renderer using %d threads with %dx%d tiles", numberThreads, 1 << tileWidthShift, 1 << tileHeightShift));
+		}
 	}
 
 	public static void exit() {
 		if (instance != null) {
 			instance.ended = true;
+
+			if (instance.numberBinnedRenderers > 0) {
+				VideoEngine.log.info(String.format("Software renderer tile binning: %d primitives, %d tiles rendered, %.1f tiles/primitive", instance.numberBinnedRenderers, instance.numberTileRenderers, instance.numberTileRenderers / (double) instance.numberBinnedRenderers));
+			}
 		}
 	}
 
 	public void render(IRenderer renderer) {
-		if (numberThreads > 0 && !VideoEngine.log.isTraceEnabled()) {
+		if (VideoEngine.log.isTraceEnabled()) {
+			// Capture is active, render immediately
+			waitForRenderingCompletion();
+			renderImmediately(renderer);
+		} else if (!tileBinning) {
 			// Queue for rendering in a ThreadRenderer thread
-			renderer = renderer.duplicate();
-			renderersQueue.add(renderer);
+			queue(threads[0], renderer.duplicate());
+		} else if (renderer instanceof BasePrimitiveRenderer) {
+			bin((BasePrimitiveRenderer) renderer);
 		} else {
-			// Threads are disabled or capture is active, render immediately
-			try {
-				renderer.render();
-			} catch (Exception e) {
-				VideoEngine.log.error("Error while rendering", e);
+			// This renderer cannot be split into tiles,
+			// render it after all the previous primitives.
+			waitForRenderingCompletion();
+			renderImmediately(renderer);
+		}
+	}
+
+	private void renderImmediately(IRenderer renderer) {
+		try {
+			renderer.render();
+		} catch (Exception e) {
+			VideoEngine.log.error("Error while rendering", e);
+		}
+	}
+
+	private void queue(ThreadRenderer thread, IRenderer renderer) {
+		numberPendingRenderers.incrementAndGet();
+		thread.renderersQueue.add(renderer);
+	}
+
+	private ThreadRenderer getThread(int tileX, int tileY) {
+		// Interleave the tiles between the threads
+		return threads[Math.floorMod(tileX + tileY, threads.length)];
+	}
+
+	/**
+	 * Split the primitive into the tiles it is overlapping.
+	 */
+	private void bin(BasePrimitiveRenderer renderer) {
+		final PrimitiveState prim = renderer.prim;
+		int tileX1 = prim.pxMin >> tileWidthShift;
+		int tileX2 = prim.pxMax >> tileWidthShift;
+		int tileY1 = prim.pyMin >> tileHeightShift;
+		int tileY2 = prim.pyMax >> tileHeightShift;
+
+		numberBinnedRenderers++;
+		if (tileX1 == tileX2 && tileY1 == tileY2) {
+			// The primitive is inside a single tile, no clipping is required
+			numberTileRenderers++;
+			queue(getThread(tileX1, tileY1), renderer.duplicate());
+			return;
+		}
+
+		boolean isTriangle = renderer instanceof TriangleRenderer;
+		for (int tileY = tileY1; tileY <= tileY2; tileY++) {
+			int y1 = tileY << tileHeightShift;
+			int y2 = y1 + (1 << tileHeightShift) - 1;
+			for (int tileX = tileX1; tileX <= tileX2; tileX++) {
+				int x1 = tileX << tileWidthShift;
+				int x2 = x1 + (1 << tileWidthShift) - 1;
+				if (isTriangle && !isTriangleOverlapping(prim, x1, y1, x2, y2)) {
+					continue;
+				}
+
+				BasePrimitiveRenderer tileRenderer = (BasePrimitiveRenderer) renderer.duplicate();
+				if (tileRenderer.clip(x1, y1, x2, y2)) {
+					numberTileRenderers++;
+					queue(getThread(tileX, tileY), tileRenderer);
+				}
 			}
 		}
 	}
 
+	/**
+	 * Conservative test if a triangle could be overlapping with an area:
+	 * the area is not overlapping when it is completely outside one edge of the triangle.
+	 */
+	private static boolean isTriangleOverlapping(PrimitiveState prim, int x1, int y1, int x2, int y2) {
+		// Extend the area by 1 pixel to take care of the rounding
+		return !isOutsideEdge(prim.p1x, prim.p1y, prim.p2x, prim.p2y, prim.p3x, prim.p3y, x1 - 1, y1 - 1, x2 + 1, y2 + 1) &&
+		       !isOutsideEdge(prim.p2x, prim.p2y, prim.p3x, prim.p3y, prim.p1x, prim.p1y, x1 - 1, y1 - 1, x2 + 1, y2 + 1) &&
+		       !isOutsideEdge(prim.p3x, prim.p3y, prim.p1x, prim.p1y, prim.p2x, prim.p2y, x1 - 1, y1 - 1, x2 + 1, y2 + 1);
+	}
+
+	private static float edgeFunction(float ax, float ay, float bx, float by, float x, float y) {
+		return (bx - ax) * (y - ay) - (by - ay) * (x - ax);
+	}
+
+	/**
+	 * @return true if the 4 corners of the area are strictly on the other side
+	 *         of the edge (a,b) than the third vertex c.
+	 */
+	private static boolean isOutsideEdge(float ax, float ay, float bx, float by, float cx, float cy, int x1, int y1, int x2, int y2) {
+		float side = edgeFunction(ax, ay, bx, by, cx, cy);
+		if (side == 0f) {
+			// Degenerated triangle
+			return false;
+		}
+
+		if (side > 0f) {
+			return edgeFunction(ax, ay, bx, by, x1, y1) < 0f &&
+			       edgeFunction(ax, ay, bx, by, x2, y1) < 0f &&
+			       edgeFunction(ax, ay, bx, by, x1, y2) < 0f &&
+			       edgeFunction(ax, ay, bx, by, x2, y2) < 0f;
+		}
+
+		return edgeFunction(ax, ay, bx, by, x1, y1) > 0f &&
+		       edgeFunction(ax, ay, bx, by, x2, y1) > 0f &&
+		       edgeFunction(ax, ay, bx, by, x1, y2) > 0f &&
+		       edgeFunction(ax, ay, bx, by, x2, y2) > 0f;
+	}
+
 	public void waitForRenderingCompletion() {
-		if (numberThreads > 0) {
-			while (!renderersQueue.isEmpty() || numberThreadsRendering > 0) {
-				sleep(1, 0);
-			}
+		while (numberPendingRenderers.get() > 0) {
+			sleep(1, 0);
 		}
 	}
 
 	private class ThreadRenderer extends Thread {
+		private final LinkedBlockingQueue<IRenderer> renderersQueue = new LinkedBlockingQueue<IRenderer>();
+		// The Lighting is not thread-safe, each thread is using its own copy
+		private Lighting lighting;
+		private Lighting lightingCopy;
+
+		private void prepareLighting(BasePrimitiveRenderer renderer) {
+			if (renderer.lighting != null) {
+				if (renderer.lighting != lighting) {
+					lighting = renderer.lighting;
+					lightingCopy = new Lighting(lighting);
+				}
+				renderer.lighting = lightingCopy;
+			}
+		}
+
 		@Override
 		public void run() {
 			while (!ended) {
@@ -92,19 +242,13 @@ public class RendererExecutor {
 				}
 
 				if (renderer != null) {
-					synchronized (numberThreadsRenderingLock) {
-						numberThreadsRendering++;
+					if (tileBinning && renderer instanceof BasePrimitiveRenderer) {
+						prepareLighting((BasePrimitiveRenderer) renderer);
 					}
 
-					try {
-						renderer.render();
-					} catch (Exception e) {
-						VideoEngine.log.error("Error while rendering", e);
-					}
+					renderImmediately(renderer);
 
-					synchronized (numberThreadsRenderingLock) {
-						numberThreadsRendering--;
-					}
+					numberPendingRenderers.decrementAndGet();
 				}
 			}
 		}
@@ -64,6 +64,10 @@ public class VertexCache {
 		return Integer.valueOf(vertexInfo.ptr_vertex + vertexInfo.ptr_index);
 	}
 
+	public CacheStatistics getStatistics() {
+		return statistics;
+	}
+
 	public boolean hasVertex(VertexInfo vertexInfo) {
 		return cache.containsKey(getKey(vertexInfo));
 	}
@@ -21,6 +21,7 @@ import java.nio.ByteOrder;
 
 import jpcsp.Memory;
 import jpcsp.graphics.RE.IRenderingEngine;
+import jpcsp.memory.DirtyPageTracker;
 import jpcsp.memory.IMemoryReader;
 import jpcsp.memory.MemoryReader;
 
@@ -91,6 +92,8 @@ public class VertexInfo {
     private float[][] cachedBoneMatrix;
     private ByteBuffer cachedBuffer;
     private VertexCache vertexCache;
+    // Generation of the dirty page tracking when the cachedIndices and cachedVertices have been read
+    private long cachedGeneration;
 
     public VertexInfo() {
     }
@@ -118,6 +121,7 @@ public class VertexInfo {
         morph_weight = vertexInfo.morph_weight;
         cachedIndices = vertexInfo.cachedIndices;
         cachedVertices = vertexInfo.cachedVertices;
+        cachedGeneration = vertexInfo.cachedGeneration;
         vertexCache = vertexInfo.vertexCache;
     }
 
@@ -229,6 +233,34 @@ public class VertexInfo {
     public void setDirty() {
         cachedIndices = null;
         cachedVertices = null;
+        cachedGeneration = 0L;
+    }
+
+    /**
+     * Check if the indices and vertices memory have not been written since
+     * they have been read, using the dirty page tracking.
+     *
+     * @return true if the memory is known to be unchanged, i.e. no need to read again the memory
+     *         false if the memory could have been changed
+     */
+    private boolean isMemoryUnchanged() {
+        DirtyPageTracker dirtyPageTracker = Memory.getInstance().getDirtyPageTracker();
+        if (dirtyPageTracker == null) {
+            return false;
+        }
+
+        if (ptr_index != 0 && index != 0) {
+            if (cachedIndices == null || dirtyPageTracker.isDirty(ptr_index, cachedIndices.length * size_mapping[index], cachedGeneration)) {
+                return false;
+            }
+        }
+        if (ptr_vertex != 0) {
+            if (cachedVertices == null || dirtyPageTracker.isDirty(ptr_vertex, cachedVertices.length << 2, cachedGeneration)) {
+                return false;
+            }
+        }
+
+        return true;
     }
 
     private boolean equals(int[] a, int[] b) {
@@ -259,12 +291,16 @@ public class VertexInfo {
         // Do not compare the vertices and indices of the new vertex if it has already
         // been checked during this display cycle
         if (!vertexCache.vertexAlreadyChecked(vertexInfo)) {
-            vertexInfo.readForCache(numberOfVertex);
-            if (!equals(cachedVertices, vertexInfo.cachedVertices)) {
-                return false;
-            }
-            if (!equals(cachedIndices, vertexInfo.cachedIndices)) {
-                return false;
+            // Do not read again the memory if it has not been written in the meantime
+            if (!isMemoryUnchanged()) {
+                vertexInfo.readForCache(numberOfVertex);
+                if (!equals(cachedVertices, vertexInfo.cachedVertices)) {
+                    return false;
+                }
+                if (!equals(cachedIndices, vertexInfo.cachedIndices)) {
+                    return false;
+                }
+                cachedGeneration = vertexInfo.cachedGeneration;
             }
             vertexCache.setVertexAlreadyChecked(vertexInfo);
         } else {
@@ -383,6 +419,7 @@ public class VertexInfo {
         cachedBuffer = null;
         cachedIndices = null;
         cachedVertices = null;
+        cachedGeneration = 0L;
     }
 
     private void readForCache(int numberOfVertex) {
@@ -390,6 +427,9 @@ public class VertexInfo {
             return;
         }
 
+        DirtyPageTracker dirtyPageTracker = Memory.getInstance().getDirtyPageTracker();
+        cachedGeneration = dirtyPageTracker != null ? dirtyPageTracker.snapshot() : 0L;
+
         int vertexArraySize;
         if (ptr_index != 0 && index != 0) {
             IMemoryReader memoryReader = null;
@@ -106,6 +106,7 @@ import jpcsp.graphics.textures.GETexture;
 import jpcsp.graphics.textures.GETextureManager;
 import jpcsp.graphics.textures.Texture;
 import jpcsp.graphics.textures.TextureCache;
+import jpcsp.graphics.textures.TextureDecoder;
 import jpcsp.hardware.Screen;
 import jpcsp.memory.IMemoryReader;
 import jpcsp.memory.IMemoryWriter;
@@ -259,6 +260,10 @@ public class VideoEngine {
     private DurationStatistics textureCacheLookupStatistics = new CpuDurationStatistics("Lookup in TextureCache");
     private DurationStatistics vertexCacheLookupStatistics = new CpuDurationStatistics("Lookup in VertexCache");
     private DurationStatistics[] commandStatistics;
+    // Per command timing in nanoseconds, e.g. for benchmarking GE captures
+    private boolean commandTimingEnabled;
+    private final long[] commandTimingNanos = new long[256];
+    private final long[] commandTimingCounts = new long[256];
     private int errorCount;
     private static final int maxErrorCount = 5; // Abort list processing when detecting more errors
     private boolean isLogTraceEnabled;
@@ -348,6 +353,9 @@ public class VideoEngine {
     private int maxTextureSizeLog2 = 9;
     private boolean doubleTexture2DCoords = false;
     private boolean hideEffects = false;
+    private boolean useGeListCompiler = false;
+    // Set when the next command could be the start of a compiled GE list segment
+    private boolean geListSegmentCandidate;
     // VideoEngine Thread
     private VideoEngineThread videoEngineThread;
     // For LLE implementation
@@ -456,6 +464,14 @@ public class VideoEngine {
         }
     }
 
+    private class UseGeListCompilerSettingsListener extends AbstractBoolSettingsListener {
+
+        @Override
+        protected void settingsValueChanged(boolean value) {
+            setUseGeListCompiler(value);
+        }
+    }
+
     private static void log(String msg) {
         log.debug(msg);
     }
@@ -679,17 +695,39 @@ public class VideoEngine {
     }
 
     public void start() {
+        start(Modules.sceDisplayModule.getRenderingEngine());
+
+        if (videoEngineThread == null && VideoEngineThread.isActive()) {
+        	videoEngineThread = new VideoEngineThread();
+        	videoEngineThread.setDaemon(true);
+        	videoEngineThread.setName("Video Engine Thread");
+        	videoEngineThread.start();
+        }
+    }
+
+    /**
+     * Start the VideoEngine using the given rendering engine,
+     * e.g. to replay GE captures without display.
+     * The lists are then executed by the caller of update(),
+     * the Video Engine Thread is not started.
+     * Without display (java.awt.headless), sceDisplay has no canvas
+     * and is only providing the frame buffer settings.
+     *
+     * @param re the rendering engine to be used for processing the GE lists
+     */
+    public void start(IRenderingEngine re) {
         Settings.getInstance().registerSettingsListener(name, "emu.useVertexCache", new UseVertexCacheSettingsListerner());
         Settings.getInstance().registerSettingsListener(name, "emu.graphics.filters.anisotropic", new UseTextureAnisotropicFilterSettingsListerner());
         Settings.getInstance().registerSettingsListener(name, "emu.plugins.xbrz", new UsexBRZFilterSettingsListerner());
         Settings.getInstance().registerSettingsListener(name, "emu.disableoptimizedvertexinforeading", new DisableOptimizedVertexInfoReadingListener());
         Settings.getInstance().registerSettingsListener(name, "emu.hideEffects", new HideEffectsSettingsListener());
+        Settings.getInstance().registerSettingsListener(name, "emu.graphics.compileGeLists", new UseGeListCompilerSettingsListener());
 
         setMaxTextureSize(Settings.getInstance().readInt("maxTextureSize", 512));
         setDoubleTexture2DCoords(Settings.getInstance().readBool("doubleTexture2DCoords"));
 
         display = Modules.sceDisplayModule;
-        re = display.getRenderingEngine();
+        this.re = re;
         re.setGeContext(context);
         bufferManager = re.getBufferManager();
 
@@ -722,13 +760,6 @@ public class VideoEngine {
         listCount = 0;
 
         cachedInstructions = new HashMap<Integer, int[]>();
-
-        if (videoEngineThread == null && VideoEngineThread.isActive()) {
-        	videoEngineThread = new VideoEngineThread();
-        	videoEngineThread.setDaemon(true);
-        	videoEngineThread.setName("Video Engine Thread");
-        	videoEngineThread.start();
-        }
     }
 
     public IRenderingEngine getRenderingEngine() {
@@ -775,6 +806,44 @@ public class VideoEngine {
         }
     }
 
+    /**
+     * Enable the timing of each executed command.
+     * Unlike the commandStatistics, the timing is available without
+     * enabling DurationStatistics.collectStatistics and has a nanosecond resolution.
+     *
+     * @param commandTimingEnabled true to enable the command timing
+     */
+    public void setCommandTimingEnabled(boolean commandTimingEnabled) {
+        this.commandTimingEnabled = commandTimingEnabled;
+    }
+
+    public boolean isCommandTimingEnabled() {
+        return commandTimingEnabled;
+    }
+
+    public void resetCommandTiming() {
+        Arrays.fill(commandTimingNanos, 0L);
+        Arrays.fill(commandTimingCounts, 0L);
+    }
+
+    /**
+     * @param command the GE command
+     * @return        the cumulated execution time in nanoseconds of the command
+     *                since the last resetCommandTiming()
+     */
+    public long getCommandTimingNanos(int command) {
+        return commandTimingNanos[command];
+    }
+
+    /**
+     * @param command the GE command
+     * @return        the number of executions of the command
+     *                since the last resetCommandTiming()
+     */
+    public long getCommandTimingCount(int command) {
+        return commandTimingCounts[command];
+    }
+
     public static DurationStatistics getStatistics() {
         if (instance == null) {
             return null;
@@ -1232,6 +1301,10 @@ public class VideoEngine {
         }
 
         waitForSyncCount = 0;
+        // The compiled GE list segments are skipping the logging of the redundant commands
+        // and are not used while recording
+        boolean executeCompiledSegments = useGeListCompiler && !lleRun && !isLogDebugEnabled && !State.dumpGeNextFrame && !State.recordGeFrames;
+        geListSegmentCandidate = true;
         while (!listHasEnded && (!Emulator.pause || State.dumpGeNextFrame || State.recordGeFrames)) {
             if (currentList.isPaused() || currentList.isEnded()) {
                 if (lleRun || executeListPaused()) {
@@ -1239,9 +1312,19 @@ public class VideoEngine {
                 }
             } else if (currentList.isStallReached()) {
                 executeListStalled();
+                geListSegmentCandidate = true;
+            } else if (executeCompiledSegments && geListSegmentCandidate && GeListCompiler.getInstance().execute(this, currentList, currentListCMDValues)) {
+                // The next command could start another segment,
+                // e.g. when the maximum segment length has been reached
+                geListSegmentCandidate = true;
             } else {
                 int ins = currentList.readNextInstruction();
                 executeCommand(ins);
+                if (executeCompiledSegments) {
+                    // Only search for a segment after a command not being part of a segment,
+                    // i.e. not after each command
+                    geListSegmentCandidate = !GeListSegment.isSegmentCommand(command);
+                }
             }
         }
 
@@ -1447,6 +1530,19 @@ public class VideoEngine {
         int bxc = rowWidth / 16;
         int byc = Math.max((context.texture_height[level] + 7) / 8, 1);
 
+        if (!TextureDecoder.getInstance().unswizzle(mem, texaddr, rowWidth, byc, tmp_texture_buffer32)) {
+            unswizzleTextureFromMemoryReader(texaddr, rowWidth, pitch, bxc, byc);
+        }
+
+        if (State.recordGeFrames) {
+            log.debug("Capture unswizzleTextureFromMemory");
+            CaptureManager.captureRAM(mem, texaddr, rowWidth * context.texture_height[level]);
+        }
+
+        return IntBuffer.wrap(tmp_texture_buffer32);
+    }
+
+    private void unswizzleTextureFromMemoryReader(int texaddr, int rowWidth, int pitch, int bxc, int byc) {
         int ydest = 0;
 
         IMemoryReader memoryReader = MemoryReader.getMemoryReader(mem, texaddr, 4);
@@ -1499,13 +1595,6 @@ public class VideoEngine {
                 }
             }
         }
-
-        if (State.recordGeFrames) {
-            log.debug("Capture unswizzleTextureFromMemory");
-            CaptureManager.captureRAM(mem, texaddr, rowWidth * context.texture_height[level]);
-        }
-
-        return IntBuffer.wrap(tmp_texture_buffer32);
     }
 
     private static String getArgumentLog(int normalArgument) {
@@ -1539,6 +1628,8 @@ public class VideoEngine {
         if (DurationStatistics.collectStatistics) {
             commandStatistics[command].start();
         }
+        final int timedCommand = command;
+        final long commandStartNanos = commandTimingEnabled ? System.nanoTime() : 0L;
         switch (command) {
             case NOP:
                 executeCommandNOP();
@@ -2089,6 +2180,10 @@ public class VideoEngine {
         if (DurationStatistics.collectStatistics) {
             commandStatistics[command].end();
         }
+        if (commandTimingEnabled) {
+            commandTimingNanos[timedCommand] += System.nanoTime() - commandStartNanos;
+            commandTimingCounts[timedCommand]++;
+        }
     }
 
     private void executeCommandUNKNOWN() {
@@ -6797,12 +6892,16 @@ public class VideoEngine {
                 }
 
                 short[] clut = readClut16(level);
+                TextureDecoder textureDecoder = TextureDecoder.getInstance();
 
                 if (!context.texture_swizzle) {
-                    IMemoryReader memoryReader = MemoryReader.getMemoryReader(mem, texaddr, length * bytesPerIndex, bytesPerIndex);
-                    for (int i = 0; i < length; i++) {
-                        int index = memoryReader.readNext();
-                        tmp_texture_buffer16[i] = clut[getClutIndex(index)];
+                    int[] memoryInt = TextureDecoder.getMemoryInt(mem, texaddr, length * bytesPerIndex);
+                    if (memoryInt == null || !textureDecoder.applyClut(memoryInt, mem.getMemoryIntOffset(texaddr), bytesPerIndex, length, clut, context.tex_clut_shift, context.tex_clut_mask, context.tex_clut_start, tmp_texture_buffer16)) {
+                        IMemoryReader memoryReader = MemoryReader.getMemoryReader(mem, texaddr, length * bytesPerIndex, bytesPerIndex);
+                        for (int i = 0; i < length; i++) {
+                            int index = memoryReader.readNext();
+                            tmp_texture_buffer16[i] = clut[getClutIndex(index)];
+                        }
                     }
                     buffer = ShortBuffer.wrap(tmp_texture_buffer16);
 
@@ -6812,6 +6911,10 @@ public class VideoEngine {
                     }
                 } else {
                     unswizzleTextureFromMemory(texaddr, bytesPerIndex, level, textureBufferWidthInPixels);
+                    if (textureDecoder.applyClut(tmp_texture_buffer32, 0, bytesPerIndex, length, clut, context.tex_clut_shift, context.tex_clut_mask, context.tex_clut_start, tmp_texture_buffer16)) {
+                        buffer = ShortBuffer.wrap(tmp_texture_buffer16);
+                        break;
+                    }
                     switch (bytesPerIndex) {
                         case 1: {
                             for (int i = 0, j = 0; i < length; i += 4, j++) {
@@ -6855,12 +6958,16 @@ public class VideoEngine {
                 }
 
                 int[] clut = readClut32(level);
+                TextureDecoder textureDecoder = TextureDecoder.getInstance();
 
                 if (!context.texture_swizzle) {
-                    IMemoryReader memoryReader = MemoryReader.getMemoryReader(mem, texaddr, length * bytesPerIndex, bytesPerIndex);
-                    for (int i = 0; i < length; i++) {
-                        int index = memoryReader.readNext();
-                        tmp_texture_buffer32[i] = clut[getClutIndex(index)];
+                    int[] memoryInt = TextureDecoder.getMemoryInt(mem, texaddr, length * bytesPerIndex);
+                    if (memoryInt == null || !textureDecoder.applyClut(memoryInt, mem.getMemoryIntOffset(texaddr), bytesPerIndex, length, clut, context.tex_clut_shift, context.tex_clut_mask, context.tex_clut_start, tmp_texture_buffer32)) {
+                        IMemoryReader memoryReader = MemoryReader.getMemoryReader(mem, texaddr, length * bytesPerIndex, bytesPerIndex);
+                        for (int i = 0; i < length; i++) {
+                            int index = memoryReader.readNext();
+                            tmp_texture_buffer32[i] = clut[getClutIndex(index)];
+                        }
                     }
                     buffer = IntBuffer.wrap(tmp_texture_buffer32);
 
@@ -6870,6 +6977,10 @@ public class VideoEngine {
                     }
                 } else {
                     unswizzleTextureFromMemory(texaddr, bytesPerIndex, level, textureBufferWidthInPixels);
+                    if (textureDecoder.applyClut(tmp_texture_buffer32, 0, bytesPerIndex, length, clut, context.tex_clut_shift, context.tex_clut_mask, context.tex_clut_start, tmp_texture_buffer32)) {
+                        buffer = IntBuffer.wrap(tmp_texture_buffer32);
+                        break;
+                    }
                     switch (bytesPerIndex) {
                         case 1: {
                             for (int i = length - 4, j = (length / 4) - 1; i >= 0; i -= 4, j--) {
@@ -8317,6 +8428,20 @@ public class VideoEngine {
     	return hideEffects;
     }
 
+    public void setUseGeListCompiler(boolean useGeListCompiler) {
+    	if (this.useGeListCompiler != useGeListCompiler) {
+    		if (isLogInfoEnabled) {
+    			log.info(String.format("setUseGeListCompiler %b", useGeListCompiler));
+    		}
+    		this.useGeListCompiler = useGeListCompiler;
+    		GeListCompiler.getInstance().reset();
+    	}
+    }
+
+    public boolean isUseGeListCompiler() {
+    	return useGeListCompiler;
+    }
+
     public void addCachedInstructions(int address, int[] instructions) {
         cachedInstructions.put(address, instructions);
     }
@@ -184,6 +184,11 @@ public class CaptureManager {
             }
 
             continueReplay = in != null && in.available() > 0;
+            if (!continueReplay && in != null) {
+            	// End of the replay file reached
+            	in.close();
+            	in = null;
+            }
         } catch(IOException e) {
             log.error("Failed to continue replay", e);
         }
@@ -0,0 +1,89 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.graphics.textures;
+
+/**
+ * Policy selecting the texture to be evicted from the TextureCache
+ * when the cache is exceeding its size limits.
+ *
+ * @author gid15
+ *
+ */
+public interface ITextureCacheEvictionPolicy {
+	/**
+	 * @param texture1 first texture
+	 * @param texture2 second texture
+	 * @return         true if texture1 has to be evicted before texture2
+	 */
+	public boolean isEvictedBefore(Texture texture1, Texture texture2);
+
+	/**
+	 * Evict first the least recently used texture.
+	 */
+	public static class LRU implements ITextureCacheEvictionPolicy {
+		@Override
+		public boolean isEvictedBefore(Texture texture1, Texture texture2) {
+			return texture1.getLastUseTick() < texture2.getLastUseTick();
+		}
+
+		@Override
+		public String toString() {
+			return "LRU";
+		}
+	}
+
+	/**
+	 * Evict first the least frequently used texture,
+	 * and the least recently used one among equally used textures.
+	 */
+	public static class LFU implements ITextureCacheEvictionPolicy {
+		@Override
+		public boolean isEvictedBefore(Texture texture1, Texture texture2) {
+			if (texture1.getUseCount() != texture2.getUseCount()) {
+				return texture1.getUseCount() < texture2.getUseCount();
+			}
+			return texture1.getLastUseTick() < texture2.getLastUseTick();
+		}
+
+		@Override
+		public String toString() {
+			return "LFU";
+		}
+	}
+
+	/**
+	 * Evict first the texture not used since the most frames,
+	 * and the largest one among textures last used in the same frame.
+	 */
+	public static class FrameAge implements ITextureCacheEvictionPolicy {
+		@Override
+		public boolean isEvictedBefore(Texture texture1, Texture texture2) {
+			if (texture1.getLastUseFrame() != texture2.getLastUseFrame()) {
+				return texture1.getLastUseFrame() < texture2.getLastUseFrame();
+			}
+			if (texture1.getSizeInBytes() != texture2.getSizeInBytes()) {
+				return texture1.getSizeInBytes() > texture2.getSizeInBytes();
+			}
+			return texture1.getLastUseTick() < texture2.getLastUseTick();
+		}
+
+		@Override
+		public String toString() {
+			return "FrameAge";
+		}
+	}
+}
@@ -16,9 +16,11 @@ along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
  */
 package jpcsp.graphics.textures;
 
+import jpcsp.Memory;
 import jpcsp.graphics.GeCommands;
 import jpcsp.graphics.VideoEngine;
 import jpcsp.graphics.RE.IRenderingEngine;
+import jpcsp.memory.DirtyPageTracker;
 import jpcsp.util.Hash;
 
 public class Texture {
@@ -46,6 +48,14 @@ public class Texture {
 	private int bufferLengthInBytes;
 	private int lineWidthInBytes;
 	private int hashStrideInBytes;
+	// Generation of the dirty page tracking when the hashCode has been computed
+	private long hashGeneration;
+	// Estimated size of the texture once loaded by the rendering engine
+	private int sizeInBytes;
+	// Usage of the texture, used by the texture cache eviction policies
+	private long lastUseTick;
+	private long lastUseFrame;
+	private long useCount;
 
 	public Texture(TextureCache textureCache, int addr, int lineWidth, int width, int height, int pixelStorage, int clutAddr, int clutMode, int clutStart, int clutShift, int clutMask, int clutNumBlocks, int mipmapLevels, boolean mipmapShareClut, short[] values16, int[] values32) {
 		this.textureCache = textureCache;
@@ -89,6 +99,7 @@ public class Texture {
 			bufferLengthInBytes *= bytesPerPixel;
 			lineWidthInBytes *= bytesPerPixel;
 		}
+		sizeInBytes = getSizeInBytes(lineWidth, height, pixelStorage, clutAddr, clutMode, mipmapLevels, bufferLengthInBytes);
 
 		if (values16 != null) {
 			cachedValues16 = new short[lineWidth];
@@ -105,10 +116,43 @@ public class Texture {
 					hashStrideInBytes = lineWidthInBytes - 4;
 				}
 			}
+			hashGeneration = snapshot();
 			hashCode = hashCode(addr, bufferLengthInBytes, lineWidthInBytes, hashStrideInBytes, clutAddr, clutNumBlocks, mipmapLevels);
 		}
 	}
 
+	private static long snapshot() {
+		DirtyPageTracker dirtyPageTracker = Memory.getInstance().getDirtyPageTracker();
+		if (dirtyPageTracker == null) {
+			return 0L;
+		}
+
+		return dirtyPageTracker.snapshot();
+	}
+
+	/**
+	 * Check if the texture and clut memory have not been written since
+	 * the hashCode has been computed, using the dirty page tracking.
+	 *
+	 * @return true if the memory is known to be unchanged, i.e. no need to compute again the hashCode
+	 *         false if the memory could have been changed
+	 */
+	private boolean isMemoryUnchanged() {
+		DirtyPageTracker dirtyPageTracker = Memory.getInstance().getDirtyPageTracker();
+		if (dirtyPageTracker == null) {
+			return false;
+		}
+
+		if (addr != 0 && dirtyPageTracker.isDirty(addr, bufferLengthInBytes, hashGeneration)) {
+			return false;
+		}
+		if (clutAddr != 0 && dirtyPageTracker.isDirty(clutAddr, clutNumBlocks * 32, hashGeneration)) {
+			return false;
+		}
+
+		return true;
+	}
+
 	/**
 	 * Compute the Texture hashCode value,
 	 * based on the pixel buffer and the clut table.
@@ -144,6 +188,34 @@ public class Texture {
 		return hashCode;
 	}
 
+	/**
+	 * Estimate the size of a texture once loaded by the rendering engine:
+	 * - the indexed textures are loaded with the format of their clut,
+	 *   or as indexes when the clut is resolved by the shader,
+	 * - the compressed textures are loaded compressed,
+	 * - the mipmaps are adding at most 1/3 of the size of the first level.
+	 */
+	private static int getSizeInBytes(int lineWidth, int height, int pixelStorage, int clutAddr, int clutMode, int mipmapLevels, int bufferLengthInBytes) {
+		int sizeInBytes;
+		if (IRenderingEngine.isTextureTypeIndexed[pixelStorage]) {
+			int bytesPerPixel;
+			if (clutAddr != 0) {
+				bytesPerPixel = IRenderingEngine.sizeOfTextureType[clutMode];
+			} else {
+				bytesPerPixel = Math.max(IRenderingEngine.sizeOfTextureType[pixelStorage], 1);
+			}
+			sizeInBytes = lineWidth * height * bytesPerPixel;
+		} else {
+			sizeInBytes = bufferLengthInBytes;
+		}
+
+		if (mipmapLevels > 0) {
+			sizeInBytes += sizeInBytes / 3;
+		}
+
+		return sizeInBytes;
+	}
+
 	public boolean equals(int addr, int lineWidth, int width, int height, int pixelStorage, int clutAddr, int clutMode, int clutStart, int clutShift, int clutMask, int clutNumBlocks, int mipmapLevels, boolean mipmapShareClut, short[] values16, int[] values32) {
 		if (this.addr != addr ||
 			this.lineWidth != lineWidth ||
@@ -171,9 +243,13 @@ public class Texture {
 			if (values32 != null) {
 				return equals(values32);
 			}
-			int hashCode = hashCode(addr, bufferLengthInBytes, lineWidthInBytes, hashStrideInBytes, clutAddr, clutNumBlocks, mipmapLevels);
-			if (hashCode != hashCode()) {
-				return false;
+			if (!isMemoryUnchanged()) {
+				long generation = snapshot();
+				int hashCode = hashCode(addr, bufferLengthInBytes, lineWidthInBytes, hashStrideInBytes, clutAddr, clutNumBlocks, mipmapLevels);
+				if (hashCode != hashCode()) {
+					return false;
+				}
+				hashGeneration = generation;
 			}
 			textureCache.setTextureAlreadyHashed(addr, clutAddr, clutStart, clutMode);
 		}
@@ -265,6 +341,28 @@ public class Texture {
 		return mipmapLevels;
 	}
 
+	public int getSizeInBytes() {
+		return sizeInBytes;
+	}
+
+	public void setUsed(long tick, long frame) {
+		lastUseTick = tick;
+		lastUseFrame = frame;
+		useCount++;
+	}
+
+	public long getLastUseTick() {
+		return lastUseTick;
+	}
+
+	public long getLastUseFrame() {
+		return lastUseFrame;
+	}
+
+	public long getUseCount() {
+		return useCount;
+	}
+
 	public boolean isInsideMemory(int fromAddr, int toAddr) {
 		if (addr >= fromAddr && addr < toAddr) {
 			return true;
@@ -16,36 +16,52 @@ along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
  */
 package jpcsp.graphics.textures;
 
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
-import java.util.ListIterator;
-import java.util.Map;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import jpcsp.Memory;
 import jpcsp.graphics.GeCommands;
 import jpcsp.graphics.VideoEngine;
 import jpcsp.graphics.RE.IRenderingEngine;
+import jpcsp.settings.Settings;
 import jpcsp.util.CacheStatistics;
+import jpcsp.util.LongObjectHashMap;
 
+/**
+ * Cache of the textures loaded by the rendering engine.
+ *
+ * The cache is bounded by a number of entries and by a size in bytes
+ * (setting "emu.graphics.textureCacheSize" in MB, 0 for no size limit),
+ * the size of each texture being estimated from its dimensions and format.
+ * When one of the limits is reached, the textures are evicted according to
+ * the eviction policy (setting "emu.graphics.textureCacheEvictionPolicy":
+ * "LRU", "LFU" or "FrameAge").
+ *
+ * The textures are indexed by a long key combining the texture address
+ * and the clut address, to avoid boxing the keys at each lookup.
+ */
 public class TextureCache {
 	public static final int cacheMaxSize = 1000;
-	public static final float cacheLoadFactor = 0.75f;
+	public static final int defaultCacheMaxSizeInMB = 256;
 	private static Logger log = VideoEngine.log;
 	private static TextureCache instance = null;
-	private LinkedHashMap<Integer, Texture> cache;
-	public CacheStatistics statistics = new CacheStatistics("Texture", cacheMaxSize);
+	private final LongObjectHashMap<Texture> cache;
+	private long cacheMaxSizeInBytes;
+	private long cacheSizeInBytes;
+	private ITextureCacheEvictionPolicy evictionPolicy;
+	// Incremented at each texture use, for the LRU ordering
+	private long useTick;
+	// Incremented at each displayed frame
+	private volatile long frame;
+	public CacheStatistics statistics;
 	// Remember which textures have already been hashed during one display
 	// (for applications reusing the same texture multiple times in one display)
-	private Set<Integer> textureAlreadyHashed;
+	private final LongObjectHashMap<Boolean> textureAlreadyHashed;
 	// Remember which textures are located in VRAM. Only these textures have to be
 	// scanned when checking for textures updated while rendering to GE.
-	private LinkedList<Texture> vramTextures = new LinkedList<Texture>();
+	private final LongObjectHashMap<Texture> vramTextures;
 
 	public static TextureCache getInstance() {
 		if (instance == null) {
@@ -56,21 +72,71 @@ public class TextureCache {
 	}
 
 	private TextureCache() {
-		//
-		// Create a cache having
-		// - initial size large enough so that no rehash will occur
-		// - the LinkedList is based on access-order for LRU
-		//
-		cache = new LinkedHashMap<Integer, Texture>((int) (cacheMaxSize / cacheLoadFactor) + 1, cacheLoadFactor, true);
-		textureAlreadyHashed = new HashSet<Integer>();
+		// Initial size large enough so that no rehash will occur
+		cache = new LongObjectHashMap<Texture>(cacheMaxSize);
+		textureAlreadyHashed = new LongObjectHashMap<Boolean>(cacheMaxSize);
+		vramTextures = new LongObjectHashMap<Texture>();
+
+		Settings settings = Settings.getInstance();
+		cacheMaxSizeInBytes = settings.readInt("emu.graphics.textureCacheSize", defaultCacheMaxSizeInMB) * 1024L * 1024L;
+		evictionPolicy = getEvictionPolicy(settings.readString("emu.graphics.textureCacheEvictionPolicy", "LRU"));
+		statistics = new CacheStatistics("Texture", cacheMaxSize, cacheMaxSizeInBytes);
+	}
+
+	private static ITextureCacheEvictionPolicy getEvictionPolicy(String name) {
+		if ("LFU".equalsIgnoreCase(name)) {
+			return new ITextureCacheEvictionPolicy.LFU();
+		}
+		if ("FrameAge".equalsIgnoreCase(name)) {
+			return new ITextureCacheEvictionPolicy.FrameAge();
+		}
+		if (!"LRU".equalsIgnoreCase(name)) {
+			log.warn(String.format("Unknown texture cache eviction policy '%s', using LRU", name));
+		}
+		return new ITextureCacheEvictionPolicy.LRU();
 	}
 
-	private Integer getKey(int addr, int clutAddr, int clutStart, int clutMode) {
+	public ITextureCacheEvictionPolicy getEvictionPolicy() {
+		return evictionPolicy;
+	}
+
+	public void setEvictionPolicy(ITextureCacheEvictionPolicy evictionPolicy) {
+		this.evictionPolicy = evictionPolicy;
+	}
+
+	public long getCacheMaxSizeInBytes() {
+		return cacheMaxSizeInBytes;
+	}
+
+	/**
+	 * @param cacheMaxSizeInBytes the maximum size of the cache in bytes,
+	 *                            0 for no size limit.
+	 *                            The cache is reduced at the next texture addition.
+	 */
+	public void setCacheMaxSizeInBytes(long cacheMaxSizeInBytes) {
+		this.cacheMaxSizeInBytes = cacheMaxSizeInBytes;
+		statistics.setCacheMaxSizeInBytes(cacheMaxSizeInBytes);
+	}
+
+	public long getCacheSizeInBytes() {
+		return cacheSizeInBytes;
+	}
+
+	public int getCacheSize() {
+		return cache.size();
+	}
+
+	private static long getKey(int addr, int clutAddr, int clutStart, int clutMode) {
 		// Some games use the same texture address with different cluts.
 		// Keep a combination of both texture address and clut address in the cache.
 		// Also, use the clutStart as this parameter can be used to offset the clut address.
 		int clutEntrySize = clutMode == GeCommands.CMODE_FORMAT_32BIT_ABGR8888 ? 4 : 2;
-		return Integer.valueOf(addr + clutAddr + (clutStart << 4) * clutEntrySize);
+		int clutKey = clutAddr + (clutStart << 4) * clutEntrySize;
+		return (((long) addr) << 32) | (clutKey & 0xFFFFFFFFL);
+	}
+
+	private static long getKey(Texture texture) {
+		return getKey(texture.getAddr(), texture.getClutAddr(), texture.getClutStart(), texture.getClutMode());
 	}
 
 	public boolean hasTexture(int addr, int clutAddr, int clutStart, int clutMode) {
@@ -81,37 +147,78 @@ public class TextureCache {
 		return cache.get(getKey(addr, clutAddr, clutStart, clutMode));
 	}
 
+	private void setUsed(Texture texture) {
+		useTick++;
+		texture.setUsed(useTick, frame);
+	}
+
+	private void removeTexture(IRenderingEngine re, long key, Texture texture) {
+		texture.deleteTexture(re);
+		cache.remove(key);
+		vramTextures.remove(key);
+		cacheSizeInBytes -= texture.getSizeInBytes();
+		statistics.setSizeInBytes(cacheSizeInBytes);
+	}
+
+	private boolean isCacheFull(int additionalSizeInBytes) {
+		if (cache.size() >= cacheMaxSize) {
+			return true;
+		}
+		if (cacheMaxSizeInBytes > 0 && cacheSizeInBytes + additionalSizeInBytes > cacheMaxSizeInBytes) {
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Evict the textures according to the eviction policy
+	 * until the additional size is fitting in the cache.
+	 */
+	private void evictTextures(IRenderingEngine re, int additionalSizeInBytes) {
+		while (!cache.isEmpty() && isCacheFull(additionalSizeInBytes)) {
+			int victimIndex = -1;
+			Texture victim = null;
+			for (int i = 0; i < cache.getCapacity(); i++) {
+				Texture texture = cache.getValueAt(i);
+				if (texture != null && (victim == null || evictionPolicy.isEvictedBefore(texture, victim))) {
+					victim = texture;
+					victimIndex = i;
+				}
+			}
+
+			if (log.isDebugEnabled()) {
+				log.debug(String.format("Evicting %s (%d bytes) from the texture cache", victim, victim.getSizeInBytes()));
+			}
+
+			removeTexture(re, cache.getKeyAt(victimIndex), victim);
+			statistics.entriesRemoved++;
+			statistics.bytesRemoved += victim.getSizeInBytes();
+		}
+	}
+
 	public void addTexture(IRenderingEngine re, Texture texture) {
-		Integer key = getKey(texture.getAddr(), texture.getClutAddr(), texture.getClutStart(), texture.getClutMode());
+		long key = getKey(texture);
 		Texture previousTexture = cache.get(key);
 		if (previousTexture != null) {
-		    previousTexture.deleteTexture(re);
-		    vramTextures.remove(previousTexture);
-		} else {
-			// Check if the cache is not growing too large
-			if (cache.size() >= cacheMaxSize) {
-				// Remove the LRU cache entry
-				Iterator<Map.Entry<Integer, Texture>> it = cache.entrySet().iterator();
-				if (it.hasNext()) {
-					Map.Entry<Integer, Texture> entry = it.next();
-					Texture lruTexture = entry.getValue();
-					lruTexture.deleteTexture(re);
-					vramTextures.remove(lruTexture);
-					it.remove();
-
-					statistics.entriesRemoved++;
-				}
-			}
+			removeTexture(re, key, previousTexture);
 		}
 
-        cache.put(key, texture);
-        if (isVramTexture(texture)) {
-        	vramTextures.add(texture);
-        }
+		// Check if the cache is not growing too large
+		evictTextures(re, texture.getSizeInBytes());
 
-        if (cache.size() > statistics.maxSizeUsed) {
-            statistics.maxSizeUsed = cache.size();
-        }
+		cache.put(key, texture);
+		if (isVramTexture(texture)) {
+			vramTextures.put(key, texture);
+		}
+		setUsed(texture);
+
+		cacheSizeInBytes += texture.getSizeInBytes();
+		statistics.bytesAdded += texture.getSizeInBytes();
+		statistics.setSizeInBytes(cacheSizeInBytes);
+		if (cache.size() > statistics.maxSizeUsed) {
+			statistics.maxSizeUsed = cache.size();
+		}
 	}
 
 	public Texture getTexture(int addr, int lineWidth, int width, int height, int pixelStorage, int clutAddr, int clutMode, int clutStart, int clutShift, int clutMask, int clutNumBlocks, int mipmapLevels, boolean mipmapShareClut, short[] values16, int[] values32) {
@@ -125,6 +232,7 @@ public class TextureCache {
 
 		if (texture.equals(addr, lineWidth, width, height, pixelStorage, clutAddr, clutMode, clutStart, clutShift, clutMask, clutNumBlocks, mipmapLevels, mipmapShareClut, values16, values32)) {
 			statistics.successfulHits++;
+			setUsed(texture);
 			return texture;
 		}
 
@@ -132,16 +240,25 @@ public class TextureCache {
 		return null;
 	}
 
+	/**
+	 * A new frame is being displayed.
+	 * Used by the "FrameAge" eviction policy and by the statistics per frame.
+	 */
+	public void startFrame() {
+		frame++;
+		statistics.startFrame();
+	}
+
 	public void resetTextureAlreadyHashed() {
 		textureAlreadyHashed.clear();
 	}
 
 	public boolean textureAlreadyHashed(int addr, int clutAddr, int clutStart, int clutMode) {
-		return textureAlreadyHashed.contains(getKey(addr, clutAddr, clutStart, clutMode));
+		return textureAlreadyHashed.containsKey(getKey(addr, clutAddr, clutStart, clutMode));
 	}
 
 	public void setTextureAlreadyHashed(int addr, int clutAddr, int clutStart, int clutMode) {
-		textureAlreadyHashed.add(getKey(addr, clutAddr, clutStart, clutMode));
+		textureAlreadyHashed.put(getKey(addr, clutAddr, clutStart, clutMode), Boolean.TRUE);
 	}
 
 	public void resetTextureAlreadyHashed(int addr, int clutAddr, int clutStart, int clutMode) {
@@ -149,10 +266,16 @@ public class TextureCache {
 	}
 
 	public void reset(IRenderingEngine re) {
-		for (Texture texture : cache.values()) {
-			texture.deleteTexture(re);
+		for (int i = 0; i < cache.getCapacity(); i++) {
+			Texture texture = cache.getValueAt(i);
+			if (texture != null) {
+				texture.deleteTexture(re);
+			}
 		}
 		cache.clear();
+		vramTextures.clear();
+		cacheSizeInBytes = 0;
+		statistics.setSizeInBytes(cacheSizeInBytes);
 		resetTextureAlreadyHashed();
 	}
 
@@ -161,16 +284,29 @@ public class TextureCache {
 	}
 
 	public void deleteVramTextures(IRenderingEngine re, int addr, int length) {
-		for (ListIterator<Texture> lit = vramTextures.listIterator(); lit.hasNext(); ) {
-			Texture texture = lit.next();
-			if (texture.isInsideMemory(addr, addr + length)) {
+		if (vramTextures.isEmpty()) {
+			return;
+		}
+
+		// Collect first the textures to be deleted:
+		// the map cannot be modified while iterating over it.
+		List<Texture> deletedTextures = null;
+		for (int i = 0; i < vramTextures.getCapacity(); i++) {
+			Texture texture = vramTextures.getValueAt(i);
+			if (texture != null && texture.isInsideMemory(addr, addr + length)) {
+				if (deletedTextures == null) {
+					deletedTextures = new ArrayList<Texture>();
+				}
+				deletedTextures.add(texture);
+			}
+		}
+
+		if (deletedTextures != null) {
+			for (Texture texture : deletedTextures) {
 				if (log.isDebugEnabled()) {
 					log.debug(String.format("Delete VRAM texture inside GE %s", texture.toString()));
 				}
-				texture.deleteTexture(re);
-				lit.remove();
-				Integer key = getKey(texture.getAddr(), texture.getClutAddr(), texture.getClutStart(), texture.getClutMode());
-				cache.remove(key);
+				removeTexture(re, getKey(texture), texture);
 				statistics.entriesRemoved++;
 			}
 		}
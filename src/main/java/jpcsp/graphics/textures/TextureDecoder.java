@@ -0,0 +1,314 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.graphics.textures;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import jpcsp.Memory;
+import jpcsp.graphics.VideoEngine;
+import jpcsp.settings.Settings;
+
+/**
+ * Bulk decoding of the textures, working directly on the memory int array
+ * instead of reading each pixel through an IMemoryReader.
+ *
+ * Large textures are split into ranges of rows decoded in parallel by a pool
+ * of worker threads. The number of threads is defined by the setting
+ * "emu.graphics.textureDecodingThreads" (0 for the number of available processors).
+ * With the default value 1, the textures are decoded by the calling thread only.
+ *
+ * The decoding methods return false when the bulk decoding is not possible
+ * (e.g. the memory int array is not available when tracking the dirty pages),
+ * the caller has then to decode the texture using an IMemoryReader.
+ *
+ * @author gid15
+ *
+ */
+public class TextureDecoder {
+	private static Logger log = VideoEngine.log;
+	// Textures smaller than this size are always decoded by the calling thread
+	private static final int parallelMinimumSizeInBytes = 64 * 1024;
+	private static TextureDecoder instance;
+	private final int numberThreads;
+	private final ExecutorService executor;
+
+	private static interface IRangeDecoder {
+		public void decode(int start, int end);
+	}
+
+	private static class RangeTask implements Runnable {
+		private final IRangeDecoder decoder;
+		private final int start;
+		private final int end;
+		private final CountDownLatch latch;
+
+		public RangeTask(IRangeDecoder decoder, int start, int end, CountDownLatch latch) {
+			this.decoder = decoder;
+			this.start = start;
+			this.end = end;
+			this.latch = latch;
+		}
+
+		@Override
+		public void run() {
+			try {
+				decoder.decode(start, end);
+			} catch (Exception e) {
+				log.error("Error while decoding texture", e);
+			} finally {
+				latch.countDown();
+			}
+		}
+	}
+
+	private static class DecoderThreadFactory implements ThreadFactory {
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, String.format("Thread TextureDecoder #%d", threadNumber.incrementAndGet()));
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	public static TextureDecoder getInstance() {
+		if (instance == null) {
+			int numberThreads = Settings.getInstance().readInt("emu.graphics.textureDecodingThreads", 1);
+			if (numberThreads <= 0) {
+				numberThreads = Runtime.getRuntime().availableProcessors();
+			}
+			instance = new TextureDecoder(numberThreads);
+		}
+
+		return instance;
+	}
+
+	/**
+	 * @param numberThreads the number of threads decoding in parallel,
+	 *                      including the calling thread
+	 */
+	public TextureDecoder(int numberThreads) {
+		this.numberThreads = Math.max(numberThreads, 1);
+		if (this.numberThreads > 1) {
+			executor = Executors.newFixedThreadPool(this.numberThreads - 1, new DecoderThreadFactory());
+			log.info(String.format("Texture decoding using %d threads", this.numberThreads));
+		} else {
+			executor = null;
+		}
+	}
+
+	public int getNumberThreads() {
+		return numberThreads;
+	}
+
+	/**
+	 * Decode the range [0..length[ by the calling thread and,
+	 * for large textures, by the worker threads.
+	 *
+	 * @param length        the number of units (e.g. rows) to be decoded
+	 * @param sizeInBytes   the size of the decoded texture
+	 * @param decoder       the decoder
+	 */
+	private void execute(int length, int sizeInBytes, IRangeDecoder decoder) {
+		int numberRanges = Math.min(numberThreads, length);
+		if (executor == null || numberRanges <= 1 || sizeInBytes < parallelMinimumSizeInBytes) {
+			decoder.decode(0, length);
+			return;
+		}
+
+		CountDownLatch latch = new CountDownLatch(numberRanges - 1);
+		int rangeLength = (length + numberRanges - 1) / numberRanges;
+		for (int start = rangeLength; start < length; start += rangeLength) {
+			executor.execute(new RangeTask(decoder, start, Math.min(start + rangeLength, length), latch));
+		}
+
+		// The first range is decoded by the calling thread
+		decoder.decode(0, rangeLength);
+
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			log.error("Interrupted while decoding texture", e);
+		}
+	}
+
+	/**
+	 * @param mem     the memory
+	 * @param address the address, 32-bit aligned
+	 * @param length  the length in bytes
+	 * @return        the memory int array containing the address range, to be
+	 *                accessed from mem.getMemoryIntOffset(address),
+	 *                or null if the memory cannot be accessed as an int array
+	 */
+	public static int[] getMemoryInt(Memory mem, int address, int length) {
+		if ((address & 3) != 0 || !mem.hasMemoryInt(address)) {
+			return null;
+		}
+
+		int[] memoryInt = mem.getMemoryInt(address);
+		if (memoryInt == null || mem.getMemoryIntOffset(address) + (length >> 2) > memoryInt.length) {
+			return null;
+		}
+
+		return memoryInt;
+	}
+
+	/**
+	 * Unswizzle a texture having a row width of at least 16 bytes.
+	 * The texture is stored in blocks of 16 bytes x 8 rows.
+	 *
+	 * @param mem           the memory
+	 * @param texaddr       the texture address
+	 * @param rowWidth      the row width in bytes, a multiple of 16
+	 * @param blockRows     the number of block rows (8 rows each)
+	 * @param dest          the unswizzled texture
+	 * @return              true if the texture has been unswizzled
+	 *                      false if the texture has to be unswizzled using an IMemoryReader
+	 */
+	public boolean unswizzle(Memory mem, int texaddr, final int rowWidth, int blockRows, final int[] dest) {
+		if (rowWidth < 16 || (rowWidth & 15) != 0) {
+			return false;
+		}
+
+		final int pitch = rowWidth >> 2;
+		final int blockRowLength = pitch << 3;
+		int sizeInBytes = blockRowLength * blockRows << 2;
+		if (blockRowLength * blockRows > dest.length) {
+			return false;
+		}
+
+		final int[] memoryInt = getMemoryInt(mem, texaddr, sizeInBytes);
+		if (memoryInt == null) {
+			return false;
+		}
+		final int memoryOffset = mem.getMemoryIntOffset(texaddr);
+		final int blocksPerRow = rowWidth >> 4;
+
+		execute(blockRows, sizeInBytes, new IRangeDecoder() {
+			@Override
+			public void decode(int start, int end) {
+				for (int by = start; by < end; by++) {
+					int src = memoryOffset + by * blockRowLength;
+					int ydest = by * blockRowLength;
+					for (int bx = 0; bx < blocksPerRow; bx++) {
+						int dst = ydest + (bx << 2);
+						for (int n = 0; n < 8; n++, src += 4, dst += pitch) {
+							dest[dst    ] = memoryInt[src    ];
+							dest[dst + 1] = memoryInt[src + 1];
+							dest[dst + 2] = memoryInt[src + 2];
+							dest[dst + 3] = memoryInt[src + 3];
+						}
+					}
+				}
+			}
+		});
+
+		return true;
+	}
+
+	/**
+	 * Apply a 16-bit CLUT to 8-bit, 16-bit or 32-bit indexes.
+	 * The clut index is computed as
+	 *     ((index >> clutShift) & clutMask) | (clutStart << 4)
+	 *
+	 * @param indexes        the indexes, packed in 32-bit values
+	 * @param indexesOffset  the offset of the first indexes in the array
+	 * @param bytesPerIndex  1, 2 or 4
+	 * @param length         the number of pixels
+	 * @param clut           the CLUT
+	 * @param clutShift      the CLUT shift
+	 * @param clutMask       the CLUT mask
+	 * @param clutStart      the CLUT start
+	 * @param dest           the pixels
+	 * @return               true if the CLUT has been applied
+	 *                       false if the length is not a multiple of the number of indexes per 32-bit value
+	 */
+	public boolean applyClut(final int[] indexes, final int indexesOffset, final int bytesPerIndex, int length, final short[] clut, final int clutShift, final int clutMask, int clutStart, final short[] dest) {
+		final int pixelsPerInt = 4 / bytesPerIndex;
+		if ((length % pixelsPerInt) != 0) {
+			return false;
+		}
+
+		final int clutOffset = clutStart << 4;
+		final int indexBits = bytesPerIndex << 3;
+		final int indexMask = bytesPerIndex == 4 ? 0xFFFFFFFF : (1 << indexBits) - 1;
+
+		execute(length / pixelsPerInt, length << 1, new IRangeDecoder() {
+			@Override
+			public void decode(int start, int end) {
+				for (int j = start, i = start * pixelsPerInt; j < end; j++) {
+					int n = indexes[indexesOffset + j];
+					for (int k = 0; k < pixelsPerInt; k++, i++, n >>>= indexBits) {
+						dest[i] = clut[(((n & indexMask) >> clutShift) & clutMask) | clutOffset];
+					}
+				}
+			}
+		});
+
+		return true;
+	}
+
+	/**
+	 * Apply a 32-bit CLUT to 8-bit, 16-bit or 32-bit indexes.
+	 * The indexes and the pixels can be stored in the same array,
+	 * the indexes are then decoded by the calling thread only.
+	 *
+	 * @see #applyClut(int[], int, int, int, short[], int, int, int, short[])
+	 */
+	public boolean applyClut(final int[] indexes, final int indexesOffset, final int bytesPerIndex, int length, final int[] clut, final int clutShift, final int clutMask, int clutStart, final int[] dest) {
+		final int pixelsPerInt = 4 / bytesPerIndex;
+		if ((length % pixelsPerInt) != 0) {
+			return false;
+		}
+
+		final int clutOffset = clutStart << 4;
+		final int indexBits = bytesPerIndex << 3;
+		final int indexMask = bytesPerIndex == 4 ? 0xFFFFFFFF : (1 << indexBits) - 1;
+
+		IRangeDecoder decoder = new IRangeDecoder() {
+			@Override
+			public void decode(int start, int end) {
+				// Decode backwards so that the indexes are not overwritten
+				// when they are stored in the same array as the pixels
+				for (int j = end - 1; j >= start; j--) {
+					int n = indexes[indexesOffset + j];
+					int i = j * pixelsPerInt;
+					for (int k = 0; k < pixelsPerInt; k++, i++, n >>>= indexBits) {
+						dest[i] = clut[(((n & indexMask) >> clutShift) & clutMask) | clutOffset];
+					}
+				}
+			}
+		};
+
+		if (indexes == dest && pixelsPerInt > 1) {
+			// The ranges cannot be decoded in parallel: a range would
+			// overwrite the indexes of the following range
+			decoder.decode(0, length / pixelsPerInt);
+		} else {
+			execute(length / pixelsPerInt, length << 2, decoder);
+		}
+
+		return true;
+	}
+}
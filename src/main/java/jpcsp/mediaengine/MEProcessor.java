@@ -36,8 +36,10 @@ import jpcsp.Processor;
 import jpcsp.Allegrex.Common.Instruction;
 import jpcsp.Allegrex.Cp0State;
 import jpcsp.Allegrex.Decoder;
+import jpcsp.Allegrex.compiler.IExecutable;
 import jpcsp.Allegrex.compiler.RuntimeContext;
 import jpcsp.Allegrex.compiler.RuntimeContextLLE;
+import jpcsp.Allegrex.compiler.StopThreadException;
 import jpcsp.HLE.TPointer;
 import jpcsp.HLE.kernel.types.IAction;
 import jpcsp.memory.mmio.MMIOHandlerInterruptMan;
@@ -104,6 +106,7 @@ public class MEProcessor extends Processor {
 
 		optimizedInstructions1 = null;
 		optimizedInstructions2 = null;
+		MERuntimeContext.resetExecutables();
 		sync();
 	}
 
@@ -164,6 +167,7 @@ public class MEProcessor extends Processor {
 		// Force a re-read of all the instructions as another me*img.img file could have been loaded
 		optimizedInstructions1 = null;
 		optimizedInstructions2 = null;
+		MERuntimeContext.resetExecutables();
 
 		sync();
 	}
@@ -357,10 +361,54 @@ public class MEProcessor extends Processor {
 		}
 	}
 
+	private void compiledRun() {
+		int count = 0;
+		long start = Emulator.getClock().currentTimeMillis();
+		int startPc = cpu.pc;
+
+		MERuntimeContext.update(this);
+
+		try {
+			while (!halt && !Emulator.pause) {
+				if (pendingInterruptIPbitsME != 0) {
+					checkPendingInterruptException();
+				}
+
+				int pc = cpu.pc;
+				if (!MERuntimeContext.isCompilable(pc)) {
+					break;
+				}
+
+				IExecutable executable = MERuntimeContext.getExecutable(pc);
+				if (executable == null) {
+					// This code block could not be compiled
+					step();
+				} else {
+					cpu.pc = executable.exec();
+				}
+				count++;
+			}
+		} catch (StopThreadException e) {
+			if (log.isDebugEnabled()) {
+				log.debug(String.format("MEProcessor.compiledRun %s", e.getMessage()));
+			}
+		} catch (Exception e) {
+			log.error(String.format("MEProcessor.compiledRun at 0x%08X", cpu.pc), e);
+			halt = true;
+		}
+
+		long end = Emulator.getClock().currentTimeMillis();
+		if (count > 0 && log.isDebugEnabled()) {
+			int duration = Math.max((int) (end - start), 1);
+			log.debug(String.format("MEProcessor.compiledRun %d code blocks executed from 0x%08X in %d ms, %d code blocks compiled", count, startPc, duration, MERuntimeContext.getNumberExecutables()));
+		}
+	}
+
 	private void normalRun() {
 		int count = 0;
 		long start = Emulator.getClock().currentTimeMillis();
 		final boolean hasMemoryInt = RuntimeContext.hasMemoryInt();
+		final boolean compilerEnabled = MERuntimeContext.isCompilerEnabled();
 		int startPc = cpu.pc;
 
 		while (!halt && !Emulator.pause) {
@@ -376,6 +424,10 @@ public class MEProcessor extends Processor {
 					dumpToFile("MEMemory.dump", new TPointer(meMemory, 0).forceNonNull(), SIZE_ME_RAM);
 					dumpToFile("meimg.img", new TPointer(meMemory, optimizedRunStart1), optimizedRunEnd1 - optimizedRunStart1);
 				}
+			} else if (compilerEnabled) {
+				if (MERuntimeContext.isCompilable(cpu.pc)) {
+					break;
+				}
 			} else {
 				if (hasMemoryInt) {
 					int pc = cpu.pc & Memory.addressMask;
@@ -406,10 +458,13 @@ public class MEProcessor extends Processor {
 		}
 
 		final boolean hasMemoryInt = RuntimeContext.hasMemoryInt();
+		final boolean compilerEnabled = MERuntimeContext.isCompilerEnabled();
 
 		while (!halt && !Emulator.pause) {
 			int pc = cpu.pc & Memory.addressMask;
-			if (hasMemoryInt && pc >= optimizedRunStart1 && pc < optimizedRunEnd1) {
+			if (compilerEnabled && MERuntimeContext.isCompilable(pc)) {
+				compiledRun();
+			} else if (hasMemoryInt && pc >= optimizedRunStart1 && pc < optimizedRunEnd1) {
 				optimizedRun1();
 			} else if (hasMemoryInt && pc >= optimizedRunStart2 && pc < optimizedRunEnd2) {
 				optimizedRun2();
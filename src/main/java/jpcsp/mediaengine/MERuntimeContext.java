@@ -0,0 +1,262 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.mediaengine;
+
+import static jpcsp.Allegrex.Common.Instruction.FLAG_ENDS_BLOCK;
+import static jpcsp.Allegrex.Common.Instruction.FLAG_IS_CONDITIONAL;
+import static jpcsp.Allegrex.Common.Instruction.FLAG_STARTS_NEW_BLOCK;
+import static jpcsp.Allegrex.Common.Instruction.FLAG_TRIGGERS_EXCEPTION;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import jpcsp.Emulator;
+import jpcsp.Memory;
+import jpcsp.MemoryMap;
+import jpcsp.Processor;
+import jpcsp.Allegrex.CpuState;
+import jpcsp.Allegrex.Common.Instruction;
+import jpcsp.Allegrex.compiler.CodeBlock;
+import jpcsp.Allegrex.compiler.Compiler;
+import jpcsp.Allegrex.compiler.CompilerClassLoader;
+import jpcsp.Allegrex.compiler.IExecutable;
+import jpcsp.Allegrex.compiler.RuntimeContext;
+import jpcsp.Allegrex.compiler.StopThreadException;
+
+/**
+ * Runtime context of the code compiled for the Media Engine processor.
+ *
+ * The code compiled for the Media Engine is accessing the static fields
+ * processor, cpu and memory of this class instead of those of the RuntimeContext,
+ * and is calling the static methods of this class for all the methods
+ * depending on the processor state (e.g. sync, the interpreter or the debugging methods).
+ * This class is not extending the RuntimeContext so that none of the
+ * RuntimeContext methods can be reached while using the main processor state.
+ *
+ * The Media Engine code blocks are always returning to the dispatcher
+ * MEProcessor.run() when leaving the code block, they are never calling
+ * each other directly.
+ *
+ * The code blocks are kept separately from those of the main processor,
+ * in their own class loader. They are invalidated together with the
+ * main processor code blocks, see RuntimeContext.invalidateRange()
+ * and RuntimeContext.invalidateAll().
+ *
+ * @author gid15
+ *
+ */
+public class MERuntimeContext {
+	public  static float[] fpr;
+	public  static float[] vprFloat;
+	public  static int[] vprInt;
+	public  static int[] memoryInt;
+	public  static Processor processor;
+	public  static CpuState cpu;
+	public  static Memory memory;
+	private static final Map<Integer, CodeBlock> codeBlocks = Collections.synchronizedMap(new HashMap<Integer, CodeBlock>());
+	// The addresses that could not be compiled
+	private static final Set<Integer> interpretedAddresses = Collections.synchronizedSet(new HashSet<Integer>());
+	private static volatile CompilerClassLoader classLoader = new CompilerClassLoader(null);
+
+	public static boolean isCompilerEnabled() {
+		return RuntimeContext.isCompilerEnabled() && Compiler.getInstance().isMediaEngineEnabled();
+	}
+
+	public static void update(MEProcessor meProcessor) {
+		processor = meProcessor;
+		cpu = meProcessor.cpu;
+		fpr = cpu.fpr;
+		vprFloat = cpu.vprFloat;
+		vprInt = cpu.vprInt;
+		memory = meProcessor.getMEMemory();
+		memoryInt = RuntimeContext.getMemoryInt();
+	}
+
+	/**
+	 * Only the code located in the main RAM is compiled,
+	 * the code in the Media Engine internal RAM or ROM is interpreted.
+	 *
+	 * @param address the code address
+	 * @return        true if the code at this address can be compiled
+	 */
+	public static boolean isCompilable(int address) {
+		int maskedAddress = address & Memory.addressMask;
+		return maskedAddress >= MemoryMap.START_RAM && maskedAddress <= MemoryMap.END_RAM;
+	}
+
+	/**
+	 * Discard all the compiled code blocks,
+	 * e.g. when new Media Engine code has been loaded.
+	 */
+	public static void resetExecutables() {
+		codeBlocks.clear();
+		interpretedAddresses.clear();
+		classLoader = new CompilerClassLoader(null);
+	}
+
+	/**
+	 * Discard the compiled code blocks overlapping the given address range.
+	 * Called from the emulator thread when the main processor code blocks
+	 * are invalidated for this range.
+	 *
+	 * @param addr      the start address of the range
+	 * @param size      the size of the range
+	 * @param checkAbove discard also all the code blocks above the range
+	 */
+	public static void invalidateRange(int addr, int size, boolean checkAbove) {
+		addr &= Memory.addressMask;
+		synchronized (codeBlocks) {
+			for (Iterator<CodeBlock> it = codeBlocks.values().iterator(); it.hasNext(); ) {
+				CodeBlock codeBlock = it.next();
+				if ((checkAbove && (codeBlock.getHighestAddress() & Memory.addressMask) >= addr) || codeBlock.isOverlappingWithAddressRange(addr, size)) {
+					it.remove();
+				}
+			}
+		}
+
+		// The code at these addresses might now be compilable
+		synchronized (interpretedAddresses) {
+			for (Iterator<Integer> it = interpretedAddresses.iterator(); it.hasNext(); ) {
+				int address = it.next();
+				if (address >= addr && (checkAbove || address < addr + size)) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Discard the compiled code blocks whose opcodes have been modified.
+	 * Called from the emulator thread.
+	 */
+	public static void invalidateAll() {
+		synchronized (codeBlocks) {
+			for (Iterator<CodeBlock> it = codeBlocks.values().iterator(); it.hasNext(); ) {
+				if (it.next().isNoLongerValid()) {
+					it.remove();
+				}
+			}
+		}
+		interpretedAddresses.clear();
+	}
+
+	/**
+	 * @param address the code address
+	 * @return        the compiled code block starting at the address,
+	 *                or null if the code has to be interpreted
+	 */
+	public static IExecutable getExecutable(int address) {
+		int maskedAddress = address & Memory.addressMask;
+		CodeBlock codeBlock = codeBlocks.get(maskedAddress);
+		if (codeBlock == null) {
+			if (!isCompilable(address) || interpretedAddresses.contains(maskedAddress)) {
+				return null;
+			}
+
+			codeBlock = Compiler.getInstance().compileMediaEngine(classLoader, address);
+			if (codeBlock == null) {
+				interpretedAddresses.add(maskedAddress);
+				return null;
+			}
+			codeBlocks.put(maskedAddress, codeBlock);
+		}
+
+		return codeBlock.getExecutable();
+	}
+
+	public static int getNumberExecutables() {
+		return codeBlocks.size();
+	}
+
+	public static void sync() throws StopThreadException {
+		// The Media Engine has no threads to be scheduled,
+		// only wait for the end of the emulator pause.
+		while (Emulator.pause) {
+			if (METhread.getInstance().isExit()) {
+				throw new StopThreadException("Media Engine exit");
+			}
+			METhread.getInstance().waitForSync(100);
+		}
+	}
+
+	public static void syncDebugger(int pc) throws StopThreadException {
+		cpu.pc = pc;
+		sync();
+	}
+
+	public static void pauseEmuWithStatus(int status) throws StopThreadException {
+		Emulator.PauseEmuWithStatus(status);
+		sync();
+	}
+
+	public static void debugCodeBlockStart(int address) {
+		RuntimeContext.debugCodeBlockStart(cpu, address);
+	}
+
+	public static void debugCodeBlockEnd(int address, int returnAddress) {
+		RuntimeContext.debugCodeBlockEnd(cpu, address, returnAddress);
+	}
+
+	public static void debugCodeInstruction(int address, int opcode) {
+		RuntimeContext.debugCodeInstruction(cpu, address, opcode);
+	}
+
+	public static void debugMemoryReadWrite(int address, int value, int pc, boolean isRead, int width) {
+		RuntimeContext.debugMemoryReadWrite(memory, address, value, pc, isRead, width);
+	}
+
+	public static void onCodeModification(int pc, int opcode) {
+		RuntimeContext.onCodeModification(cpu, memory, pc, opcode);
+	}
+
+	public static int executeInterpreter(int address) throws Exception {
+		MEProcessor meProcessor = (MEProcessor) processor;
+		cpu.pc = address;
+		while (!meProcessor.isHalted()) {
+			meProcessor.interpret();
+
+			Instruction insn = meProcessor.getInstruction();
+			if (insn.hasOneFlag(FLAG_STARTS_NEW_BLOCK | FLAG_ENDS_BLOCK | FLAG_TRIGGERS_EXCEPTION) && !insn.hasFlags(FLAG_IS_CONDITIONAL)) {
+				break;
+			}
+		}
+
+		return cpu.pc;
+	}
+
+	public static int executeEret() throws Exception {
+		return processor.cpu.doERET(processor);
+	}
+
+	public static void executeHalt(Processor processor) throws StopThreadException {
+		RuntimeContext.executeHalt(processor);
+
+		// Wait in the compiled code until an interrupt is releasing the halt
+		MEProcessor meProcessor = (MEProcessor) processor;
+		METhread meThread = METhread.getInstance();
+		while (meProcessor.isHalted()) {
+			if (meThread.isExit()) {
+				throw new StopThreadException("Media Engine exit");
+			}
+			meThread.waitForSync(100);
+		}
+	}
+}
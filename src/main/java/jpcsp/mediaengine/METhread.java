@@ -59,6 +59,10 @@ public class METhread extends Thread {
 		start();
 	}
 
+	public boolean isExit() {
+		return exit;
+	}
+
 	public void setProcessor(MEProcessor processor) {
 		this.processor = processor;
 	}
@@ -73,7 +77,7 @@ public class METhread extends Thread {
 		}
 	}
 
-	private boolean waitForSync(int millis) {
+	boolean waitForSync(int millis) {
     	while (true) {
 	    	try {
 	    		int availablePermits = sync.drainPermits();
@@ -645,4 +645,14 @@ public class DebuggerMemory extends Memory {
 	public void write(StateOutputStream stream) throws IOException {
 		mem.write(stream);
 	}
+
+	@Override
+	public void readWithoutRam(StateInputStream stream) throws IOException {
+		mem.readWithoutRam(stream);
+	}
+
+	@Override
+	public void writeWithoutRam(StateOutputStream stream) throws IOException {
+		mem.writeWithoutRam(stream);
+	}
 }
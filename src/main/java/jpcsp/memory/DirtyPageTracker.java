@@ -0,0 +1,135 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.memory;
+
+import static jpcsp.Memory.addressMask;
+
+import java.util.Arrays;
+
+import jpcsp.MemoryMap;
+
+/**
+ * Tracking of the memory pages written since a given point in time.
+ *
+ * Each write to the memory is recording the current generation number
+ * into the written page. A consumer (e.g. a cache) is taking a snapshot
+ * of the generation number before reading the memory, and can later check
+ * if any page of a memory range has been written since that snapshot,
+ * instead of reading again the complete memory range.
+ *
+ * Only the main RAM is tracked: the VRAM is also written by the GE and
+ * any other address range is always reported as being dirty.
+ *
+ * The generation number 0 is never returned by a snapshot and can be used
+ * by a consumer as an "unknown" generation, always reported as being dirty.
+ *
+ * @author gid15
+ *
+ */
+public class DirtyPageTracker {
+	public static final int PAGE_SHIFT = 12;
+	public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+	private final long[] pageGenerations;
+	private volatile long generation = 1L;
+
+	public DirtyPageTracker(int memorySize) {
+		pageGenerations = new long[(memorySize + PAGE_SIZE - 1) >>> PAGE_SHIFT];
+	}
+
+	/**
+	 * Record a write to the given address.
+	 *
+	 * @param address the written address, already masked with Memory.addressMask
+	 */
+	public void setDirty(int address) {
+		pageGenerations[address >>> PAGE_SHIFT] = generation;
+	}
+
+	/**
+	 * Record a write to the given memory range.
+	 *
+	 * @param address the start of the written memory range
+	 * @param length  the length in bytes of the written memory range
+	 */
+	public void setDirty(int address, int length) {
+		if (length <= 0) {
+			return;
+		}
+
+		address &= addressMask;
+		int startPage = address >>> PAGE_SHIFT;
+		int endPage = Math.min((address + length - 1) >>> PAGE_SHIFT, pageGenerations.length - 1);
+		if (startPage <= endPage) {
+			Arrays.fill(pageGenerations, startPage, endPage + 1, generation);
+		}
+	}
+
+	public void setAllDirty() {
+		Arrays.fill(pageGenerations, generation);
+	}
+
+	/**
+	 * Take a snapshot of the generation number.
+	 * Must be called before reading the memory that will be checked later
+	 * with isDirty().
+	 *
+	 * @return the generation number to be passed later to isDirty()
+	 */
+	public long snapshot() {
+		synchronized (pageGenerations) {
+			long snapshot = generation;
+			generation = snapshot + 1;
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Check if a memory range has been written since the given snapshot.
+	 * A write performed concurrently to the snapshot is also reported as dirty.
+	 *
+	 * @param address  the start of the memory range
+	 * @param length   the length in bytes of the memory range
+	 * @param snapshot the value returned by snapshot(), or 0 if unknown
+	 * @return         true if the memory range could have been written since the snapshot
+	 *                 false if the memory range has not been written since the snapshot
+	 */
+	public boolean isDirty(int address, int length, long snapshot) {
+		if (snapshot <= 0L) {
+			return true;
+		}
+
+		address &= addressMask;
+		if (address < MemoryMap.START_RAM || address + length - 1 > MemoryMap.END_RAM) {
+			// Only the RAM is tracked
+			return true;
+		}
+
+		if (length <= 0) {
+			return false;
+		}
+
+		int startPage = address >>> PAGE_SHIFT;
+		int endPage = (address + length - 1) >>> PAGE_SHIFT;
+		for (int page = startPage; page <= endPage; page++) {
+			if (pageGenerations[page] >= snapshot) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+}
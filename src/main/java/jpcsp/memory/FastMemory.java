@@ -79,6 +79,8 @@ public class FastMemory extends Memory {
 			return false;
 		}
 
+		allocateDirtyPageTracker(allSize << 2);
+
 		return super.allocate();
 	}
 
@@ -86,6 +88,9 @@ public class FastMemory extends Memory {
 	public void Initialise() {
 		Arrays.fill(zero, 0);
 		Arrays.fill(all, 0);
+		if (dirtyPageTracker != null) {
+			dirtyPageTracker.setAllDirty();
+		}
 	}
 
 	@Override
@@ -166,6 +171,9 @@ public class FastMemory extends Memory {
 		}
 
 		all[address >> 2] = memData;
+		if (dirtyPageTracker != null) {
+			dirtyPageTracker.setDirty(address);
+		}
         Modules.sceDisplayModule.write8(address);
 	}
 
@@ -182,6 +190,9 @@ public class FastMemory extends Memory {
 		}
 
 		all[address >> 2] = memData;
+		if (dirtyPageTracker != null) {
+			dirtyPageTracker.setDirty(address);
+		}
         Modules.sceDisplayModule.write16(address);
 	}
 
@@ -196,6 +207,9 @@ public class FastMemory extends Memory {
 		}
 
 		all[address >> 2] = data;
+		if (dirtyPageTracker != null) {
+			dirtyPageTracker.setDirty(address);
+		}
 		Modules.sceDisplayModule.write32(address);
 	}
 
@@ -211,6 +225,9 @@ public class FastMemory extends Memory {
 
 		all[address >> 2] = (int) data;
 		all[(address >> 2) + 1] = (int) (data >> 32);
+		if (dirtyPageTracker != null) {
+			dirtyPageTracker.setDirty(address, 8);
+		}
 	}
 
 	@Override
@@ -226,6 +243,11 @@ public class FastMemory extends Memory {
 		buffer.position(address >> 2);
 		buffer.limit(round4(round4(address) + length) >> 2);
 
+		// The caller might write into the returned buffer
+		if (dirtyPageTracker != null) {
+			dirtyPageTracker.setDirty(address, length);
+		}
+
 		return buffer.slice();
 	}
 
@@ -238,6 +260,9 @@ public class FastMemory extends Memory {
 		address = normalizeAddress(address);
 
         Modules.sceDisplayModule.write(address);
+		if (dirtyPageTracker != null) {
+			dirtyPageTracker.setDirty(address, length);
+		}
 
         for (; !isIntAligned(address) && length > 0; address++, length--) {
 			write8(address, data);
@@ -266,6 +291,10 @@ public class FastMemory extends Memory {
 
 	@Override
 	public void copyToMemory(int address, ByteBuffer source, int length) {
+		if (dirtyPageTracker != null) {
+			dirtyPageTracker.setDirty(normalizeAddress(address), Math.min(length, source.remaining()));
+		}
+
 		// copy in 1 byte steps until address is "int"-aligned
 		while (!isIntAligned(address) && length > 0 && source.hasRemaining()) {
 			byte b = source.get();
@@ -326,6 +355,9 @@ public class FastMemory extends Memory {
 		source = normalizeAddress(source);
 
         Modules.sceDisplayModule.write(destination);
+		if (dirtyPageTracker != null) {
+			dirtyPageTracker.setDirty(destination, length);
+		}
 
         if (isIntAligned(source) && isIntAligned(destination) && isIntAligned(length)) {
 			// Source, destination and length are "int"-aligned
@@ -391,6 +423,9 @@ public class FastMemory extends Memory {
 	@Override
 	protected void read(StateInputStream stream, int address, int length) throws IOException {
 		stream.readInts(all, address >> 2, length >> 2);
+		if (dirtyPageTracker != null) {
+			dirtyPageTracker.setDirty(address, length);
+		}
 	}
 
 	@Override
@@ -27,9 +27,18 @@ public class MemoryReaderWriter {
 		int[] memoryInt = RuntimeContext.getMemoryInt();
 
 		// Implement the most common cases with dedicated classes.
+		IMemoryReaderWriter memoryReaderWriter = null;
 		switch (step) {
-		case 2: return new MemoryReaderWriterIntArray16(memoryInt, address);
-		case 4: return new MemoryReaderWriterIntArray32(memoryInt, address);
+		case 2: memoryReaderWriter = new MemoryReaderWriterIntArray16(memoryInt, address); break;
+		case 4: memoryReaderWriter = new MemoryReaderWriterIntArray32(memoryInt, address); break;
+		}
+
+		if (memoryReaderWriter != null) {
+			// The writes into memoryInt have to be recorded explicitly
+			if (RuntimeContext.dirtyPageTracker != null) {
+				memoryReaderWriter = new MemoryReaderWriterDirtyPageTracker(memoryReaderWriter, RuntimeContext.dirtyPageTracker);
+			}
+			return memoryReaderWriter;
 		}
 
 		// No dedicated class available, use the generic one.
@@ -102,6 +111,42 @@ public class MemoryReaderWriter {
 		}
 	}
 
+	private static final class MemoryReaderWriterDirtyPageTracker implements IMemoryReaderWriter {
+		private final IMemoryReaderWriter memoryReaderWriter;
+		private final DirtyPageTracker dirtyPageTracker;
+
+		public MemoryReaderWriterDirtyPageTracker(IMemoryReaderWriter memoryReaderWriter, DirtyPageTracker dirtyPageTracker) {
+			this.memoryReaderWriter = memoryReaderWriter;
+			this.dirtyPageTracker = dirtyPageTracker;
+		}
+
+		@Override
+		public void writeNext(int value) {
+			dirtyPageTracker.setDirty(memoryReaderWriter.getCurrentAddress());
+			memoryReaderWriter.writeNext(value);
+		}
+
+		@Override
+		public void skip(int n) {
+			memoryReaderWriter.skip(n);
+		}
+
+		@Override
+		public void flush() {
+			memoryReaderWriter.flush();
+		}
+
+		@Override
+		public int getCurrentAddress() {
+			return memoryReaderWriter.getCurrentAddress();
+		}
+
+		@Override
+		public int readCurrent() {
+			return memoryReaderWriter.readCurrent();
+		}
+	}
+
 	private static final class MemoryReaderWriterIntArray32 implements IMemoryReaderWriter {
 		private int offset;
 		private final int[] buffer;
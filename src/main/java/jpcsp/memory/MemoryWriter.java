@@ -50,10 +50,19 @@ public class MemoryWriter {
 	private static IMemoryWriter getFastMemoryWriter(int address, int step) {
 		int[] memoryInt = RuntimeContext.getMemoryInt();
 
+		IMemoryWriter memoryWriter = null;
 		switch (step) {
-		case 1: return new MemoryWriterIntArray8(memoryInt, address);
-		case 2: return new MemoryWriterIntArray16(memoryInt, address);
-		case 4: return new MemoryWriterIntArray32(memoryInt, address);
+		case 1: memoryWriter = new MemoryWriterIntArray8(memoryInt, address); break;
+		case 2: memoryWriter = new MemoryWriterIntArray16(memoryInt, address); break;
+		case 4: memoryWriter = new MemoryWriterIntArray32(memoryInt, address); break;
+		}
+
+		if (memoryWriter != null) {
+			// The writes into memoryInt have to be recorded explicitly
+			if (RuntimeContext.dirtyPageTracker != null) {
+				memoryWriter = new MemoryWriterDirtyPageTracker(memoryWriter, RuntimeContext.dirtyPageTracker);
+			}
+			return memoryWriter;
 		}
 
 		// Default (generic) MemoryWriter
@@ -212,6 +221,37 @@ public class MemoryWriter {
 		}
 	}
 
+	private static class MemoryWriterDirtyPageTracker implements IMemoryWriter {
+		private final IMemoryWriter memoryWriter;
+		private final DirtyPageTracker dirtyPageTracker;
+
+		public MemoryWriterDirtyPageTracker(IMemoryWriter memoryWriter, DirtyPageTracker dirtyPageTracker) {
+			this.memoryWriter = memoryWriter;
+			this.dirtyPageTracker = dirtyPageTracker;
+		}
+
+		@Override
+		public void writeNext(int value) {
+			dirtyPageTracker.setDirty(memoryWriter.getCurrentAddress());
+			memoryWriter.writeNext(value);
+		}
+
+		@Override
+		public void flush() {
+			memoryWriter.flush();
+		}
+
+		@Override
+		public void skip(int n) {
+			memoryWriter.skip(n);
+		}
+
+		@Override
+		public int getCurrentAddress() {
+			return memoryWriter.getCurrentAddress();
+		}
+	}
+
 	private static class MemoryWriterIntArray8 implements IMemoryWriter {
 		private int index;
 		private int offset;
@@ -49,12 +49,17 @@ public class NativeMemory extends Memory {
 
 		log.info(String.format("Using NativeMemory(littleEndian=%b)", NativeMemoryUtils.isLittleEndian()));
 
+		allocateDirtyPageTracker(memorySize);
+
 		return super.allocate();
 	}
 
 	@Override
 	public void Initialise() {
 		NativeMemoryUtils.memset(memory, 0, 0, memorySize);
+		if (dirtyPageTracker != null) {
+			dirtyPageTracker.setAllDirty();
+		}
 	}
 
 	@Override
@@ -79,6 +84,9 @@ public class NativeMemory extends Memory {
 	public void write8(int address, byte data) {
 		address &= addressMask;
 		NativeMemoryUtils.write8(memory, address, data);
+		if (dirtyPageTracker != null) {
+			dirtyPageTracker.setDirty(address);
+		}
         Modules.sceDisplayModule.write8(address);
 	}
 
@@ -86,6 +94,9 @@ public class NativeMemory extends Memory {
 	public void write16(int address, short data) {
 		address &= addressMask;
 		NativeMemoryUtils.write16(memory, address, data);
+		if (dirtyPageTracker != null) {
+			dirtyPageTracker.setDirty(address);
+		}
         Modules.sceDisplayModule.write16(address);
 	}
 
@@ -93,6 +104,9 @@ public class NativeMemory extends Memory {
 	public void write32(int address, int data) {
 		address &= addressMask;
 		NativeMemoryUtils.write32(memory, address, data);
+		if (dirtyPageTracker != null) {
+			dirtyPageTracker.setDirty(address);
+		}
         Modules.sceDisplayModule.write32(address);
 	}
 
@@ -100,6 +114,9 @@ public class NativeMemory extends Memory {
 	public void memset(int address, byte data, int length) {
 		address &= addressMask;
 		NativeMemoryUtils.memset(memory, address, data, length);
+		if (dirtyPageTracker != null) {
+			dirtyPageTracker.setDirty(address, length);
+		}
 	}
 
 	@Override
@@ -112,6 +129,11 @@ public class NativeMemory extends Memory {
 		address &= addressMask;
 		ByteBuffer buffer = NativeMemoryUtils.getBuffer(memory, address, length);
 
+		// The caller might write into the returned buffer
+		if (dirtyPageTracker != null) {
+			dirtyPageTracker.setDirty(address, length);
+		}
+
 		// Set the correct byte order
 		if (NativeMemoryUtils.isLittleEndian()) {
 			buffer.order(ByteOrder.LITTLE_ENDIAN);
@@ -126,6 +148,9 @@ public class NativeMemory extends Memory {
 	public void copyToMemory(int address, ByteBuffer source, int length) {
 		address &= addressMask;
 		length = Math.min(length, source.capacity());
+		if (dirtyPageTracker != null) {
+			dirtyPageTracker.setDirty(address, length);
+		}
 		if (source.isDirect()) {
 			NativeMemoryUtils.copyBufferToMemory(memory, address, source, source.position(), length);
 		} else {
@@ -144,6 +169,9 @@ public class NativeMemory extends Memory {
 		destination &= addressMask;
 		source &= addressMask;
         Modules.sceDisplayModule.write(destination);
+		if (dirtyPageTracker != null) {
+			dirtyPageTracker.setDirty(destination, length);
+		}
 
         if (!checkOverlap || source >= destination || !areOverlapping(destination, source, length)) {
         	NativeMemoryUtils.memcpy(memory, destination, memory, source, length);
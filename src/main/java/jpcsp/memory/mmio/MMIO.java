@@ -23,7 +23,6 @@ import java.io.IOException;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -55,7 +54,19 @@ import jpcsp.state.StateOutputStream;
 public class MMIO extends Memory {
 	private static final int STATE_VERSION = 0;
     private final Memory mem;
-    private final Map<Integer, IMMIOHandler> handlers = new HashMap<Integer, IMMIOHandler>(40000);
+    // The handlers are stored in a page table indexed by the address:
+    //     handlers[address >>> 22][(address >>> 12) & 0x3FF][address & 0xFFF]
+    // The tables are only allocated for the pages having at least one handler.
+    private static final int HANDLER_PAGE_SHIFT = 12;
+    private static final int HANDLER_PAGE_SIZE = 1 << HANDLER_PAGE_SHIFT;
+    private static final int HANDLER_PAGE_MASK = HANDLER_PAGE_SIZE - 1;
+    private static final int HANDLER_DIRECTORY_SHIFT = 22;
+    private static final int HANDLER_DIRECTORY_SIZE = 1 << (HANDLER_DIRECTORY_SHIFT - HANDLER_PAGE_SHIFT);
+    private static final int HANDLER_DIRECTORY_MASK = HANDLER_DIRECTORY_SIZE - 1;
+    private final IMMIOHandler[][][] handlers = new IMMIOHandler[1 << (32 - HANDLER_DIRECTORY_SHIFT)][][];
+    // The memory remapped by remapMemoryAtProcessorReset()
+    private static final int REMAPPED_MEMORY_ADDRESS = 0xBFD00000;
+    private static final int REMAPPED_MEMORY_SIZE = 0x100000;
     protected static final boolean[] validMemoryPage = new boolean[Memory.validMemoryPage.length];
     private final Map<Integer, IMMIOHandler> sortedHandlers = new TreeMap<Integer, IMMIOHandler>();
 
@@ -84,7 +95,7 @@ public class MMIO extends Memory {
 
     @Override
 	public void Initialise() {
-    	handlers.clear();
+    	Arrays.fill(handlers, null);
 
     	addHandler(0xA7F00000, 0x24, new MMIOHandlerA7F00000(0xA7F00000), 4);
     	addHandlerRW(0xA7F80000, 0x2000, 4);
@@ -140,7 +151,7 @@ public class MMIO extends Memory {
     	// The memory at 0xBFD00000 will be remapped to 0xBFC00000 after IPL execution
     	// making the original memory at 0xBFC00000 no longer accessible.
     	// See remapMemoryAtProcessorReset().
-    	addHandlerRW(0xBFD00000, 0x100000); // 1Mb embedded RAM
+    	addHandlerRW(REMAPPED_MEMORY_ADDRESS, REMAPPED_MEMORY_SIZE); // 1Mb embedded RAM
 
     	addHandler(MMIOHandlerNandPage.BASE_ADDRESS1, 0x90C, MMIOHandlerNandPage.getInstance());
     	addHandler(MMIOHandlerNandPage.BASE_ADDRESS2, 0x90C, MMIOHandlerNandPage.getInstance());
@@ -282,16 +293,38 @@ public class MMIO extends Memory {
     	sortedHandlers.put(baseAddress, handler);
 
     	for (int i = 0; i < length; i++) {
-    		handlers.put(baseAddress + i, handler);
+    		setHandler(baseAddress + i, handler);
     	}
 
     	if (additionalOffsets != null) {
 	    	for (int offset : additionalOffsets) {
-	    		handlers.put(baseAddress + offset, handler);
+	    		setHandler(baseAddress + offset, handler);
 	    	}
     	}
     }
 
+    private void setHandler(int address, IMMIOHandler handler) {
+    	IMMIOHandler[][] directory = handlers[address >>> HANDLER_DIRECTORY_SHIFT];
+    	if (directory == null) {
+    		if (handler == null) {
+    			return;
+    		}
+    		directory = new IMMIOHandler[HANDLER_DIRECTORY_SIZE][];
+    		handlers[address >>> HANDLER_DIRECTORY_SHIFT] = directory;
+    	}
+
+    	IMMIOHandler[] page = directory[(address >>> HANDLER_PAGE_SHIFT) & HANDLER_DIRECTORY_MASK];
+    	if (page == null) {
+    		if (handler == null) {
+    			return;
+    		}
+    		page = new IMMIOHandler[HANDLER_PAGE_SIZE];
+    		directory[(address >>> HANDLER_PAGE_SHIFT) & HANDLER_DIRECTORY_MASK] = page;
+    	}
+
+    	page[address & HANDLER_PAGE_MASK] = handler;
+    }
+
     protected void addHandlerRW(int baseAddress, int length) {
     	addHandlerRW(baseAddress, length, null);
     }
@@ -312,7 +345,7 @@ public class MMIO extends Memory {
 
     private void removeHandler(int baseAddress, int length) {
     	for (int i = 0; i < length; i++) {
-    		handlers.remove(baseAddress + i);
+    		setHandler(baseAddress + i, null);
     	}
     }
 
@@ -321,19 +354,46 @@ public class MMIO extends Memory {
 		// When resetting the main processor, the memory content that was accessible
 		// at address 0xBFD00000 is now made available at address 0xBFC00000 and
 		// the address 0xBFD00000 becomes invalid.
-    	final int size = 0x100000;
-		memcpy(0xBFC00000, 0xBFD00000, size);
+    	final int size = REMAPPED_MEMORY_SIZE;
+		memcpy(0xBFC00000, REMAPPED_MEMORY_ADDRESS, size);
 		RuntimeContext.invalidateRange(0xBFC00000, size);
-		removeHandler(0xBFD00000, size);
-		RuntimeContext.removeCodeBlocks(0xBFD00000, size);
+		removeHandler(REMAPPED_MEMORY_ADDRESS, size);
+		RuntimeContext.removeCodeBlocks(REMAPPED_MEMORY_ADDRESS, size);
     }
 
     protected IMMIOHandler getHandler(int address) {
-    	return handlers.get(address);
+    	IMMIOHandler[][] directory = handlers[address >>> HANDLER_DIRECTORY_SHIFT];
+    	if (directory == null) {
+    		return null;
+    	}
+
+    	IMMIOHandler[] page = directory[(address >>> HANDLER_PAGE_SHIFT) & HANDLER_DIRECTORY_MASK];
+    	if (page == null) {
+    		return null;
+    	}
+
+    	return page[address & HANDLER_PAGE_MASK];
     }
 
-    private boolean hasHandler(int address) {
-    	return handlers.containsKey(address);
+    public boolean hasHandler(int address) {
+    	return getHandler(address) != null;
+    }
+
+    /**
+     * Retrieve the handler of an address, as long as the handler
+     * will never be removed or replaced (e.g. by remapMemoryAtProcessorReset()).
+     * Used by the compiler to call directly the handler of a constant address.
+     *
+     * @param address the address
+     * @return        the handler of the address,
+     *                or null if the address has no handler or if the handler can be removed
+     */
+    public IMMIOHandler getFixedHandler(int address) {
+    	if (address >= REMAPPED_MEMORY_ADDRESS && address < REMAPPED_MEMORY_ADDRESS + REMAPPED_MEMORY_SIZE) {
+    		return null;
+    	}
+
+    	return getHandler(address);
     }
 
     public static boolean isAddressGood(int address) {
@@ -16,7 +16,10 @@ along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
  */
 package jpcsp.nec78k0;
 
+import java.io.IOException;
+
 import jpcsp.memory.mmio.MMIOHandlerReadWrite;
+import jpcsp.state.StateInputStream;
 
 /**
  * @author gid15
@@ -33,6 +36,52 @@ public class Nec78k0MMIOHandlerReadWrite extends MMIOHandlerReadWrite {
 		this.processor = processor;
 	}
 
+	public boolean isAddressInRAM(int address, int length) {
+		return address >= baseAddress && address + length <= baseAddress + (getInternalMemory().length << 2);
+	}
+
+	private void invalidateDecodedInstructions(int address, int length) {
+		if (processor != null) {
+			processor.invalidateDecodedInstructions(address, length);
+		}
+	}
+
+	private void invalidateDecodedInstructions() {
+		if (processor != null) {
+			processor.invalidateDecodedInstructions();
+		}
+	}
+
+	@Override
+	public void write32(int address, int value) {
+		super.write32(address, value);
+		invalidateDecodedInstructions(address, 4);
+	}
+
+	@Override
+	public void write16(int address, short value) {
+		super.write16(address, value);
+		invalidateDecodedInstructions(address, 2);
+	}
+
+	@Override
+	public void write8(int address, byte value) {
+		super.write8(address, value);
+		invalidateDecodedInstructions(address, 1);
+	}
+
+	@Override
+	public void read(StateInputStream stream) throws IOException {
+		super.read(stream);
+		invalidateDecodedInstructions();
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		invalidateDecodedInstructions();
+	}
+
 	@Override
 	protected int getPc() {
 		return processor.getCurrentInstructionPc();
@@ -94,6 +94,15 @@ public class Nec78k0Memory extends MMIO {
 		return super.getHandler(address);
 	}
 
+	/**
+	 * @param address the start address of the memory range
+	 * @param length  the length of the memory range
+	 * @return        true if the memory range is completely located in the RAM
+	 */
+	public boolean isAddressInRAM(int address, int length) {
+		return ram0Handler.isAddressInRAM(address, length);
+	}
+
 	private boolean isSfrHandler(int address) {
 		return address >= SFR_ADDRESS && address <= 0xFFFF;
 	}
@@ -28,6 +28,8 @@ import static jpcsp.util.Utilities.setBit;
 import static jpcsp.util.Utilities.u8;
 import static jpcsp.util.Utilities.writeUnaligned16;
 
+import java.util.Arrays;
+
 import org.slf4j.Logger;
 
 import jpcsp.Emulator;
@@ -83,6 +85,12 @@ public class Nec78k0Processor {
 	private int pc;
 	private int currentInstructionPc;
 	private int currentInstructionOpcode;
+	// Cache of the decoded instructions, indexed by the instruction address.
+	// An entry is invalidated when the RAM covering the instruction is written.
+	private static final int DECODED_INSTRUCTIONS_SIZE = 0x10000;
+	private final Nec78k0Instruction[] decodedInstructions = new Nec78k0Instruction[DECODED_INSTRUCTIONS_SIZE];
+	private final int[] decodedOpcodes = new int[DECODED_INSTRUCTIONS_SIZE];
+	private boolean decodedInstructionCacheEnabled = true;
 	private final byte[][] registerBanks = new byte[4][8];
 	// Current register bank (from psw)
 	private int registerBank;
@@ -124,9 +132,16 @@ public class Nec78k0Processor {
 
 	public void interpret() {
 		currentInstructionPc = pc;
-		currentInstructionOpcode = 0;
-		getNextInstructionOpcode();
-		Nec78k0Instruction instruction = Nec78k0Decoder.instruction(this, currentInstructionOpcode);
+		Nec78k0Instruction instruction = decodedInstructions[pc & 0xFFFF];
+		if (instruction != null) {
+			currentInstructionOpcode = decodedOpcodes[pc & 0xFFFF];
+			pc += instruction.getInstructionSize();
+		} else {
+			currentInstructionOpcode = 0;
+			getNextInstructionOpcode();
+			instruction = Nec78k0Decoder.instruction(this, currentInstructionOpcode);
+			addDecodedInstruction(instruction);
+		}
 		if (log.isTraceEnabled()) {
 			String opcode;
 			switch (instruction.getInstructionSize()) {
@@ -141,6 +156,63 @@ public class Nec78k0Processor {
 		instruction.interpret(this, currentInstructionOpcode);
 	}
 
+	private void addDecodedInstruction(Nec78k0Instruction instruction) {
+		if (!decodedInstructionCacheEnabled) {
+			return;
+		}
+
+		// Only the instructions completely located in the RAM can be cached,
+		// the RAM writes are invalidating the cached instructions.
+		int size = pc - currentInstructionPc;
+		if (size != instruction.getInstructionSize() || !mem.isAddressInRAM(currentInstructionPc, size)) {
+			return;
+		}
+
+		decodedInstructions[currentInstructionPc] = instruction;
+		decodedOpcodes[currentInstructionPc] = currentInstructionOpcode;
+	}
+
+	/**
+	 * Invalidate the cached instructions covering a memory range,
+	 * e.g. after a write to the memory range.
+	 *
+	 * @param address the start address of the memory range
+	 * @param length  the length of the memory range
+	 */
+	public void invalidateDecodedInstructions(int address, int length) {
+		// An instruction is at most 4 bytes long and
+		// could start up to 3 bytes before the memory range
+		int start = Math.max(address - 3, 0);
+		int end = Math.min(address + length, DECODED_INSTRUCTIONS_SIZE);
+		for (int i = start; i < end; i++) {
+			decodedInstructions[i] = null;
+		}
+	}
+
+	public void invalidateDecodedInstructions() {
+		Arrays.fill(decodedInstructions, null);
+	}
+
+	public boolean isDecodedInstructionCacheEnabled() {
+		return decodedInstructionCacheEnabled;
+	}
+
+	public void setDecodedInstructionCacheEnabled(boolean decodedInstructionCacheEnabled) {
+		this.decodedInstructionCacheEnabled = decodedInstructionCacheEnabled;
+		invalidateDecodedInstructions();
+	}
+
+	public int getNumberDecodedInstructions() {
+		int count = 0;
+		for (int i = 0; i < DECODED_INSTRUCTIONS_SIZE; i++) {
+			if (decodedInstructions[i] != null) {
+				count++;
+			}
+		}
+
+		return count;
+	}
+
 	public int getNextInstructionOpcode() {
 		int opcode = mem.internalRead8(pc);
 		pc++;
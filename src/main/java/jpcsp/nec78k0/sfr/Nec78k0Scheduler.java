@@ -18,16 +18,12 @@ package jpcsp.nec78k0.sfr;
 
 import static jpcsp.memory.mmio.syscon.MMIOHandlerSysconFirmwareSfr.now;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.ListIterator;
-
 import org.slf4j.Logger;
 
 import jpcsp.Allegrex.compiler.RuntimeContext;
 import jpcsp.HLE.kernel.types.IAction;
 import jpcsp.scheduler.SchedulerAction;
+import jpcsp.scheduler.SchedulerQueue;
 
 /**
  * @author gid15
@@ -36,11 +32,10 @@ import jpcsp.scheduler.SchedulerAction;
 public class Nec78k0Scheduler extends Thread {
 	private Logger log;
 	private final Object update = new Object();
-	private final List<SchedulerAction> actions;
-	private SchedulerAction nextAction;
+	private final SchedulerQueue actions;
 
 	public Nec78k0Scheduler() {
-		actions = new LinkedList<SchedulerAction>();
+		actions = new SchedulerQueue();
 	}
 
 	public void setLogger(Logger log) {
@@ -83,6 +78,7 @@ public class Nec78k0Scheduler extends Thread {
 	}
 
 	private synchronized long getNextActionDelay(long noActionDelay) {
+		SchedulerAction nextAction = actions.peek();
 		if (nextAction == null) {
 			return noActionDelay;
 		}
@@ -91,33 +87,13 @@ public class Nec78k0Scheduler extends Thread {
 		return nextAction.getSchedule() - now;
 	}
 
-	private boolean updateNextAction(SchedulerAction schedulerAction) {
-		if (nextAction == null || schedulerAction.getSchedule() < nextAction.getSchedule()) {
-			nextAction = schedulerAction;
-			return true;
-		}
-
-		return false;
-	}
-
-	private void updateNextAction() {
-		nextAction = null;
-
-		for (Iterator<SchedulerAction> it = actions.iterator(); it.hasNext(); ) {
-			SchedulerAction schedulerAction = it.next();
-			updateNextAction(schedulerAction);
-		}
-	}
-
 	private synchronized IAction getAction(long now) {
+		SchedulerAction nextAction = actions.peek();
 		if (nextAction == null || now < nextAction.getSchedule()) {
 			return null;
 		}
 
-		IAction action = nextAction.getAction();
-
-		actions.remove(nextAction);
-		updateNextAction();
+		IAction action = actions.poll().getAction();
 
 		if (log.isTraceEnabled()) {
 			log.trace(String.format("Scheduler.getAction %s, now=0x%X", action, now));
@@ -131,8 +107,7 @@ public class Nec78k0Scheduler extends Thread {
 			log.trace(String.format("Scheduler.addSchedulerAction %s", schedulerAction));
 		}
 
-		actions.add(schedulerAction);
-		if (updateNextAction(schedulerAction)) {
+		if (actions.add(schedulerAction)) {
 			synchronized (update) {
 				update.notifyAll();
 			}
@@ -163,16 +138,10 @@ public class Nec78k0Scheduler extends Thread {
 	}
 
 	public synchronized void removeAction(IAction action) {
-		for (ListIterator<SchedulerAction> lit = actions.listIterator(); lit.hasNext(); ) {
-			SchedulerAction schedulerAction = lit.next();
-			if (schedulerAction.getAction() == action) {
-				if (log.isTraceEnabled()) {
-					log.trace(String.format("Scheduler.removeAction %s", schedulerAction));
-				}
-
-				lit.remove();
-				updateNextAction();
-				break;
+		SchedulerAction schedulerAction = actions.remove(action);
+		if (schedulerAction != null) {
+			if (log.isTraceEnabled()) {
+				log.trace(String.format("Scheduler.removeAction %s", schedulerAction));
 			}
 		}
 	}
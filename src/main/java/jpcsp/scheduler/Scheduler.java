@@ -16,19 +16,15 @@ along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
  */
 package jpcsp.scheduler;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.ListIterator;
-
 import jpcsp.Emulator;
 import jpcsp.Allegrex.compiler.RuntimeContext;
 import jpcsp.HLE.kernel.types.IAction;
 
 public class Scheduler {
 	private static Scheduler instance = null;
-	private final List<SchedulerAction> actions;
-	private SchedulerAction nextAction;
+	private final SchedulerQueue actions;
+	// The first action of the queue, can be read without synchronization
+	private volatile SchedulerAction nextAction;
 
 	public static Scheduler getInstance() {
 		if (instance == null) {
@@ -39,7 +35,7 @@ public class Scheduler {
 	}
 
 	private Scheduler() {
-		actions = new LinkedList<SchedulerAction>();
+		actions = new SchedulerQueue();
 	}
 
 	public synchronized void reset() {
@@ -48,10 +44,8 @@ public class Scheduler {
 	}
 
 	public void step() {
-		synchronized (this) {
-			if (nextAction == null) {
-				return;
-			}
+		if (nextAction == null) {
+			return;
 		}
 
 		long now = getNow();
@@ -64,18 +58,19 @@ public class Scheduler {
 		}
 	}
 
-	public synchronized long getNextActionDelay(long noActionDelay) {
-		if (nextAction == null) {
+	public long getNextActionDelay(long noActionDelay) {
+		SchedulerAction schedulerAction = nextAction;
+		if (schedulerAction == null) {
 			return noActionDelay;
 		}
 
 		long now = getNow();
-		return nextAction.getSchedule() - now;
+		return schedulerAction.getSchedule() - now;
 	}
 
 	private void addSchedulerAction(SchedulerAction schedulerAction) {
-		actions.add(schedulerAction);
-		if (updateNextAction(schedulerAction)) {
+		if (actions.add(schedulerAction)) {
+			nextAction = schedulerAction;
 			RuntimeContext.onNextScheduleModified();
 		}
 	}
@@ -104,47 +99,27 @@ public class Scheduler {
 	}
 
 	public synchronized void removeAction(long schedule, IAction action) {
-		for (ListIterator<SchedulerAction> lit = actions.listIterator(); lit.hasNext(); ) {
-			SchedulerAction schedulerAction = lit.next();
-			if (schedulerAction.getSchedule() == schedule && schedulerAction.getAction() == action) {
-				lit.remove();
-				updateNextAction();
-				break;
-			}
+		SchedulerAction schedulerAction = actions.remove(schedule, action);
+		if (schedulerAction != null && schedulerAction == nextAction) {
+			updateNextAction();
 		}
 	}
 
-	private boolean updateNextAction(SchedulerAction schedulerAction) {
-		if (nextAction == null || schedulerAction.getSchedule() < nextAction.getSchedule()) {
-			nextAction = schedulerAction;
-			return true;
-		}
-
-		return false;
-	}
-
 	private void updateNextAction() {
-		nextAction = null;
-
-		for (Iterator<SchedulerAction> it = actions.iterator(); it.hasNext(); ) {
-			SchedulerAction schedulerAction = it.next();
-			updateNextAction(schedulerAction);
-		}
-
+		nextAction = actions.peek();
 		RuntimeContext.onNextScheduleModified();
 	}
 
 	public synchronized IAction getAction(long now) {
-		if (nextAction == null || now < nextAction.getSchedule()) {
+		SchedulerAction schedulerAction = nextAction;
+		if (schedulerAction == null || now < schedulerAction.getSchedule()) {
 			return null;
 		}
 
-		IAction action = nextAction.getAction();
-
-		actions.remove(nextAction);
+		actions.poll();
 		updateNextAction();
 
-		return action;
+		return schedulerAction.getAction();
 	}
 
 	public static long getNow() {
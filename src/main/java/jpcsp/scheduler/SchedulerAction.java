@@ -21,6 +21,10 @@ import jpcsp.HLE.kernel.types.IAction;
 public class SchedulerAction {
 	private long schedule;
 	private IAction action;
+	// Used by the SchedulerQueue
+	int heapIndex = -1;
+	long sequence;
+	SchedulerAction nextSameAction;
 
 	public SchedulerAction(long schedule, IAction action) {
 		this.schedule = schedule;
@@ -0,0 +1,231 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.scheduler;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import jpcsp.HLE.kernel.types.IAction;
+
+/**
+ * Priority queue of SchedulerActions, ordered by their schedule.
+ *
+ * The actions are stored in a binary min-heap, each SchedulerAction
+ * knowing its own position in the heap. The SchedulerActions are also
+ * indexed by their IAction so that an action can be found and removed
+ * without scanning the complete queue:
+ * - add, poll and remove are O(log n)
+ * - peek is O(1)
+ *
+ * Actions having the same schedule are returned in the order they have been added.
+ *
+ * This class is not thread-safe, the caller has to synchronize the accesses.
+ * The schedule of a SchedulerAction must not be modified while it is queued.
+ *
+ * @author gid15
+ *
+ */
+public class SchedulerQueue {
+	private SchedulerAction[] heap = new SchedulerAction[64];
+	private int size;
+	private long sequence;
+	// All the SchedulerActions of one IAction, chained in the order they have been added
+	private final Map<IAction, SchedulerAction> actions = new IdentityHashMap<IAction, SchedulerAction>();
+
+	/**
+	 * Add a new SchedulerAction to the queue.
+	 *
+	 * @param schedulerAction the SchedulerAction to be added
+	 * @return true if the added SchedulerAction is now the first one of the queue
+	 *         false otherwise
+	 */
+	public boolean add(SchedulerAction schedulerAction) {
+		schedulerAction.sequence = sequence++;
+		schedulerAction.nextSameAction = null;
+
+		SchedulerAction sameAction = actions.get(schedulerAction.getAction());
+		if (sameAction == null) {
+			actions.put(schedulerAction.getAction(), schedulerAction);
+		} else {
+			while (sameAction.nextSameAction != null) {
+				sameAction = sameAction.nextSameAction;
+			}
+			sameAction.nextSameAction = schedulerAction;
+		}
+
+		if (size >= heap.length) {
+			heap = Arrays.copyOf(heap, heap.length << 1);
+		}
+		int index = size++;
+		heap[index] = schedulerAction;
+		schedulerAction.heapIndex = index;
+		siftUp(index);
+
+		return heap[0] == schedulerAction;
+	}
+
+	/**
+	 * @return the first SchedulerAction of the queue, or null if the queue is empty.
+	 */
+	public SchedulerAction peek() {
+		return size == 0 ? null : heap[0];
+	}
+
+	/**
+	 * Remove the first SchedulerAction of the queue.
+	 *
+	 * @return the removed SchedulerAction, or null if the queue is empty.
+	 */
+	public SchedulerAction poll() {
+		if (size == 0) {
+			return null;
+		}
+
+		SchedulerAction schedulerAction = heap[0];
+		remove(schedulerAction);
+
+		return schedulerAction;
+	}
+
+	/**
+	 * Remove the first added SchedulerAction matching the given action and schedule.
+	 *
+	 * @param schedule the schedule of the SchedulerAction to be removed
+	 * @param action   the action of the SchedulerAction to be removed
+	 * @return the removed SchedulerAction, or null if not found.
+	 */
+	public SchedulerAction remove(long schedule, IAction action) {
+		for (SchedulerAction schedulerAction = actions.get(action); schedulerAction != null; schedulerAction = schedulerAction.nextSameAction) {
+			if (schedulerAction.getSchedule() == schedule) {
+				remove(schedulerAction);
+				return schedulerAction;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Remove the first added SchedulerAction matching the given action, whatever its schedule.
+	 *
+	 * @param action   the action of the SchedulerAction to be removed
+	 * @return the removed SchedulerAction, or null if not found.
+	 */
+	public SchedulerAction remove(IAction action) {
+		SchedulerAction schedulerAction = actions.get(action);
+		if (schedulerAction != null) {
+			remove(schedulerAction);
+		}
+
+		return schedulerAction;
+	}
+
+	private void remove(SchedulerAction schedulerAction) {
+		// Unlink from the actions index
+		IAction action = schedulerAction.getAction();
+		SchedulerAction sameAction = actions.get(action);
+		if (sameAction == schedulerAction) {
+			if (schedulerAction.nextSameAction == null) {
+				actions.remove(action);
+			} else {
+				actions.put(action, schedulerAction.nextSameAction);
+			}
+		} else {
+			while (sameAction.nextSameAction != schedulerAction) {
+				sameAction = sameAction.nextSameAction;
+			}
+			sameAction.nextSameAction = schedulerAction.nextSameAction;
+		}
+		schedulerAction.nextSameAction = null;
+
+		// Remove from the heap
+		int index = schedulerAction.heapIndex;
+		size--;
+		if (index != size) {
+			SchedulerAction last = heap[size];
+			heap[index] = last;
+			last.heapIndex = index;
+			siftDown(index);
+			if (heap[index] == last) {
+				siftUp(index);
+			}
+		}
+		heap[size] = null;
+		schedulerAction.heapIndex = -1;
+	}
+
+	public void clear() {
+		Arrays.fill(heap, 0, size, null);
+		size = 0;
+		actions.clear();
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	private static boolean isBefore(SchedulerAction a, SchedulerAction b) {
+		if (a.getSchedule() != b.getSchedule()) {
+			return a.getSchedule() < b.getSchedule();
+		}
+		return a.sequence < b.sequence;
+	}
+
+	private void siftUp(int index) {
+		SchedulerAction schedulerAction = heap[index];
+		while (index > 0) {
+			int parentIndex = (index - 1) >> 1;
+			SchedulerAction parent = heap[parentIndex];
+			if (!isBefore(schedulerAction, parent)) {
+				break;
+			}
+			heap[index] = parent;
+			parent.heapIndex = index;
+			index = parentIndex;
+		}
+		heap[index] = schedulerAction;
+		schedulerAction.heapIndex = index;
+	}
+
+	private void siftDown(int index) {
+		SchedulerAction schedulerAction = heap[index];
+		while (true) {
+			int childIndex = (index << 1) + 1;
+			if (childIndex >= size) {
+				break;
+			}
+			SchedulerAction child = heap[childIndex];
+			if (childIndex + 1 < size && isBefore(heap[childIndex + 1], child)) {
+				childIndex++;
+				child = heap[childIndex];
+			}
+			if (!isBefore(child, schedulerAction)) {
+				break;
+			}
+			heap[index] = child;
+			child.heapIndex = index;
+			index = childIndex;
+		}
+		heap[index] = schedulerAction;
+		schedulerAction.heapIndex = index;
+	}
+}
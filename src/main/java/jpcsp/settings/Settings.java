@@ -110,6 +110,14 @@ public class Settings {
         return getTmpDirectory() + getDiscDirectory();
     }
 
+    /**
+     * @param fileName the file name
+     * @return the file in the temporary directory of the current disc
+     */
+    public File getDiscTmpFile(String fileName) {
+        return new File(getDiscTmpDirectory() + fileName);
+    }
+
     public String getDiscDirectory() {
         if (useUmdIdForDiscDirectory) {
             return String.format("%s-%s%c", State.discId, State.umdId, File.separatorChar);
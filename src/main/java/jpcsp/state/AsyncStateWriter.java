@@ -0,0 +1,396 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.state;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+
+import jpcsp.Allegrex.compiler.RuntimeContext;
+import jpcsp.memory.DirtyPageTracker;
+
+/**
+ * Asynchronous writing of the states.
+ *
+ * The state is first serialized into a StateSnapshot by the calling thread,
+ * the memory being only copied and not serialized. The emulator is thus only
+ * paused for the time required to copy the memory.
+ * The compression and the writing to the file are then performed by a background thread.
+ * The file written in the non-incremental mode is read by the existing code,
+ * but is not byte-identical to the file written synchronously (see StateSnapshot).
+ *
+ * In the incremental mode, a key frame containing the complete state is
+ * written to the file "<fileName>.keyframe" and the file "<fileName>" only
+ * contains the memory pages having changed since the key frame.
+ * A new key frame is written after a given number of incremental states.
+ * The incremental states are using the following format, compressed with GZIP:
+ *     int    INCREMENTAL_MAGIC
+ *     int    INCREMENTAL_VERSION
+ *     UTF    name of the key frame file, in the same directory, or empty for a key frame
+ *     int    number of int segments
+ *     for each int segment:
+ *         bytes segment (int length + bytes)
+ *         int segment (int length, and for each page: boolean changed + page ints if changed)
+ *     last bytes segment (int length + bytes)
+ *
+ * @author gid15
+ *
+ */
+public class AsyncStateWriter {
+	private static Logger log = State.log;
+	public static final int INCREMENTAL_MAGIC = 0x5453504A; // "JPST"
+	private static final int INCREMENTAL_VERSION = 0;
+	public static final String KEY_FRAME_SUFFIX = ".keyframe";
+	private static final int PAGE_SIZE = DirtyPageTracker.PAGE_SIZE;
+	private static final int PAGE_INTS = PAGE_SIZE >> 2;
+	private static AsyncStateWriter instance;
+	private final LinkedBlockingQueue<PendingWrite> pendingWrites = new LinkedBlockingQueue<PendingWrite>();
+	private WriterThread thread;
+	private int pendingCount;
+	// Last key frame, only accessed by the writer thread
+	private StateSnapshot keyFrame;
+	private String keyFrameFileName;
+	private int deltasSinceKeyFrame;
+	// Statistics
+	private int writeCount;
+	private long totalPauseMicros;
+	private long maxPauseMicros;
+	private long totalBytesWritten;
+
+	private static class PendingWrite {
+		public final String fileName;
+		public final StateSnapshot stateSnapshot;
+		public final boolean incremental;
+		public final int keyFrameInterval;
+		public final long pauseMicros;
+
+		public PendingWrite(String fileName, StateSnapshot stateSnapshot, boolean incremental, int keyFrameInterval, long pauseMicros) {
+			this.fileName = fileName;
+			this.stateSnapshot = stateSnapshot;
+			this.incremental = incremental;
+			this.keyFrameInterval = keyFrameInterval;
+			this.pauseMicros = pauseMicros;
+		}
+	}
+
+	private class WriterThread extends Thread {
+		private volatile boolean exit;
+
+		@Override
+		public void run() {
+			RuntimeContext.setLog4jMDC(getName());
+
+			while (!exit) {
+				PendingWrite pendingWrite = null;
+				try {
+					pendingWrite = pendingWrites.poll(100, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					// Ignore Exception
+				}
+
+				if (pendingWrite != null) {
+					write(pendingWrite);
+				}
+			}
+		}
+	}
+
+	public static AsyncStateWriter getInstance() {
+		if (instance == null) {
+			instance = new AsyncStateWriter();
+		}
+
+		return instance;
+	}
+
+	private AsyncStateWriter() {
+	}
+
+	public static void exit() {
+		if (instance != null) {
+			instance.waitForPendingWrites();
+			if (instance.thread != null) {
+				instance.thread.exit = true;
+				instance.thread = null;
+			}
+			if (instance.writeCount > 0) {
+				log.info(instance.toString());
+			}
+		}
+	}
+
+	/**
+	 * Wait for the completion of all the pending writes.
+	 */
+	public synchronized void waitForPendingWrites() {
+		while (pendingCount > 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// Ignore exception
+			}
+		}
+	}
+
+	/**
+	 * Take a snapshot of the state and write it asynchronously to a file.
+	 *
+	 * @param state            the state to be written
+	 * @param fileName         the file name
+	 * @param incremental      true if only the changes since the last key frame have to be written
+	 * @param keyFrameInterval the number of incremental states between 2 key frames
+	 */
+	public void write(IState state, String fileName, boolean incremental, int keyFrameInterval) throws IOException {
+		long start = System.nanoTime();
+
+		StateSnapshot stateSnapshot = new StateSnapshot();
+		StateOutputStream stream = new StateOutputStream(stateSnapshot);
+		try {
+			state.write(stream);
+		} finally {
+			stream.close();
+		}
+
+		long pauseMicros = (System.nanoTime() - start) / 1000;
+
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Snapshot of the state for file '%s' taken in %d us: %s", fileName, pauseMicros, stateSnapshot));
+		}
+
+		synchronized (this) {
+			pendingCount++;
+			if (thread == null) {
+				thread = new WriterThread();
+				thread.setName("Async State Writer");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+		pendingWrites.add(new PendingWrite(fileName, stateSnapshot, incremental, keyFrameInterval, pauseMicros));
+	}
+
+	private void write(PendingWrite pendingWrite) {
+		long start = System.nanoTime();
+		String fileName = pendingWrite.fileName;
+		try {
+			long bytesWritten = 0L;
+			int changedPages = -1;
+			if (pendingWrite.incremental) {
+				String keyFrameFileName = fileName + KEY_FRAME_SUFFIX;
+				StateSnapshot stateSnapshot = pendingWrite.stateSnapshot;
+				if (keyFrame == null || !keyFrameFileName.equals(this.keyFrameFileName) || deltasSinceKeyFrame >= pendingWrite.keyFrameInterval || !stateSnapshot.hasSameStructure(keyFrame)) {
+					writeIncremental(keyFrameFileName, stateSnapshot, null, null);
+					bytesWritten += new File(keyFrameFileName).length();
+					keyFrame = stateSnapshot;
+					this.keyFrameFileName = keyFrameFileName;
+					deltasSinceKeyFrame = 0;
+				}
+
+				changedPages = writeIncremental(fileName, stateSnapshot, keyFrame, keyFrameFileName);
+				deltasSinceKeyFrame++;
+			} else {
+				OutputStream out = new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(fileName)));
+				try {
+					pendingWrite.stateSnapshot.writeTo(out);
+				} finally {
+					out.close();
+				}
+			}
+			bytesWritten += new File(fileName).length();
+
+			long writeMillis = (System.nanoTime() - start) / 1000000;
+			synchronized (this) {
+				writeCount++;
+				totalPauseMicros += pendingWrite.pauseMicros;
+				maxPauseMicros = Math.max(maxPauseMicros, pendingWrite.pauseMicros);
+				totalBytesWritten += bytesWritten;
+			}
+
+			if (log.isInfoEnabled()) {
+				String changes = changedPages < 0 ? "" : String.format(", %d pages changed since key frame", changedPages);
+				log.info(String.format("Written state to file '%s': pause %d ms, %d bytes written in %d ms%s", fileName, pendingWrite.pauseMicros / 1000, bytesWritten, writeMillis, changes));
+			}
+		} catch (IOException e) {
+			log.error(String.format("Error writing state to file '%s'", fileName), e);
+		} finally {
+			synchronized (this) {
+				pendingCount--;
+				notifyAll();
+			}
+		}
+	}
+
+	private static boolean isPageChanged(int[] ints, int[] baseInts, int offset, int length) {
+		if (ints == baseInts) {
+			return false;
+		}
+
+		for (int i = 0; i < length; i++) {
+			if (ints[offset + i] != baseInts[offset + i]) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Write an incremental state.
+	 *
+	 * @param fileName          the file name
+	 * @param stateSnapshot     the state to be written
+	 * @param baseSnapshot      the key frame, or null to write a key frame
+	 * @param baseFileName      the file name of the key frame
+	 * @return                  the number of pages written
+	 */
+	private static int writeIncremental(String fileName, StateSnapshot stateSnapshot, StateSnapshot baseSnapshot, String baseFileName) throws IOException {
+		int writtenPages = 0;
+		ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(fileName))));
+		try {
+			out.writeInt(INCREMENTAL_MAGIC);
+			out.writeInt(INCREMENTAL_VERSION);
+			out.writeUTF(baseSnapshot == null ? "" : new File(baseFileName).getName());
+
+			int numberSegments = stateSnapshot.getNumberSegments();
+			out.writeInt(numberSegments);
+			for (int i = 0; i < numberSegments; i++) {
+				writeBytes(out, stateSnapshot.getBytes(i));
+
+				int[] ints = stateSnapshot.getInts(i);
+				int[] baseInts = baseSnapshot == null ? null : baseSnapshot.getInts(i);
+				out.writeInt(ints.length);
+				for (int offset = 0; offset < ints.length; offset += PAGE_INTS) {
+					int length = Math.min(ints.length - offset, PAGE_INTS);
+					boolean changed = baseInts == null || isPageChanged(ints, baseInts, offset, length);
+					out.writeBoolean(changed);
+					if (changed) {
+						page.clear();
+						page.asIntBuffer().put(ints, offset, length);
+						out.write(page.array(), 0, length << 2);
+						writtenPages++;
+					}
+				}
+			}
+			writeBytes(out, stateSnapshot.getBytes(numberSegments));
+		} finally {
+			out.close();
+		}
+
+		return writtenPages;
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+
+		return bytes;
+	}
+
+	/**
+	 * Read an incremental state and its key frame.
+	 *
+	 * @param fileName the file name
+	 * @return         the complete state
+	 */
+	public static StateSnapshot readIncremental(String fileName) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(fileName))));
+		try {
+			return readIncremental(fileName, in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read an incremental state and its key frame.
+	 *
+	 * @param fileName the file name, used to find the key frame
+	 * @param in       the uncompressed input stream
+	 * @return         the complete state
+	 */
+	public static StateSnapshot readIncremental(String fileName, DataInputStream in) throws IOException {
+		int magic = in.readInt();
+		if (magic != INCREMENTAL_MAGIC) {
+			throw new InvalidStateException(String.format("Invalid incremental state file '%s'", fileName));
+		}
+		int version = in.readInt();
+		if (version > INCREMENTAL_VERSION) {
+			throw new InvalidStateException(String.format("Unsupported incremental State version %d(maxVersion=%d)", version, INCREMENTAL_VERSION));
+		}
+
+		StateSnapshot baseSnapshot = null;
+		String baseFileName = in.readUTF();
+		if (baseFileName.length() > 0) {
+			File baseFile = new File(new File(fileName).getAbsoluteFile().getParentFile(), baseFileName);
+			if (log.isDebugEnabled()) {
+				log.debug(String.format("Reading key frame from file '%s'", baseFile));
+			}
+			baseSnapshot = readIncremental(baseFile.getPath());
+		}
+
+		StateSnapshot stateSnapshot = new StateSnapshot();
+		ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+		int numberSegments = in.readInt();
+		for (int i = 0; i < numberSegments; i++) {
+			byte[] bytes = readBytes(in);
+
+			int[] ints = new int[in.readInt()];
+			int[] baseInts = baseSnapshot != null && i < baseSnapshot.getNumberSegments() ? baseSnapshot.getInts(i) : null;
+			for (int offset = 0; offset < ints.length; offset += PAGE_INTS) {
+				int length = Math.min(ints.length - offset, PAGE_INTS);
+				if (in.readBoolean()) {
+					in.readFully(page.array(), 0, length << 2);
+					page.clear();
+					page.asIntBuffer().get(ints, offset, length);
+				} else if (baseInts != null && baseInts.length == ints.length) {
+					System.arraycopy(baseInts, offset, ints, offset, length);
+				} else {
+					throw new InvalidStateException(String.format("Incremental state file '%s' not matching its key frame", fileName));
+				}
+			}
+
+			stateSnapshot.addSegment(bytes, ints);
+		}
+		stateSnapshot.write(readBytes(in));
+
+		return stateSnapshot;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Async State Writer: %d states written, pause average %d ms, max %d ms, %d bytes written", writeCount, writeCount == 0 ? 0 : totalPauseMicros / writeCount / 1000, maxPauseMicros / 1000, totalBytesWritten);
+	}
+}
@@ -0,0 +1,480 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.state;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+
+import jpcsp.Memory;
+import jpcsp.MemoryMap;
+import jpcsp.memory.DirtyPageTracker;
+import jpcsp.memory.IMemoryReader;
+import jpcsp.memory.IMemoryWriter;
+import jpcsp.memory.MemoryReader;
+import jpcsp.memory.MemoryWriter;
+import jpcsp.settings.AbstractBoolSettingsListener;
+import jpcsp.settings.AbstractIntSettingsListener;
+import jpcsp.settings.Settings;
+
+/**
+ * In-memory ring buffer of the last states, allowing to rewind the emulation.
+ *
+ * A state is captured every "emu.rewind.captureInterval" vblanks and the
+ * states of the last "emu.rewind.seconds" seconds are kept.
+ * The states are captured using the IState implementations into a StateSnapshot,
+ * except the main RAM which is captured separately, page by page:
+ * only the pages written since the previous capture, as reported by the
+ * DirtyPageTracker, are copied, the other pages are shared with the previous state.
+ * Without a DirtyPageTracker, all the pages are copied and compared.
+ * The large int arrays of the StateSnapshot (e.g. the VRAM) are also split
+ * into pages and a page not changed since the previous state is shared,
+ * so that each state only requires the memory of its changed pages.
+ *
+ * @author gid15
+ *
+ */
+public class RewindBuffer {
+	private static Logger log = State.log;
+	private static final int PAGE_SIZE = DirtyPageTracker.PAGE_SIZE;
+	private static final int PAGE_INTS = PAGE_SIZE >> 2;
+	private static final int VBLANKS_PER_SECOND = 60;
+	private static RewindBuffer instance;
+	private boolean enabled;
+	private int seconds = 10;
+	private int captureInterval = 10;
+	private Entry[] entries;
+	// Index of the newest entry
+	private int newest;
+	private int count;
+	private int vblankCount;
+	// The DirtyPageTracker used for the last capture
+	private DirtyPageTracker dirtyPageTracker;
+	// The DirtyPageTracker snapshot taken at the last capture, or 0 if unknown
+	private long lastSnapshot;
+	// Statistics
+	private long captureCount;
+	private long totalCaptureMicros;
+	private long maxCaptureMicros;
+	private long lastCaptureMicros;
+	private long memoryUsage;
+	private long maxMemoryUsage;
+
+	private static class Entry {
+		// The byte segments of the StateSnapshot
+		public final byte[][] bytes;
+		// The int segments of the StateSnapshot, split into pages
+		public final int[][][] pages;
+		public final int[] lengths;
+		// The main RAM, split into pages
+		public int[][] ramPages;
+		// Number of bytes allocated by this entry (i.e. not shared with an older entry)
+		public long ownedBytes;
+
+		public Entry(StateSnapshot stateSnapshot, Entry previous) {
+			int numberSegments = stateSnapshot.getNumberSegments();
+			bytes = new byte[numberSegments + 1][];
+			pages = new int[numberSegments][][];
+			lengths = new int[numberSegments];
+
+			for (int i = 0; i <= numberSegments; i++) {
+				bytes[i] = stateSnapshot.getBytes(i);
+				ownedBytes += bytes[i].length;
+			}
+
+			boolean sameStructure = previous != null && previous.hasSameStructure(stateSnapshot);
+			for (int i = 0; i < numberSegments; i++) {
+				int[] ints = stateSnapshot.getInts(i);
+				int numberPages = (ints.length + PAGE_INTS - 1) / PAGE_INTS;
+				lengths[i] = ints.length;
+				pages[i] = new int[numberPages][];
+				for (int page = 0; page < numberPages; page++) {
+					int offset = page * PAGE_INTS;
+					int length = Math.min(ints.length - offset, PAGE_INTS);
+					if (sameStructure && isEqual(ints, offset, previous.pages[i][page], length)) {
+						pages[i][page] = previous.pages[i][page];
+					} else {
+						int[] pageInts = new int[length];
+						System.arraycopy(ints, offset, pageInts, 0, length);
+						pages[i][page] = pageInts;
+						ownedBytes += length << 2;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Capture the main RAM, sharing the pages not written since the previous entry.
+		 *
+		 * @param mem              the memory
+		 * @param dirtyPageTracker the memory DirtyPageTracker, or null
+		 * @param snapshot         the DirtyPageTracker snapshot taken when capturing the previous entry,
+		 *                         or 0 if unknown
+		 * @param previous         the previous entry, or null
+		 */
+		public void captureRam(Memory mem, DirtyPageTracker dirtyPageTracker, long snapshot, Entry previous) {
+			int numberPages = MemoryMap.SIZE_RAM / PAGE_SIZE;
+			ramPages = new int[numberPages][];
+			boolean samePages = previous != null && previous.ramPages.length == numberPages;
+			for (int page = 0; page < numberPages; page++) {
+				int address = MemoryMap.START_RAM + page * PAGE_SIZE;
+				if (samePages && dirtyPageTracker != null && !dirtyPageTracker.isDirty(address, PAGE_SIZE, snapshot)) {
+					ramPages[page] = previous.ramPages[page];
+					continue;
+				}
+
+				int[] pageInts = new int[PAGE_INTS];
+				IMemoryReader memoryReader = MemoryReader.getMemoryReader(mem, address, PAGE_SIZE, 4);
+				for (int i = 0; i < PAGE_INTS; i++) {
+					pageInts[i] = memoryReader.readNext();
+				}
+
+				// A written page could still have the same content
+				if (samePages && Arrays.equals(pageInts, previous.ramPages[page])) {
+					ramPages[page] = previous.ramPages[page];
+				} else {
+					ramPages[page] = pageInts;
+					ownedBytes += PAGE_SIZE;
+				}
+			}
+		}
+
+		public void restoreRam(Memory mem) {
+			int numberPages = Math.min(ramPages.length, MemoryMap.SIZE_RAM / PAGE_SIZE);
+			IMemoryWriter memoryWriter = MemoryWriter.getMemoryWriter(mem, MemoryMap.START_RAM, numberPages * PAGE_SIZE, 4);
+			for (int page = 0; page < numberPages; page++) {
+				int[] pageInts = ramPages[page];
+				for (int i = 0; i < PAGE_INTS; i++) {
+					memoryWriter.writeNext(pageInts[i]);
+				}
+			}
+			memoryWriter.flush();
+		}
+
+		private static boolean isEqual(int[] ints, int offset, int[] pageInts, int length) {
+			for (int i = 0; i < length; i++) {
+				if (ints[offset + i] != pageInts[i]) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		private boolean hasSameStructure(StateSnapshot stateSnapshot) {
+			if (lengths.length != stateSnapshot.getNumberSegments()) {
+				return false;
+			}
+
+			for (int i = 0; i < lengths.length; i++) {
+				if (lengths[i] != stateSnapshot.getInts(i).length) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		/**
+		 * The older entry is being removed, take the ownership of the pages
+		 * shared with it.
+		 *
+		 * @return the number of bytes whose ownership has been taken
+		 */
+		public long takeOwnership(Entry older) {
+			long bytes = 0L;
+			for (int i = 0; i < pages.length && i < older.pages.length; i++) {
+				for (int page = 0; page < pages[i].length && page < older.pages[i].length; page++) {
+					if (pages[i][page] == older.pages[i][page]) {
+						bytes += pages[i][page].length << 2;
+					}
+				}
+			}
+			for (int page = 0; page < ramPages.length && page < older.ramPages.length; page++) {
+				if (ramPages[page] == older.ramPages[page]) {
+					bytes += PAGE_SIZE;
+				}
+			}
+			ownedBytes += bytes;
+
+			return bytes;
+		}
+
+		public StateSnapshot getStateSnapshot() {
+			StateSnapshot stateSnapshot = new StateSnapshot();
+			for (int i = 0; i < pages.length; i++) {
+				int[] ints = new int[lengths[i]];
+				for (int page = 0; page < pages[i].length; page++) {
+					int[] pageInts = pages[i][page];
+					System.arraycopy(pageInts, 0, ints, page * PAGE_INTS, pageInts.length);
+				}
+				stateSnapshot.addSegment(bytes[i], ints);
+			}
+			stateSnapshot.write(bytes[pages.length], 0, bytes[pages.length].length);
+
+			return stateSnapshot;
+		}
+	}
+
+	private class RewindSettingsListener extends AbstractBoolSettingsListener {
+		@Override
+		protected void settingsValueChanged(boolean value) {
+			setEnabled(value);
+		}
+	}
+
+	private class SecondsSettingsListener extends AbstractIntSettingsListener {
+		@Override
+		protected void settingsValueChanged(int value) {
+			setSeconds(value);
+		}
+	}
+
+	private class CaptureIntervalSettingsListener extends AbstractIntSettingsListener {
+		@Override
+		protected void settingsValueChanged(int value) {
+			setCaptureInterval(value);
+		}
+	}
+
+	public static RewindBuffer getInstance() {
+		if (instance == null) {
+			instance = new RewindBuffer();
+		}
+
+		return instance;
+	}
+
+	private RewindBuffer() {
+		Settings.getInstance().registerSettingsListener("RewindBuffer", "emu.rewind", new RewindSettingsListener());
+		Settings.getInstance().registerSettingsListener("RewindBuffer", "emu.rewind.seconds", new SecondsSettingsListener());
+		Settings.getInstance().registerSettingsListener("RewindBuffer", "emu.rewind.captureInterval", new CaptureIntervalSettingsListener());
+	}
+
+	public static void exit() {
+		if (instance != null && instance.captureCount > 0) {
+			log.info(instance.toString());
+		}
+	}
+
+	public synchronized void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		if (!enabled) {
+			reset();
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public synchronized void setSeconds(int seconds) {
+		if (seconds > 0 && seconds != this.seconds) {
+			this.seconds = seconds;
+			reset();
+		}
+	}
+
+	public synchronized void setCaptureInterval(int captureInterval) {
+		if (captureInterval > 0 && captureInterval != this.captureInterval) {
+			this.captureInterval = captureInterval;
+			reset();
+		}
+	}
+
+	/**
+	 * @return the maximum number of states kept in the buffer
+	 */
+	public int getCapacity() {
+		return Math.max(seconds * VBLANKS_PER_SECOND / captureInterval, 1);
+	}
+
+	/**
+	 * Remove all the states.
+	 */
+	public synchronized void reset() {
+		entries = null;
+		count = 0;
+		newest = 0;
+		vblankCount = 0;
+		memoryUsage = 0L;
+		lastSnapshot = 0L;
+	}
+
+	/**
+	 * Called at each vblank, from the emulator thread.
+	 */
+	public void onVblank() {
+		if (!enabled) {
+			return;
+		}
+
+		vblankCount++;
+		if (vblankCount >= captureInterval) {
+			vblankCount = 0;
+			try {
+				capture();
+			} catch (IOException e) {
+				log.error("RewindBuffer.capture", e);
+			}
+		}
+	}
+
+	/**
+	 * Capture the current state into the buffer,
+	 * removing the oldest state when the buffer is full.
+	 */
+	public synchronized void capture() throws IOException {
+		long start = System.nanoTime();
+
+		Memory mem = Memory.getInstance();
+		DirtyPageTracker memDirtyPageTracker = mem.getDirtyPageTracker();
+		if (memDirtyPageTracker != dirtyPageTracker) {
+			dirtyPageTracker = memDirtyPageTracker;
+			lastSnapshot = 0L;
+		}
+		// Take the snapshot before reading the RAM: a page written
+		// during this capture will be copied again by the next capture
+		long snapshot = dirtyPageTracker != null ? dirtyPageTracker.snapshot() : 0L;
+
+		StateSnapshot stateSnapshot = new StateSnapshot();
+		StateOutputStream stream = new StateOutputStream(stateSnapshot);
+		try {
+			new State().writeWithoutRam(stream);
+		} finally {
+			stream.close();
+		}
+
+		int capacity = getCapacity();
+		if (entries == null || entries.length != capacity) {
+			entries = new Entry[capacity];
+			count = 0;
+			newest = 0;
+			memoryUsage = 0L;
+		}
+
+		Entry previous = count > 0 ? entries[newest] : null;
+		Entry entry = new Entry(stateSnapshot, previous);
+		entry.captureRam(mem, dirtyPageTracker, lastSnapshot, previous);
+		lastSnapshot = snapshot;
+
+		if (count == capacity) {
+			// Remove the oldest entry
+			int oldest = (newest + 1) % capacity;
+			Entry oldestEntry = entries[oldest];
+			// The pages shared with the next entry are not freed
+			if (count > 1) {
+				memoryUsage += entries[(oldest + 1) % capacity].takeOwnership(oldestEntry);
+			} else {
+				// The owned bytes of the new entry are added below
+				entry.takeOwnership(oldestEntry);
+			}
+			memoryUsage -= oldestEntry.ownedBytes;
+			entries[oldest] = null;
+			count--;
+		}
+
+		newest = count == 0 ? 0 : (newest + 1) % capacity;
+		entries[newest] = entry;
+		count++;
+		memoryUsage += entry.ownedBytes;
+		maxMemoryUsage = Math.max(maxMemoryUsage, memoryUsage);
+
+		lastCaptureMicros = (System.nanoTime() - start) / 1000;
+		captureCount++;
+		totalCaptureMicros += lastCaptureMicros;
+		maxCaptureMicros = Math.max(maxCaptureMicros, lastCaptureMicros);
+
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("RewindBuffer.capture %d us, %d bytes owned, %s", lastCaptureMicros, entry.ownedBytes, this));
+		}
+	}
+
+	/**
+	 * Restore the newest state and remove it from the buffer.
+	 * Calling this method repeatedly is rewinding further in the past.
+	 *
+	 * @return true if a state has been restored
+	 *         false if the buffer is empty
+	 */
+	public synchronized boolean rewind() throws IOException {
+		if (count == 0) {
+			return false;
+		}
+
+		Entry entry = entries[newest];
+		entries[newest] = null;
+		memoryUsage -= entry.ownedBytes;
+		count--;
+		newest = (newest + entries.length - 1) % entries.length;
+		vblankCount = 0;
+
+		StateInputStream stream = new StateInputStream(entry.getStateSnapshot().getInputStream());
+		try {
+			new State().readWithoutRam(stream);
+		} finally {
+			stream.close();
+		}
+		entry.restoreRam(Memory.getInstance());
+		// The RAM is no longer matching the newest entry,
+		// the next capture has to read all the pages
+		lastSnapshot = 0L;
+
+		if (log.isInfoEnabled()) {
+			log.info(String.format("Rewind: state restored, %d states remaining", count));
+		}
+
+		return true;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public long getCaptureCount() {
+		return captureCount;
+	}
+
+	public long getLastCaptureMicros() {
+		return lastCaptureMicros;
+	}
+
+	public long getAverageCaptureMicros() {
+		return captureCount == 0 ? 0L : totalCaptureMicros / captureCount;
+	}
+
+	public long getMaxCaptureMicros() {
+		return maxCaptureMicros;
+	}
+
+	/**
+	 * @return the number of bytes used by the states in the buffer
+	 */
+	public long getMemoryUsage() {
+		return memoryUsage;
+	}
+
+	public long getMaxMemoryUsage() {
+		return maxMemoryUsage;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("RewindBuffer: %d/%d states, %d captures, capture average %d us, max %d us, memory %d bytes, max %d bytes", count, getCapacity(), captureCount, getAverageCaptureMicros(), maxCaptureMicros, memoryUsage, maxMemoryUsage);
+	}
+}
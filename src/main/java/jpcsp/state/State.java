@@ -18,9 +18,11 @@ package jpcsp.state;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -32,6 +34,7 @@ import jpcsp.Allegrex.compiler.RuntimeContextLLE;
 import jpcsp.HLE.HLEModuleManager;
 import jpcsp.hardware.Battery;
 import jpcsp.hardware.Wlan;
+import jpcsp.settings.Settings;
 
 public class State implements IState {
 	public static Logger log = LoggerFactory.getLogger("state");
@@ -41,10 +44,28 @@ public class State implements IState {
 	}
 
 	public void read(String fileName) throws IOException {
+		// The state could still being written asynchronously
+		AsyncStateWriter.getInstance().waitForPendingWrites();
+
 		FileInputStream fileInputStream = new FileInputStream(fileName);
 		GZIPInputStream gzipInputStream = new GZIPInputStream(fileInputStream);
 		BufferedInputStream bufferedInputStream = new BufferedInputStream(gzipInputStream);
-		StateInputStream stream = new StateInputStream(bufferedInputStream);
+		InputStream inputStream = bufferedInputStream;
+
+		// Is it an incremental state?
+		bufferedInputStream.mark(4);
+		DataInputStream dataInputStream = new DataInputStream(bufferedInputStream);
+		int magic = dataInputStream.readInt();
+		bufferedInputStream.reset();
+		if (magic == AsyncStateWriter.INCREMENTAL_MAGIC) {
+			try {
+				inputStream = AsyncStateWriter.readIncremental(fileName, dataInputStream).getInputStream();
+			} finally {
+				dataInputStream.close();
+			}
+		}
+
+		StateInputStream stream = new StateInputStream(inputStream);
 
 		if (log.isInfoEnabled()) {
 			log.info(String.format("Reading state from file '%s'", fileName));
@@ -65,6 +86,16 @@ public class State implements IState {
 	}
 
 	public void write(String fileName) throws IOException {
+		Settings settings = Settings.getInstance();
+		boolean incremental = settings.readBool("emu.state.incremental");
+		if (incremental || settings.readBool("emu.state.asynchronous")) {
+			if (log.isInfoEnabled()) {
+				log.info(String.format("Writing %sstate asynchronously to file '%s'", incremental ? "incremental " : "", fileName));
+			}
+			AsyncStateWriter.getInstance().write(this, fileName, incremental, settings.readInt("emu.state.keyFrameInterval", 10));
+			return;
+		}
+
 		FileOutputStream fileOutputStream = new FileOutputStream(fileName);
 		GZIPOutputStream gzipOutputStream = new GZIPOutputStream(fileOutputStream);
 		BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(gzipOutputStream);
@@ -87,6 +118,18 @@ public class State implements IState {
 
 	@Override
 	public void read(StateInputStream stream) throws IOException {
+		read(stream, true);
+	}
+
+	/**
+	 * Read the state, except the main RAM which has to be restored
+	 * separately, after this call.
+	 */
+	public void readWithoutRam(StateInputStream stream) throws IOException {
+		read(stream, false);
+	}
+
+	private void read(StateInputStream stream, boolean withRam) throws IOException {
 		stream.readVersion(STATE_VERSION);
 		if (stream.readBoolean()) {
 			Emulator.getMainGUI().doReboot();
@@ -95,7 +138,11 @@ public class State implements IState {
 		Wlan.read(stream);
 		Battery.read(stream);
 		Emulator.getProcessor().read(stream);
-		Emulator.getMemory().read(stream);
+		if (withRam) {
+			Emulator.getMemory().read(stream);
+		} else {
+			Emulator.getMemory().readWithoutRam(stream);
+		}
 		HLEModuleManager.getInstance().read(stream);
 		boolean isLLEActive = stream.readBoolean();
 		if (isLLEActive) {
@@ -110,13 +157,28 @@ public class State implements IState {
 
 	@Override
 	public void write(StateOutputStream stream) throws IOException {
+		write(stream, true);
+	}
+
+	/**
+	 * Write the state, except the main RAM which has to be saved separately.
+	 */
+	public void writeWithoutRam(StateOutputStream stream) throws IOException {
+		write(stream, false);
+	}
+
+	private void write(StateOutputStream stream, boolean withRam) throws IOException {
 		stream.writeVersion(STATE_VERSION);
 		stream.writeBoolean(Emulator.getMainGUI().isRunningReboot());
 		Emulator.getClock().write(stream);
 		Wlan.write(stream);
 		Battery.write(stream);
 		Emulator.getProcessor().write(stream);
-		Emulator.getMemory().write(stream);
+		if (withRam) {
+			Emulator.getMemory().write(stream);
+		} else {
+			Emulator.getMemory().writeWithoutRam(stream);
+		}
 		HLEModuleManager.getInstance().write(stream);
 		if (RuntimeContextLLE.isLLEActive()) {
 			stream.writeBoolean(true);
@@ -23,9 +23,13 @@ import java.net.InetAddress;
 
 public class StateOutputStream extends ObjectOutputStream {
 	public static final int NULL_ARRAY_LENGTH = -1;
+	// Minimum length of an int array to be copied into a StateSnapshot
+	private static final int MIN_SNAPSHOT_INTS = 4096;
+	private final StateSnapshot stateSnapshot;
 
 	public StateOutputStream(OutputStream out) throws IOException {
 		super(out);
+		stateSnapshot = out instanceof StateSnapshot ? (StateSnapshot) out : null;
 	}
 
 	public void writeVersion(int version) throws IOException {
@@ -46,6 +50,13 @@ public class StateOutputStream extends ObjectOutputStream {
 	}
 
 	public void writeInts(int[] a, int offset, int length) throws IOException {
+		if (stateSnapshot != null && length >= MIN_SNAPSHOT_INTS) {
+			// Only take a copy of the ints, they will be serialized later
+			flush();
+			stateSnapshot.addInts(a, offset, length);
+			return;
+		}
+
 		for (int i = 0; i < length; i++) {
 			writeInt(a[i + offset]);
 		}
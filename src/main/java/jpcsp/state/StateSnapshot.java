@@ -0,0 +1,199 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.state;
+
+import static java.io.ObjectStreamConstants.TC_BLOCKDATALONG;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * In-memory copy of a serialized state.
+ *
+ * Used as the output of a StateOutputStream, the serialized state is
+ * recorded as a list of segments:
+ * - byte segments, containing the data written by the StateOutputStream
+ * - int segments, containing a copy of the large int arrays
+ *   (e.g. the memory) written using StateOutputStream.writeInts().
+ * Copying an int array is much faster than serializing it,
+ * the serialization being deferred to writeTo().
+ *
+ * The data produced by writeTo() and getInputStream() is not byte-identical
+ * to the data which would have been produced by a StateOutputStream
+ * writing directly to an OutputStream: the boundaries of the block data
+ * are different. It is however read by a StateInputStream as the same state.
+ *
+ * @author gid15
+ *
+ */
+public class StateSnapshot extends OutputStream {
+	// Same block size as used by ObjectOutputStream
+	private static final int MAX_BLOCK_SIZE = 1024;
+	private static final int MAX_BLOCK_INTS = MAX_BLOCK_SIZE >> 2;
+	private final List<byte[]> byteSegments = new ArrayList<byte[]>();
+	private final List<int[]> intSegments = new ArrayList<int[]>();
+	private final ByteArrayOutputStream currentBytes = new ByteArrayOutputStream();
+
+	@Override
+	public void write(int b) {
+		currentBytes.write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		currentBytes.write(b, off, len);
+	}
+
+	/**
+	 * Add a copy of an int array.
+	 * The StateOutputStream must have been flushed before calling this method.
+	 *
+	 * @param a      the int array
+	 * @param offset the offset of the first int to be copied
+	 * @param length the number of ints to be copied
+	 */
+	public void addInts(int[] a, int offset, int length) {
+		int[] ints = new int[length];
+		System.arraycopy(a, offset, ints, 0, length);
+		addSegment(ints);
+	}
+
+	/**
+	 * Add a segment of bytes and a segment of ints.
+	 * The segments are not copied.
+	 */
+	void addSegment(byte[] bytes, int[] ints) {
+		currentBytes.write(bytes, 0, bytes.length);
+		addSegment(ints);
+	}
+
+	private void addSegment(int[] ints) {
+		byteSegments.add(currentBytes.toByteArray());
+		currentBytes.reset();
+		intSegments.add(ints);
+	}
+
+	/**
+	 * @return the number of int segments.
+	 *         The last byte segment is not followed by an int segment.
+	 */
+	public int getNumberSegments() {
+		return intSegments.size();
+	}
+
+	public byte[] getBytes(int segment) {
+		return segment < byteSegments.size() ? byteSegments.get(segment) : currentBytes.toByteArray();
+	}
+
+	public int[] getInts(int segment) {
+		return intSegments.get(segment);
+	}
+
+	/**
+	 * Check if both snapshots have int segments of the same lengths.
+	 */
+	public boolean hasSameStructure(StateSnapshot stateSnapshot) {
+		if (stateSnapshot == null || getNumberSegments() != stateSnapshot.getNumberSegments()) {
+			return false;
+		}
+
+		for (int i = 0; i < getNumberSegments(); i++) {
+			if (getInts(i).length != stateSnapshot.getInts(i).length) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the number of bytes produced by writeTo()
+	 */
+	public long getSize() {
+		long size = currentBytes.size();
+		for (int i = 0; i < getNumberSegments(); i++) {
+			int length = getInts(i).length;
+			size += byteSegments.get(i).length;
+			// Each block has a header of 5 bytes
+			size += (length << 2) + ((length + MAX_BLOCK_INTS - 1) / MAX_BLOCK_INTS) * 5L;
+		}
+
+		return size;
+	}
+
+	/**
+	 * Write the int array as block data, as done by ObjectOutputStream.
+	 */
+	private static void writeBlockData(OutputStream out, int[] ints) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(MAX_BLOCK_SIZE + 5);
+		for (int i = 0; i < ints.length; i += MAX_BLOCK_INTS) {
+			int length = Math.min(ints.length - i, MAX_BLOCK_INTS);
+			buffer.clear();
+			buffer.put(TC_BLOCKDATALONG);
+			buffer.putInt(length << 2);
+			for (int j = 0; j < length; j++) {
+				buffer.putInt(ints[i + j]);
+			}
+			out.write(buffer.array(), 0, buffer.position());
+		}
+	}
+
+	/**
+	 * Write the serialized state.
+	 *
+	 * @param out the output stream
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		for (int i = 0; i < getNumberSegments(); i++) {
+			out.write(byteSegments.get(i));
+			writeBlockData(out, getInts(i));
+		}
+		currentBytes.writeTo(out);
+	}
+
+	/**
+	 * @return an input stream returning the serialized state,
+	 *         to be used by a StateInputStream.
+	 */
+	public InputStream getInputStream() throws IOException {
+		List<InputStream> inputStreams = new ArrayList<InputStream>();
+		for (int i = 0; i < getNumberSegments(); i++) {
+			inputStreams.add(new ByteArrayInputStream(byteSegments.get(i)));
+
+			int[] ints = getInts(i);
+			ByteArrayOutputStream blockData = new ByteArrayOutputStream((ints.length << 2) + (ints.length / MAX_BLOCK_INTS + 1) * 5);
+			writeBlockData(blockData, ints);
+			inputStreams.add(new ByteArrayInputStream(blockData.toByteArray()));
+		}
+		inputStreams.add(new ByteArrayInputStream(currentBytes.toByteArray()));
+
+		return new SequenceInputStream(Collections.enumeration(inputStreams));
+	}
+
+	@Override
+	public String toString() {
+		return String.format("StateSnapshot[%d segments, size=%d]", getNumberSegments(), getSize());
+	}
+}
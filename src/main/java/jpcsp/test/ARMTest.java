@@ -59,11 +59,13 @@ public class ARMTest {
 		new ARMTest().testFirmware();
 	}
 
-	public void testFirmware() {
-		int model = Model.MODEL_PSP_SLIM;
-//		model = Model.MODEL_PSP_FAT;
-
-		Model.setModel(model);
+	/**
+	 * Load the Wlan firmware boot code and data for the current PSP model.
+	 *
+	 * @param mem the ARM memory where the boot code is written
+	 * @return    true if the firmware file could be read
+	 */
+	public boolean loadFirmware(ARMMemory mem) {
 		File inputFile = new File(String.format("wlanfirm_%02dg.prx", Model.getGeneration()));
 		byte[] buffer = new byte[(int) inputFile.length()];
 		int length = buffer.length;
@@ -73,6 +75,7 @@ public class ARMTest {
 			is.close();
 		} catch (IOException e) {
 			log.error(e.toString());
+			return false;
 		}
 		int countFound = 0;
 		int bootCodeOffset = 0;
@@ -112,7 +115,6 @@ public class ARMTest {
 		byte[] data = new byte[dataSize];
 		System.arraycopy(buffer, elfOffset + dataOffset, data, 0, dataSize);
 
-		ARMMemory mem = WlanEmulator.getInstance().getMemory();
 		int baseAddress = ARMMemory.BASE_RAM0;
 		for (int i = 0; i < bootCodeSize; i += 4) {
 			mem.write32(baseAddress + i, readUnaligned32(buffer, elfOffset + bootCodeOffset + i));
@@ -120,6 +122,16 @@ public class ARMTest {
 
 		mem.getHandlerWlanFirmware().setData(data, data.length);
 
+		return true;
+	}
+
+	public void testFirmware() {
+		int model = Model.MODEL_PSP_SLIM;
+//		model = Model.MODEL_PSP_FAT;
+
+		Model.setModel(model);
+		loadFirmware(WlanEmulator.getInstance().getMemory());
+
 		ARMProcessor processor = WlanEmulator.getInstance().getProcessor();
 		ARMInterpreter interpreter = processor.interpreter;
 
@@ -0,0 +1,452 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.test;
+
+import static jpcsp.filesystems.umdiso.ISectorDevice.sectorLength;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import jpcsp.filesystems.umdiso.CSOFileSectorDevice;
+import jpcsp.filesystems.umdiso.ISectorDevice;
+import jpcsp.util.FileUtil;
+
+/**
+ * Throughput benchmark of the CSO reader.
+ *
+ * Compares the CSOFileSectorDevice with the previous implementation
+ * (one seek+read and one new Inflater per sector) for:
+ * - sequential reads of single sectors (e.g. movie or audio streaming)
+ * - sequential reads of multiple sectors
+ * - random reads of single sectors
+ *
+ * A CSO version 2 image with LZ4 blocks padded to the offset alignment
+ * is also generated and checked against its original data.
+ *
+ * Usage:
+ *     CSOReaderBenchmark [file.cso]
+ * When no file is given, a synthetic CSO image is generated in a temporary file.
+ *
+ * @author gid15
+ *
+ */
+public class CSOReaderBenchmark {
+	private static final int syntheticNumberSectors = 32 * 1024;
+	private static final int multipleSectors = 64;
+	private static final int randomReads = 20000;
+	private static final int paddedNumberSectors = 256;
+	private static final int paddedOffsetShift = 2;
+
+	/**
+	 * The previous implementation of the CSOFileSectorDevice.
+	 */
+	private static class PreviousCSOReader {
+		private static final long sectorOffsetMask = 0x7FFFFFFFL;
+		private final RandomAccessFile fileAccess;
+		private final int offsetShift;
+		private final int numSectors;
+		private final long[] sectorOffsets;
+
+		public PreviousCSOReader(RandomAccessFile fileAccess) throws IOException {
+			this.fileAccess = fileAccess;
+			byte[] header = new byte[24];
+			fileAccess.seek(0);
+			fileAccess.readFully(header);
+			ByteBuffer byteBuffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+			long lengthInBytes = byteBuffer.getLong(8);
+			int sectorSize = byteBuffer.getInt(16);
+			offsetShift = byteBuffer.get(21) & 0xFF;
+			numSectors = (int) ((lengthInBytes + sectorSize - 1) / sectorSize);
+			sectorOffsets = new long[numSectors + 1];
+			byte[] offsetData = new byte[(numSectors + 1) * 4];
+			fileAccess.readFully(offsetData);
+			ByteBuffer offsetBuffer = ByteBuffer.wrap(offsetData).order(ByteOrder.LITTLE_ENDIAN);
+			for (int i = 0; i <= numSectors; i++) {
+				sectorOffsets[i] = offsetBuffer.getInt(i * 4) & 0xFFFFFFFFL;
+			}
+		}
+
+		public void readSector(int sectorNumber, byte[] buffer, int offset) throws IOException {
+			long sectorOffset = sectorOffsets[sectorNumber];
+			long sectorEnd = sectorOffsets[sectorNumber + 1];
+
+			if ((sectorOffset & 0x80000000) != 0) {
+				long realOffset = (sectorOffset & sectorOffsetMask) << offsetShift;
+				fileAccess.seek(realOffset);
+				fileAccess.read(buffer, offset, sectorLength);
+			} else {
+				sectorEnd = (sectorEnd & sectorOffsetMask) << offsetShift;
+				sectorOffset = (sectorOffset & sectorOffsetMask) << offsetShift;
+
+				int compressedLength = (int) (sectorEnd - sectorOffset);
+				if (compressedLength < 0) {
+					Arrays.fill(buffer, offset, offset + sectorLength, (byte) 0);
+				} else {
+					byte[] compressedData = new byte[compressedLength];
+					fileAccess.seek(sectorOffset);
+					fileAccess.read(compressedData);
+
+					Inflater inf = new Inflater(true);
+					try (InputStream s = new InflaterInputStream(new ByteArrayInputStream(compressedData), inf)) {
+						FileUtil.readAll(s, buffer, offset, sectorLength);
+					}
+				}
+			}
+		}
+
+		public void readSectors(int sectorNumber, int numberSectors, byte[] buffer, int offset) throws IOException {
+			for (int i = 0; i < numberSectors; i++) {
+				readSector(sectorNumber + i, buffer, offset + i * sectorLength);
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		CSOReaderBenchmark benchmark = new CSOReaderBenchmark();
+		try {
+			benchmark.run(args.length > 0 ? args[0] : null);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void log(String s) {
+		System.out.println(s);
+	}
+
+	/**
+	 * Generate a CSO version 1 image with compressible data.
+	 */
+	private File createSyntheticCSO() throws IOException {
+		File file = File.createTempFile("CSOReaderBenchmark", ".cso");
+		file.deleteOnExit();
+
+		Random random = new Random(0);
+		String[] words = new String[512];
+		for (int i = 0; i < words.length; i++) {
+			words[i] = Integer.toString(random.nextInt(), 36);
+		}
+
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		int indexLength = (syntheticNumberSectors + 1) * 4;
+		ByteBuffer header = ByteBuffer.allocate(24 + indexLength).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(new byte[] { 'C', 'I', 'S', 'O' });
+		header.putInt(24);
+		header.putLong(syntheticNumberSectors * (long) sectorLength);
+		header.putInt(sectorLength);
+		header.put((byte) 1); // version
+		header.put((byte) 0); // offset shift
+		header.putShort((short) 0);
+
+		byte[] sector = new byte[sectorLength];
+		byte[] compressed = new byte[sectorLength * 2];
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		long position = header.capacity();
+		out.seek(position);
+		for (int i = 0; i < syntheticNumberSectors; i++) {
+			if ((i % 16) == 15) {
+				// Some sectors are not compressible
+				random.nextBytes(sector);
+			} else {
+				StringBuilder text = new StringBuilder();
+				while (text.length() < sectorLength) {
+					text.append(words[random.nextInt(words.length)]).append(' ');
+				}
+				System.arraycopy(text.toString().getBytes(), 0, sector, 0, sectorLength);
+			}
+
+			deflater.reset();
+			deflater.setInput(sector);
+			deflater.finish();
+			int compressedLength = deflater.deflate(compressed);
+			if (deflater.finished() && compressedLength < sectorLength) {
+				header.putInt(24 + i * 4, (int) position);
+				out.write(compressed, 0, compressedLength);
+				position += compressedLength;
+			} else {
+				header.putInt(24 + i * 4, (int) (position | 0x80000000L));
+				out.write(sector);
+				position += sectorLength;
+			}
+		}
+		header.putInt(24 + syntheticNumberSectors * 4, (int) position);
+		out.seek(0);
+		out.write(header.array());
+		out.close();
+
+		return file;
+	}
+
+	private static int writeLength(byte[] out, int outPtr, int length) {
+		while (length >= 255) {
+			out[outPtr++] = (byte) 255;
+			length -= 255;
+		}
+		out[outPtr++] = (byte) length;
+
+		return outPtr;
+	}
+
+	private static int writeSequence(byte[] out, int outPtr, byte[] in, int literalStart, int literalLength, int matchOffset, int matchLength) {
+		int token = Math.min(literalLength, 15) << 4;
+		if (matchLength > 0) {
+			token |= Math.min(matchLength - 4, 15);
+		}
+		out[outPtr++] = (byte) token;
+		if (literalLength >= 15) {
+			outPtr = writeLength(out, outPtr, literalLength - 15);
+		}
+		System.arraycopy(in, literalStart, out, outPtr, literalLength);
+		outPtr += literalLength;
+
+		if (matchLength > 0) {
+			out[outPtr++] = (byte) matchOffset;
+			out[outPtr++] = (byte) (matchOffset >> 8);
+			if (matchLength - 4 >= 15) {
+				outPtr = writeLength(out, outPtr, matchLength - 4 - 15);
+			}
+		}
+
+		return outPtr;
+	}
+
+	private static int readInt(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xFF) | ((buffer[offset + 1] & 0xFF) << 8) | ((buffer[offset + 2] & 0xFF) << 16) | (buffer[offset + 3] << 24);
+	}
+
+	/**
+	 * Simple greedy LZ4 block compression, respecting the end of block rules
+	 * (the last 5 bytes are literals and the last match starts at least 12 bytes before the end).
+	 */
+	private static int compressLZ4(byte[] in, byte[] out) {
+		int[] hashTable = new int[4096];
+		Arrays.fill(hashTable, -1);
+		int anchor = 0;
+		int inPtr = 0;
+		int outPtr = 0;
+		int matchLimit = in.length - 12;
+		while (inPtr < matchLimit) {
+			int sequence = readInt(in, inPtr);
+			int hash = (sequence * -1640531535) >>> 20;
+			int matchPtr = hashTable[hash];
+			hashTable[hash] = inPtr;
+			if (matchPtr >= 0 && inPtr - matchPtr < 0x10000 && readInt(in, matchPtr) == sequence) {
+				int matchLength = 4;
+				while (inPtr + matchLength < in.length - 5 && in[matchPtr + matchLength] == in[inPtr + matchLength]) {
+					matchLength++;
+				}
+				outPtr = writeSequence(out, outPtr, in, anchor, inPtr - anchor, inPtr - matchPtr, matchLength);
+				inPtr += matchLength;
+				anchor = inPtr;
+			} else {
+				inPtr++;
+			}
+		}
+
+		return writeSequence(out, outPtr, in, anchor, in.length - anchor, 0, 0);
+	}
+
+	/**
+	 * Generate a CSO version 2 image with LZ4 blocks,
+	 * each block being padded with zeros to the offset alignment.
+	 */
+	private File createPaddedLZ4CSO(byte[] data) throws IOException {
+		File file = File.createTempFile("CSOReaderBenchmark", ".cso");
+		file.deleteOnExit();
+
+		int alignment = 1 << paddedOffsetShift;
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		int indexLength = (paddedNumberSectors + 1) * 4;
+		ByteBuffer header = ByteBuffer.allocate(24 + indexLength).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(new byte[] { 'C', 'I', 'S', 'O' });
+		header.putInt(24);
+		header.putLong(paddedNumberSectors * (long) sectorLength);
+		header.putInt(sectorLength);
+		header.put((byte) 2); // version
+		header.put((byte) paddedOffsetShift);
+		header.putShort((short) 0);
+
+		byte[] sector = new byte[sectorLength];
+		byte[] compressed = new byte[sectorLength * 2];
+		long position = header.capacity();
+		out.seek(position);
+		for (int i = 0; i < paddedNumberSectors; i++) {
+			System.arraycopy(data, i * sectorLength, sector, 0, sectorLength);
+			int compressedLength = compressLZ4(sector, compressed);
+			if (compressedLength < sectorLength) {
+				// Pad the compressed block with zeros
+				int paddedLength = (compressedLength + alignment - 1) & -alignment;
+				Arrays.fill(compressed, compressedLength, paddedLength, (byte) 0);
+				header.putInt(24 + i * 4, (int) ((position >> paddedOffsetShift) | 0x80000000L));
+				out.write(compressed, 0, paddedLength);
+				position += paddedLength;
+			} else {
+				header.putInt(24 + i * 4, (int) (position >> paddedOffsetShift));
+				out.write(sector);
+				position += sectorLength;
+			}
+		}
+		header.putInt(24 + paddedNumberSectors * 4, (int) (position >> paddedOffsetShift));
+		out.seek(0);
+		out.write(header.array());
+		out.close();
+
+		return file;
+	}
+
+	public void checkPaddedLZ4() throws IOException {
+		Random random = new Random(1);
+		byte[] data = new byte[paddedNumberSectors * sectorLength];
+		for (int i = 0; i < data.length; i++) {
+			// Compressible data, with a varying number of padding bytes per block
+			data[i] = (byte) ('a' + random.nextInt(1 + (i / sectorLength) % 8));
+		}
+
+		File file = createPaddedLZ4CSO(data);
+		RandomAccessFile fileAccess = new RandomAccessFile(file, "r");
+		byte[] header = new byte[24];
+		fileAccess.readFully(header);
+		ISectorDevice reader = new CSOFileSectorDevice(fileAccess, header);
+
+		byte[] buffer = new byte[paddedNumberSectors * sectorLength];
+		try {
+			reader.readSectors(0, paddedNumberSectors, buffer, 0);
+			if (Arrays.equals(data, buffer)) {
+				log("Padded CSO v2 LZ4 blocks: OK");
+			} else {
+				log("Padded CSO v2 LZ4 blocks: FAILED - the data is not matching");
+			}
+		} catch (IOException e) {
+			log(String.format("Padded CSO v2 LZ4 blocks: FAILED - %s", e));
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static long checksum(byte[] buffer, int length) {
+		long checksum = 0L;
+		for (int i = 0; i < length; i++) {
+			checksum = checksum * 31 + buffer[i];
+		}
+
+		return checksum;
+	}
+
+	private void report(String name, long bytes, long nanos) {
+		log(String.format("    %-30s: %6d ms, %8.1f MB/s", name, nanos / 1000000, bytes / 1024.0 / 1024.0 / (nanos / 1000000000.0)));
+	}
+
+	private long[] readSequential(PreviousCSOReader previousReader, ISectorDevice newReader, int numSectors, int numberSectors, byte[] buffer) throws IOException {
+		long previousChecksum = 0L;
+		long start = System.nanoTime();
+		for (int i = 0; i < numSectors; i += numberSectors) {
+			int n = Math.min(numberSectors, numSectors - i);
+			previousReader.readSectors(i, n, buffer, 0);
+			previousChecksum += checksum(buffer, n * sectorLength);
+		}
+		long previousNanos = System.nanoTime() - start;
+
+		long newChecksum = 0L;
+		start = System.nanoTime();
+		for (int i = 0; i < numSectors; i += numberSectors) {
+			int n = Math.min(numberSectors, numSectors - i);
+			newReader.readSectors(i, n, buffer, 0);
+			newChecksum += checksum(buffer, n * sectorLength);
+		}
+		long newNanos = System.nanoTime() - start;
+
+		return new long[] { previousNanos, newNanos, previousChecksum, newChecksum };
+	}
+
+	private long[] readRandom(PreviousCSOReader previousReader, ISectorDevice newReader, int[] sectors, byte[] buffer) throws IOException {
+		long previousChecksum = 0L;
+		long start = System.nanoTime();
+		for (int i = 0; i < sectors.length; i++) {
+			previousReader.readSector(sectors[i], buffer, 0);
+			previousChecksum += checksum(buffer, sectorLength);
+		}
+		long previousNanos = System.nanoTime() - start;
+
+		long newChecksum = 0L;
+		start = System.nanoTime();
+		for (int i = 0; i < sectors.length; i++) {
+			newReader.readSector(sectors[i], buffer, 0);
+			newChecksum += checksum(buffer, sectorLength);
+		}
+		long newNanos = System.nanoTime() - start;
+
+		return new long[] { previousNanos, newNanos, previousChecksum, newChecksum };
+	}
+
+	private void report(String name, long bytes, long[] result) {
+		log(name);
+		report("previous", bytes, result[0]);
+		report("new", bytes, result[1]);
+		if (result[2] != result[3]) {
+			log("    FAILED - the readers did not return the same data");
+		}
+	}
+
+	public void run(String fileName) throws IOException {
+		checkPaddedLZ4();
+
+		File file = fileName != null ? new File(fileName) : createSyntheticCSO();
+		log(String.format("Reading %s (%d bytes)", file, file.length()));
+
+		RandomAccessFile previousFile = new RandomAccessFile(file, "r");
+		PreviousCSOReader previousReader = new PreviousCSOReader(previousFile);
+		RandomAccessFile newFile = new RandomAccessFile(file, "r");
+		byte[] header = new byte[24];
+		newFile.readFully(header);
+		ISectorDevice newReader = new CSOFileSectorDevice(newFile, header);
+
+		int numSectors = Math.min(previousReader.numSectors, newReader.getNumSectors());
+		long bytes = numSectors * (long) sectorLength;
+		byte[] buffer = new byte[multipleSectors * sectorLength];
+		Random random = new Random(0);
+		int[] sectors = new int[randomReads];
+		for (int i = 0; i < randomReads; i++) {
+			sectors[i] = random.nextInt(numSectors);
+		}
+
+		// The first iteration is only used to warm up the JVM
+		for (int iteration = 0; iteration < 2; iteration++) {
+			long[] sequentialSingle = readSequential(previousReader, newReader, numSectors, 1, buffer);
+			long[] sequentialMultiple = readSequential(previousReader, newReader, numSectors, multipleSectors, buffer);
+			long[] randomSingle = readRandom(previousReader, newReader, sectors, buffer);
+
+			if (iteration > 0) {
+				report("Sequential single sectors:", bytes, sequentialSingle);
+				report(String.format("Sequential reads of %d sectors:", multipleSectors), bytes, sequentialMultiple);
+				report("Random single sectors:", randomReads * (long) sectorLength, randomSingle);
+			}
+		}
+
+		previousFile.close();
+		newReader.close();
+	}
+}
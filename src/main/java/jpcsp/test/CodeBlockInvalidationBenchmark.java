@@ -0,0 +1,227 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.test;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jpcsp.Memory;
+import jpcsp.MemoryMap;
+import jpcsp.Allegrex.Instructions;
+import jpcsp.Allegrex.compiler.CodeBlock;
+import jpcsp.Allegrex.compiler.CodeBlockIndex;
+
+/**
+ * Microbenchmark for the invalidation of code blocks by address range.
+ *
+ * Replays an invalidation trace against a set of code blocks and compares
+ * the CodeBlockIndex with a full scan of all the code blocks.
+ *
+ * Usage:
+ *     CodeBlockInvalidationBenchmark [log-file]
+ * When a log file is given (produced with the debug level enabled for the compiler),
+ * the trace is read from its "RuntimeContext.invalidateRange" lines.
+ * Otherwise, a synthetic trace streaming overlays is generated.
+ *
+ * @author gid15
+ *
+ */
+public class CodeBlockInvalidationBenchmark {
+	private static final int numberCodeBlocks = 20000;
+	private static final int numberInvalidations = 200000;
+	private static final int codeStartAddress = 0x08804000;
+	private static final int codeLength = 0x01000000;
+	private static final int iterations = 5;
+	private static final Pattern invalidateRangePattern = Pattern.compile("RuntimeContext.invalidateRange\\(addr=0x([0-9A-Fa-f]{8}), size=(\\d+)\\)");
+	private final Random random = new Random(0);
+	private final Map<Integer, CodeBlock> codeBlocks = new HashMap<Integer, CodeBlock>();
+	private final CodeBlockIndex codeBlockIndex = new CodeBlockIndex(MemoryMap.START_RAM, MemoryMap.SIZE_RAM);
+	private int[] traceAddresses;
+	private int[] traceSizes;
+
+	public static void main(String[] args) {
+		CodeBlockInvalidationBenchmark benchmark = new CodeBlockInvalidationBenchmark();
+		benchmark.run(args.length > 0 ? args[0] : null);
+	}
+
+	public void log(String s) {
+		System.out.println(s);
+	}
+
+	private void createCodeBlocks() {
+		for (int i = 0; i < numberCodeBlocks; i++) {
+			int startAddress = (codeStartAddress + random.nextInt(codeLength)) & ~3;
+			if (codeBlocks.containsKey(startAddress)) {
+				continue;
+			}
+
+			CodeBlock codeBlock = new CodeBlock(startAddress, 0);
+			int numberInstructions = 4 + random.nextInt(200);
+			for (int j = 0; j < numberInstructions; j++) {
+				int address = startAddress + (j << 2);
+				codeBlock.addInstruction(address, 0, Instructions.NOP, false, false, 0, false);
+			}
+			codeBlocks.put(startAddress, codeBlock);
+			codeBlockIndex.add(codeBlock);
+		}
+	}
+
+	private void addTrace(List<int[]> trace, int address, int size) {
+		trace.add(new int[] { address & Memory.addressMask, size });
+	}
+
+	private void createSyntheticTrace(List<int[]> trace) {
+		for (int i = 0; i < numberInvalidations; i++) {
+			int address = codeStartAddress + random.nextInt(codeLength);
+			int n = random.nextInt(100);
+			if (n < 80) {
+				// Allegrex instruction ICACHE HIT INVALIDATE
+				addTrace(trace, address & ~63, 64);
+			} else if (n < 90) {
+				// Complete Instruction Cache
+				addTrace(trace, address & ~63, 0x4000);
+			} else {
+				// Overlay loading
+				addTrace(trace, address & ~0xFFF, 0x1000 << random.nextInt(8));
+			}
+		}
+	}
+
+	private boolean readTrace(String fileName, List<int[]> trace) {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(fileName));
+			while (true) {
+				String line = reader.readLine();
+				if (line == null) {
+					break;
+				}
+				Matcher matcher = invalidateRangePattern.matcher(line);
+				if (matcher.find()) {
+					addTrace(trace, (int) Long.parseLong(matcher.group(1), 16), Integer.parseInt(matcher.group(2)));
+				}
+			}
+		} catch (IOException e) {
+			log(String.format("Cannot read the trace from %s: %s", fileName, e));
+			return false;
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					// Ignore exception
+				}
+			}
+		}
+
+		return !trace.isEmpty();
+	}
+
+	private void createTrace(String fileName) {
+		List<int[]> trace = new ArrayList<int[]>();
+		if (fileName == null || !readTrace(fileName, trace)) {
+			createSyntheticTrace(trace);
+		}
+
+		traceAddresses = new int[trace.size()];
+		traceSizes = new int[trace.size()];
+		for (int i = 0; i < trace.size(); i++) {
+			traceAddresses[i] = trace.get(i)[0];
+			traceSizes[i] = trace.get(i)[1];
+		}
+	}
+
+	private static boolean isMatching(CodeBlock codeBlock, int address, int size) {
+		if (size == 0x4000) {
+			return codeBlock.getHighestAddress() >= address;
+		}
+		return codeBlock.isOverlappingWithAddressRange(address, size);
+	}
+
+	private long replayFullScan() {
+		long count = 0;
+		for (int i = 0; i < traceAddresses.length; i++) {
+			int address = traceAddresses[i];
+			int size = traceSizes[i];
+			for (CodeBlock codeBlock : codeBlocks.values()) {
+				if (isMatching(codeBlock, address, size)) {
+					count++;
+				}
+			}
+		}
+
+		return count;
+	}
+
+	private long replayIndex() {
+		long count = 0;
+		List<CodeBlock> candidateCodeBlocks = new ArrayList<CodeBlock>();
+		for (int i = 0; i < traceAddresses.length; i++) {
+			int address = traceAddresses[i];
+			int size = traceSizes[i];
+			candidateCodeBlocks.clear();
+			if (size == 0x4000) {
+				codeBlockIndex.getCodeBlocksAbove(address, candidateCodeBlocks);
+			} else {
+				codeBlockIndex.getCodeBlocks(address, size, candidateCodeBlocks);
+			}
+			for (CodeBlock codeBlock : candidateCodeBlocks) {
+				if (isMatching(codeBlock, address, size)) {
+					count++;
+				}
+			}
+		}
+
+		return count;
+	}
+
+	public void run(String fileName) {
+		createCodeBlocks();
+		createTrace(fileName);
+		log(String.format("Replaying %d invalidations on %d code blocks", traceAddresses.length, codeBlocks.size()));
+
+		long fullScanCount = 0;
+		long indexCount = 0;
+		long fullScanNanos = Long.MAX_VALUE;
+		long indexNanos = Long.MAX_VALUE;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			fullScanCount = replayFullScan();
+			fullScanNanos = Math.min(fullScanNanos, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			indexCount = replayIndex();
+			indexNanos = Math.min(indexNanos, System.nanoTime() - start);
+		}
+
+		log(String.format("Full scan: %d code blocks to be checked, %d ms, %.2f us/invalidation", fullScanCount, fullScanNanos / 1000000, fullScanNanos / 1000.0 / traceAddresses.length));
+		log(String.format("Index    : %d code blocks to be checked, %d ms, %.2f us/invalidation", indexCount, indexNanos / 1000000, indexNanos / 1000.0 / traceAddresses.length));
+		if (fullScanCount != indexCount) {
+			log("FAILED - the index did not return the same code blocks as the full scan");
+		} else {
+			log(String.format("SUCCESS - speedup x%.1f", fullScanNanos / (double) Math.max(indexNanos, 1L)));
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.test;
+
+import java.io.File;
+
+import jpcsp.Emulator;
+import jpcsp.Allegrex.compiler.RuntimeContext;
+import jpcsp.arm.ARMMemory;
+import jpcsp.arm.ARMProcessor;
+import jpcsp.autotests.AutoTestsRunner;
+import jpcsp.hardware.Battery;
+import jpcsp.hardware.Model;
+import jpcsp.hardware.Wlan;
+import jpcsp.memory.mmio.syscon.MMIOHandlerSyscon;
+import jpcsp.memory.mmio.syscon.MMIOHandlerSysconFirmwareSfr;
+import jpcsp.memory.mmio.syscon.SysconEmulator;
+import jpcsp.memory.mmio.syscon.SysconMemory;
+import jpcsp.memory.mmio.wlan.WlanEmulator;
+import jpcsp.nec78k0.Nec78k0Interpreter;
+import jpcsp.nec78k0.Nec78k0Memory;
+import jpcsp.nec78k0.Nec78k0Processor;
+import jpcsp.util.LWJGLFixer;
+
+/**
+ * Benchmark of the decoded instruction cache of the ARM (Wlan)
+ * and NEC 78k0 (Syscon) interpreters.
+ *
+ * The firmwares are loaded like in ARMTest and Syscon78k0Test
+ * and the same number of instructions is interpreted from the reset,
+ * with and without the decoded instruction cache.
+ *
+ * @author gid15
+ *
+ */
+public class DecodedInstructionCacheBenchmark {
+	private static final int instructions = 20000000;
+	private static final int iterations = 5;
+
+	public static void main(String[] args) {
+        LWJGLFixer.fixOnce();
+        ARMTest.log = ARMProcessor.log;
+        Syscon78k0Test.log = SysconEmulator.log;
+		RuntimeContext.setLog4jMDC();
+		Wlan.initialize();
+		Battery.initialize();
+        new Emulator(new AutoTestsRunner.DummyGUI());
+        Emulator.getClock().resume();
+		Emulator.run = true;
+
+		new DecodedInstructionCacheBenchmark().run();
+	}
+
+	public void log(String s) {
+		System.out.println(s);
+	}
+
+	private long executeARM(boolean cacheEnabled) {
+		WlanEmulator wlanEmulator = WlanEmulator.getInstance();
+		ARMMemory mem = wlanEmulator.getMemory();
+		ARMProcessor processor = wlanEmulator.getProcessor();
+		processor.setDecodedInstructionCacheEnabled(cacheEnabled);
+
+		long nanos = Long.MAX_VALUE;
+		for (int i = 0; i < iterations; i++) {
+			new ARMTest().loadFirmware(mem);
+			processor.resetException();
+
+			long start = System.nanoTime();
+			for (int j = 0; j < instructions; j++) {
+				processor.interpret();
+			}
+			nanos = Math.min(nanos, System.nanoTime() - start);
+		}
+
+		return nanos;
+	}
+
+	private long executeNec78k0(boolean cacheEnabled) {
+		long nanos = Long.MAX_VALUE;
+		for (int i = 0; i < iterations; i++) {
+			Nec78k0Memory mem = new SysconMemory(SysconEmulator.log);
+			Nec78k0Processor processor = new Nec78k0Processor(mem);
+			new Nec78k0Interpreter(processor);
+			processor.setDecodedInstructionCacheEnabled(cacheEnabled);
+
+			SysconEmulator.load(mem);
+			SysconEmulator.disable();
+			MMIOHandlerSyscon.getInstance().init(mem.getSfr());
+			processor.reset();
+
+			long start = System.nanoTime();
+			for (int j = 0; j < instructions; j++) {
+				processor.interpret();
+			}
+			nanos = Math.min(nanos, System.nanoTime() - start);
+		}
+
+		return nanos;
+	}
+
+	private void logResult(String name, long uncachedNanos, long cachedNanos) {
+		log(String.format("%s uncached: %.0f instructions/second", name, instructions * 1000000000.0 / uncachedNanos));
+		log(String.format("%s cached  : %.0f instructions/second, speedup x%.2f", name, instructions * 1000000000.0 / cachedNanos, uncachedNanos / (double) Math.max(cachedNanos, 1L)));
+	}
+
+	public void runARM() {
+		Model.setModel(Model.MODEL_PSP_SLIM);
+		File firmwareFile = new File(String.format("wlanfirm_%02dg.prx", Model.getGeneration()));
+		if (!firmwareFile.canRead()) {
+			log(String.format("Skipping the ARM benchmark, missing Wlan firmware '%s'", firmwareFile));
+			return;
+		}
+
+		WlanEmulator wlanEmulator = WlanEmulator.getInstance();
+		wlanEmulator.getTxManager().installHLECalls(wlanEmulator.getInterpreter());
+
+		long uncachedNanos = executeARM(false);
+		long cachedNanos = executeARM(true);
+		logResult("ARM", uncachedNanos, cachedNanos);
+	}
+
+	public void runNec78k0() {
+		Model.setModel(Model.MODEL_PSP_BRITE2);
+		File firmwareFile = new File(SysconEmulator.getFirmwareFileName());
+		if (!firmwareFile.canRead()) {
+			log(String.format("Skipping the NEC 78k0 benchmark, missing Syscon firmware '%s'", firmwareFile));
+			return;
+		}
+
+		MMIOHandlerSysconFirmwareSfr.dummyTesting = true;
+
+		long uncachedNanos = executeNec78k0(false);
+		long cachedNanos = executeNec78k0(true);
+		logResult("NEC 78k0", uncachedNanos, cachedNanos);
+	}
+
+	public void run() {
+		runARM();
+		runNec78k0();
+	}
+}
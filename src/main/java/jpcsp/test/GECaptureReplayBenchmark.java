@@ -0,0 +1,201 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.test;
+
+import static jpcsp.graphics.capture.CaptureManager.replayFileName;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import jpcsp.Emulator;
+import jpcsp.Memory;
+import jpcsp.autotests.AutoTestsRunner;
+import jpcsp.graphics.GeCommands;
+import jpcsp.graphics.VertexCache;
+import jpcsp.graphics.VideoEngine;
+import jpcsp.graphics.RE.IRenderingEngine;
+import jpcsp.graphics.RE.NullRenderingEngine;
+import jpcsp.graphics.RE.software.RESoftware;
+import jpcsp.graphics.capture.CaptureManager;
+import jpcsp.graphics.textures.TextureCache;
+
+/**
+ * Command-line benchmark replaying GE captures without display,
+ * e.g. to track GE performance regressions without running games.
+ *
+ * Usage:
+ *    GECaptureReplayBenchmark [-software] [-frames N] [captureFile...]
+ *
+ * Each capture file (by default "record.bin", as recorded by the
+ * "Record GE frames" debugger function) is replayed N times through the
+ * VideoEngine, using the NullRenderingEngine or, with "-software",
+ * the RESoftware renderer. For each capture are printed:
+ * - the frame timing (one frame is one replay of the capture file),
+ * - the most time intensive GE commands,
+ * - the texture and vertex cache statistics.
+ * Only the time spent in VideoEngine.update() is taken into account,
+ * not the time spent reading the capture file.
+ *
+ * @author gid15
+ *
+ */
+public class GECaptureReplayBenchmark {
+	private static final int defaultFrames = 100;
+	private static final int numberCommands = 20;
+	private Memory mem;
+	private VideoEngine videoEngine;
+
+	public static void main(String[] args) {
+		boolean software = false;
+		int frames = defaultFrames;
+		List<String> fileNames = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if ("-software".equals(args[i])) {
+				software = true;
+			} else if ("-frames".equals(args[i]) && i + 1 < args.length) {
+				frames = Integer.parseInt(args[++i]);
+			} else {
+				fileNames.add(args[i]);
+			}
+		}
+		if (fileNames.isEmpty()) {
+			fileNames.add(replayFileName);
+		}
+
+        new Emulator(new AutoTestsRunner.DummyGUI());
+        Emulator.getClock().resume();
+		Emulator.run = true;
+
+		GECaptureReplayBenchmark benchmark = new GECaptureReplayBenchmark();
+		benchmark.start(software ? new RESoftware() : new NullRenderingEngine());
+		for (String fileName : fileNames) {
+			benchmark.run(fileName, frames);
+		}
+	}
+
+	public void log(String s) {
+		System.out.println(s);
+	}
+
+	/**
+	 * Start the VideoEngine without display.
+	 * Must be called before the modules are created, i.e. before any
+	 * access to the VideoEngine or any memory write.
+	 *
+	 * @param re the rendering engine used to execute the GE lists
+	 */
+	public void start(IRenderingEngine re) {
+		// Without display, sceDisplay is not creating its OpenGL canvas
+		// (which would require the AWT native libraries)
+		System.setProperty("java.awt.headless", "true");
+
+		mem = Memory.getInstance();
+		videoEngine = VideoEngine.getInstance();
+		videoEngine.start(re);
+	}
+
+	private long executeLists() {
+		CaptureManager.startListReplay(videoEngine.getRenderingEngine(), videoEngine.getContext());
+
+		long start = System.nanoTime();
+		while (videoEngine.update()) {
+			// Execute all the pushed lists
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Replay once all the lists of a capture file.
+	 *
+	 * @param fileName the capture file
+	 * @return         the time spent executing the lists, in nanoseconds
+	 */
+	public long replayFrame(String fileName) {
+		boolean continueReplay = CaptureManager.startRecordReplay(mem, fileName);
+		long nanos = executeLists();
+		while (continueReplay) {
+			continueReplay = CaptureManager.continueRecordReplay(mem);
+			nanos += executeLists();
+		}
+
+		return nanos;
+	}
+
+	private void logCommands() {
+		final GeCommands geCommands = GeCommands.getInstance();
+		List<Integer> commands = new ArrayList<Integer>();
+		for (int command = 0; command < 256; command++) {
+			if (videoEngine.getCommandTimingCount(command) > 0) {
+				commands.add(command);
+			}
+		}
+
+		// Sort the commands based on their cumulated time (highest time first)
+		Collections.sort(commands, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer command1, Integer command2) {
+				return Long.compare(videoEngine.getCommandTimingNanos(command2), videoEngine.getCommandTimingNanos(command1));
+			}
+		});
+
+		log(String.format("  %d most time intensive GE commands:", Math.min(numberCommands, commands.size())));
+		for (int i = 0; i < commands.size() && i < numberCommands; i++) {
+			int command = commands.get(i);
+			long nanos = videoEngine.getCommandTimingNanos(command);
+			long count = videoEngine.getCommandTimingCount(command);
+			log(String.format("    %-11s: %d calls in %.3fms (avg=%.0fns)", geCommands.getCommandString(command), count, nanos / 1000000.0, nanos / (double) count));
+		}
+	}
+
+	public void run(String fileName, int frames) {
+		if (!new File(fileName).canRead()) {
+			log(String.format("Missing GE capture file '%s'", fileName));
+			return;
+		}
+
+		// Warm-up, also filling the caches
+		replayFrame(fileName);
+
+		TextureCache.getInstance().statistics.reset();
+		VertexCache.getInstance().getStatistics().reset();
+		videoEngine.resetCommandTiming();
+		videoEngine.setCommandTimingEnabled(true);
+
+		long totalNanos = 0L;
+		long minNanos = Long.MAX_VALUE;
+		long maxNanos = 0L;
+		for (int i = 0; i < frames; i++) {
+			long nanos = replayFrame(fileName);
+			TextureCache.getInstance().startFrame();
+			totalNanos += nanos;
+			minNanos = Math.min(minNanos, nanos);
+			maxNanos = Math.max(maxNanos, nanos);
+		}
+
+		videoEngine.setCommandTimingEnabled(false);
+
+		log(String.format("%s: %d frames, %.0f frames/second", fileName, frames, frames * 1000000000.0 / Math.max(totalNanos, 1L)));
+		log(String.format("  Frame duration: avg=%.3fms, min=%.3fms, max=%.3fms", totalNanos / 1000000.0 / frames, minNanos / 1000000.0, maxNanos / 1000000.0));
+		logCommands();
+		log(String.format("  %s", TextureCache.getInstance().statistics));
+		log(String.format("  %s", VertexCache.getInstance().getStatistics()));
+	}
+}
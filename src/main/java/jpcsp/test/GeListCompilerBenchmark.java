@@ -0,0 +1,89 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.test;
+
+import static jpcsp.graphics.capture.CaptureManager.replayFileName;
+
+import java.io.File;
+
+import jpcsp.Emulator;
+import jpcsp.autotests.AutoTestsRunner;
+import jpcsp.graphics.GeListCompiler;
+import jpcsp.graphics.VideoEngine;
+import jpcsp.graphics.RE.NullRenderingEngine;
+
+/**
+ * Benchmark of the GE list compiler (setting "emu.graphics.compileGeLists").
+ *
+ * A GE capture (by default "record.bin", as recorded by the "Record GE frames"
+ * debugger function) is replayed several times, like a game submitting
+ * the same display lists at each frame, with and without the GE list compiler.
+ * The lists are executed by the VideoEngine using the NullRenderingEngine,
+ * so that only the list processing is measured, not the rendering.
+ * The capture is replayed like in GECaptureReplayBenchmark.
+ *
+ * @author gid15
+ *
+ */
+public class GeListCompilerBenchmark {
+	private static final int frames = 200;
+	private static final int iterations = 5;
+
+	public static void main(String[] args) {
+        new Emulator(new AutoTestsRunner.DummyGUI());
+        Emulator.getClock().resume();
+		Emulator.run = true;
+
+		new GeListCompilerBenchmark().run(args.length > 0 ? args[0] : replayFileName);
+	}
+
+	public void log(String s) {
+		System.out.println(s);
+	}
+
+	private long execute(GECaptureReplayBenchmark replay, VideoEngine videoEngine, String fileName, boolean compileGeLists) {
+		videoEngine.setUseGeListCompiler(compileGeLists);
+
+		long nanos = Long.MAX_VALUE;
+		for (int i = 0; i < iterations; i++) {
+			long iterationNanos = 0L;
+			for (int j = 0; j < frames; j++) {
+				iterationNanos += replay.replayFrame(fileName);
+			}
+			nanos = Math.min(nanos, iterationNanos);
+		}
+
+		return nanos;
+	}
+
+	public void run(String fileName) {
+		if (!new File(fileName).canRead()) {
+			log(String.format("Missing GE capture file '%s'", fileName));
+			return;
+		}
+
+		GECaptureReplayBenchmark replay = new GECaptureReplayBenchmark();
+		replay.start(new NullRenderingEngine());
+		VideoEngine videoEngine = VideoEngine.getInstance();
+
+		long interpretedNanos = execute(replay, videoEngine, fileName, false);
+		log(String.format("Interpreted GE lists: %.0f frames/second", frames * 1000000000.0 / interpretedNanos));
+
+		long compiledNanos = execute(replay, videoEngine, fileName, true);
+		log(String.format("Compiled GE lists   : %.0f frames/second, speedup x%.2f, %d compiled segments", frames * 1000000000.0 / compiledNanos, interpretedNanos / (double) Math.max(compiledNanos, 1L), GeListCompiler.getInstance().getNumberCompiledSegments()));
+	}
+}
@@ -0,0 +1,267 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.test;
+
+import static jpcsp.Allegrex.Common._a0;
+import static jpcsp.Allegrex.Common._a1;
+import static jpcsp.Allegrex.Common._a2;
+import static jpcsp.Allegrex.Common._f0;
+import static jpcsp.Allegrex.Common._ra;
+import static jpcsp.Allegrex.Common._t0;
+import static jpcsp.Allegrex.Common._t1;
+import static jpcsp.Allegrex.Common._v0;
+import static jpcsp.Allegrex.Common._v1;
+import static jpcsp.Allegrex.Common._zr;
+
+import jpcsp.Emulator;
+import jpcsp.Memory;
+import jpcsp.Allegrex.CpuState;
+import jpcsp.Allegrex.compiler.Compiler;
+import jpcsp.Allegrex.compiler.IExecutable;
+import jpcsp.Allegrex.compiler.RuntimeContext;
+import jpcsp.autotests.AutoTestsRunner;
+import jpcsp.util.LWJGLFixer;
+
+/**
+ * Benchmark of the caching of the registers in local variables
+ * for compiled code blocks (setting "emu.compiler.registerCaching").
+ *
+ * CPU-bound loops are compiled twice, without and with register caching,
+ * and the number of executed Allegrex instructions per second is compared.
+ *
+ * @author gid15
+ *
+ */
+public class RegisterCachingBenchmark {
+	private static final int codeAddress = 0x08900000;
+	private static final int dataAddress = 0x08A00000;
+	private static final int dataLength = 0x10000;
+	private static final int loopIterations = 10000000;
+	private static final int iterations = 5;
+	private static final int nop = 0;
+	private int address;
+
+	public static void main(String[] args) {
+        LWJGLFixer.fixOnce();
+		RuntimeContext.setLog4jMDC();
+        new Emulator(new AutoTestsRunner.DummyGUI());
+        Emulator.getClock().resume();
+		Emulator.run = true;
+
+		new RegisterCachingBenchmark().run();
+	}
+
+	public void log(String s) {
+		System.out.println(s);
+	}
+
+	private static int rType(int rs, int rt, int rd, int sa, int function) {
+		return (rs << 21) | (rt << 16) | (rd << 11) | (sa << 6) | function;
+	}
+
+	private static int iType(int opcode, int rs, int rt, int imm16) {
+		return (opcode << 26) | (rs << 21) | (rt << 16) | (imm16 & 0xFFFF);
+	}
+
+	private static int fType(int ft, int fs, int fd, int function) {
+		// COP1 single precision
+		return (0x11 << 26) | (0x10 << 21) | (ft << 16) | (fs << 11) | (fd << 6) | function;
+	}
+
+	private static int addu(int rd, int rs, int rt) {
+		return rType(rs, rt, rd, 0, 0x21);
+	}
+
+	private static int xor(int rd, int rs, int rt) {
+		return rType(rs, rt, rd, 0, 0x26);
+	}
+
+	private static int sll(int rd, int rt, int sa) {
+		return rType(0, rt, rd, sa, 0x00);
+	}
+
+	private static int addiu(int rt, int rs, int imm16) {
+		return iType(0x09, rs, rt, imm16);
+	}
+
+	private static int lw(int rt, int offset, int base) {
+		return iType(0x23, base, rt, offset);
+	}
+
+	private static int bne(int rs, int rt, int target, int pc) {
+		return iType(0x05, rs, rt, (target - (pc + 4)) >> 2);
+	}
+
+	private static int jr(int rs) {
+		return rType(rs, 0, 0, 0, 0x08);
+	}
+
+	private static int addS(int fd, int fs, int ft) {
+		return fType(ft, fs, fd, 0x00);
+	}
+
+	private static int subS(int fd, int fs, int ft) {
+		return fType(ft, fs, fd, 0x01);
+	}
+
+	private void write(Memory mem, int opcode) {
+		mem.write32(address, opcode);
+		address += 4;
+	}
+
+	/**
+	 * Integer arithmetic loop, 7 instructions per iteration.
+	 */
+	private int writeIntegerLoop(Memory mem) {
+		int startAddress = address;
+		int loopAddress = address;
+		write(mem, addu(_v0, _v0, _a0));
+		write(mem, xor(_v1, _v1, _v0));
+		write(mem, sll(_t0, _v0, 3));
+		write(mem, addu(_v1, _v1, _t0));
+		write(mem, addiu(_a1, _a1, -1));
+		write(mem, bne(_a1, _zr, loopAddress, address));
+		write(mem, addiu(_a0, _a0, 1));
+		write(mem, jr(_ra));
+		write(mem, nop);
+
+		return startAddress;
+	}
+
+	/**
+	 * Memory read loop, 8 instructions per iteration.
+	 */
+	private int writeMemoryLoop(Memory mem) {
+		int startAddress = address;
+		int loopAddress = address;
+		write(mem, addu(_t1, _a2, _a0));
+		write(mem, lw(_t0, 0, _t1));
+		write(mem, addiu(_a0, _a0, 4));
+		write(mem, addu(_v0, _v0, _t0));
+		write(mem, xor(_v1, _v1, _t0));
+		write(mem, addiu(_a1, _a1, -1));
+		write(mem, bne(_a1, _zr, loopAddress, address));
+		// andi $a0, $a0, dataLength-1: keep the offset inside the data
+		write(mem, iType(0x0C, _a0, _a0, dataLength - 1));
+		write(mem, jr(_ra));
+		write(mem, nop);
+
+		return startAddress;
+	}
+
+	/**
+	 * Floating point loop, 5 instructions per iteration.
+	 */
+	private int writeFloatLoop(Memory mem) {
+		int startAddress = address;
+		int loopAddress = address;
+		write(mem, addS(_f0, _f0, _f0 + 1));
+		write(mem, subS(_f0 + 2, _f0 + 2, _f0));
+		write(mem, addiu(_a1, _a1, -1));
+		write(mem, bne(_a1, _zr, loopAddress, address));
+		write(mem, addS(_f0 + 1, _f0 + 1, _f0 + 3));
+		write(mem, jr(_ra));
+		write(mem, nop);
+
+		return startAddress;
+	}
+
+	private void initRegisters(CpuState cpu, int returnAddress) {
+		cpu._v0 = 0;
+		cpu._v1 = 0;
+		cpu._t0 = 0;
+		cpu._a0 = 0;
+		cpu._a1 = loopIterations;
+		cpu._a2 = dataAddress;
+		cpu._t1 = 0;
+		cpu._ra = returnAddress;
+		for (int i = 0; i < 4; i++) {
+			cpu.fpr[i] = 0.001f * i;
+		}
+	}
+
+	private long execute(IExecutable executable, CpuState cpu, int returnAddress, long[] result) throws Exception {
+		long nanos = Long.MAX_VALUE;
+		for (int i = 0; i < iterations; i++) {
+			initRegisters(cpu, returnAddress);
+			long start = System.nanoTime();
+			int nextAddress = executable.exec();
+			nanos = Math.min(nanos, System.nanoTime() - start);
+
+			if (nextAddress != returnAddress) {
+				log(String.format("Unexpected return address 0x%08X", nextAddress));
+			}
+		}
+		result[0] = cpu._v0;
+		result[1] = cpu._v1;
+		result[2] = Float.floatToRawIntBits(cpu.fpr[0]) ^ Float.floatToRawIntBits(cpu.fpr[1]) ^ Float.floatToRawIntBits(cpu.fpr[2]);
+
+		return nanos;
+	}
+
+	private void benchmark(String name, int codeAddress0, int codeAddress1, int instructionsPerIteration, CpuState cpu) throws Exception {
+		Compiler compiler = Compiler.getInstance();
+		int returnAddress = codeAddress;
+		long[] result0 = new long[3];
+		long[] result1 = new long[3];
+
+		compiler.setRegisterCachingEnabled(false);
+		long nanos0 = execute(compiler.compile(codeAddress0), cpu, returnAddress, result0);
+		compiler.setRegisterCachingEnabled(true);
+		long nanos1 = execute(compiler.compile(codeAddress1), cpu, returnAddress, result1);
+
+		double instructions = loopIterations * (double) instructionsPerIteration;
+		log(String.format("%-8s: without register caching %.1f MIPS, with register caching %.1f MIPS, speedup x%.2f", name, instructions * 1000.0 / nanos0, instructions * 1000.0 / nanos1, nanos0 / (double) Math.max(nanos1, 1L)));
+		for (int i = 0; i < result0.length; i++) {
+			if (result0[i] != result1[i]) {
+				log(String.format("FAILED - %s: different results 0x%X and 0x%X", name, result0[i], result1[i]));
+			}
+		}
+	}
+
+	public void run() {
+		Memory mem = Memory.getInstance();
+		RuntimeContext.updateMemory();
+		RuntimeContext.enableDebugger = false;
+		RuntimeContext.processor = Emulator.getProcessor();
+		RuntimeContext.cpu = Emulator.getProcessor().cpu;
+		RuntimeContext.fpr = RuntimeContext.cpu.fpr;
+		Compiler.getInstance().getCodeBlockCache().setEnabled(false);
+
+		for (int i = 0; i < dataLength; i += 4) {
+			mem.write32(dataAddress + i, i * 0x9E3779B9);
+		}
+
+		// Each loop is written twice, to be compiled without and with register caching
+		address = codeAddress + 0x100;
+		int integerLoop0 = writeIntegerLoop(mem);
+		int integerLoop1 = writeIntegerLoop(mem);
+		int memoryLoop0 = writeMemoryLoop(mem);
+		int memoryLoop1 = writeMemoryLoop(mem);
+		int floatLoop0 = writeFloatLoop(mem);
+		int floatLoop1 = writeFloatLoop(mem);
+
+		CpuState cpu = RuntimeContext.cpu;
+		try {
+			benchmark("Integer", integerLoop0, integerLoop1, 7, cpu);
+			benchmark("Memory", memoryLoop0, memoryLoop1, 8, cpu);
+			benchmark("Float", floatLoop0, floatLoop1, 5, cpu);
+		} catch (Exception e) {
+			log(String.format("FAILED - %s", e));
+		}
+	}
+}
@@ -0,0 +1,250 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.test;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Random;
+
+import jpcsp.HLE.kernel.types.IAction;
+import jpcsp.scheduler.SchedulerAction;
+import jpcsp.scheduler.SchedulerQueue;
+
+/**
+ * Microbenchmark for the Scheduler actions queue.
+ *
+ * Simulates a number of pending alarms, VTimers and thread delays being
+ * added, cancelled and executed while the time is advancing,
+ * and compares the SchedulerQueue with the previous implementation
+ * based on a LinkedList.
+ *
+ * Usage:
+ *     SchedulerBenchmark [number-of-pending-actions...]
+ *
+ * @author gid15
+ *
+ */
+public class SchedulerBenchmark {
+	private static final int numberOperations = 1000000;
+	private static final int iterations = 5;
+
+	private static class TestAction implements IAction {
+		public final int id;
+		public long schedule;
+		public boolean pending;
+
+		public TestAction(int id) {
+			this.id = id;
+		}
+
+		@Override
+		public void execute() {
+		}
+	}
+
+	private static interface IQueue {
+		public void add(long schedule, IAction action);
+		public void remove(long schedule, IAction action);
+		public SchedulerAction peek();
+		public IAction poll(long now);
+	}
+
+	/**
+	 * The previous implementation of the Scheduler.
+	 */
+	private static class LinkedListQueue implements IQueue {
+		private final List<SchedulerAction> actions = new LinkedList<SchedulerAction>();
+		private SchedulerAction nextAction;
+
+		@Override
+		public void add(long schedule, IAction action) {
+			SchedulerAction schedulerAction = new SchedulerAction(schedule, action);
+			actions.add(schedulerAction);
+			updateNextAction(schedulerAction);
+		}
+
+		@Override
+		public void remove(long schedule, IAction action) {
+			for (ListIterator<SchedulerAction> lit = actions.listIterator(); lit.hasNext(); ) {
+				SchedulerAction schedulerAction = lit.next();
+				if (schedulerAction.getSchedule() == schedule && schedulerAction.getAction() == action) {
+					lit.remove();
+					updateNextAction();
+					break;
+				}
+			}
+		}
+
+		private boolean updateNextAction(SchedulerAction schedulerAction) {
+			if (nextAction == null || schedulerAction.getSchedule() < nextAction.getSchedule()) {
+				nextAction = schedulerAction;
+				return true;
+			}
+
+			return false;
+		}
+
+		private void updateNextAction() {
+			nextAction = null;
+
+			for (Iterator<SchedulerAction> it = actions.iterator(); it.hasNext(); ) {
+				SchedulerAction schedulerAction = it.next();
+				updateNextAction(schedulerAction);
+			}
+		}
+
+		@Override
+		public SchedulerAction peek() {
+			return nextAction;
+		}
+
+		@Override
+		public IAction poll(long now) {
+			if (nextAction == null || now < nextAction.getSchedule()) {
+				return null;
+			}
+
+			IAction action = nextAction.getAction();
+
+			actions.remove(nextAction);
+			updateNextAction();
+
+			return action;
+		}
+	}
+
+	private static class HeapQueue implements IQueue {
+		private final SchedulerQueue actions = new SchedulerQueue();
+
+		@Override
+		public void add(long schedule, IAction action) {
+			actions.add(new SchedulerAction(schedule, action));
+		}
+
+		@Override
+		public void remove(long schedule, IAction action) {
+			actions.remove(schedule, action);
+		}
+
+		@Override
+		public SchedulerAction peek() {
+			return actions.peek();
+		}
+
+		@Override
+		public IAction poll(long now) {
+			SchedulerAction nextAction = actions.peek();
+			if (nextAction == null || now < nextAction.getSchedule()) {
+				return null;
+			}
+
+			return actions.poll().getAction();
+		}
+	}
+
+	public static void main(String[] args) {
+		SchedulerBenchmark benchmark = new SchedulerBenchmark();
+		if (args.length == 0) {
+			benchmark.run(10);
+			benchmark.run(100);
+			benchmark.run(500);
+		} else {
+			for (String arg : args) {
+				benchmark.run(Integer.parseInt(arg));
+			}
+		}
+	}
+
+	public void log(String s) {
+		System.out.println(s);
+	}
+
+	/**
+	 * Replay the same pseudo-random sequence of operations on the given queue.
+	 *
+	 * @return a checksum of the executed actions, in execution order
+	 */
+	private long replay(IQueue queue, int numberPendingActions) {
+		Random random = new Random(numberPendingActions);
+		TestAction[] testActions = new TestAction[numberPendingActions];
+		for (int i = 0; i < numberPendingActions; i++) {
+			testActions[i] = new TestAction(i);
+		}
+
+		long now = 0L;
+		long checksum = 0L;
+		for (int i = 0; i < numberOperations; i++) {
+			TestAction testAction = testActions[random.nextInt(numberPendingActions)];
+			if (testAction.pending) {
+				if (random.nextInt(4) == 0) {
+					// Cancel a pending alarm or VTimer
+					queue.remove(testAction.schedule, testAction);
+					testAction.pending = false;
+				}
+			} else {
+				// Schedule an action in the near future (thread delay, alarm, vblank...)
+				testAction.schedule = now + random.nextInt(16667);
+				testAction.pending = true;
+				queue.add(testAction.schedule, testAction);
+			}
+
+			// Scheduler.step() and Scheduler.getNextActionDelay() on each sync
+			now += random.nextInt(100);
+			if (queue.peek() != null) {
+				while (true) {
+					IAction action = queue.poll(now);
+					if (action == null) {
+						break;
+					}
+					TestAction executedAction = (TestAction) action;
+					executedAction.pending = false;
+					checksum = checksum * 31 + executedAction.id;
+				}
+			}
+		}
+
+		return checksum;
+	}
+
+	public void run(int numberPendingActions) {
+		log(String.format("Replaying %d operations with up to %d pending actions", numberOperations, numberPendingActions));
+
+		long linkedListChecksum = 0L;
+		long heapChecksum = 0L;
+		long linkedListNanos = Long.MAX_VALUE;
+		long heapNanos = Long.MAX_VALUE;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			linkedListChecksum = replay(new LinkedListQueue(), numberPendingActions);
+			linkedListNanos = Math.min(linkedListNanos, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			heapChecksum = replay(new HeapQueue(), numberPendingActions);
+			heapNanos = Math.min(heapNanos, System.nanoTime() - start);
+		}
+
+		log(String.format("LinkedList    : %d ms, %.1f ns/operation", linkedListNanos / 1000000, linkedListNanos / (double) numberOperations));
+		log(String.format("SchedulerQueue: %d ms, %.1f ns/operation", heapNanos / 1000000, heapNanos / (double) numberOperations));
+		if (linkedListChecksum != heapChecksum) {
+			log("FAILED - the actions have not been executed in the same order");
+		} else {
+			log(String.format("SUCCESS - speedup x%.1f", linkedListNanos / (double) Math.max(heapNanos, 1L)));
+		}
+	}
+}
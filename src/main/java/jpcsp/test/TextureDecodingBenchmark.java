@@ -0,0 +1,205 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import jpcsp.Emulator;
+import jpcsp.Memory;
+import jpcsp.MemoryMap;
+import jpcsp.autotests.AutoTestsRunner;
+import jpcsp.graphics.textures.TextureDecoder;
+import jpcsp.memory.IMemoryReader;
+import jpcsp.memory.MemoryReader;
+
+/**
+ * Benchmark of the texture decoding, in MB/s of decoded texture,
+ * comparing the decoding through an IMemoryReader (as performed
+ * by the VideoEngine before using the TextureDecoder) with the bulk
+ * decoding of the TextureDecoder, using 1 thread and all the available processors.
+ *
+ * Two textures of 512x512 pixels are decoded:
+ * - a swizzled 32-bit texture,
+ * - a non-swizzled 8-bit indexed texture using a 32-bit CLUT.
+ * The results of the TextureDecoder are compared with the IMemoryReader results.
+ *
+ * @author gid15
+ *
+ */
+public class TextureDecodingBenchmark {
+	private static final int textureAddress = MemoryMap.START_USERSPACE;
+	private static final int width = 512;
+	private static final int height = 512;
+	private static final int decodings = 200;
+	private static final int iterations = 5;
+	private final int[] clut = new int[256];
+	private Memory mem;
+
+	public static void main(String[] args) {
+        new Emulator(new AutoTestsRunner.DummyGUI());
+
+        new TextureDecodingBenchmark().run();
+	}
+
+	public void log(String s) {
+		System.out.println(s);
+	}
+
+	private static interface IDecoder {
+		public void decode(int[] dest);
+	}
+
+	private void unswizzleMemoryReader(int rowWidth, int[] dest) {
+		int pitch = rowWidth / 4;
+		int bxc = rowWidth / 16;
+		int byc = height / 8;
+		int ydest = 0;
+
+		IMemoryReader memoryReader = MemoryReader.getMemoryReader(mem, textureAddress, 4);
+		for (int by = 0; by < byc; by++) {
+			int xdest = ydest;
+			for (int bx = 0; bx < bxc; bx++) {
+				int dest2 = xdest;
+				for (int n = 0; n < 8; n++) {
+					dest[dest2] = memoryReader.readNext();
+					dest[dest2 + 1] = memoryReader.readNext();
+					dest[dest2 + 2] = memoryReader.readNext();
+					dest[dest2 + 3] = memoryReader.readNext();
+
+					dest2 += pitch;
+				}
+				xdest += 4;
+			}
+			ydest += (rowWidth * 8) / 4;
+		}
+	}
+
+	private void applyClutMemoryReader(int[] dest) {
+		int length = width * height;
+		IMemoryReader memoryReader = MemoryReader.getMemoryReader(mem, textureAddress, length, 1);
+		for (int i = 0; i < length; i++) {
+			int index = memoryReader.readNext();
+			dest[i] = clut[index & 0xFF];
+		}
+	}
+
+	private long execute(IDecoder decoder, int[] dest) {
+		long nanos = Long.MAX_VALUE;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			for (int j = 0; j < decodings; j++) {
+				decoder.decode(dest);
+			}
+			nanos = Math.min(nanos, System.nanoTime() - start);
+		}
+
+		return nanos;
+	}
+
+	private void logResult(String name, long nanos, long referenceNanos) {
+		double megaBytes = decodings * width * height * 4 / 1024.0 / 1024.0;
+		log(String.format("%-40s: %.0f MB/s, speedup x%.2f", name, megaBytes * 1000000000.0 / nanos, referenceNanos / (double) Math.max(nanos, 1L)));
+	}
+
+	private void checkResult(String name, int[] expected, int[] result) {
+		if (!Arrays.equals(expected, result)) {
+			log(String.format("FAILED - %s: wrong decoded texture", name));
+		}
+	}
+
+	private void fillMemory(Random random, int length) {
+		for (int i = 0; i < length; i += 4) {
+			mem.write32(textureAddress + i, random.nextInt());
+		}
+	}
+
+	public void runUnswizzle(TextureDecoder[] textureDecoders) {
+		final int rowWidth = width * 4;
+		fillMemory(new Random(0), rowWidth * height);
+
+		int[] expected = new int[width * height];
+		long referenceNanos = execute(new IDecoder() {
+			@Override
+			public void decode(int[] dest) {
+				unswizzleMemoryReader(rowWidth, dest);
+			}
+		}, expected);
+		logResult("Unswizzle 32-bit, IMemoryReader", referenceNanos, referenceNanos);
+
+		for (final TextureDecoder textureDecoder : textureDecoders) {
+			int[] result = new int[width * height];
+			long nanos = execute(new IDecoder() {
+				@Override
+				public void decode(int[] dest) {
+					textureDecoder.unswizzle(mem, textureAddress, rowWidth, height / 8, dest);
+				}
+			}, result);
+			String name = String.format("Unswizzle 32-bit, %d thread(s)", textureDecoder.getNumberThreads());
+			logResult(name, nanos, referenceNanos);
+			checkResult(name, expected, result);
+		}
+	}
+
+	public void runClut(TextureDecoder[] textureDecoders) {
+		Random random = new Random(1);
+		fillMemory(random, width * height);
+		for (int i = 0; i < clut.length; i++) {
+			clut[i] = random.nextInt();
+		}
+
+		int[] expected = new int[width * height];
+		long referenceNanos = execute(new IDecoder() {
+			@Override
+			public void decode(int[] dest) {
+				applyClutMemoryReader(dest);
+			}
+		}, expected);
+		logResult("8-bit indexed, IMemoryReader", referenceNanos, referenceNanos);
+
+		final int[] memoryInt = TextureDecoder.getMemoryInt(mem, textureAddress, width * height);
+		final int memoryIntOffset = mem.getMemoryIntOffset(textureAddress);
+		for (final TextureDecoder textureDecoder : textureDecoders) {
+			int[] result = new int[width * height];
+			long nanos = execute(new IDecoder() {
+				@Override
+				public void decode(int[] dest) {
+					textureDecoder.applyClut(memoryInt, memoryIntOffset, 1, width * height, clut, 0, 0xFF, 0, dest);
+				}
+			}, result);
+			String name = String.format("8-bit indexed, %d thread(s)", textureDecoder.getNumberThreads());
+			logResult(name, nanos, referenceNanos);
+			checkResult(name, expected, result);
+		}
+	}
+
+	public void run() {
+		mem = Memory.getInstance();
+		if (TextureDecoder.getMemoryInt(mem, textureAddress, width * height * 4) == null) {
+			log(String.format("The memory %s cannot be accessed as an int array, the TextureDecoder is not used", mem.getClass().getSimpleName()));
+			return;
+		}
+
+		TextureDecoder[] textureDecoders = new TextureDecoder[] {
+			new TextureDecoder(1),
+			new TextureDecoder(Runtime.getRuntime().availableProcessors())
+		};
+
+		runUnswizzle(textureDecoders);
+		runClut(textureDecoders);
+	}
+}
@@ -0,0 +1,130 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.test;
+
+import jpcsp.Emulator;
+import jpcsp.Allegrex.compiler.RuntimeContext;
+import jpcsp.Allegrex.compiler.RuntimeThread;
+import jpcsp.HLE.HLEModuleManager;
+import jpcsp.HLE.kernel.types.SceKernelThreadInfo;
+import jpcsp.autotests.AutoTestsRunner;
+import jpcsp.util.LWJGLFixer;
+
+/**
+ * Benchmark of the PSP thread switches between RuntimeThreads
+ * executed by platform threads or by virtual threads
+ * (setting "emu.compiler.virtualThreads").
+ *
+ * Two RuntimeThreads are handing over the execution to each other
+ * through the same continue/suspend handoff as the one executed
+ * at each PSP thread switch (RuntimeContext.syncThreadImmediately()),
+ * and the number of switches per second is compared.
+ *
+ * @author gid15
+ *
+ */
+public class ThreadSwitchBenchmark {
+	private static final int switches = 1000000;
+	private static final int iterations = 5;
+
+	public static void main(String[] args) {
+        LWJGLFixer.fixOnce();
+		RuntimeContext.setLog4jMDC();
+        new Emulator(new AutoTestsRunner.DummyGUI());
+        Emulator.getInstance().initNewPsp(false);
+        HLEModuleManager.getInstance().startModules(false);
+
+		new ThreadSwitchBenchmark().run();
+	}
+
+	public void log(String s) {
+		System.out.println(s);
+	}
+
+	private static class PingPongThread extends RuntimeThread {
+		private PingPongThread other;
+		private final int count;
+
+		public PingPongThread(String name, int count) {
+			super(new SceKernelThreadInfo(name, 0, 0x20, 0x1000, 0, 0));
+			this.count = count;
+		}
+
+		public void setOther(PingPongThread other) {
+			this.other = other;
+		}
+
+		@Override
+		protected void execute() {
+			// Wait to be scheduled for the first time, like RuntimeContext.runThread()
+			suspendRuntimeExecution();
+
+			for (int i = 0; i < count; i++) {
+				// Hand over the execution to the other thread
+				// and wait until being scheduled again
+				other.continueRuntimeExecution();
+				suspendRuntimeExecution();
+			}
+
+			// Release the other thread waiting for its last switch
+			other.continueRuntimeExecution();
+		}
+	}
+
+	private long execute(boolean virtual) throws InterruptedException {
+		RuntimeContext.setVirtualThreadsEnabled(virtual);
+
+		long nanos = Long.MAX_VALUE;
+		for (int i = 0; i < iterations; i++) {
+			PingPongThread ping = new PingPongThread("Ping", switches / 2);
+			PingPongThread pong = new PingPongThread("Pong", switches / 2);
+			ping.setOther(pong);
+			pong.setOther(ping);
+			if (ping.isVirtual() != virtual) {
+				return -1L;
+			}
+
+			long start = System.nanoTime();
+			ping.start();
+			pong.start();
+			ping.continueRuntimeExecution();
+			ping.getThread().join();
+			pong.getThread().join();
+			nanos = Math.min(nanos, System.nanoTime() - start);
+		}
+
+		return nanos;
+	}
+
+	public void run() {
+		try {
+			long platformNanos = execute(false);
+			log(String.format("Platform threads: %.0f switches/second", switches * 1000000000.0 / platformNanos));
+
+			long virtualNanos = execute(true);
+			if (virtualNanos < 0L) {
+				log("Virtual threads are not supported by this JDK");
+			} else {
+				log(String.format("Virtual threads : %.0f switches/second, speedup x%.2f", switches * 1000000000.0 / virtualNanos, platformNanos / (double) Math.max(virtualNanos, 1L)));
+			}
+		} catch (InterruptedException e) {
+			log(String.format("FAILED - %s", e));
+		} finally {
+			RuntimeContext.setVirtualThreadsEnabled(false);
+		}
+	}
+}
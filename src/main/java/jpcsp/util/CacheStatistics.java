@@ -25,12 +25,69 @@ public class CacheStatistics {
 	public long changedHits = 0;		// Number of times a vertex was present but had to be discarded because it was changed
 	public long entriesRemoved = 0;		// Number of times a vertex had to be removed from the cache due to the size limit
 	public long maxSizeUsed = 0;		// Maximum size of the cache
+	// Statistics in bytes, only for the caches having a size in bytes
+	private long cacheMaxSizeInBytes;
+	public long sizeInBytes = 0;		// Current size of the cache in bytes
+	public long maxSizeInBytesUsed = 0;	// Maximum size of the cache in bytes
+	public long bytesAdded = 0;			// Number of bytes added to the cache
+	public long bytesRemoved = 0;		// Number of bytes removed from the cache due to the size limits
+	// Statistics per frame, only for the caches calling startFrame()
+	public long frames = 0;				// Number of frames completed
+	public long lastFrameHits = 0;		// Successful hits during the last frame
+	public long lastFrameMisses = 0;	// Not present or changed hits during the last frame
+	public long lastFrameEntriesRemoved = 0;	// Entries removed during the last frame
+	public long lastFrameBytesAdded = 0;	// Bytes added during the last frame
+	public long maxFrameMisses = 0;		// Maximum misses during one frame
+	public long maxFrameBytesAdded = 0;	// Maximum bytes added during one frame
+	private long frameStartHits;
+	private long frameStartMisses;
+	private long frameStartEntriesRemoved;
+	private long frameStartBytesAdded;
 
 	public CacheStatistics(String name, int cacheMaxSize) {
 		this.name = name;
 		this.cacheMaxSize = cacheMaxSize;
 	}
 
+	public CacheStatistics(String name, int cacheMaxSize, long cacheMaxSizeInBytes) {
+		this(name, cacheMaxSize);
+		this.cacheMaxSizeInBytes = cacheMaxSizeInBytes;
+	}
+
+	public void setCacheMaxSizeInBytes(long cacheMaxSizeInBytes) {
+		this.cacheMaxSizeInBytes = cacheMaxSizeInBytes;
+	}
+
+	public long getCacheMaxSizeInBytes() {
+		return cacheMaxSizeInBytes;
+	}
+
+	public void setSizeInBytes(long sizeInBytes) {
+		this.sizeInBytes = sizeInBytes;
+		if (sizeInBytes > maxSizeInBytesUsed) {
+			maxSizeInBytesUsed = sizeInBytes;
+		}
+	}
+
+	/**
+	 * Complete the statistics of the current frame and start a new frame.
+	 */
+	public void startFrame() {
+		long misses = notPresentHits + changedHits;
+		lastFrameHits = successfulHits - frameStartHits;
+		lastFrameMisses = misses - frameStartMisses;
+		lastFrameEntriesRemoved = entriesRemoved - frameStartEntriesRemoved;
+		lastFrameBytesAdded = bytesAdded - frameStartBytesAdded;
+		maxFrameMisses = Math.max(maxFrameMisses, lastFrameMisses);
+		maxFrameBytesAdded = Math.max(maxFrameBytesAdded, lastFrameBytesAdded);
+
+		frameStartHits = successfulHits;
+		frameStartMisses = misses;
+		frameStartEntriesRemoved = entriesRemoved;
+		frameStartBytesAdded = bytesAdded;
+		frames++;
+	}
+
 	private String percentage(long n, long max) {
 		return String.format("%.2f%%", (n / (double) max) * 100);
 	}
@@ -46,6 +103,24 @@ public class CacheStatistics {
 		changedHits = 0;
 		entriesRemoved = 0;
 		maxSizeUsed = 0;
+		maxSizeInBytesUsed = sizeInBytes;
+		bytesAdded = 0;
+		bytesRemoved = 0;
+		frames = 0;
+		lastFrameHits = 0;
+		lastFrameMisses = 0;
+		lastFrameEntriesRemoved = 0;
+		lastFrameBytesAdded = 0;
+		maxFrameMisses = 0;
+		maxFrameBytesAdded = 0;
+		frameStartHits = 0;
+		frameStartMisses = 0;
+		frameStartEntriesRemoved = 0;
+		frameStartBytesAdded = 0;
+	}
+
+	private static String sizeInMB(long sizeInBytes) {
+		return String.format("%.1fMB", sizeInBytes / (1024.0 * 1024.0));
 	}
 
 	@Override
@@ -65,6 +140,18 @@ public class CacheStatistics {
 		    result.append("ChangedHits=" + changedHits + " (" + percentage(changedHits) + "), ");
 		    result.append("EntriesRemoved=" + entriesRemoved + ", ");
 		    result.append("MaxSizeUsed=" + maxSizeUsed + " (" + percentage(maxSizeUsed, cacheMaxSize) + ")");
+		    if (cacheMaxSizeInBytes > 0) {
+		    	result.append(", SizeInBytes=" + sizeInMB(sizeInBytes) + ", ");
+		    	result.append("MaxSizeInBytesUsed=" + sizeInMB(maxSizeInBytesUsed) + " (" + percentage(maxSizeInBytesUsed, cacheMaxSizeInBytes) + "), ");
+		    	result.append("BytesAdded=" + sizeInMB(bytesAdded) + ", ");
+		    	result.append("BytesRemoved=" + sizeInMB(bytesRemoved));
+		    }
+		    if (frames > 0) {
+		    	result.append(", Frames=" + frames + ", ");
+		    	result.append("LastFrame[Hits=" + lastFrameHits + ", Misses=" + lastFrameMisses + ", EntriesRemoved=" + lastFrameEntriesRemoved + ", BytesAdded=" + sizeInMB(lastFrameBytesAdded) + "], ");
+		    	result.append("MaxFrameMisses=" + maxFrameMisses + ", ");
+		    	result.append("MaxFrameBytesAdded=" + sizeInMB(maxFrameBytesAdded));
+		    }
 		}
 		return result.toString();
 	}
@@ -0,0 +1,134 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.util;
+
+import java.io.IOException;
+
+/*
+ * LZ4 block decompression.
+ *
+ * Based on the LZ4 block format description:
+ * https://github.com/lz4/lz4/blob/dev/doc/lz4_Block_format.md
+ */
+public class LZ4 {
+	private static final int MIN_MATCH = 4;
+
+	private static boolean isPadding(byte[] in, int inPtr, int inEnd) {
+		for (int i = inPtr; i < inEnd; i++) {
+			if (in[i] != 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Decompress a LZ4 block.
+	 *
+	 * @param in        the compressed data
+	 * @param inOffset  the offset of the compressed data
+	 * @param inLength  the length of the compressed data, possibly including padding bytes
+	 *                  after the last sequence when outLength is the exact decompressed length
+	 * @param out       the buffer receiving the decompressed data
+	 * @param outOffset the offset where to store the decompressed data
+	 * @param outLength the maximum length of the decompressed data
+	 * @return          the length of the decompressed data
+	 * @throws IOException the compressed data is invalid
+	 */
+	public static int decompress(byte[] in, int inOffset, int inLength, byte[] out, int outOffset, int outLength) throws IOException {
+		int inPtr = inOffset;
+		int inEnd = inOffset + inLength;
+		int outPtr = outOffset;
+		int outEnd = outOffset + outLength;
+
+		while (inPtr < inEnd) {
+			int token = in[inPtr++] & 0xFF;
+
+			// Literals
+			int literalLength = token >> 4;
+			if (literalLength == 15) {
+				int b;
+				do {
+					if (inPtr >= inEnd) {
+						throw new IOException("LZ4: truncated literal length");
+					}
+					b = in[inPtr++] & 0xFF;
+					literalLength += b;
+				} while (b == 255);
+			}
+			if (inPtr + literalLength > inEnd || outPtr + literalLength > outEnd) {
+				throw new IOException("LZ4: literals out of bounds");
+			}
+			System.arraycopy(in, inPtr, out, outPtr, literalLength);
+			inPtr += literalLength;
+			outPtr += literalLength;
+
+			// The last sequence only contains literals.
+			// The compressed data can be followed by padding bytes
+			// (e.g. the alignment of the CSO v2 blocks): stop decoding
+			// once the output is complete.
+			if (inPtr >= inEnd || outPtr == outEnd) {
+				break;
+			}
+			if (isPadding(in, inPtr, inEnd)) {
+				// Only zero padding bytes after a shorter last block
+				// (a match offset cannot be 0)
+				break;
+			}
+
+			// Match
+			if (inPtr + 2 > inEnd) {
+				throw new IOException("LZ4: truncated match offset");
+			}
+			int matchOffset = (in[inPtr] & 0xFF) | ((in[inPtr + 1] & 0xFF) << 8);
+			inPtr += 2;
+			int matchPtr = outPtr - matchOffset;
+			if (matchOffset == 0 || matchPtr < outOffset) {
+				throw new IOException(String.format("LZ4: invalid match offset %d", matchOffset));
+			}
+
+			int matchLength = token & 0x0F;
+			if (matchLength == 15) {
+				int b;
+				do {
+					if (inPtr >= inEnd) {
+						throw new IOException("LZ4: truncated match length");
+					}
+					b = in[inPtr++] & 0xFF;
+					matchLength += b;
+				} while (b == 255);
+			}
+			matchLength += MIN_MATCH;
+			if (outPtr + matchLength > outEnd) {
+				throw new IOException("LZ4: match out of bounds");
+			}
+
+			if (matchOffset >= matchLength) {
+				System.arraycopy(out, matchPtr, out, outPtr, matchLength);
+				outPtr += matchLength;
+			} else {
+				// Overlapping match, copy byte by byte
+				for (int i = 0; i < matchLength; i++) {
+					out[outPtr++] = out[matchPtr++];
+				}
+			}
+		}
+
+		return outPtr - outOffset;
+	}
+}
@@ -0,0 +1,194 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.util;
+
+import java.util.Arrays;
+
+/**
+ * Hash map using primitive long keys, without boxing the keys
+ * into Long objects at each lookup.
+ *
+ * The entries are stored by open addressing with linear probing.
+ * The null value cannot be stored, it is returned for a missing key.
+ *
+ * The entries can be iterated using getCapacity() and getValueAt(index):
+ * the value is null at the indexes without entry.
+ *
+ * @author gid15
+ *
+ */
+public class LongObjectHashMap<V> {
+	private static final int minimumCapacity = 16;
+	private long[] keys;
+	private Object[] values;
+	private int size;
+	private int mask;
+	private int resizeThreshold;
+
+	public LongObjectHashMap() {
+		this(minimumCapacity);
+	}
+
+	public LongObjectHashMap(int expectedSize) {
+		int capacity = minimumCapacity;
+		// Keep the load factor below 0.5
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		resizeThreshold = capacity >> 1;
+	}
+
+	private int getIndex(long key) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return ((int) (hash ^ (hash >>> 32))) & mask;
+	}
+
+	private int findIndex(long key) {
+		for (int index = getIndex(key); values[index] != null; index = (index + 1) & mask) {
+			if (keys[index] == key) {
+				return index;
+			}
+		}
+
+		return -1;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int index = findIndex(key);
+		if (index < 0) {
+			return null;
+		}
+
+		return (V) values[index];
+	}
+
+	public boolean containsKey(long key) {
+		return findIndex(key) >= 0;
+	}
+
+	/**
+	 * @param key   the key
+	 * @param value the value, not null
+	 * @return      the previous value stored with this key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		int index = getIndex(key);
+		for (; values[index] != null; index = (index + 1) & mask) {
+			if (keys[index] == key) {
+				V previousValue = (V) values[index];
+				values[index] = value;
+				return previousValue;
+			}
+		}
+
+		keys[index] = key;
+		values[index] = value;
+		size++;
+		if (size > resizeThreshold) {
+			resize(keys.length << 1);
+		}
+
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int index = findIndex(key);
+		if (index < 0) {
+			return null;
+		}
+
+		V previousValue = (V) values[index];
+		values[index] = null;
+		size--;
+
+		// Shift back the following entries of the probing sequence
+		// so that they can still be found without tombstones.
+		int freeIndex = index;
+		for (index = (index + 1) & mask; values[index] != null; index = (index + 1) & mask) {
+			int homeIndex = getIndex(keys[index]);
+			// Move the entry if its home index is not between the free index and its current index
+			boolean move;
+			if (freeIndex <= index) {
+				move = homeIndex <= freeIndex || homeIndex > index;
+			} else {
+				move = homeIndex <= freeIndex && homeIndex > index;
+			}
+			if (move) {
+				keys[freeIndex] = keys[index];
+				values[freeIndex] = values[index];
+				values[index] = null;
+				freeIndex = index;
+			}
+		}
+
+		return previousValue;
+	}
+
+	private void resize(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(capacity);
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				int index = getIndex(oldKeys[i]);
+				while (values[index] != null) {
+					index = (index + 1) & mask;
+				}
+				keys[index] = oldKeys[i];
+				values[index] = oldValues[i];
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		if (size > 0) {
+			Arrays.fill(values, null);
+			size = 0;
+		}
+	}
+
+	public int getCapacity() {
+		return values.length;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V getValueAt(int index) {
+		return (V) values[index];
+	}
+
+	public long getKeyAt(int index) {
+		return keys[index];
+	}
+}
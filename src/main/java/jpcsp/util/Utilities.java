@@ -1630,6 +1630,7 @@ public class Utilities {
 		// Optimize the most common case
     	if (RuntimeContext.hasMemoryInt(address)) {
     		System.arraycopy(a, offset, RuntimeContext.getMemoryInt(), (address.getAddress() & addressMask) >> 2, length4);
+    		address.getMemory().setDirty(address.getAddress(), length4 << 2);
     	} else {
 	    	IMemoryWriter memoryWriter = MemoryWriter.getMemoryWriter(address, length, 4);
 	    	for (int i = 0; i < length4; i++) {
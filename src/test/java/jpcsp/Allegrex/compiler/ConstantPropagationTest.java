@@ -0,0 +1,385 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.Allegrex.compiler;
+
+import static jpcsp.Allegrex.Common._a0;
+import static jpcsp.Allegrex.Common._a1;
+import static jpcsp.Allegrex.Common._a2;
+import static jpcsp.Allegrex.Common._a3;
+import static jpcsp.Allegrex.Common._ra;
+import static jpcsp.Allegrex.Common._s0;
+import static jpcsp.Allegrex.Common._s1;
+import static jpcsp.Allegrex.Common._t0;
+import static jpcsp.Allegrex.Common._t1;
+import static jpcsp.Allegrex.Common._t2;
+import static jpcsp.Allegrex.Common._t3;
+import static jpcsp.Allegrex.Common._t4;
+import static jpcsp.Allegrex.Common._t5;
+import static jpcsp.Allegrex.Common._v0;
+import static jpcsp.Allegrex.Common._v1;
+import static jpcsp.Allegrex.Common._zr;
+import static jpcsp.Allegrex.Common.gprNames;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import jpcsp.Processor;
+import jpcsp.Allegrex.CpuState;
+import jpcsp.Allegrex.Decoder;
+import jpcsp.Allegrex.Instructions;
+import jpcsp.Allegrex.Common.Instruction;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Correctness test of the constant propagation analysis
+ * (setting "emu.compiler.constantPropagation").
+ *
+ * Random instruction sequences are executed twice by the interpreter:
+ * once unchanged, and once applying the results of the analysis like
+ * the compiler does, i.e. skipping the dead writes, storing the folded
+ * values and using the constant addresses.
+ * The registers and the data must be identical after both executions.
+ *
+ * Only a Processor is used: the memory accesses are performed on a local
+ * data array and neither the Memory, the Compiler nor the emulator are set up.
+ *
+ * @author gid15
+ *
+ */
+public class ConstantPropagationTest {
+	private static final int codeAddress = 0x08A00000;
+	private static final int dataAddress = 0x08900000;
+	private static final int dataLength = 0x400;
+	private static final int numberTests = 2000;
+	private static final int numberInstructions = 60;
+	private static final int nop = 0;
+	// Registers written by the random instructions.
+	// $s0 and $s1 are holding the data address and are never written.
+	private static final int[] registers = new int[] { _zr, _v0, _v1, _a0, _a1, _a2, _a3, _t0, _t1, _t2, _t3, _t4, _t5 };
+	private final Random random = new Random(0x12345678L);
+	private final List<Integer> opcodes = new ArrayList<Integer>();
+	private final byte[] data = new byte[dataLength];
+	private Processor processor;
+	private int failures;
+	private final StringBuilder firstFailure = new StringBuilder();
+
+	@Before
+	public void setUp() {
+		processor = new Processor();
+	}
+
+	private void addFailure(String s) {
+		// Only the first failure is detailed
+		if (failures == 0) {
+			firstFailure.append(s).append('\n');
+		}
+	}
+
+	private static int rType(int rs, int rt, int rd, int sa, int function) {
+		return (rs << 21) | (rt << 16) | (rd << 11) | (sa << 6) | function;
+	}
+
+	private static int iType(int opcode, int rs, int rt, int imm16) {
+		return (opcode << 26) | (rs << 21) | (rt << 16) | (imm16 & 0xFFFF);
+	}
+
+	private void write(int opcode) {
+		opcodes.add(opcode);
+	}
+
+	private int randomRegister() {
+		return registers[random.nextInt(registers.length)];
+	}
+
+	private int randomImm16() {
+		switch (random.nextInt(4)) {
+			case 0: return random.nextInt(16);
+			case 1: return -random.nextInt(16);
+			default: return random.nextInt(0x10000);
+		}
+	}
+	/**
+	 * @return a random instruction without delay slot
+	 */
+	private int randomInstruction() {
+		int rd = randomRegister();
+		int rs = randomRegister();
+		int rt = randomRegister();
+		int base = random.nextBoolean() ? _s0 : _s1;
+
+		switch (random.nextInt(10)) {
+			case 0:
+			case 1: {
+				// Constant values: lui, ori/addiu from $zr or from a register
+				final int[] opcodes = new int[] { 0x0F, 0x0D, 0x09 };
+				int opcode = opcodes[random.nextInt(opcodes.length)];
+				return iType(opcode, random.nextBoolean() ? _zr : rs, rt, randomImm16());
+			}
+			case 2:
+			case 3: {
+				// addiu, slti, sltiu, andi, ori, xori
+				int opcode = 0x09 + random.nextInt(6);
+				return iType(opcode, rs, rt, randomImm16());
+			}
+			case 4:
+			case 5: {
+				// addu, subu, and, or, xor, nor, slt, sltu
+				final int[] functions = new int[] { 0x21, 0x23, 0x24, 0x25, 0x26, 0x27, 0x2A, 0x2B };
+				return rType(rs, rt, rd, 0, functions[random.nextInt(functions.length)]);
+			}
+			case 6: {
+				// sll, srl, sra
+				final int[] functions = new int[] { 0x00, 0x02, 0x03 };
+				return rType(0, rt, rd, random.nextInt(32), functions[random.nextInt(functions.length)]);
+			}
+			case 7: {
+				// sllv, srlv, srav
+				final int[] functions = new int[] { 0x04, 0x06, 0x07 };
+				return rType(rs, rt, rd, 0, functions[random.nextInt(functions.length)]);
+			}
+			case 8: {
+				// lb, lh, lw, lbu, lhu
+				final int[] opcodes = new int[] { 0x20, 0x21, 0x23, 0x24, 0x25 };
+				final int[] alignments = new int[] { 1, 2, 4, 1, 2 };
+				int index = random.nextInt(opcodes.length);
+				int offset = random.nextInt(dataLength) & -alignments[index];
+				return iType(opcodes[index], base, rt, offset);
+			}
+			default: {
+				// sb, sh, sw
+				final int[] opcodes = new int[] { 0x28, 0x29, 0x2B };
+				final int[] alignments = new int[] { 1, 2, 4 };
+				int index = random.nextInt(opcodes.length);
+				int offset = random.nextInt(dataLength) & -alignments[index];
+				return iType(opcodes[index], base, rt, offset);
+			}
+		}
+	}
+
+	/**
+	 * Write a random instruction sequence containing forward branches,
+	 * ending with "jr $ra".
+	 *
+	 * @return the indexes of the branch target instructions
+	 */
+	private Set<Integer> writeRandomSequence() {
+		// Load the data address as a constant into $s0
+		write(iType(0x0F, _zr, _s0, dataAddress >>> 16)); // lui $s0, hi(dataAddress)
+		write(iType(0x0D, _s0, _s0, dataAddress & 0xFFFF)); // ori $s0, $s0, lo(dataAddress)
+
+		Set<Integer> branchTargets = new HashSet<Integer>();
+		int endIndex = numberInstructions;
+		for (int i = 0; i < endIndex; i++) {
+			if (random.nextInt(10) == 0 && i + 2 < endIndex && !branchTargets.contains(i + 1)) {
+				// beq or bne to a following instruction, with a random delay slot
+				int target = i + 2 + random.nextInt(Math.min(6, endIndex - i - 1));
+				branchTargets.add(target);
+				int opcode = random.nextBoolean() ? 0x04 : 0x05;
+				write(iType(opcode, randomRegister(), randomRegister(), target - i - 1));
+				write(randomInstruction());
+				i++;
+			} else {
+				write(randomInstruction());
+			}
+		}
+		write(rType(_ra, 0, 0, 0, 0x08)); // jr $ra
+		write(nop);
+
+		// Indexes in the complete sequence, after the 2 instructions loading $s0
+		Set<Integer> branchTargetIndexes = new HashSet<Integer>();
+		for (Integer target : branchTargets) {
+			branchTargetIndexes.add(target + 2);
+		}
+
+		return branchTargetIndexes;
+	}
+
+	private List<CodeInstruction> getCodeInstructions(Set<Integer> branchTargets) {
+		List<CodeInstruction> codeInstructions = new ArrayList<CodeInstruction>();
+		for (int i = 0; i < opcodes.size(); i++) {
+			int opcode = opcodes.get(i).intValue();
+			int address = codeAddress + (i << 2);
+			Instruction insn = Decoder.instruction(opcode);
+			boolean isBranching = insn == Instructions.BEQ || insn == Instructions.BNE;
+			int branchingTo = isBranching ? address + 4 + (((short) opcode) << 2) : 0;
+			codeInstructions.add(new CodeInstruction(address, opcode, insn, branchTargets.contains(i), isBranching, branchingTo));
+		}
+
+		return codeInstructions;
+	}
+
+	private void initState(CpuState cpu, long seed) {
+		Random stateRandom = new Random(seed);
+		for (int reg = 1; reg < 32; reg++) {
+			cpu.setRegister(reg, stateRandom.nextInt());
+		}
+		cpu._s0 = dataAddress;
+		cpu._s1 = dataAddress;
+		stateRandom.nextBytes(data);
+	}
+
+	private int[] saveState(CpuState cpu) {
+		int[] state = new int[32 + dataLength];
+		for (int reg = 0; reg < 32; reg++) {
+			state[reg] = cpu.getRegister(reg);
+		}
+		for (int i = 0; i < dataLength; i++) {
+			state[32 + i] = data[i];
+		}
+
+		return state;
+	}
+
+	private int read8(int address) {
+		return data[address - dataAddress] & 0xFF;
+	}
+
+	private void write8(int address, int value) {
+		data[address - dataAddress] = (byte) value;
+	}
+
+	/**
+	 * Execute a load or store instruction on the local data array.
+	 */
+	private void executeMemory(CpuState cpu, int opcode, int baseAddress) {
+		int address = baseAddress + (short) opcode;
+		int rt = (opcode >> 16) & 0x1F;
+		int value = cpu.getRegister(rt);
+		switch (opcode >>> 26) {
+			case 0x20: cpu.setRegister(rt, (byte) read8(address)); break; // lb
+			case 0x21: cpu.setRegister(rt, (short) (read8(address) | (read8(address + 1) << 8))); break; // lh
+			case 0x23: cpu.setRegister(rt, read8(address) | (read8(address + 1) << 8) | (read8(address + 2) << 16) | (read8(address + 3) << 24)); break; // lw
+			case 0x24: cpu.setRegister(rt, read8(address)); break; // lbu
+			case 0x25: cpu.setRegister(rt, read8(address) | (read8(address + 1) << 8)); break; // lhu
+			case 0x2B: // sw
+				write8(address + 3, value >> 24);
+				write8(address + 2, value >> 16);
+			case 0x29: // sh
+				write8(address + 1, value >> 8);
+			case 0x28: // sb
+				write8(address, value);
+				break;
+			default:
+				throw new IllegalArgumentException(String.format("Unknown memory opcode 0x%08X", opcode));
+		}
+	}
+
+	/**
+	 * Execute one instruction without delay slot.
+	 *
+	 * @param constantPropagation when not null, apply the results of the analysis
+	 */
+	private void execute(CodeInstruction codeInstruction, ConstantPropagation constantPropagation) {
+		CpuState cpu = processor.cpu;
+		int opcode = codeInstruction.getOpcode();
+		Instruction insn = codeInstruction.getInsn();
+		boolean isMemory = (opcode >>> 26) >= 0x20;
+
+		if (constantPropagation != null) {
+			if (constantPropagation.isDeadWrite(codeInstruction)) {
+				return;
+			}
+			if (constantPropagation.isFolded(codeInstruction)) {
+				int reg = insn.hasFlags(Instruction.FLAG_WRITES_RT) ? codeInstruction.getRtRegisterIndex() : codeInstruction.getRdRegisterIndex();
+				cpu.setRegister(reg, constantPropagation.getFoldedValue(codeInstruction));
+				return;
+			}
+			if (isMemory && constantPropagation.isRsConstant(codeInstruction)) {
+				executeMemory(cpu, opcode, constantPropagation.getRsValue(codeInstruction));
+				return;
+			}
+		}
+
+		if (isMemory) {
+			executeMemory(cpu, opcode, cpu.getRegister(codeInstruction.getRsRegisterIndex()));
+		} else {
+			insn.interpret(processor, opcode);
+		}
+	}
+
+	/**
+	 * Execute the instruction sequence until the "jr $ra" and its delay slot.
+	 *
+	 * @param constantPropagation when not null, apply the results of the analysis
+	 */
+	private void execute(List<CodeInstruction> codeInstructions, ConstantPropagation constantPropagation) {
+		CpuState cpu = processor.cpu;
+		int index = 0;
+		while (index < codeInstructions.size()) {
+			CodeInstruction codeInstruction = codeInstructions.get(index);
+			Instruction insn = codeInstruction.getInsn();
+			if (insn == Instructions.BEQ || insn == Instructions.BNE) {
+				boolean equal = cpu.getRegister(codeInstruction.getRsRegisterIndex()) == cpu.getRegister(codeInstruction.getRtRegisterIndex());
+				boolean taken = insn == Instructions.BEQ ? equal : !equal;
+				execute(codeInstructions.get(index + 1), constantPropagation);
+				index = taken ? (codeInstruction.getBranchingTo() - codeAddress) >> 2 : index + 2;
+			} else if (insn == Instructions.JR) {
+				execute(codeInstructions.get(index + 1), constantPropagation);
+				break;
+			} else {
+				execute(codeInstruction, constantPropagation);
+				index++;
+			}
+		}
+	}
+
+	private void compare(int test, List<CodeInstruction> codeInstructions, int[] expected, int[] result) {
+		for (int i = 0; i < expected.length; i++) {
+			if (expected[i] != result[i]) {
+				if (i < 32) {
+					addFailure(String.format("FAILED - test #%d: %s=0x%08X, expected 0x%08X", test, gprNames[i], result[i], expected[i]));
+				} else {
+					addFailure(String.format("FAILED - test #%d: data 0x%08X=0x%02X, expected 0x%02X", test, dataAddress + i - 32, result[i] & 0xFF, expected[i] & 0xFF));
+				}
+				for (CodeInstruction codeInstruction : codeInstructions) {
+					addFailure(String.format("    %s", codeInstruction));
+				}
+				failures++;
+				return;
+			}
+		}
+	}
+
+	@Test
+	public void testRandomSequences() {
+		CpuState cpu = processor.cpu;
+		for (int test = 0; test < numberTests; test++) {
+			opcodes.clear();
+			Set<Integer> branchTargets = writeRandomSequence();
+			List<CodeInstruction> codeInstructions = getCodeInstructions(branchTargets);
+			long seed = random.nextLong();
+
+			initState(cpu, seed);
+			execute(codeInstructions, null);
+			int[] expected = saveState(cpu);
+
+			initState(cpu, seed);
+			execute(codeInstructions, new ConstantPropagation(codeInstructions));
+			int[] result = saveState(cpu);
+
+			compare(test, codeInstructions, expected, result);
+		}
+
+		Assert.assertEquals(String.format("Failed random sequences out of %d, first failure:\n%s", numberTests, firstFailure), 0, failures);
+	}
+}